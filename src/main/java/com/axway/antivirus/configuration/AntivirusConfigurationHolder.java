@@ -6,6 +6,7 @@ package com.axway.antivirus.configuration;
 
 import com.axway.util.StringUtil;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -32,6 +33,31 @@ public class AntivirusConfigurationHolder
 	private List<String> fileExtensionRestriction;
 	private List<String> protocolRestriction;
 	private List<String> partnerNameRestriction;
+	private int connectionPoolSize;
+	private int connectionIdleTimeout;
+	private int maxConnections;
+	private boolean zeroCopyTransfer;
+	private int maxConcurrentScans;
+	private int asyncScanThreads;
+	private int asyncScanQueueSize;
+	private boolean virtualThreads;
+	private boolean nioEngine;
+	private int nioIoThreads;
+	private int weight;
+	private List<String> scannerGroup;
+	private int circuitBreakerFailures;
+	private int circuitBreakerOpenTime;
+	private int healthCheckInterval;
+	private boolean hedgeScans;
+	private int hedgePercentile;
+	private boolean adaptivePreview;
+	private int verdictCacheSize;
+	private int verdictCacheTtl;
+	private int verdictStoreSize;
+	private boolean coalesceScans;
+	private List<String> contentTypePolicies;
+	private List<AntivirusConfigurationHolder> groupMembers;
+	private File verdictStoreDirectory;
 
 	/**
 	 * Default constructor
@@ -51,6 +77,29 @@ public class AntivirusConfigurationHolder
 		setFileExtensionRestriction(new ArrayList<String>());
 		setProtocolRestrictions(new ArrayList<String>());
 		setPartnerRestrictions(new ArrayList<String>());
+		setConnectionPoolSize(Integer.parseInt(PropertyKey.CONNECTION_POOL_SIZE.getDefaultValue()));
+		setConnectionIdleTimeout(Integer.parseInt(PropertyKey.CONNECTION_IDLE_TIMEOUT.getDefaultValue()));
+		setMaxConnections(Integer.parseInt(PropertyKey.MAX_CONNECTIONS.getDefaultValue()));
+		setZeroCopyTransfer(Boolean.parseBoolean(PropertyKey.ZERO_COPY_TRANSFER.getDefaultValue()));
+		setMaxConcurrentScans(Integer.parseInt(PropertyKey.MAX_CONCURRENT_SCANS.getDefaultValue()));
+		setAsyncScanThreads(Integer.parseInt(PropertyKey.ASYNC_SCAN_THREADS.getDefaultValue()));
+		setAsyncScanQueueSize(Integer.parseInt(PropertyKey.ASYNC_SCAN_QUEUE_SIZE.getDefaultValue()));
+		setVirtualThreads(Boolean.parseBoolean(PropertyKey.VIRTUAL_THREADS.getDefaultValue()));
+		setNioEngine(Boolean.parseBoolean(PropertyKey.NIO_ENGINE.getDefaultValue()));
+		setNioIoThreads(Integer.parseInt(PropertyKey.NIO_IO_THREADS.getDefaultValue()));
+		setWeight(Integer.parseInt(PropertyKey.WEIGHT.getDefaultValue()));
+		setScannerGroup(new ArrayList<String>());
+		setContentTypePolicies(new ArrayList<String>());
+		setCircuitBreakerFailures(Integer.parseInt(PropertyKey.CIRCUIT_BREAKER_FAILURES.getDefaultValue()));
+		setCircuitBreakerOpenTime(Integer.parseInt(PropertyKey.CIRCUIT_BREAKER_OPEN_TIME.getDefaultValue()));
+		setHealthCheckInterval(Integer.parseInt(PropertyKey.HEALTH_CHECK_INTERVAL.getDefaultValue()));
+		setHedgeScans(Boolean.parseBoolean(PropertyKey.HEDGE_SCANS.getDefaultValue()));
+		setHedgePercentile(Integer.parseInt(PropertyKey.HEDGE_PERCENTILE.getDefaultValue()));
+		setAdaptivePreview(Boolean.parseBoolean(PropertyKey.ADAPTIVE_PREVIEW.getDefaultValue()));
+		setVerdictCacheSize(Integer.parseInt(PropertyKey.VERDICT_CACHE_SIZE.getDefaultValue()));
+		setVerdictCacheTtl(Integer.parseInt(PropertyKey.VERDICT_CACHE_TTL.getDefaultValue()));
+		setVerdictStoreSize(Integer.parseInt(PropertyKey.VERDICT_STORE_SIZE.getDefaultValue()));
+		setCoalesceScans(Boolean.parseBoolean(PropertyKey.COALESCE_SCANS.getDefaultValue()));
 	}
 
 	/**
@@ -78,6 +127,30 @@ public class AntivirusConfigurationHolder
 		setFileExtensionRestriction(getRestrictionListOfValues(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_FILE_EXTENSION_RESTRICTION)));
 		setProtocolRestrictions(getRestrictionListOfValues(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_PROTOCOL_RESTRICTION)));
 		setPartnerRestrictions(getRestrictionListOfValues(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_PARTNER_NAME_RESTRICTION)));
+
+		setConnectionPoolSize(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_POOL_SIZE)));
+		setConnectionIdleTimeout(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_IDLE_TIMEOUT)));
+		setMaxConnections(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_MAX_CONNECTIONS)));
+		setZeroCopyTransfer(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_ZERO_COPY_TRANSFER)));
+		setMaxConcurrentScans(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_MAX_CONCURRENT_SCANS)));
+		setAsyncScanThreads(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_THREADS)));
+		setAsyncScanQueueSize(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_QUEUE_SIZE)));
+		setVirtualThreads(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_VIRTUAL_THREADS)));
+		setNioEngine(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_ENGINE)));
+		setNioIoThreads(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_IO_THREADS)));
+		setWeight(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_WEIGHT)));
+		setScannerGroup(getRestrictionListOfValues(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_SCANNER_GROUP)));
+		setCircuitBreakerFailures(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_FAILURES)));
+		setCircuitBreakerOpenTime(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_OPEN_TIME)));
+		setHealthCheckInterval(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL)));
+		setHedgeScans(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_HEDGE_SCANS)));
+		setHedgePercentile(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_HEDGE_PERCENTILE)));
+		setAdaptivePreview(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_ADAPTIVE_PREVIEW)));
+		setVerdictCacheSize(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_SIZE)));
+		setVerdictCacheTtl(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_TTL)));
+		setVerdictStoreSize(Integer.parseInt(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_STORE_SIZE)));
+		setCoalesceScans(Boolean.parseBoolean(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_COALESCE_SCANS)));
+		setContentTypePolicies(getRestrictionListOfValues(getPropertyOrDefaultValue(properties, Constants.SCANNER_CONFIGURATION_PROPERTY_CONTENT_TYPE_POLICIES)));
 	}
 
 	/**
@@ -466,6 +539,506 @@ public class AntivirusConfigurationHolder
 		this.scanFromIntegrator = scanFromIntegrator;
 	}
 
+	/**
+	 * Getter for the connection pool size
+	 *
+	 * @return The maximum number of idle connections kept open to the ICAP server
+	 */
+	public int getConnectionPoolSize()
+	{
+		return connectionPoolSize;
+	}
+
+	/**
+	 * Setter for the connection pool size
+	 *
+	 * @param connectionPoolSize The maximum number of idle connections kept open to the ICAP server
+	 */
+	public void setConnectionPoolSize(int connectionPoolSize)
+	{
+		this.connectionPoolSize = connectionPoolSize;
+	}
+
+	/**
+	 * Getter for the connection idle timeout
+	 *
+	 * @return The time in milliseconds an idle connection is kept in the pool
+	 */
+	public int getConnectionIdleTimeout()
+	{
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * Setter for the connection idle timeout
+	 *
+	 * @param connectionIdleTimeout The time in milliseconds an idle connection is kept in the pool
+	 */
+	public void setConnectionIdleTimeout(int connectionIdleTimeout)
+	{
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * Getter for the maximum number of connections
+	 *
+	 * @return The maximum number of connections open to the ICAP server, <code>0</code> for no limit
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Setter for the maximum number of connections
+	 *
+	 * @param maxConnections The maximum number of connections open to the ICAP server, <code>0</code> for no limit
+	 */
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Getter for the zero-copy transfer flag
+	 *
+	 * @return <code>true</code> if the file is transferred to the socket without being copied through the heap
+	 */
+	public boolean isZeroCopyTransfer()
+	{
+		return zeroCopyTransfer;
+	}
+
+	/**
+	 * Setter for the zero-copy transfer flag
+	 *
+	 * @param zeroCopyTransfer flag set to transfer the file to the socket without copying it through the heap
+	 */
+	public void setZeroCopyTransfer(boolean zeroCopyTransfer)
+	{
+		this.zeroCopyTransfer = zeroCopyTransfer;
+	}
+
+	/**
+	 * Getter for the maximum number of concurrent scans
+	 *
+	 * @return The maximum number of files scanned in parallel, <code>0</code> if not limited
+	 */
+	public int getMaxConcurrentScans()
+	{
+		return maxConcurrentScans;
+	}
+
+	/**
+	 * Setter for the maximum number of concurrent scans
+	 *
+	 * @param maxConcurrentScans The maximum number of files scanned in parallel, <code>0</code> if not limited
+	 */
+	public void setMaxConcurrentScans(int maxConcurrentScans)
+	{
+		this.maxConcurrentScans = maxConcurrentScans;
+	}
+
+	/**
+	 * Getter for the number of asynchronous scan threads
+	 *
+	 * @return The number of threads running the asynchronous scans
+	 */
+	public int getAsyncScanThreads()
+	{
+		return asyncScanThreads;
+	}
+
+	/**
+	 * Setter for the number of asynchronous scan threads
+	 *
+	 * @param asyncScanThreads The number of threads running the asynchronous scans
+	 */
+	public void setAsyncScanThreads(int asyncScanThreads)
+	{
+		this.asyncScanThreads = asyncScanThreads;
+	}
+
+	/**
+	 * Getter for the asynchronous scan queue size
+	 *
+	 * @return The maximum number of asynchronous scans waiting for a thread
+	 */
+	public int getAsyncScanQueueSize()
+	{
+		return asyncScanQueueSize;
+	}
+
+	/**
+	 * Setter for the asynchronous scan queue size
+	 *
+	 * @param asyncScanQueueSize The maximum number of asynchronous scans waiting for a thread
+	 */
+	public void setAsyncScanQueueSize(int asyncScanQueueSize)
+	{
+		this.asyncScanQueueSize = asyncScanQueueSize;
+	}
+
+	/**
+	 * Getter for the virtual threads flag
+	 *
+	 * @return <code>true</code> if the asynchronous scans run on virtual threads when the JVM supports them
+	 */
+	public boolean isVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	/**
+	 * Setter for the virtual threads flag
+	 *
+	 * @param virtualThreads flag set to run the asynchronous scans on virtual threads when the JVM supports them
+	 */
+	public void setVirtualThreads(boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Getter for the non-blocking engine flag
+	 *
+	 * @return <code>true</code> if the asynchronous scans run on the non-blocking engine
+	 */
+	public boolean isNioEngine()
+	{
+		return nioEngine;
+	}
+
+	/**
+	 * Setter for the non-blocking engine flag
+	 *
+	 * @param nioEngine flag set to run the asynchronous scans on the non-blocking engine
+	 */
+	public void setNioEngine(boolean nioEngine)
+	{
+		this.nioEngine = nioEngine;
+	}
+
+	/**
+	 * Getter for the number of I/O threads of the non-blocking engine
+	 *
+	 * @return The number of I/O threads of the non-blocking engine
+	 */
+	public int getNioIoThreads()
+	{
+		return nioIoThreads;
+	}
+
+	/**
+	 * Setter for the number of I/O threads of the non-blocking engine
+	 *
+	 * @param nioIoThreads The number of I/O threads of the non-blocking engine
+	 */
+	public void setNioIoThreads(int nioIoThreads)
+	{
+		this.nioIoThreads = nioIoThreads;
+	}
+
+	/**
+	 * Getter for the weight of the ICAP server inside a scanner group
+	 *
+	 * @return The relative share of the scans sent to the server
+	 */
+	public int getWeight()
+	{
+		return weight;
+	}
+
+	/**
+	 * Setter for the weight of the ICAP server inside a scanner group
+	 *
+	 * @param weight The relative share of the scans sent to the server
+	 */
+	public void setWeight(int weight)
+	{
+		this.weight = weight;
+	}
+
+	/**
+	 * Getter for the IDs of the scanners sharing the scans of this scanner
+	 *
+	 * @return The list of scanner IDs, empty if this scanner is not a group
+	 */
+	public List<String> getScannerGroup()
+	{
+		return scannerGroup;
+	}
+
+	/**
+	 * Setter for the IDs of the scanners sharing the scans of this scanner
+	 *
+	 * @param scannerGroup The list of scanner IDs
+	 */
+	public void setScannerGroup(List<String> scannerGroup)
+	{
+		this.scannerGroup = scannerGroup;
+	}
+
+	/**
+	 * Getter for the configurations of the ICAP servers of the group, resolved when the configuration file is read
+	 *
+	 * @return The configurations of the servers, <code>null</code> if this scanner is not a group
+	 */
+	public List<AntivirusConfigurationHolder> getGroupMembers()
+	{
+		return groupMembers;
+	}
+
+	/**
+	 * Setter for the configurations of the ICAP servers of the group
+	 *
+	 * @param groupMembers The configurations of the servers
+	 */
+	public void setGroupMembers(List<AntivirusConfigurationHolder> groupMembers)
+	{
+		this.groupMembers = groupMembers;
+	}
+
+	/**
+	 * Getter for the directory of the verdict store, resolved from the location of the configuration file
+	 *
+	 * @return The directory shared by the nodes of the cluster, <code>null</code> if not resolved
+	 */
+	public File getVerdictStoreDirectory()
+	{
+		return verdictStoreDirectory;
+	}
+
+	/**
+	 * Setter for the directory of the verdict store
+	 *
+	 * @param verdictStoreDirectory The directory shared by the nodes of the cluster
+	 */
+	public void setVerdictStoreDirectory(File verdictStoreDirectory)
+	{
+		this.verdictStoreDirectory = verdictStoreDirectory;
+	}
+
+	/**
+	 * Getter for the number of consecutive failures after which the ICAP server is considered down
+	 *
+	 * @return The number of consecutive failures, <code>0</code> if the server is never considered down
+	 */
+	public int getCircuitBreakerFailures()
+	{
+		return circuitBreakerFailures;
+	}
+
+	/**
+	 * Setter for the number of consecutive failures after which the ICAP server is considered down
+	 *
+	 * @param circuitBreakerFailures The number of consecutive failures
+	 */
+	public void setCircuitBreakerFailures(int circuitBreakerFailures)
+	{
+		this.circuitBreakerFailures = circuitBreakerFailures;
+	}
+
+	/**
+	 * Getter for the time an ICAP server considered down gets no scan
+	 *
+	 * @return The time in milliseconds
+	 */
+	public int getCircuitBreakerOpenTime()
+	{
+		return circuitBreakerOpenTime;
+	}
+
+	/**
+	 * Setter for the time an ICAP server considered down gets no scan
+	 *
+	 * @param circuitBreakerOpenTime The time in milliseconds
+	 */
+	public void setCircuitBreakerOpenTime(int circuitBreakerOpenTime)
+	{
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	/**
+	 * Getter for the time between two health checks of the ICAP server
+	 *
+	 * @return The time in milliseconds, <code>0</code> if the server is not checked
+	 */
+	public int getHealthCheckInterval()
+	{
+		return healthCheckInterval;
+	}
+
+	/**
+	 * Setter for the time between two health checks of the ICAP server
+	 *
+	 * @param healthCheckInterval The time in milliseconds
+	 */
+	public void setHealthCheckInterval(int healthCheckInterval)
+	{
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * Getter for the flag to send the slow scans to a second ICAP server
+	 *
+	 * @return <code>true</code> if the slow scans are sent to a second ICAP server
+	 */
+	public boolean isHedgeScans()
+	{
+		return hedgeScans;
+	}
+
+	/**
+	 * Setter for the flag to send the slow scans to a second ICAP server
+	 *
+	 * @param hedgeScans flag to send the slow scans to a second ICAP server
+	 */
+	public void setHedgeScans(boolean hedgeScans)
+	{
+		this.hedgeScans = hedgeScans;
+	}
+
+	/**
+	 * Getter for the percentile of the scan durations after which a scan is sent to a second ICAP server
+	 *
+	 * @return The percentile, between 50 and 99
+	 */
+	public int getHedgePercentile()
+	{
+		return hedgePercentile;
+	}
+
+	/**
+	 * Setter for the percentile of the scan durations after which a scan is sent to a second ICAP server
+	 *
+	 * @param hedgePercentile The percentile, between 50 and 99
+	 */
+	public void setHedgePercentile(int hedgePercentile)
+	{
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Getter for the flag set to tune the preview size from the responses of the ICAP server
+	 *
+	 * @return <code>true</code> if the preview size is tuned
+	 */
+	public boolean isAdaptivePreview()
+	{
+		return adaptivePreview;
+	}
+
+	/**
+	 * Setter for the flag set to tune the preview size from the responses of the ICAP server
+	 *
+	 * @param adaptivePreview flag set to tune the preview size
+	 */
+	public void setAdaptivePreview(boolean adaptivePreview)
+	{
+		this.adaptivePreview = adaptivePreview;
+	}
+
+	/**
+	 * Getter for the number of verdicts kept by the hash of the scanned data
+	 *
+	 * @return The number of verdicts kept, <code>0</code> if the verdicts are not kept
+	 */
+	public int getVerdictCacheSize()
+	{
+		return verdictCacheSize;
+	}
+
+	/**
+	 * Setter for the number of verdicts kept by the hash of the scanned data
+	 *
+	 * @param verdictCacheSize The number of verdicts kept
+	 */
+	public void setVerdictCacheSize(int verdictCacheSize)
+	{
+		this.verdictCacheSize = verdictCacheSize;
+	}
+
+	/**
+	 * Getter for the time in milliseconds a verdict is kept
+	 *
+	 * @return The time in milliseconds a verdict is kept
+	 */
+	public int getVerdictCacheTtl()
+	{
+		return verdictCacheTtl;
+	}
+
+	/**
+	 * Setter for the time in milliseconds a verdict is kept
+	 *
+	 * @param verdictCacheTtl The time in milliseconds a verdict is kept
+	 */
+	public void setVerdictCacheTtl(int verdictCacheTtl)
+	{
+		this.verdictCacheTtl = verdictCacheTtl;
+	}
+
+	/**
+	 * Getter for the number of verdicts kept in the verdict store shared by the nodes
+	 *
+	 * @return The number of verdicts stored, <code>0</code> if the verdicts are not stored
+	 */
+	public int getVerdictStoreSize()
+	{
+		return verdictStoreSize;
+	}
+
+	/**
+	 * Setter for the number of verdicts kept in the verdict store shared by the nodes
+	 *
+	 * @param verdictStoreSize The number of verdicts stored
+	 */
+	public void setVerdictStoreSize(int verdictStoreSize)
+	{
+		this.verdictStoreSize = verdictStoreSize;
+	}
+
+	/**
+	 * Getter for the flag to scan once the identical data scanned at the same time
+	 *
+	 * @return <code>true</code> if the scans of identical data running at the same time share one verdict
+	 */
+	public boolean isCoalesceScans()
+	{
+		return coalesceScans;
+	}
+
+	/**
+	 * Setter for the flag to scan once the identical data scanned at the same time
+	 *
+	 * @param coalesceScans flag to scan once the identical data scanned at the same time
+	 */
+	public void setCoalesceScans(boolean coalesceScans)
+	{
+		this.coalesceScans = coalesceScans;
+	}
+
+	/**
+	 * Getter for the scan policies of the content types found in the first bytes of the messages
+	 *
+	 * @return The list of <code>type:policy</code> pairs, empty if the content is not sniffed
+	 */
+	public List<String> getContentTypePolicies()
+	{
+		return contentTypePolicies;
+	}
+
+	/**
+	 * Setter for the scan policies of the content types found in the first bytes of the messages
+	 *
+	 * @param contentTypePolicies The list of <code>type:policy</code> pairs
+	 */
+	public void setContentTypePolicies(List<String> contentTypePolicies)
+	{
+		this.contentTypePolicies = contentTypePolicies;
+	}
+
 	/**
 	 * @return All the values from the <code>AntivirusConfigurationHolder</code>
 	 */
@@ -490,6 +1063,29 @@ public class AntivirusConfigurationHolder
 			+ ", fileExtensionRestriction=" + fileExtensionRestriction
 			+ ", protocolRestriction=" + protocolRestriction
 			+ ", partnerNameRestriction=" + partnerNameRestriction
+			+ ", connectionPoolSize=" + connectionPoolSize
+			+ ", connectionIdleTimeout=" + connectionIdleTimeout
+			+ ", maxConnections=" + maxConnections
+			+ ", zeroCopyTransfer=" + zeroCopyTransfer
+			+ ", maxConcurrentScans=" + maxConcurrentScans
+			+ ", asyncScanThreads=" + asyncScanThreads
+			+ ", asyncScanQueueSize=" + asyncScanQueueSize
+			+ ", virtualThreads=" + virtualThreads
+			+ ", nioEngine=" + nioEngine
+			+ ", nioIoThreads=" + nioIoThreads
+			+ ", weight=" + weight
+			+ ", scannerGroup=" + scannerGroup
+			+ ", circuitBreakerFailures=" + circuitBreakerFailures
+			+ ", circuitBreakerOpenTime=" + circuitBreakerOpenTime
+			+ ", healthCheckInterval=" + healthCheckInterval
+			+ ", hedgeScans=" + hedgeScans
+			+ ", hedgePercentile=" + hedgePercentile
+			+ ", adaptivePreview=" + adaptivePreview
+			+ ", verdictCacheSize=" + verdictCacheSize
+			+ ", verdictCacheTtl=" + verdictCacheTtl
+			+ ", verdictStoreSize=" + verdictStoreSize
+			+ ", coalesceScans=" + coalesceScans
+			+ ", contentTypePolicies=" + contentTypePolicies
 			+ '}';
 	}
 }
\ No newline at end of file
@@ -6,11 +6,20 @@ package com.axway.antivirus.configuration;
 
 import com.axway.antivirus.configuration.util.ConfigUtil;
 import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.HashReputation;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapRequestTemplate;
+import com.axway.antivirus.icap.IcapServerHealth;
+import com.axway.antivirus.icap.PreviewTuner;
 import com.axway.antivirus.inlineprocessor.AntivirusProcessor;
 
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -68,6 +77,12 @@ public class AntivirusConfigurationManager
 			try
 			{
 				logger.info("Scanner configuration not present or modified - attempting to load it.");
+				//the ICAP server may have changed, forget what we know about the previous one
+				IcapOptionsCache.getInstance().clear();
+				IcapConnectionPool.closeAll();
+				IcapRequestTemplate.clear();
+				IcapServerHealth.clear();
+				PreviewTuner.clear();
 				readScannerConfiguration(pathToFile);
 				setConfLoaded(true);
 				if (avServersConfig.get(scannerId) != null)
@@ -165,6 +180,9 @@ public class AntivirusConfigurationManager
 						}
 					}
 				}
+				resolveScannerGroup();
+				resolveVerdictStoreDirectory(pathToFile);
+				loadHashLists(pathToFile);
 			}
 		}
 		catch (Exception e)
@@ -175,6 +193,73 @@ public class AntivirusConfigurationManager
 		}
 	}
 
+	/**
+	 * Places the verdict store of all the scanners in the shared directory holding the configuration directory,
+	 * so all the nodes of the cluster use the same store
+	 *
+	 * @param pathToFile The file path for the configuration file
+	 */
+	private void resolveVerdictStoreDirectory(String pathToFile)
+	{
+		File confDirectory = new File(pathToFile).getAbsoluteFile().getParentFile();
+		if (confDirectory == null || confDirectory.getParentFile() == null)
+			return;
+		File verdictStoreDirectory = new File(confDirectory.getParentFile(), Constants.VERDICT_STORE_DIRECTORY);
+		for (AntivirusConfigurationHolder holder : avServersConfig.values())
+			holder.setVerdictStoreDirectory(verdictStoreDirectory);
+	}
+
+	/**
+	 * Loads the allowlist and the blocklist of the directory of the configuration file, if any
+	 *
+	 * @param pathToFile The file path for the configuration file
+	 */
+	public static void loadHashLists(String pathToFile)
+	{
+		File confDirectory = new File(pathToFile).getAbsoluteFile().getParentFile();
+		if (confDirectory != null)
+			HashReputation.getInstance().load(confDirectory);
+	}
+
+	/**
+	 * Uses the scanner group, if one is defined, for the messages and resolves the configurations of its ICAP servers.
+	 * The servers left out of the group keep their configuration but are not used.
+	 */
+	private void resolveScannerGroup()
+	{
+		List<String> groupIds = new ArrayList<>();
+		for (AntivirusConfigurationHolder holder : avServersConfig.values())
+		{
+			if (!holder.getScannerGroup().isEmpty())
+				groupIds.add(holder.getScannerId());
+		}
+		if (groupIds.isEmpty())
+			return;
+		Collections.sort(groupIds);
+		if (groupIds.size() > 1)
+			logger.warn("More than one scanner group is defined: " + groupIds + ". Using the scanner group " + groupIds.get(0) + ".");
+		scannerId = groupIds.get(0);
+
+		AntivirusConfigurationHolder group = avServersConfig.get(scannerId);
+		List<AntivirusConfigurationHolder> members = new ArrayList<>();
+		for (String memberId : group.getScannerGroup())
+		{
+			AntivirusConfigurationHolder member = avServersConfig.get(memberId.trim());
+			if (member == null)
+				logger.error("Scanner id: " + memberId.trim() + " of the scanner group " + scannerId
+					+ " is missing or invalid, it is left out of the group.");
+			else if (!members.contains(member))
+				members.add(member);
+		}
+		if (members.isEmpty())
+		{
+			logger.error("The scanner group " + scannerId + " has no valid scanner, only its own ICAP server is used.");
+			members.add(group);
+		}
+		group.setGroupMembers(members);
+		logger.info("Scanner group " + scannerId + " loaded with " + members.size() + " ICAP servers.");
+	}
+
 	/**
 	 * Getter for the flag, if the configuration is loaded or not
 	 *
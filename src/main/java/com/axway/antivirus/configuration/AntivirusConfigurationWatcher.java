@@ -60,6 +60,7 @@ public class AntivirusConfigurationWatcher implements Runnable
 	 *
 	 * <p>StandardWatchEventKinds.ENTRY_MODIFY -  If the file is modified it sets the flag <code>isConfLoaded</code> to false and reloads the configuration.</p>
 	 * <p>StandardWatchEventKinds.ENTRY_DELETE - If the file is deleted it sets the flag <code>isConfLoaded</code> to false and logs and error</p>
+	 * <p>The allowlist and the blocklist are loaded again when they are modified, created or deleted.</p>
 	 */
 
 	public void run()
@@ -70,10 +71,12 @@ public class AntivirusConfigurationWatcher implements Runnable
 			long lastTimestamp = file.lastModified();
 			Path folderPath = Paths.get(
 				FileRegistryHelper.getInstance().getCommonDir().getCanonicalPath() + FS + "conf" + FS + "avConf");
-			folderPath.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			folderPath.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_CREATE);
 			while (true)
 			{
 				WatchKey watchKey = watchService.take();
+				boolean isHashListModified = false;
 				if (watchKey != null)
 				{
 					for (WatchEvent<?> watchEvent : watchKey.pollEvents())
@@ -86,6 +89,11 @@ public class AntivirusConfigurationWatcher implements Runnable
 								logger.debug("An OVERFLOW event happened.");
 							continue; // loop
 						}
+						else if (isHashList(watchEvent.context().toString()))
+						{
+							logger.info("Hash list changed. File affected: " + watchEvent.context() + ".");
+							isHashListModified = true;
+						}
 						else if (StandardWatchEventKinds.ENTRY_MODIFY == kind
 							&& watchEvent.context().toString().equalsIgnoreCase("avScanner.properties")
 							&& lastTimestamp < file.lastModified())
@@ -106,6 +114,8 @@ public class AntivirusConfigurationWatcher implements Runnable
 					watchKey.reset();
 
 				}
+				if (isHashListModified)
+					AntivirusConfigurationManager.loadHashLists(AntivirusProcessor.getAvScannerConfFilePath());
 				if (isFileModified())
 				{
 					AntivirusConfigurationManager.setConfLoaded(false);
@@ -120,6 +130,11 @@ public class AntivirusConfigurationWatcher implements Runnable
 		}
 	}
 
+	private static boolean isHashList(String fileName)
+	{
+		return fileName.equalsIgnoreCase(Constants.ALLOWLIST_FILE_NAME) || fileName.equalsIgnoreCase(Constants.BLOCKLIST_FILE_NAME);
+	}
+
 	public boolean isFileModified()
 	{
 		return isFileModified;
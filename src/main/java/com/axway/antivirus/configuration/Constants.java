@@ -116,4 +116,177 @@ public class Constants
 	 */
 	public static final String SCANNER_CONFIGURATION_PROPERTY_PARTNER_NAME_RESTRICTION = "partnerNameRestriction";
 
+	/**
+	 * <code>SCANNERID.connectionPoolSize</code> property inside the avScanner.properties file
+	 * <p>The maximum number of idle keep-alive connections kept open to the ICAP server.
+	 * If set to <code>0</code> every scan opens and closes its own connection. If not set it will revert to the default value: <code>10</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_CONNECTION_POOL_SIZE = "connectionPoolSize";
+
+	/**
+	 * <code>SCANNERID.connectionIdleTimeout</code> property inside the avScanner.properties file
+	 * <p>The time in milliseconds an idle connection is kept in the pool before being closed.
+	 * If not set it will revert to the default value: <code>60000</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_CONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+
+	/**
+	 * <code>SCANNERID.maxConnections</code> property inside the avScanner.properties file
+	 * <p>The maximum number of connections open at the same time to the ICAP server, idle or in use. Once reached, a scan
+	 * waits up to <code>connectionTimeout</code> for a connection to be released. Set to <code>0</code> to not limit them.
+	 * If not set it will revert to the default value: <code>100</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_MAX_CONNECTIONS = "maxConnections";
+
+	/**
+	 * <code>SCANNERID.zeroCopyTransfer</code> property inside the avScanner.properties file
+	 * <p>If true, the part of the file sent after the preview is transferred from the file to the socket with
+	 * <code>FileChannel.transferTo</code>, without being copied through the heap. If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_ZERO_COPY_TRANSFER = "zeroCopyTransfer";
+
+	/**
+	 * <code>SCANNERID.maxConcurrentScans</code> property inside the avScanner.properties file
+	 * <p>The maximum number of files of this scanner profile scanned in parallel, the other scans wait for a free slot.
+	 * If set to <code>0</code> the number of parallel scans is not limited. If not set it will revert to the default value: <code>0</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_MAX_CONCURRENT_SCANS = "maxConcurrentScans";
+
+	/**
+	 * <code>SCANNERID.asyncScanThreads</code> property inside the avScanner.properties file
+	 * <p>The number of threads running the scans submitted asynchronously for this scanner profile.
+	 * If not set it will revert to the default value: <code>10</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_THREADS = "asyncScanThreads";
+
+	/**
+	 * <code>SCANNERID.asyncScanQueueSize</code> property inside the avScanner.properties file
+	 * <p>The maximum number of asynchronous scans waiting for a thread, the scans submitted when the queue is full are rejected.
+	 * If not set it will revert to the default value: <code>100</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_QUEUE_SIZE = "asyncScanQueueSize";
+
+	/**
+	 * <code>SCANNERID.virtualThreads</code> property inside the avScanner.properties file
+	 * <p>If true, each asynchronous scan runs on its own virtual thread when the JVM supports them (Java 21 or later), else on the
+	 * platform threads of the pool. The virtual threads are not pooled: up to <code>asyncScanThreads</code> plus <code>asyncScanQueueSize</code> scans are in progress at once.
+	 * If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_VIRTUAL_THREADS = "virtualThreads";
+
+	/**
+	 * <code>SCANNERID.nioEngine</code> property inside the avScanner.properties file
+	 * <p>If true, the asynchronous scans are driven by a few I/O threads over non-blocking connections instead of a thread per scan;
+	 * up to <code>asyncScanQueueSize</code> scans are in progress at the same time. The I/O threads read the data of the scans, which must
+	 * not block: local files or data in memory. Like the other scans, they take the <code>maxConcurrentScans</code> slots and
+	 * fail over to the other servers of a group; a scan submitted when all the slots are taken is rejected instead of waiting.
+	 * If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_NIO_ENGINE = "nioEngine";
+
+	/**
+	 * <code>SCANNERID.nioIoThreads</code> property inside the avScanner.properties file
+	 * <p>The number of I/O threads of the non-blocking engine. If not set it will revert to the default value: <code>2</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_NIO_IO_THREADS = "nioIoThreads";
+
+	/**
+	 * <code>SCANNERID.weight</code> property inside the avScanner.properties file
+	 * <p>The relative share of the scans sent to this ICAP server when it is a member of a scanner group. If not set it will revert to the default value: <code>1</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_WEIGHT = "weight";
+
+	/**
+	 * <code>SCANNERID.scannerGroup</code> property inside the avScanner.properties file
+	 * <p>The IDs of the scanners, comma separated, sharing the scans of this scanner. The other properties of this
+	 * scanner (restrictions, rejectFileOnError, maxConcurrentScans...) apply to the whole group.</p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_SCANNER_GROUP = "scannerGroup";
+
+	/**
+	 * <code>SCANNERID.circuitBreakerFailures</code> property inside the avScanner.properties file
+	 * <p>The number of consecutive failures (connection errors, timeouts, 5xx responses) after which an ICAP server is considered down and the scans fail over to the other servers of the group or fail at once. Set to <code>0</code> to disable. If not set it will revert to the default value: <code>5</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+
+	/**
+	 * <code>SCANNERID.circuitBreakerOpenTime</code> property inside the avScanner.properties file
+	 * <p>The time in milliseconds an ICAP server considered down gets no scan, before one scan is let through to test it. If not set it will revert to the default value: <code>30000</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+
+	/**
+	 * <code>SCANNERID.healthCheckInterval</code> property inside the avScanner.properties file
+	 * <p>The time in milliseconds between two OPTIONS requests sent in background to check the ICAP server. Set to <code>0</code> to disable. If not set it will revert to the default value: <code>0</code>, no check is sent</p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL = "healthCheckInterval";
+
+	/**
+	 * <code>SCANNERID.hedgeScans</code> property inside the avScanner.properties file
+	 * <p>If <code>true</code>, a file not scanned after the hedgePercentile of the scan durations is sent to a second ICAP server of the group, the first verdict is used. If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_HEDGE_SCANS = "hedgeScans";
+
+	/**
+	 * <code>SCANNERID.hedgePercentile</code> property inside the avScanner.properties file
+	 * <p>The percentile of the recent scan durations after which a scan is sent to a second ICAP server. If not set it will revert to the default value: <code>95</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_HEDGE_PERCENTILE = "hedgePercentile";
+
+	/**
+	 * <code>SCANNERID.adaptivePreview</code> property inside the avScanner.properties file
+	 * <p>Flag set to tune the preview size for each file extension and size from the responses of the ICAP server. If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_ADAPTIVE_PREVIEW = "adaptivePreview";
+
+	/**
+	 * <code>SCANNERID.verdictCacheSize</code> property inside the avScanner.properties file
+	 * <p>The number of verdicts kept by the SHA-256 of the scanned data, an identical file is not scanned again while the ISTag of the server is the same. If not set it will revert to the default value: <code>0</code>, no verdict is kept</p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_SIZE = "verdictCacheSize";
+
+	/**
+	 * <code>SCANNERID.verdictCacheTtl</code> property inside the avScanner.properties file
+	 * <p>The time in milliseconds a verdict is kept by the hash of the scanned data. If not set it will revert to the default value: <code>3600000</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_TTL = "verdictCacheTtl";
+
+	/**
+	 * <code>SCANNERID.verdictStoreSize</code> property inside the avScanner.properties file
+	 * <p>The number of verdicts kept in the verdict store shared by the nodes of the cluster, in the shared directory next to the configuration.
+	 * The file is read and written under file locks, so it can be shared by the nodes of several hosts on a network file system.
+	 * If not set it will revert to the default value: <code>0</code>, no verdict is stored</p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_VERDICT_STORE_SIZE = "verdictStoreSize";
+
+	/**
+	 * <code>SCANNERID.coalesceScans</code> property inside the avScanner.properties file
+	 * <p>If <code>true</code>, the scans of identical data running at the same time, found by the SHA-256 of the data, are sent once to the ICAP server and share the verdict.
+	 * If not set it will revert to the default value: <code>false</code></p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_COALESCE_SCANS = "coalesceScans";
+
+	/**
+	 * <code>SCANNERID.contentTypePolicies</code> property inside the avScanner.properties file
+	 * <p>The scan policies of the content types found in the first bytes of the messages, comma separated
+	 * <code>type:policy</code> pairs, e.g. <code>X12:skip,EDIFACT:skip,XML:previewOnly</code>. The policies are
+	 * <code>scan</code>, <code>skip</code> and <code>previewOnly</code>. If not set the content is not sniffed.</p>
+	 */
+	public static final String SCANNER_CONFIGURATION_PROPERTY_CONTENT_TYPE_POLICIES = "contentTypePolicies";
+
+	/**
+	 * The directory of the verdict store, in the <code>conf</code> directory holding the <code>avConf</code> directory
+	 */
+	public static final String VERDICT_STORE_DIRECTORY = "avVerdicts";
+
+	/**
+	 * The list of the SHA-256 of the files accepted without being scanned, next to the configuration file
+	 */
+	public static final String ALLOWLIST_FILE_NAME = "avAllowlist.txt";
+
+	/**
+	 * The list of the SHA-256 of the files rejected without being scanned, next to the configuration file
+	 */
+	public static final String BLOCKLIST_FILE_NAME = "avBlocklist.txt";
+
 }
@@ -31,11 +31,35 @@ public enum PropertyKey
 	FILENAME_RESTRICTION(Constants.SCANNER_CONFIGURATION_PROPERTY_FILENAME_RESTRICTION),
 	PROTOCOL_RESTRICTION(Constants.SCANNER_CONFIGURATION_PROPERTY_PROTOCOL_RESTRICTION),
 	FILE_EXTENSION_RESTRICTION(Constants.SCANNER_CONFIGURATION_PROPERTY_FILE_EXTENSION_RESTRICTION),
-	PARTNER_NAME_RESTRICTION(Constants.SCANNER_CONFIGURATION_PROPERTY_PARTNER_NAME_RESTRICTION);
+	PARTNER_NAME_RESTRICTION(Constants.SCANNER_CONFIGURATION_PROPERTY_PARTNER_NAME_RESTRICTION),
+	CONNECTION_POOL_SIZE(Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_POOL_SIZE, new ValidateRangedInteger(-1, 1024), "10", true),
+	CONNECTION_IDLE_TIMEOUT(Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_IDLE_TIMEOUT, new ValidateRangedInteger(0, Integer.MAX_VALUE), "60000", true),
+	MAX_CONNECTIONS(Constants.SCANNER_CONFIGURATION_PROPERTY_MAX_CONNECTIONS, new ValidateRangedInteger(0, 65535), "100", true),
+	ZERO_COPY_TRANSFER(Constants.SCANNER_CONFIGURATION_PROPERTY_ZERO_COPY_TRANSFER, new ValidateBoolean(), "false", true),
+	MAX_CONCURRENT_SCANS(Constants.SCANNER_CONFIGURATION_PROPERTY_MAX_CONCURRENT_SCANS, new ValidateRangedInteger(0, 1024), "0", true),
+	ASYNC_SCAN_THREADS(Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_THREADS, new ValidateRangedInteger(1, 1024), "10", true),
+	ASYNC_SCAN_QUEUE_SIZE(Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_QUEUE_SIZE, new ValidateRangedInteger(1, 100000), "100", true),
+	VIRTUAL_THREADS(Constants.SCANNER_CONFIGURATION_PROPERTY_VIRTUAL_THREADS, new ValidateBoolean(), "false", true),
+	NIO_ENGINE(Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_ENGINE, new ValidateBoolean(), "false", true),
+	NIO_IO_THREADS(Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_IO_THREADS, new ValidateRangedInteger(1, 64), "2", true),
+	WEIGHT(Constants.SCANNER_CONFIGURATION_PROPERTY_WEIGHT, new ValidateRangedInteger(1, 1000), "1", true),
+	SCANNER_GROUP(Constants.SCANNER_CONFIGURATION_PROPERTY_SCANNER_GROUP, null, null, true),
+	CIRCUIT_BREAKER_FAILURES(Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_FAILURES, new ValidateRangedInteger(0, 1000), "5", true),
+	CIRCUIT_BREAKER_OPEN_TIME(Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_OPEN_TIME, new ValidateRangedInteger(0, Integer.MAX_VALUE), "30000", true),
+	HEALTH_CHECK_INTERVAL(Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL, new ValidateRangedInteger(0, Integer.MAX_VALUE), "0", true),
+	HEDGE_SCANS(Constants.SCANNER_CONFIGURATION_PROPERTY_HEDGE_SCANS, new ValidateBoolean(), "false", true),
+	HEDGE_PERCENTILE(Constants.SCANNER_CONFIGURATION_PROPERTY_HEDGE_PERCENTILE, new ValidateRangedInteger(50, 99), "95", true),
+	ADAPTIVE_PREVIEW(Constants.SCANNER_CONFIGURATION_PROPERTY_ADAPTIVE_PREVIEW, new ValidateBoolean(), "false", true),
+	VERDICT_CACHE_SIZE(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_SIZE, new ValidateRangedInteger(0, 10000000), "0", true),
+	VERDICT_CACHE_TTL(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_TTL, new ValidateRangedInteger(0, Integer.MAX_VALUE), "3600000", true),
+	VERDICT_STORE_SIZE(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_STORE_SIZE, new ValidateRangedInteger(0, 4000000), "0", true),
+	COALESCE_SCANS(Constants.SCANNER_CONFIGURATION_PROPERTY_COALESCE_SCANS, new ValidateBoolean(), "false", true),
+	CONTENT_TYPE_POLICIES(Constants.SCANNER_CONFIGURATION_PROPERTY_CONTENT_TYPE_POLICIES, null, null, true);
 
 	private final String propertyName;
 	private ValidationStrategy validationStrategy;
 	private String defaultValue;
+	private boolean optional;
 
 	PropertyKey(String name)
 	{
@@ -55,6 +79,12 @@ public enum PropertyKey
 		this.defaultValue = defaultValue;
 	}
 
+	PropertyKey(String name, ValidationStrategy validationStrategy, String defaultValue, boolean optional)
+	{
+		this(name, validationStrategy, defaultValue);
+		this.optional = optional;
+	}
+
 	public String getPropertyName()
 	{
 		return propertyName;
@@ -69,4 +99,14 @@ public enum PropertyKey
 	{
 		return defaultValue;
 	}
+
+	/**
+	 * Optional properties fall back silently to their default value when they are not present in the file
+	 *
+	 * @return <code>true</code> if the property can be left out of the configuration file
+	 */
+	public boolean isOptional()
+	{
+		return optional;
+	}
 }
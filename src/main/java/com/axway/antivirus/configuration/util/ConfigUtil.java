@@ -156,7 +156,8 @@ public class ConfigUtil
 		{
 			if (!properties.containsKey(key.getPropertyName()))
 			{
-				result.add(key);
+				if (!key.isOptional())
+					result.add(key);
 			}
 			else
 			{
@@ -1,53 +1,70 @@
 package com.axway.antivirus.icap;
 
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.PropertyKey;
 import com.axway.antivirus.exceptions.AntivirusException;
 import com.axway.util.StringUtil;
 
 import org.apache.log4j.Logger;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import static java.util.Arrays.copyOfRange;
+import java.util.concurrent.Callable;
 
 public class AntivirusClient
 {
 	private static final Logger logger = Logger.getLogger(AntivirusClient.class);
-	private static final Charset StandardCharsetsUTF8 = Charset.forName("UTF-8");
-	private static final String STATUS_CODE = "StatusCode";
-	private static final String USERAGENT = "B2Bi ICAP Client - 1.0";
-	private static final String ICAPTERMINATOR = "\r\n\r\n";
-	private static final String HTTPTERMINATOR = "0\r\n\r\n";
-	private static final String LINETERMINATOR = "\r\n";
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
 
 	private static final String SERVER_RESPONSE = "Server response: ";
+	private static final int CONTINUE = 100;
 
-	private Socket client;
-	private DataOutputStream out;
-	private DataInputStream in;
+	/**
+	 * Content length used when the size of the data to scan is not known in advance
+	 */
+	public static final long UNKNOWN_LENGTH = -1;
+
+	/**
+	 * The largest preview sent, whatever the configured preview size, so the preview buffer stays small
+	 */
+	public static final int MAX_PREVIEW_SIZE = 65536;
+
+	private IcapConnectionPool connectionPool;
+	//volatile so a scan can be aborted from another thread
+	private volatile IcapConnection connection;
+	private OutputStream out;
+	private InputStream in;
+	private IcapResponseReader responseReader;
+	private IcapRequestTemplate requestTemplate;
 
 	private String hostname;
 	private int port;
 	private String serviceName;
 	private String serverVersion;
 	private int connectionTimeout;
+	private int connectionPoolSize;
+	private int connectionIdleTimeout;
+	private int maxConnections;
+	private boolean zeroCopyTransfer;
 
 	private int stdPreviewSize;
+	//null if the preview size is not tuned
+	private PreviewTuner previewTuner;
 	private int stdReceiveLength;
 	private int stdSendLength;
 
 	private StringBuilder failureReason;
-	private static final String CONNECTION = "Connection";
-	private static final String CLOSE = "close";
+	private boolean serverError;
+	private String serviceTag;
 
 	/**
 	 * Constructor for the ICAP client
@@ -57,7 +74,7 @@ public class AntivirusClient
 	 * @param serviceName The service to use (eg. "squidclamav").
 	 * @param version The version of the ICAP server
 	 * @param stdPreviewSize The preview size taken into account only if it's smaller than the one gotten from the server (returned by getOptions() method)
-	 * @param standardReceiveLength The length of the chunk received from the ICAP server, used in getHeader() method.
+	 * @param standardReceiveLength The maximum length of a response header received from the ICAP server, used in getHeader() method.
 	 * @param standardSendLength The length of the chunk sent to the ICAP server, used for splitting the message in chunks
 	 * @param connectionTimeout The time to wait for a connection to the ICAP server in milliseconds
 	 */
@@ -72,45 +89,164 @@ public class AntivirusClient
 		this.stdReceiveLength = standardReceiveLength;
 		this.stdSendLength = standardSendLength;
 		this.connectionTimeout = connectionTimeout;
+		this.requestTemplate = IcapRequestTemplate.getTemplate(hostname, serviceName, version);
+		this.connectionPoolSize = Integer.parseInt(PropertyKey.CONNECTION_POOL_SIZE.getDefaultValue());
+		this.connectionIdleTimeout = Integer.parseInt(PropertyKey.CONNECTION_IDLE_TIMEOUT.getDefaultValue());
+		this.maxConnections = Integer.parseInt(PropertyKey.MAX_CONNECTIONS.getDefaultValue());
+	}
+
+	/**
+	 * Constructor for the ICAP client based on the scanner configuration
+	 *
+	 * @param avConfHolder The configuration of the scanner
+	 */
+	public AntivirusClient(AntivirusConfigurationHolder avConfHolder)
+	{
+		this(avConfHolder.getHostname(),
+			avConfHolder.getPort(),
+			avConfHolder.getService(),
+			avConfHolder.getICAPServerVersion(),
+			avConfHolder.getPreviewSize(),
+			avConfHolder.getStdReceiveLength(),
+			avConfHolder.getStdSendLength(),
+			avConfHolder.getConnectionTimeout());
+		this.connectionPoolSize = avConfHolder.getConnectionPoolSize();
+		this.connectionIdleTimeout = avConfHolder.getConnectionIdleTimeout();
+		this.maxConnections = avConfHolder.getMaxConnections();
+		this.zeroCopyTransfer = avConfHolder.isZeroCopyTransfer();
+		if (avConfHolder.isAdaptivePreview())
+			this.previewTuner = PreviewTuner.getTuner(hostname, port, serviceName);
+	}
+
+	/**
+	 * Copy constructor, the new client has the same configuration but its own connection
+	 *
+	 * @param other The client to copy the configuration from
+	 */
+	private AntivirusClient(AntivirusClient other)
+	{
+		this(other.hostname, other.port, other.serviceName, other.serverVersion, other.stdPreviewSize,
+			other.stdReceiveLength, other.stdSendLength, other.connectionTimeout);
+		this.connectionPoolSize = other.connectionPoolSize;
+		this.connectionIdleTimeout = other.connectionIdleTimeout;
+		this.maxConnections = other.maxConnections;
+		this.zeroCopyTransfer = other.zeroCopyTransfer;
+		this.previewTuner = other.previewTuner;
+	}
+
+	/**
+	 * Creates a client for one scan, with the configuration of this client and its own connection, buffers
+	 * and failure reason, so scans can run in parallel
+	 *
+	 * @return A new client with the same configuration
+	 */
+	public AntivirusClient newScanClient()
+	{
+		return new AntivirusClient(this);
 	}
 
 	/**
-	 * Initializes the socket connection and IO streams. It asks the server for the available options and
-	 * preview size
+	 * Gets a connection to the ICAP server from the connection pool and initializes the IO streams.
+	 * The available options and preview size of the service are taken from the options cache; they are asked
+	 * from the server only the first time and refreshed in background once their Options-TTL elapsed.
 	 *
 	 * @throws IOException if the data streams cannot be opened
 	 * @throws AntivirusException if cannot open the connection to the ICAP server
 	 **/
 	public void connect() throws IOException, AntivirusException
 	{
-		//Initialize connection
-		if ((client = new Socket(this.hostname, port)) == null)
+		//Get a keep-alive connection from the pool or open a new one
+		connectionPool = IcapConnectionPool.getPool(hostname, port, connectionPoolSize, maxConnections, connectionIdleTimeout);
+		connection = connectionPool.acquire(this.connectionTimeout);
+
+		out = connection.getOutputStream();
+		in = connection.getInputStream();
+
+		String optionsKey = IcapOptionsCache.getKey(hostname, port, serviceName);
+		IcapServerOptions serverOptions = IcapOptionsCache.getInstance().get(optionsKey);
+		if (serverOptions == null)
 		{
-			throw new AntivirusException("Could not open socket connection, please check ICAP server connection.");
+			//Asks the server for the available options on this connection
+			serverOptions = requestServerOptions();
+			IcapOptionsCache.getInstance().put(optionsKey, serverOptions);
+			return;
 		}
-		//set the connection timeout
-		client.setSoTimeout(this.connectionTimeout);
 
-		//Opening out stream
-		OutputStream outToServer = client.getOutputStream();
-		out = new DataOutputStream(outToServer);
+		connection.setReusable(true);
+		applyServerPreviewSize(serverOptions.getPreviewSize());
+		if (serverOptions.isExpired())
+			refreshServerOptions();
+	}
 
-		//Opening in stream
-		InputStream inFromServer = client.getInputStream();
-		in = new DataInputStream(inFromServer);
+	/**
+	 * Asks the server for the options of the service again, in background, on its own connection
+	 */
+	void refreshServerOptions()
+	{
+		IcapOptionsCache.getInstance().refresh(IcapOptionsCache.getKey(hostname, port, serviceName), new Callable<IcapServerOptions>()
+		{
+			@Override
+			public IcapServerOptions call() throws Exception
+			{
+				return new AntivirusClient(AntivirusClient.this).fetchServerOptions();
+			}
+		});
+	}
+
+	/**
+	 * Sends an OPTIONS request on the current connection and interprets the response
+	 *
+	 * @return The options of the ICAP service
+	 * @throws IOException if an error is thrown when reading from the input data stream
+	 * @throws AntivirusException if the server returned an error or no header can be found in the response
+	 */
+	private IcapServerOptions requestServerOptions() throws IOException, AntivirusException
+	{
+		//Asks for the servers available options and returns the response with all its headers.
+		IcapResponse response = getOptions();
 
-		//Asks for the servers available options and returns the raw response as a String.
-		String parseMe = getOptions();
+		//Interpret the status code and if it is 200, get the preview size from the response
+		interpretStatusCode(response);
 
-		//HashMap of the key-value pairs of the response
-		Map<String, String> responseMap = parseHeader(parseMe);
 		//Get the value of the Connection property (if present) from the header.
-		//If an error occurred then the value should be "close" and we should close the connection
-		if (responseMap.containsKey(CONNECTION) && responseMap.get(CONNECTION).equalsIgnoreCase(CLOSE))
+		//If an error occurred then the value should be "close" and the connection will not be reused
+		setConnectionReusable(!response.isConnectionClose());
+		return IcapServerOptions.fromResponse(response.getHeaders());
+	}
+
+	/**
+	 * Asks the server for the options of the service on a pooled connection, used to refresh the options cache
+	 *
+	 * @return The options of the ICAP service
+	 * @throws IOException if the connection cannot be opened or an error is thrown when reading the response
+	 * @throws AntivirusException if the server returned an error or no header can be found in the response
+	 */
+	private IcapServerOptions fetchServerOptions() throws IOException, AntivirusException
+	{
+		connectionPool = IcapConnectionPool.getPool(hostname, port, connectionPoolSize, maxConnections, connectionIdleTimeout);
+		connection = connectionPool.acquire(this.connectionTimeout);
+		try
+		{
+			out = connection.getOutputStream();
+			in = connection.getInputStream();
+			return requestServerOptions();
+		}
+		finally
+		{
 			disconnect();
+		}
+	}
 
-		//Interpret the status code and if it is 200, get the preview size from the response
-		interpretStatusCode(responseMap);
+	/**
+	 * Asks the server for the options of the service on a pooled connection, used by the health checks.
+	 * The options cache is updated with the response.
+	 *
+	 * @throws IOException if the connection cannot be opened or an error is thrown when reading the response
+	 * @throws AntivirusException if the server returned an error or no header can be found in the response
+	 */
+	void checkServer() throws IOException, AntivirusException
+	{
+		IcapOptionsCache.getInstance().put(IcapOptionsCache.getKey(hostname, port, serviceName), fetchServerOptions());
 	}
 
 	/**
@@ -123,270 +259,631 @@ public class AntivirusClient
 	 * @throws AntivirusException if we cannot get the header from the response
 	 */
 	public boolean scanFile(File file) throws IOException, AntivirusException
+	{
+		return scanFile(file, null);
+	}
+
+	/**
+	 * Given a file, it will send the file to the server and return true,
+	 * if the server accepts the file. Visa-versa, false if the server rejects it.
+	 * The file is sent with a preview, or whole if its extension is in the Transfer-Complete list of the server.
+	 *
+	 * @param file Relative or absolute file path to a file.
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return Returns a Boolean value if the file is clean or not
+	 * @throws IOException if the file does not exist, or for some other reason cannot be opened for reading
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	public boolean scanFile(File file, String fileExtension) throws IOException, AntivirusException
+	{
+		return scanFile(file, fileExtension, null);
+	}
+
+	/**
+	 * Sends a file to the server and returns true if the server accepts it, pushing each block read through a stage.
+	 * See {@link #scanStream(InputStream, long, String, ScanStage)}.
+	 *
+	 * @param file Relative or absolute file path to a file.
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param stage The stage seeing the data, may be <code>null</code>
+	 * @return Returns a Boolean value if the file is clean or not
+	 * @throws IOException if the file does not exist, or for some other reason cannot be opened for reading
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	public boolean scanFile(File file, String fileExtension, ScanStage stage) throws IOException, AntivirusException
 	{
 		try (FileInputStream fileInStream = new FileInputStream(file))
 		{
-			int chunkNumber = 1;
-			int fileSize = fileInStream.available();
-			Map<String, String> responseMap = new HashMap<>();
+			return scanStream(fileInStream, file.length(), fileExtension, stage);
+		}
+	}
 
-			//First part of header
-			String resBody = "Content-Length: " + fileSize + ICAPTERMINATOR;
+	/**
+	 * Sends the data read from a stream to the server and returns true if the server accepts it.
+	 * <p>The data is read and sent in chunks of <code>stdSendLength</code> bytes, so the memory used doesn't depend on
+	 * the size of the data. The preview is read in the same buffer and limited to {@link #MAX_PREVIEW_SIZE} bytes.
+	 * If the size of the data is not known in advance, the encapsulated HTTP response has no Content-Length header
+	 * and the stream is read until its end.</p>
+	 *
+	 * @param data The data to scan, the stream is not closed
+	 * @param contentLength The number of bytes of the data or {@link #UNKNOWN_LENGTH}
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return Returns a Boolean value if the data is clean or not
+	 * @throws IOException if the data cannot be read or sent to the server
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	public boolean scanStream(InputStream data, long contentLength, String fileExtension) throws IOException, AntivirusException
+	{
+		return scanStream(data, contentLength, fileExtension, null);
+	}
 
-			int previewSize = stdPreviewSize;
-			if (fileSize <= stdPreviewSize)
-			{
-				previewSize = fileSize;
-			}
+	/**
+	 * Sends the data read from a stream to the server and returns true if the server accepts it, see
+	 * {@link #scanStream(InputStream, long, String)}.
+	 * <p>Each block read, to be sent or not, goes through the stage, so the data is analysed without being read
+	 * again. If the server gives its verdict after the preview, the rest of the data is still read for the stage but
+	 * not sent. The data doesn't go through the heap otherwise, so <code>zeroCopyTransfer</code> is not used.</p>
+	 *
+	 * @param data The data to scan, the stream is not closed
+	 * @param contentLength The number of bytes of the data or {@link #UNKNOWN_LENGTH}
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param stage The stage seeing the data, may be <code>null</code>
+	 * @return Returns a Boolean value if the data is clean or not
+	 * @throws IOException if the data cannot be read or sent to the server
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	public boolean scanStream(InputStream data, long contentLength, String fileExtension, ScanStage stage)
+		throws IOException, AntivirusException
+	{
+		if (stage != null)
+			stage.start();
 
-			String requestBuffer =
-				"RESPMOD icap://" + hostname + "/" + serviceName + " ICAP/" + serverVersion + LINETERMINATOR + "Host: "
-					+ hostname + LINETERMINATOR + "User-Agent: " + USERAGENT + LINETERMINATOR + "Allow: 204"
-					+ LINETERMINATOR + "Preview: " + previewSize + LINETERMINATOR + "Encapsulated: res-hdr=0, res-body="
-					+ resBody.length() + ICAPTERMINATOR + resBody + Integer.toHexString(previewSize) + LINETERMINATOR;
+		//the connection is given back to the pool only if the exchange is completed
+		setConnectionReusable(false);
 
-			//tell to ICAP server how you will send the file and the actual size of the file
-			sendString(requestBuffer);
-			if (logger.isDebugEnabled())
-				logger.debug("Sending the preview.");
-			if (logger.isTraceEnabled())
-				logger.trace("Preview: " + requestBuffer);
+		int chunkNumber = 1;
+		byte[] buffer = new byte[Math.max(stdSendLength, Math.min(stdPreviewSize, MAX_PREVIEW_SIZE))];
 
-			//Sending preview or, if it is smaller than previewSize, the whole file.
-			byte[] chunk = new byte[previewSize];
-			fileInStream.read(chunk);
+		//the header, the preview and the end of preview flag are gathered and sent in one write
+		IcapChunkedOutputStream chunkedOut = getRequestStream();
 
+		//the server wants the files of this type whole, a preview would only cost a round trip
+		int previewSize = choosePreviewSize(fileExtension, contentLength);
+		if (previewSize == IcapRequestTemplate.NO_PREVIEW)
+		{
+			requestTemplate.writeRespmod(chunkedOut, IcapRequestTemplate.NO_PREVIEW, contentLength);
 			if (logger.isDebugEnabled())
-			{
-				logger.debug("Sending chunk number: " + chunkNumber + " - " + chunk.length + " bytes");
-				chunkNumber++;
-			}
+				logger.debug("Sending the whole file without preview, as the server wants the files of this type.");
 			if (logger.isTraceEnabled())
-			{
-				String chunkString = new String(chunk, StandardCharsetsUTF8);
-				logger.trace("Chunk sent: " + chunkString);
-			}
+				logger.trace("Request: " + requestTemplate.getRespmod(IcapRequestTemplate.NO_PREVIEW, contentLength));
+			sendRemainder(data, buffer, chunkedOut, chunkNumber, stage);
+			return completeExchange(readResponse(false));
+		}
 
-			//send the file
-			sendBytes(chunk);
-			sendString(LINETERMINATOR);
+		int chosenPreviewSize = previewSize;
+		if (contentLength != UNKNOWN_LENGTH && contentLength <= previewSize)
+		{
+			previewSize = (int)contentLength;
+		}
 
-			//if the filesize is less or equal than the preview size send the ieof flag
-			if (fileSize <= previewSize)
-			{
-				sendString("0; ieof" + ICAPTERMINATOR);
-				if (logger.isDebugEnabled())
-					logger.debug("Sending the ieof flag.");
-			}
-			else if (previewSize != 0)
+		//Reading preview or, if it is smaller than previewSize, the whole file.
+		int previewRead = 0;
+		int n;
+		while (previewRead < previewSize && (n = data.read(buffer, previewRead, previewSize - previewRead)) != -1)
+			previewRead += n;
+
+		//if the file size is less or equal than the preview size the whole file is in the preview
+		boolean isWholeFile;
+		if (contentLength == UNKNOWN_LENGTH)
+		{
+			isWholeFile = previewRead < previewSize;
+			previewSize = previewRead;
+		}
+		else if (previewRead < previewSize)
+			throw new IOException("The data ended before its announced length of " + contentLength + " bytes.");
+		else
+			isWholeFile = contentLength <= previewSize;
+		if (stage != null && previewRead > 0)
+			stage.update(buffer, 0, previewRead);
+
+		//tell to ICAP server how you will send the file and the actual size of the file
+		requestTemplate.writeRespmod(chunkedOut, previewSize, contentLength);
+		if (logger.isDebugEnabled())
+			logger.debug("Sending the preview.");
+		if (logger.isTraceEnabled())
+			logger.trace("Preview: " + requestTemplate.getRespmod(previewSize, contentLength));
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("Sending chunk number: " + chunkNumber + " - " + previewRead + " bytes");
+			chunkNumber++;
+		}
+		if (logger.isTraceEnabled())
+		{
+			String chunkString = new String(buffer, 0, previewRead, HEADER_CHARSET);
+			logger.trace("Chunk sent: " + chunkString);
+		}
+
+		//send the preview
+		if (previewRead > 0)
+			chunkedOut.writeChunk(buffer, 0, previewRead);
+
+		//if the whole file was sent send the ieof flag
+		if (isWholeFile)
+		{
+			if (stage != null)
+				stage.end();
+			chunkedOut.writeIeofChunk();
+			if (logger.isDebugEnabled())
+				logger.debug("Sending the ieof flag.");
+		}
+		else
+		{
+			chunkedOut.writeLastChunk();
+			if (logger.isDebugEnabled())
+				logger.debug("Sending the end of preview flag and waiting for the server response.");
+		}
+		chunkedOut.flush();
+
+		// Parse the response! It might not be "100 continue"
+		// if the whole file was sent, then this is actually the response
+		// otherwise it is a "go" for the rest of the file.
+		if (!isWholeFile)
+		{
+			IcapResponse previewResponse = readResponse(false);
+			if (logger.isDebugEnabled())
+				logger.debug("Received server response after preview.");
+			recordPreviewResponse(fileExtension, contentLength, chosenPreviewSize, previewResponse.getStatusCode() != CONTINUE);
+			//check to see if the status code is : 100 Continue
+			//if it is 100, send the rest of the file
+			//else the server already gave its verdict (e.g. 204 for a file type it doesn't scan) and the exchange is over
+			if (previewResponse.getStatusCode() != CONTINUE)
 			{
-				sendString(HTTPTERMINATOR);
 				if (logger.isDebugEnabled())
-					logger.debug("Sending the end of preview flag and waiting for the server response.");
+					logger.debug("Verdict received after the preview, the rest of the file is not sent.");
+				boolean result = completeExchange(previewResponse);
+				if (stage != null)
+					readRemainder(data, buffer, stage);
+				return result;
 			}
+			interpretStatusCode(previewResponse);
+			sendRemainder(data, buffer, chunkedOut, chunkNumber, stage);
+		}
 
-			// Parse the response! It might not be "100 continue"
-			// if fileSize < previewSize, then this is actually the response
-			// otherwise it is a "go" for the rest of the file.
-			if (fileSize > previewSize)
+		return completeExchange(readResponse(false));
+	}
+
+	/**
+	 * Sends the data read from a channel to the server and returns true if the server accepts it.
+	 * See {@link #scanStream(InputStream, long, String)}.
+	 *
+	 * @param data The data to scan, the channel is not closed
+	 * @param contentLength The number of bytes of the data or {@link #UNKNOWN_LENGTH}
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return Returns a Boolean value if the data is clean or not
+	 * @throws IOException if the data cannot be read or sent to the server
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	public boolean scanChannel(ReadableByteChannel data, long contentLength, String fileExtension)
+		throws IOException, AntivirusException
+	{
+		//the stream returned by Channels closes the channel, so it is not closed here
+		return scanStream(Channels.newInputStream(data), contentLength, fileExtension);
+	}
+
+	/**
+	 * Sends the part of the data not sent yet in chunks, followed by the last chunk
+	 *
+	 * @param data The data, positioned after the preview
+	 * @param buffer The buffer used to read the data
+	 * @param chunkedOut The chunked stream to the ICAP server
+	 * @param chunkNumber The number of the next chunk, used for logging
+	 * @param stage The stage seeing the data, may be <code>null</code>
+	 * @throws IOException if the data cannot be read or sent
+	 */
+	private void sendRemainder(InputStream data, byte[] buffer, IcapChunkedOutputStream chunkedOut, int chunkNumber,
+		ScanStage stage) throws IOException
+	{
+		SocketChannel socketChannel = connection != null ? connection.getChannel() : null;
+		if (zeroCopyTransfer && stage == null && socketChannel != null && data instanceof FileInputStream)
+		{//Sending remaining part of file straight from the file to the socket
+			transferRemainder(((FileInputStream)data).getChannel(), socketChannel, chunkedOut, chunkNumber);
+		}
+		else
+		{//Sending remaining part of file
+			int bytesRead;
+			while ((bytesRead = data.read(buffer)) != -1)
 			{
-				String parseMe = getHeader(ICAPTERMINATOR);
-				responseMap = parseHeader(parseMe);
-				//Get the value of the Connection property (if present) from the header.
-				//If an error occurred then the value should be "close" and we should close the connection
-				if (responseMap.containsKey(CONNECTION) && responseMap.get(CONNECTION).equalsIgnoreCase(CLOSE))
-					disconnect();
+				if (bytesRead == 0)
+					continue;
 				if (logger.isDebugEnabled())
-					logger.debug("Received server response after preview.");
-				//check to see if the status code is : 100 Continue
-				//if it is 100, send the rest of the file
-				// else interpret response
-				Boolean isContinue = interpretStatusCode(responseMap);
-				if (isContinue)
-				{//Sending remaining part of file
-					byte[] buffer = new byte[stdSendLength];
-					int bytesRead;
-					while ((bytesRead = fileInStream.read(buffer)) != -1)
-					{
-						sendString(Integer.toHexString(bytesRead) + LINETERMINATOR);
-						if (logger.isDebugEnabled())
-						{
-							logger.debug("Sending chunk number: " + chunkNumber + " - " + bytesRead + " bytes.");
-							chunkNumber++;
-						}
-						if (logger.isTraceEnabled())
-						{
-							String bufferString = new String(copyOfRange(buffer, 0, bytesRead), StandardCharsetsUTF8);
-							logger.trace("Chunk sent: " + bufferString);
-						}
-						sendBytes(copyOfRange(buffer, 0, bytesRead));
-						sendString(LINETERMINATOR);
-					}
+				{
+					logger.debug("Sending chunk number: " + chunkNumber + " - " + bytesRead + " bytes.");
+					chunkNumber++;
 				}
-				else
-					return false;
-
-				//Closing file transfer.
-				requestBuffer = HTTPTERMINATOR;
-				if (logger.isDebugEnabled())
-					logger.debug("Closing the transfer. ");
-				sendString(requestBuffer);
+				if (logger.isTraceEnabled())
+				{
+					String bufferString = new String(buffer, 0, bytesRead, HEADER_CHARSET);
+					logger.trace("Chunk sent: " + bufferString);
+				}
+				if (stage != null)
+					stage.update(buffer, 0, bytesRead);
+				chunkedOut.writeChunk(buffer, 0, bytesRead);
 			}
+			if (stage != null)
+				stage.end();
+		}
 
-			responseMap.clear();
-
-			String response = getHeader(ICAPTERMINATOR);
-			responseMap = parseHeader(response);
+		//Closing file transfer.
+		if (logger.isDebugEnabled())
+			logger.debug("Closing the transfer. ");
+		chunkedOut.writeLastChunk();
+		chunkedOut.flush();
+	}
 
-			//Get the value of the Connection property (if present) from the header.
-			//If an error occurred then the value should be "close" and we should close the connection
-			if (responseMap.containsKey(CONNECTION) && responseMap.get(CONNECTION).equalsIgnoreCase(CLOSE))
-				disconnect();
-			if (logger.isTraceEnabled())
-				logger.trace(SERVER_RESPONSE + response);
-			return interpretStatusCode(responseMap);
+	/**
+	 * Reads the part of the data the server did not need, for a stage that has to see the whole data
+	 *
+	 * @param data The data, positioned after the preview
+	 * @param buffer The buffer used to read the data
+	 * @param stage The stage seeing the data
+	 * @throws IOException if the data cannot be read
+	 */
+	private static void readRemainder(InputStream data, byte[] buffer, ScanStage stage) throws IOException
+	{
+		int bytesRead;
+		while ((bytesRead = data.read(buffer)) != -1)
+		{
+			if (bytesRead > 0)
+				stage.update(buffer, 0, bytesRead);
 		}
+		stage.end();
+	}
 
+	/**
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return How the server wants to receive the file, based on the Transfer-* lists of the cached OPTIONS
+	 */
+	IcapServerOptions.TransferMode getTransferMode(String fileExtension)
+	{
+		IcapServerOptions serverOptions = IcapOptionsCache.getInstance().get(IcapOptionsCache.getKey(hostname, port, serviceName));
+		return serverOptions != null ? serverOptions.getTransferMode(fileExtension) : IcapServerOptions.TransferMode.PREVIEW;
 	}
 
 	/**
-	 * Asks for the servers available options and returns the raw response as a String.
+	 * Chooses the preview size of a file: the configured size capped by the server, tuned from the past responses of
+	 * the server with <code>adaptivePreview</code>
 	 *
-	 * @return String of the servers response.
-	 * @throws IOException if an error is thrown when reading from the input data stream
-	 * @throws AntivirusException if no header can be found in the response
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param contentLength The number of bytes of the data or {@link #UNKNOWN_LENGTH}
+	 * @return The preview size or {@link IcapRequestTemplate#NO_PREVIEW} to send the file whole
 	 */
-	private String getOptions() throws IOException, AntivirusException
+	int choosePreviewSize(String fileExtension, long contentLength)
 	{
-		//Send OPTIONS header and receive response
-		//Sending and recieving
-		String requestHeader =
-			"OPTIONS icap://" + hostname + "/" + serviceName + " ICAP/" + serverVersion + LINETERMINATOR + "Host: "
-				+ hostname + LINETERMINATOR + "User-Agent: " + USERAGENT + LINETERMINATOR + "Encapsulated: null-body=0"
-				+ ICAPTERMINATOR;
+		if (getTransferMode(fileExtension) == IcapServerOptions.TransferMode.COMPLETE)
+			return IcapRequestTemplate.NO_PREVIEW;
+		int previewSize = Math.min(stdPreviewSize, MAX_PREVIEW_SIZE);
+		return previewTuner != null ? previewTuner.getPreviewSize(fileExtension, contentLength, previewSize) : previewSize;
+	}
 
-		sendString(requestHeader);
+	/**
+	 * Records the response of the server to a preview that was not the whole file, to tune the next previews
+	 *
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param contentLength The number of bytes of the data or {@link #UNKNOWN_LENGTH}
+	 * @param previewSize The preview size chosen for the file
+	 * @param decided flag set if the server gave its verdict after the preview
+	 */
+	void recordPreviewResponse(String fileExtension, long contentLength, int previewSize, boolean decided)
+	{
+		if (previewTuner != null)
+			previewTuner.record(fileExtension, contentLength, previewSize, decided);
+	}
 
-		return getHeader(ICAPTERMINATOR);
+	/**
+	 * @return The tuner of the preview size, <code>null</code> if <code>adaptivePreview</code> is not set
+	 */
+	public PreviewTuner getPreviewTuner()
+	{
+		return previewTuner;
 	}
 
 	/**
-	 * Receive an expected ICAP header as response of a request. The returned String should be parsed with parseHeader()
+	 * Interprets the final response of a RESPMOD exchange, received after the whole file or after the preview
 	 *
-	 * @param terminator The ICAP response terminator
-	 * @return String of the raw response
-	 * @throws IOException if an error is thrown when reading from the input data stream
-	 * @throws AntivirusException if no header can be found in the response
+	 * @param response The final response of the server
+	 * @return <code>true</code> if the file is clean
+	 * @throws AntivirusException if the server returned an error code
 	 */
-	private String getHeader(String terminator) throws IOException, AntivirusException
+	private boolean completeExchange(IcapResponse response) throws AntivirusException
 	{
-		byte[] endofheader = terminator.getBytes(StandardCharsetsUTF8);
-		byte[] buffer = new byte[stdReceiveLength];
+		boolean result = interpretStatusCode(response);
+		checkServiceTag(response);
 
-		int n;
-		int offset = 0;
-		//stdReceiveLength-offset is replaced by '1' to not receive the next (HTTP) header.
-		while ((offset < stdReceiveLength) && ((n = in.read(buffer, offset, 1)) != -1))
-		{ // first part is to secure against DOS
-			offset += n;
-			if (offset > endofheader.length + 13)
-			{ // 13 is the smallest possible message "ICAP/1.0 xxx "
-				byte[] lastBytes = copyOfRange(buffer, offset - endofheader.length, offset);
-				if (Arrays.equals(endofheader, lastBytes))
-				{
-					return new String(buffer, 0, offset, StandardCharsetsUTF8);
-				}
+		//Get the value of the Connection property (if present) from the header.
+		//If an error occurred then the value should be "close" and the connection will not be reused.
+		//A response with an encapsulated body is not read, so the connection cannot be reused either.
+		setConnectionReusable(!response.isConnectionClose() && !response.hasEncapsulatedBody());
+		return result;
+	}
+
+	/**
+	 * Sends the remaining part of the file in chunks of <code>stdSendLength</code> bytes. Only the chunk sizes and
+	 * terminators go through the chunked stream, the data is transferred from the file to the socket with
+	 * {@link FileChannel#transferTo} so it is not copied through the heap.
+	 *
+	 * @param fileChannel The channel of the file, positioned after the preview
+	 * @param socketChannel The channel of the connection to the ICAP server
+	 * @param chunkedOut The chunked stream used for the chunk sizes and terminators
+	 * @param chunkNumber The number of the next chunk, used for logging
+	 * @return The number of the next chunk
+	 * @throws IOException if the file cannot be read or the data cannot be sent
+	 */
+	private int transferRemainder(FileChannel fileChannel, SocketChannel socketChannel,
+		IcapChunkedOutputStream chunkedOut, int chunkNumber) throws IOException
+	{
+		long position = fileChannel.position();
+		long fileLength = fileChannel.size();
+		while (position < fileLength)
+		{
+			long chunkLength = Math.min(stdSendLength, fileLength - position);
+			chunkedOut.writeChunkSize(chunkLength);
+			//the chunk size line must reach the socket before the data
+			chunkedOut.flush();
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("Transferring chunk number: " + chunkNumber + " - " + chunkLength + " bytes.");
+				chunkNumber++;
 			}
+			long chunkEnd = position + chunkLength;
+			while (position < chunkEnd)
+			{
+				long transferred = fileChannel.transferTo(position, chunkEnd - position, socketChannel);
+				if (transferred <= 0 && position >= fileChannel.size())
+					throw new IOException("The file was truncated while being sent to the ICAP server.");
+				position += transferred;
+			}
+			//the chunk terminator is sent together with the next chunk size
+			chunkedOut.writeChunkEnd();
 		}
-		throw new AntivirusException("Error in getting the header from the response");
+		return chunkNumber;
 	}
 
 	/**
-	 * Given a raw response header as a String, it will parse through it and return a HashMap of the result
+	 * Asks for the servers available options and returns the response.
 	 *
-	 * @param response A raw response header as a String.
-	 * @return HashMap of the key-value pairs of the response
-	 */
-	private Map<String, String> parseHeader(String response)
-	{
-		Map<String, String> headers = new HashMap<>();
-
-		/****SAMPLE:****
-		 * ICAP/1.0 204 Unmodified
-		 * Server: C-ICAP/0.1.6
-		 * Connection: keep-alive
-		 * ISTag: CI0001-000-0978-6918203
-		 */
-		// The status code is located between the first 2 whitespaces.
-		// Read status code
-		int x = response.indexOf(' ', 0);
-		int y = response.indexOf(' ', x + 1);
-		String statusCode = response.substring(x + 1, y);
-		headers.put(STATUS_CODE, statusCode);
-
-		/** Each line in the sample is ended with "\r\n".
-		 * When (i+2 == response.length()) The end of the header has been reached.
-		 * The +=2 is added to skip the "\r\n".
-		 * Read headers
-		 **/
-		int i = response.indexOf(LINETERMINATOR, y);
-		i += 2;
-		while (i + 2 != response.length() && response.substring(i).contains(":"))
-		{
-			int n = response.indexOf(':', i);
-			String key = response.substring(i, n);
+	 * @return The servers response, with all its headers.
+	 * @throws IOException if an error is thrown when reading from the input data stream
+	 * @throws AntivirusException if no header can be found in the response
+	 */
+	private IcapResponse getOptions() throws IOException, AntivirusException
+	{
+		//Send OPTIONS header and receive response
+		//Sending and recieving
+		out.write(requestTemplate.getOptionsRequest());
 
-			n += 2;
-			i = response.indexOf(LINETERMINATOR, n);
-			String value = response.substring(n, i);
+		return readResponse(true);
+	}
 
-			headers.put(key, value);
-			i += 2;
-		}
+	/**
+	 * Receive an expected ICAP header as response of a request and parses it.
+	 * The response is read in bulk through the response reader, the bytes following the header are kept by the reader
+	 * for the next read on the connection.
+	 *
+	 * @param keepAllHeaders flag set to keep all the headers of the response, not only the typed ones
+	 * @return The parsed response
+	 * @throws IOException if an error is thrown when reading from the input data stream
+	 * @throws AntivirusException if no header can be found in the response
+	 */
+	private IcapResponse readResponse(boolean keepAllHeaders) throws IOException, AntivirusException
+	{
+		IcapResponseReader reader = getResponseReader();
+		int length = reader.readHeader();
+		if (logger.isTraceEnabled())
+			logger.trace(SERVER_RESPONSE + new String(reader.getHeaderBuffer(), reader.getHeaderOffset(), length, HEADER_CHARSET));
+		return IcapResponse.parse(reader.getHeaderBuffer(), reader.getHeaderOffset(), length, keepAllHeaders);
+	}
 
-		return headers;
+	/**
+	 * The response reader is bound to the input stream of the current connection, the header size is limited
+	 * to <code>stdReceiveLength</code> bytes to secure against DOS
+	 *
+	 * @return The reader of the ICAP server responses
+	 */
+	private IcapResponseReader getResponseReader()
+	{
+		if (responseReader == null || responseReader.getInputStream() != in)
+			responseReader = new IcapResponseReader(in, stdReceiveLength);
+		return responseReader;
 	}
 
 	/**
-	 * Sends a String through the socket connection.
-	 * Used for sending ICAP headers.
+	 * The request stream is kept with the pooled connection, so its buffer is allocated once per connection
 	 *
-	 * @param requestHeader
-	 * @throws IOException
+	 * @return The buffered stream writing the ICAP requests
 	 */
-	private void sendString(String requestHeader) throws IOException
+	private IcapChunkedOutputStream getRequestStream()
 	{
-		out.write(requestHeader.getBytes(StandardCharsetsUTF8));
+		int bufferSize = stdSendLength + IcapChunkedOutputStream.CHUNK_OVERHEAD;
+		if (connection != null)
+			return connection.getRequestStream(bufferSize);
+		return new IcapChunkedOutputStream(out, bufferSize);
 	}
 
 	/**
-	 * Sends bytes of data from a byte-array through the socket connection.
-	 * Used to send filedata.
+	 * The ISTag changes when the ICAP service is updated (e.g. new antivirus signatures).
+	 * If it differs from the one in the cached options, the options are refreshed.
 	 *
-	 * @param chunk The byte-array to send.
-	 * @throws IOException
+	 * @param response The response of the server
 	 */
-	private void sendBytes(byte[] chunk) throws IOException
+	void checkServiceTag(IcapResponse response)
 	{
-		for (int i = 0; i < chunk.length; i++)
+		String isTag = response.getIsTag();
+		String optionsKey = IcapOptionsCache.getKey(hostname, port, serviceName);
+		IcapServerOptions serverOptions = IcapOptionsCache.getInstance().get(optionsKey);
+		serviceTag = isTag != null ? isTag : serverOptions != null ? serverOptions.getIsTag() : null;
+		if (isTag != null && serverOptions != null && !isTag.equals(serverOptions.getIsTag()))
 		{
-			out.write((char)chunk[i]);
+			if (logger.isDebugEnabled())
+				logger.debug("ISTag changed from " + serverOptions.getIsTag() + " to " + isTag + ", refreshing OPTIONS.");
+			refreshServerOptions();
 		}
 	}
 
 	/**
-	 * Terminates the socket connecting to the ICAP server.
+	 * @return The key of the service in the options cache
+	 */
+	String getServiceKey()
+	{
+		return IcapOptionsCache.getKey(hostname, port, serviceName);
+	}
+
+	/**
+	 * @return The ISTag of the service when it gave the last verdict, <code>null</code> if unknown
+	 */
+	String getServiceTag()
+	{
+		return serviceTag;
+	}
+
+	/**
+	 * @param reusable flag set if the current connection can be given back to the pool on disconnect
+	 */
+	private void setConnectionReusable(boolean reusable)
+	{
+		if (connection != null)
+			connection.setReusable(reusable);
+	}
+
+	/**
+	 * Releases the connection to the ICAP server. The socket is given back to the connection pool if the last exchange
+	 * was completed and the server keeps the connection alive, else it is closed.
 	 *
 	 * @throws IOException if an I/O error occurs when closing this socket.
 	 */
 	public void disconnect() throws IOException
 	{
-		if (client != null)
+		if (connection != null)
+		{
+			//unread bytes of a response would be taken for the response of the next exchange
+			if (responseReader != null && responseReader.getBufferedCount() > 0)
+				connection.setReusable(false);
+			responseReader = null;
+			if (connectionPool != null)
+				connectionPool.release(connection);
+			else
+				connection.close();
+			connection = null;
+		}
+	}
+
+	/**
+	 * Closes the connection of a scan in progress from another thread, the scan fails with an IO error
+	 */
+	void abort()
+	{
+		IcapConnection current = connection;
+		if (current != null)
 		{
-			client.close();
+			try
+			{
+				current.close();
+			}
+			catch (IOException ioex)
+			{
+				logger.debug("Error closing the connection of an aborted scan: " + ioex.getMessage());
+			}
 		}
 	}
 
+	/**
+	 * @return The IP address of the ICAP server
+	 */
+	String getHostname()
+	{
+		return hostname;
+	}
+
+	/**
+	 * @return The port of the ICAP server
+	 */
+	int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * @return The service used on the ICAP server
+	 */
+	String getServiceName()
+	{
+		return serviceName;
+	}
+
+	/**
+	 * @return The time in milliseconds to wait for the ICAP server
+	 */
+	int getConnectionTimeout()
+	{
+		return connectionTimeout;
+	}
+
+	/**
+	 * @return The maximum number of idle connections kept open to the ICAP server
+	 */
+	int getConnectionPoolSize()
+	{
+		return connectionPoolSize;
+	}
+
+	/**
+	 * @return The time in milliseconds an idle connection is kept open
+	 */
+	int getConnectionIdleTimeout()
+	{
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * @return The preview size, updated with the one of the server once the OPTIONS are known
+	 */
+	int getStdPreviewSize()
+	{
+		return stdPreviewSize;
+	}
+
+	/**
+	 * @return The maximum length of a response header
+	 */
+	int getStdReceiveLength()
+	{
+		return stdReceiveLength;
+	}
+
+	/**
+	 * @return The length of the chunks sent to the ICAP server
+	 */
+	int getStdSendLength()
+	{
+		return stdSendLength;
+	}
+
+	/**
+	 * @return The encoded requests of the ICAP service
+	 */
+	IcapRequestTemplate getRequestTemplate()
+	{
+		return requestTemplate;
+	}
+
+	/**
+	 * @return <code>true</code> if the server answered the last request with a 5xx status code
+	 */
+	boolean isServerError()
+	{
+		return serverError;
+	}
+
 	/**
 	 * @return The failure reason why the message is failed
 	 */
@@ -407,6 +904,27 @@ public class AntivirusClient
         }
     }
 
+	/**
+	 * The preview size will be set from the server or from the configuration file only if it is smaller than what the server returned
+	 *
+	 * @param serverPreviewSize The preview size returned by the server in the OPTIONS response or {@link IcapServerOptions#NOT_SET}
+	 */
+	void applyServerPreviewSize(int serverPreviewSize)
+	{
+		if (serverPreviewSize != IcapServerOptions.NOT_SET)
+		{
+			if (this.stdPreviewSize > serverPreviewSize)
+				this.stdPreviewSize = serverPreviewSize;
+			if (logger.isDebugEnabled())
+				logger.debug("Preview size received from server: " + serverPreviewSize + ". Using preview size: " + stdPreviewSize);
+		}
+		else
+		{
+			// The server did not return a Preview response header. Just use the configured stdPreviewSize.
+			logger.info("No Preview size received from server. Using client setting: " + stdPreviewSize);
+		}
+	}
+
 	/**
 	 * Given the response from the server interpret each possible response code
 	 *
@@ -418,10 +936,25 @@ public class AntivirusClient
         if (logger.isDebugEnabled())
             dumpResponseMap(responseMap);
 
-		String statusString = responseMap.get(STATUS_CODE);
-		if (!StringUtil.isNullEmptyOrBlank(statusString))
+		return interpretStatusCode(IcapResponse.fromMap(responseMap));
+	}
+
+	/**
+	 * Given the parsed response from the server interpret each possible response code
+	 *
+	 * @param response The response of the server
+	 * @throws AntivirusException if it's an error code or if the error code returned by the server is not in the known error codes
+	 */
+	public Boolean interpretStatusCode(IcapResponse response) throws AntivirusException
+	{
+		if (logger.isDebugEnabled())
+			logger.debug("Response: " + response);
+
+		int statusCode = response.getStatusCode();
+		//the 5xx status codes tell the server is failing, they count against its health
+		serverError = statusCode >= 500;
+		if (statusCode != IcapResponse.NOT_SET)
 		{
-			int statusCode = Integer.parseInt(statusString);
 			switch (statusCode)
 			{
 				case 100: //Continue transfer for the rest of the file
@@ -433,25 +966,11 @@ public class AntivirusClient
 					//else the request has been successfully executed but the file may be infected
 					//we must check for the extension headers if a threat has been found
 					//if they don't exists it means that the file was sent but the antivirus didn't actually scan it
-					if (responseMap.containsKey("Methods"))
+					if (response.getMethods() != null)
 					{
 						if (logger.isDebugEnabled())
 							logger.debug(SERVER_RESPONSE + statusCode + " received for get OPTIONS method");
-						String tempString = responseMap.get("Preview");
-						if (tempString != null)
-						{
-							int serverPreviewSize = Integer.parseInt(tempString);
-							//the preview size will be set from the server or from the configuration file only if it is smaller than what the server returned
-							if (this.stdPreviewSize > serverPreviewSize)
-								this.stdPreviewSize = serverPreviewSize;
-							if (logger.isDebugEnabled())
-								logger.debug("Preview size received from server: " + serverPreviewSize + ". Using preview size: " + stdPreviewSize);
-						}
-						else
-						{
-                            // The server did not return a Preview response header. Just use the configured stdPreviewSize.
-							logger.info( "No Preview size received from server. Using client setting: " + stdPreviewSize );
-						}
+						applyServerPreviewSize(response.getPreviewSize());
 						return true;
 					}
 					else
@@ -459,13 +978,12 @@ public class AntivirusClient
 						if (logger.isDebugEnabled())
 							logger.debug(SERVER_RESPONSE + statusCode + " - request successfully processed by server, checking for threats...");
 						failureReason = new StringBuilder();
-						for (String key : responseMap.keySet())
-							if (key.startsWith("X-"))
-                            {
-                                if (failureReason.length() > 0)
-                                    failureReason.append(' ');
-								failureReason.append(key + ": " + responseMap.get(key));
-                            }
+						for (Map.Entry<String, String> header : response.getExtensionHeaders().entrySet())
+						{
+							if (failureReason.length() > 0)
+								failureReason.append(' ');
+							failureReason.append(header.getKey() + ": " + header.getValue());
+						}
                         if (StringUtil.isNullEmptyOrBlank(failureReason.toString()))
                         	logger.error("The ICAP server didn't return any information from the antivirus. The message was not scanned due to antivirus configuration.");
 						else
@@ -0,0 +1,1492 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.PropertyKey;
+import com.axway.antivirus.exceptions.AntivirusException;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the scans of one scanner profile, from any number of threads.
+ * <p>Each scan gets its own {@link AntivirusClient}, so the connection, the buffers and the verdict of a scan are
+ * never seen by another thread; only the connection pool, the OPTIONS cache and the request templates are shared.
+ * The number of scans running in parallel can be capped per profile with <code>maxConcurrentScans</code>, the
+ * threads over the cap wait for a scan to end.</p>
+ * <p>Scans can also be submitted with {@link #scanAsync(ScanSource, String, ScanCallback)}; they run on a bounded
+ * thread pool of the profile, the caller gets a <code>Future</code> and is called back when the scan ends. With
+ * <code>virtualThreads</code>, if the JVM supports them, each scan runs on its own virtual thread instead, up to
+ * <code>asyncScanThreads</code> plus <code>asyncScanQueueSize</code> scans in progress, and the threads waiting
+ * for a free slot or for the ICAP server don't hold a platform thread. With <code>nioEngine</code> they are driven
+ * by the few I/O threads of an {@link IcapNioEngine} instead, up to <code>asyncScanQueueSize</code> scans in
+ * progress.</p>
+ * <p>When the profile is a scanner group, each scan is sent to one of the ICAP servers of the group chosen by a
+ * {@link ScannerBalancer}. A scan whose connection fails is sent to another server of the group, the servers
+ * considered down by their {@link IcapServerHealth} get no scan and a scan fails at once if they are all down.
+ * With <code>hedgeScans</code>, a scan of a {@link ScanSource} still waiting for its verdict after the
+ * <code>hedgePercentile</code> of the recent scan durations is sent to a second server; the first verdict is used and
+ * the other scan is cancelled by closing its connection.</p>
+ */
+public class AntivirusScanEngine
+{
+	private static final Logger logger = Logger.getLogger(AntivirusScanEngine.class);
+	private static final ConcurrentMap<String, AntivirusScanEngine> engines = new ConcurrentHashMap<>();
+	private static final long ASYNC_THREAD_KEEP_ALIVE = 60000;
+
+	private volatile AntivirusConfigurationHolder configuration;
+	private volatile ScannerBalancer balancer;
+	//the limit and the number of running scans are guarded by the slot lock, not by a monitor which would pin a
+	//virtual thread while it waits
+	private final ReentrantLock slotLock = new ReentrantLock();
+	private final Condition slotReleased = slotLock.newCondition();
+	private int maxConcurrentScans;
+	private int activeScans;
+	//the pool of the asynchronous scans and its settings are guarded by this
+	private int asyncScanThreads;
+	private int asyncScanQueueSize;
+	private boolean virtualThreads;
+	private boolean nioEngine;
+	private int nioIoThreads = Integer.parseInt(PropertyKey.NIO_IO_THREADS.getDefaultValue());
+	private ThreadPoolExecutor executor;
+	private ThreadPerTaskExecutor virtualExecutor;
+	private IcapNioEngine nio;
+	private final AtomicLong rejectedAsyncScans = new AtomicLong();
+	private volatile boolean hedgeScans;
+	private volatile int hedgePercentile = Integer.parseInt(PropertyKey.HEDGE_PERCENTILE.getDefaultValue());
+	private final ScanLatencies latencies = new ScanLatencies();
+	//the threads of the hedged scans are guarded by this
+	private ThreadPoolExecutor hedgeExecutor;
+	private final AtomicLong hedgedScans = new AtomicLong();
+	//null if the verdicts are not kept
+	private volatile VerdictCache verdictCache;
+	//null if the verdicts are not shared with the other nodes
+	private volatile VerdictStore verdictStore;
+	private volatile long verdictTimeToLive;
+	private volatile boolean coalesceScans;
+	//the scans running by the SHA-256 of their data, the scans of identical data wait for their verdict
+	private final ConcurrentMap<String, FutureTask<ScanResult>> inFlightScans = new ConcurrentHashMap<>();
+	private final AtomicLong coalescedScans = new AtomicLong();
+
+	/**
+	 * @param prototype The client holding the configuration of the scans, copied for each scan
+	 * @param maxConcurrentScans The maximum number of scans running in parallel, <code>0</code> if not limited
+	 */
+	public AntivirusScanEngine(AntivirusClient prototype, int maxConcurrentScans)
+	{
+		this(prototype, maxConcurrentScans, Integer.parseInt(PropertyKey.ASYNC_SCAN_THREADS.getDefaultValue()),
+			Integer.parseInt(PropertyKey.ASYNC_SCAN_QUEUE_SIZE.getDefaultValue()));
+	}
+
+	/**
+	 * @param prototype The client holding the configuration of the scans, copied for each scan
+	 * @param maxConcurrentScans The maximum number of scans running in parallel, <code>0</code> if not limited
+	 * @param asyncScanThreads The number of threads running the asynchronous scans
+	 * @param asyncScanQueueSize The maximum number of asynchronous scans waiting for a thread
+	 */
+	public AntivirusScanEngine(AntivirusClient prototype, int maxConcurrentScans, int asyncScanThreads,
+		int asyncScanQueueSize)
+	{
+		this(prototype, maxConcurrentScans, asyncScanThreads, asyncScanQueueSize, false);
+	}
+
+	/**
+	 * @param prototype The client holding the configuration of the scans, copied for each scan
+	 * @param maxConcurrentScans The maximum number of scans running in parallel, <code>0</code> if not limited
+	 * @param asyncScanThreads The number of threads running the asynchronous scans
+	 * @param asyncScanQueueSize The maximum number of asynchronous scans waiting for a thread
+	 * @param virtualThreads flag set to run the asynchronous scans on virtual threads if the JVM supports them
+	 */
+	public AntivirusScanEngine(AntivirusClient prototype, int maxConcurrentScans, int asyncScanThreads,
+		int asyncScanQueueSize, boolean virtualThreads)
+	{
+		this(new ScannerBalancer(Collections.singletonList(new ScannerBalancer.Server(prototype, 1))), maxConcurrentScans,
+			asyncScanThreads, asyncScanQueueSize, virtualThreads);
+	}
+
+	/**
+	 * @param balancer The ICAP servers sharing the scans
+	 * @param maxConcurrentScans The maximum number of scans running in parallel, <code>0</code> if not limited
+	 */
+	public AntivirusScanEngine(ScannerBalancer balancer, int maxConcurrentScans)
+	{
+		this(balancer, maxConcurrentScans, Integer.parseInt(PropertyKey.ASYNC_SCAN_THREADS.getDefaultValue()),
+			Integer.parseInt(PropertyKey.ASYNC_SCAN_QUEUE_SIZE.getDefaultValue()), false);
+	}
+
+	private AntivirusScanEngine(ScannerBalancer balancer, int maxConcurrentScans, int asyncScanThreads,
+		int asyncScanQueueSize, boolean virtualThreads)
+	{
+		this.balancer = balancer;
+		this.maxConcurrentScans = maxConcurrentScans;
+		this.asyncScanThreads = asyncScanThreads;
+		this.asyncScanQueueSize = asyncScanQueueSize;
+		this.virtualThreads = virtualThreads;
+	}
+
+	private AntivirusScanEngine(AntivirusConfigurationHolder avConfHolder)
+	{
+		this(new ScannerBalancer(avConfHolder), avConfHolder.getMaxConcurrentScans(), avConfHolder.getAsyncScanThreads(),
+			avConfHolder.getAsyncScanQueueSize(), avConfHolder.isVirtualThreads());
+		this.nioEngine = avConfHolder.isNioEngine();
+		this.nioIoThreads = avConfHolder.getNioIoThreads();
+		this.hedgeScans = avConfHolder.isHedgeScans();
+		this.hedgePercentile = avConfHolder.getHedgePercentile();
+		this.verdictCache = newVerdictCache(avConfHolder, null);
+		this.verdictStore = newVerdictStore(avConfHolder);
+		this.verdictTimeToLive = avConfHolder.getVerdictCacheTtl();
+		this.coalesceScans = avConfHolder.isCoalesceScans();
+		this.configuration = avConfHolder;
+	}
+
+	/**
+	 * Gets the engine of a scanner profile, creating it if needed. The configuration is updated when it was
+	 * reloaded, the scans already running end with the previous one.
+	 *
+	 * @param avConfHolder The configuration of the scanner profile
+	 * @return The scanning engine of the profile
+	 */
+	public static AntivirusScanEngine getEngine(AntivirusConfigurationHolder avConfHolder)
+	{
+		String key = String.valueOf(avConfHolder.getScannerId());
+		AntivirusScanEngine engine = engines.get(key);
+		if (engine == null)
+		{
+			AntivirusScanEngine newEngine = new AntivirusScanEngine(avConfHolder);
+			engine = engines.putIfAbsent(key, newEngine);
+			if (engine == null)
+				return newEngine;
+		}
+		if (engine.configuration != avConfHolder)
+			engine.setConfiguration(avConfHolder);
+		return engine;
+	}
+
+	/**
+	 * Forgets the engines of all the profiles, their asynchronous scans already submitted still run
+	 */
+	public static void clear()
+	{
+		for (AntivirusScanEngine engine : engines.values())
+			engine.shutdown();
+		engines.clear();
+	}
+
+	private void setConfiguration(AntivirusConfigurationHolder avConfHolder)
+	{
+		balancer = new ScannerBalancer(avConfHolder, balancer);
+		hedgeScans = avConfHolder.isHedgeScans();
+		hedgePercentile = avConfHolder.getHedgePercentile();
+		verdictCache = newVerdictCache(avConfHolder, verdictCache);
+		verdictStore = newVerdictStore(avConfHolder);
+		verdictTimeToLive = avConfHolder.getVerdictCacheTtl();
+		coalesceScans = avConfHolder.isCoalesceScans();
+		slotLock.lock();
+		try
+		{
+			maxConcurrentScans = avConfHolder.getMaxConcurrentScans();
+			slotReleased.signalAll();
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+		synchronized (this)
+		{
+			if (asyncScanThreads != avConfHolder.getAsyncScanThreads()
+				|| asyncScanQueueSize != avConfHolder.getAsyncScanQueueSize()
+				|| virtualThreads != avConfHolder.isVirtualThreads()
+				|| nioEngine != avConfHolder.isNioEngine()
+				|| nioIoThreads != avConfHolder.getNioIoThreads())
+			{
+				//the pool is created again with the new settings on the next asynchronous scan
+				asyncScanThreads = avConfHolder.getAsyncScanThreads();
+				asyncScanQueueSize = avConfHolder.getAsyncScanQueueSize();
+				virtualThreads = avConfHolder.isVirtualThreads();
+				nioEngine = avConfHolder.isNioEngine();
+				nioIoThreads = avConfHolder.getNioIoThreads();
+				shutdown();
+			}
+		}
+		configuration = avConfHolder;
+	}
+
+	/**
+	 * Builds the verdict cache of a configuration, the current cache is kept if its size and time to live are the same
+	 *
+	 * @param avConfHolder The configuration of the scanner profile
+	 * @param current The current verdict cache, may be <code>null</code>
+	 * @return The verdict cache or <code>null</code> if the verdicts are not kept
+	 */
+	private static VerdictCache newVerdictCache(AntivirusConfigurationHolder avConfHolder, VerdictCache current)
+	{
+		int size = avConfHolder.getVerdictCacheSize();
+		if (size <= 0)
+			return null;
+		if (current != null && current.getCapacity() == size && current.getTimeToLive() == avConfHolder.getVerdictCacheTtl())
+			return current;
+		return new VerdictCache(size, avConfHolder.getVerdictCacheTtl());
+	}
+
+	/**
+	 * Gets the verdict store shared by the nodes of the cluster, in the directory resolved from the configuration file
+	 *
+	 * @param avConfHolder The configuration of the scanner profile
+	 * @return The verdict store or <code>null</code> if the verdicts are not shared
+	 */
+	private static VerdictStore newVerdictStore(AntivirusConfigurationHolder avConfHolder)
+	{
+		if (avConfHolder.getVerdictStoreSize() <= 0 || avConfHolder.getVerdictStoreDirectory() == null)
+			return null;
+		return VerdictStore.getStore(avConfHolder.getVerdictStoreDirectory(), avConfHolder.getVerdictStoreSize());
+	}
+
+	/**
+	 * Stops the threads of the asynchronous scans once the scans already submitted are done.
+	 * The I/O threads of the non-blocking engine are stopped at once, its scans in progress fail.
+	 */
+	public synchronized void shutdown()
+	{
+		if (executor != null)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+		if (virtualExecutor != null)
+		{
+			virtualExecutor.shutdown();
+			virtualExecutor = null;
+		}
+		if (nio != null)
+		{
+			nio.close();
+			nio = null;
+		}
+		if (hedgeExecutor != null)
+		{
+			hedgeExecutor.shutdown();
+			hedgeExecutor = null;
+		}
+	}
+
+	/**
+	 * Scans the data read from a stream, see {@link AntivirusClient#scanStream(InputStream, long, String)}. The
+	 * stream cannot be read twice, so when a {@link HashReputation} blocklist is loaded the data is hashed while it is
+	 * sent and data of the blocklist is rejected whatever the verdict of the server. The verdict is neither cached nor
+	 * coalesced.
+	 *
+	 * @param data The data to scan, the stream is not closed
+	 * @param contentLength The number of bytes of the data or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return The verdict of the scan, or the verdict of the blocklist
+	 * @throws IOException if the data cannot be read or sent to the server
+	 * @throws AntivirusException if the scan failed or the thread was interrupted while waiting for a free slot
+	 */
+	public ScanResult scan(InputStream data, long contentLength, String fileExtension) throws IOException, AntivirusException
+	{
+		HashReputation reputation = HashReputation.getInstance();
+		if (reputation.getBlocklist() == null)
+			return execute(newStreamScan(data, contentLength, fileExtension, null));
+		ScanStages.Digest digest = new ScanStages.Digest();
+		ScanResult result = execute(newStreamScan(data, contentLength, fileExtension, digest));
+		ScanResult blocked = digest.getHex() == null ? null : reputation.checkBlocklist(digest.getHex());
+		return blocked == null ? result : blocked;
+	}
+
+	private static Scan newStreamScan(final InputStream data, final long contentLength, final String fileExtension,
+		final ScanStage stage)
+	{
+		return new Scan()
+		{
+			@Override
+			public boolean run(AntivirusClient client) throws IOException, AntivirusException
+			{
+				return stage == null ? client.scanStream(data, contentLength, fileExtension)
+					: client.scanStream(data, contentLength, fileExtension, stage);
+			}
+		};
+	}
+
+	/**
+	 * Scans a file, see {@link AntivirusClient#scanFile(File, String)}. With <code>verdictCacheSize</code> or
+	 * <code>verdictStoreSize</code>, the verdict of an identical file given with the current ISTag of the service is
+	 * used instead of scanning the file. With <code>coalesceScans</code>, a scan of an identical file already running
+	 * gives its verdict instead. A file of the allowlist or of the blocklist is not scanned, see {@link HashReputation}.
+	 *
+	 * @param file The file to scan
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return The verdict of the scan, or the verdict of an identical file
+	 * @throws IOException if the file cannot be read or sent to the server
+	 * @throws AntivirusException if the scan failed or the thread was interrupted while waiting for a free slot
+	 */
+	public ScanResult scan(final File file, final String fileExtension) throws IOException, AntivirusException
+	{
+		return scanOnce(ScanSource.of(file), new StagedScan()
+		{
+			@Override
+			ScanResult call(final ScanStage stage) throws IOException, AntivirusException
+			{
+				return execute(new Scan()
+				{
+					@Override
+					public boolean run(AntivirusClient client) throws IOException, AntivirusException
+					{
+						return stage == null ? client.scanFile(file, fileExtension) : client.scanFile(file, fileExtension, stage);
+					}
+				});
+			}
+		}, coalesceScans);
+	}
+
+	/**
+	 * Scans a file and pushes each block read to be sent through a stage, see
+	 * {@link AntivirusClient#scanFile(File, String, ScanStage)}, so the analyses of the stage don't read the file
+	 * again. The verdict of the lists and of the verdict cache and store is used like for {@link #scan(File, String)}:
+	 * when the allowlist, the cache or the store is on, the file is read once more to be hashed before the scan, and
+	 * the stage sees no data and is not ended if the verdict is known. The scans with a stage are not coalesced, each
+	 * stage sees its data.
+	 *
+	 * @param file The file to scan
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param stage The stage seeing the data, started again if the file is sent to another server after a failure
+	 * @return The verdict of the scan, or the verdict of an identical file
+	 * @throws IOException if the file cannot be read or sent to the server
+	 * @throws AntivirusException if the scan failed or the thread was interrupted while waiting for a free slot
+	 */
+	public ScanResult scan(final File file, final String fileExtension, final ScanStage stage) throws IOException, AntivirusException
+	{
+		return scanOnce(ScanSource.of(file), new StagedScan()
+		{
+			@Override
+			ScanResult call(ScanStage digest) throws IOException, AntivirusException
+			{
+				final ScanStage stages = digest == null ? stage : new ScanPipeline().add(stage).add(digest);
+				return execute(new Scan()
+				{
+					@Override
+					public boolean run(AntivirusClient client) throws IOException, AntivirusException
+					{
+						return client.scanFile(file, fileExtension, stages);
+					}
+				});
+			}
+		}, false);
+	}
+
+	/**
+	 * Scans data that can be read again. With <code>verdictCacheSize</code> or <code>verdictStoreSize</code>, the
+	 * verdict of identical data given with the current ISTag of the service is used instead of scanning the data. The
+	 * data is sent to a second server of the group if the first one is slow to give its verdict and
+	 * <code>hedgeScans</code> is set. With <code>coalesceScans</code>, a scan of identical data already running gives
+	 * its verdict instead. Data of the allowlist or of the blocklist is not scanned, see {@link HashReputation}.
+	 *
+	 * @param source The data to scan, opened for each server it is sent to. A source that is not repeatable is hashed
+	 * while it is sent and only checked against the blocklist, see {@link #scan(InputStream, long, String)}; it is
+	 * neither cached, coalesced nor hedged.
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return The first verdict given, or the verdict of identical data
+	 * @throws IOException if the data cannot be read or sent to the servers
+	 * @throws AntivirusException if the scans failed or the thread was interrupted while waiting for a verdict
+	 */
+	public ScanResult scan(final ScanSource source, final String fileExtension) throws IOException, AntivirusException
+	{
+		if (!source.isRepeatable())
+		{
+			try (InputStream data = source.openStream())
+			{
+				return scan(data, source.length(), fileExtension);
+			}
+		}
+		return scanOnce(source, new StagedScan()
+		{
+			@Override
+			ScanResult call(ScanStage stage) throws IOException, AntivirusException
+			{
+				return scanSource(source, fileExtension, stage);
+			}
+		}, coalesceScans);
+	}
+
+	/**
+	 * Scans the first bytes of data only, for the content types scanned on their preview. The lists are checked with
+	 * the SHA-256 of the whole data, so data of the blocklist is rejected whatever its first bytes. The verdict of the
+	 * first bytes is not the verdict of the data: it is neither cached, stored nor given to the scans of identical data.
+	 *
+	 * @param source The data, opened to be hashed whole then to send its first bytes
+	 * @param maxLength The number of bytes scanned from the start of the data
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @return The verdict of the first bytes, or the verdict of the lists
+	 * @throws IOException if the data cannot be read or sent to the servers
+	 * @throws AntivirusException if the scans failed or the thread was interrupted while waiting for a verdict
+	 */
+	public ScanResult scanHead(ScanSource source, long maxLength, String fileExtension) throws IOException, AntivirusException
+	{
+		ScanSource head = source.head(maxLength);
+		if (!source.isRepeatable())
+		{
+			//the data is read once, up to its first bytes: its hash cannot be known
+			try (InputStream data = head.openStream())
+			{
+				return execute(newStreamScan(data, head.length(), fileExtension, null));
+			}
+		}
+		HashReputation reputation = HashReputation.getInstance();
+		if (reputation.isLoaded())
+		{
+			ScanResult listed = reputation.check(VerdictCache.hash(source));
+			if (listed != null)
+				return listed;
+		}
+		return scanSource(head, fileExtension, null);
+	}
+
+	/**
+	 * Runs a scan unless the data is in the allowlist or the blocklist, or the verdict of identical data is known or
+	 * about to be known. The allowlist, the verdict cache and store and the coalescing need the SHA-256 of the data
+	 * before the scan, so the data is then read once more to be hashed. When only the blocklist is loaded the data is
+	 * hashed while it is sent, and checked once the scan ended.
+	 *
+	 * @param source The data of the scan, read to be hashed if the scan does not hash it
+	 * @param scan The scan of the data
+	 * @param coalesce flag set to wait for the scan of identical data already running
+	 * @return The verdict of the scan, or the verdict of identical data
+	 */
+	private ScanResult scanOnce(ScanSource source, final StagedScan scan, boolean coalesce)
+		throws IOException, AntivirusException
+	{
+		final VerdictCache cache = verdictCache;
+		final VerdictStore store = verdictStore;
+		HashReputation reputation = HashReputation.getInstance();
+		if (cache == null && store == null && !coalesce && reputation.getAllowlist() == null)
+		{
+			if (reputation.getBlocklist() == null)
+				return scan.call(null);
+			ScanStages.Digest digest = new ScanStages.Digest();
+			ScanResult result = scan.call(digest);
+			//a hedged scan does not hash the data it sends
+			String hash = digest.getHex() == null ? VerdictCache.hash(source) : digest.getHex();
+			ScanResult blocked = reputation.checkBlocklist(hash);
+			return blocked == null ? result : blocked;
+		}
+		//the verdict is looked for before the scan: the data is read once more to be hashed, which is cheaper than a scan
+		final String hash = VerdictCache.hash(source);
+		ScanResult listed = reputation.check(hash);
+		if (listed != null)
+			return listed;
+		ScanResult cached = getCachedVerdict(cache, store, hash);
+		if (cached != null)
+			return cached;
+		Callable<ScanResult> scanAndKeep = new Callable<ScanResult>()
+		{
+			@Override
+			public ScanResult call() throws Exception
+			{
+				ScanResult result = scan.call(null);
+				keepVerdict(cache, store, hash, result);
+				return result;
+			}
+		};
+		return coalesce ? coalesce(hash, scanAndKeep) : call(scanAndKeep);
+	}
+
+	/**
+	 * Runs a scan, or waits for the scan of identical data already running and takes its verdict, so a file sent to
+	 * many partners at once is scanned once. The failure of the running scan is the failure of the scans waiting.
+	 *
+	 * @param hash The SHA-256 of the data
+	 * @param scan The scan of the data
+	 * @return The verdict of the scan
+	 */
+	private ScanResult coalesce(String hash, Callable<ScanResult> scan) throws IOException, AntivirusException
+	{
+		FutureTask<ScanResult> task = new FutureTask<>(scan);
+		FutureTask<ScanResult> running = inFlightScans.putIfAbsent(hash, task);
+		if (running == null)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				inFlightScans.remove(hash, task);
+			}
+			running = task;
+		}
+		else
+		{
+			coalescedScans.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Identical data is being scanned, waiting for its verdict.");
+		}
+		try
+		{
+			return running.get();
+		}
+		catch (ExecutionException eex)
+		{
+			throw unwrap(eex);
+		}
+		catch (InterruptedException iex)
+		{
+			Thread.currentThread().interrupt();
+			throw new AntivirusException("Interrupted while waiting for the verdict of the scan of identical data.");
+		}
+	}
+
+	private static ScanResult call(Callable<ScanResult> scan) throws IOException, AntivirusException
+	{
+		try
+		{
+			return scan.call();
+		}
+		catch (IOException | AntivirusException | RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AntivirusException("The scan failed: " + ex);
+		}
+	}
+
+	/**
+	 * Looks for the verdict of identical data in the cache of the node, then in the store shared by the nodes
+	 */
+	private ScanResult getCachedVerdict(VerdictCache cache, VerdictStore store, String hash)
+	{
+		refreshExpiredOptions();
+		ScanResult cached = cache == null ? null : cache.get(hash);
+		if (cached == null && store != null)
+		{
+			cached = store.get(hash, verdictTimeToLive);
+			//the next identical data is found without reading the store
+			if (cached != null && cache != null)
+				cache.put(hash, cached);
+		}
+		if (cached != null && logger.isDebugEnabled())
+			logger.debug("Identical data was already scanned with ISTag " + cached.getIsTag() + ", its verdict is used.");
+		return cached;
+	}
+
+	/**
+	 * Refreshes in background the options of the servers whose TTL elapsed: a scan skipped thanks to a known verdict
+	 * doesn't connect to the server, which is where the options are refreshed otherwise, so a new ISTag would never
+	 * be seen while the verdicts are found
+	 */
+	private void refreshExpiredOptions()
+	{
+		for (ScannerBalancer.Server server : balancer.getServers())
+		{
+			AntivirusClient prototype = server.getPrototype();
+			IcapServerOptions serverOptions = IcapOptionsCache.getInstance().get(prototype.getServiceKey());
+			if (serverOptions != null && serverOptions.isExpired())
+				prototype.refreshServerOptions();
+		}
+	}
+
+	private static void keepVerdict(VerdictCache cache, VerdictStore store, String hash, ScanResult result)
+	{
+		if (cache != null)
+			cache.put(hash, result);
+		if (store != null)
+			store.put(hash, result);
+	}
+
+	/**
+	 * Scans repeatable data already checked against the lists
+	 *
+	 * @param stage The stage seeing the data sent, may be <code>null</code>; a hedged scan does not use it
+	 */
+	private ScanResult scanSource(ScanSource source, String fileExtension, ScanStage stage)
+		throws IOException, AntivirusException
+	{
+		long hedgeDelay = getHedgeDelay();
+		if (hedgeDelay < 0)
+		{
+			try (InputStream data = source.openStream())
+			{
+				return execute(newStreamScan(data, source.length(), fileExtension, stage));
+			}
+		}
+		acquireSlot();
+		try
+		{
+			return hedgedScan(source, fileExtension, hedgeDelay);
+		}
+		finally
+		{
+			releaseSlot();
+		}
+	}
+
+	/**
+	 * @return The time in milliseconds after which a scan is sent to a second server or <code>-1</code> if the scans
+	 * are not hedged, or not yet because too few scans were measured
+	 */
+	private long getHedgeDelay()
+	{
+		if (!hedgeScans || balancer.getServers().size() < 2)
+			return -1;
+		return latencies.getPercentile(hedgePercentile);
+	}
+
+	private ScanResult hedgedScan(ScanSource source, String fileExtension, long hedgeDelay)
+		throws IOException, AntivirusException
+	{
+		//both scans share the servers tried, so the second one goes to another server
+		List<ScannerBalancer.Server> triedServers = new CopyOnWriteArrayList<>();
+		CompletionService<ScanResult> completion = new ExecutorCompletionService<>(getHedgeExecutor());
+		List<HedgedScan> scans = new ArrayList<>();
+		try
+		{
+			HedgedScan primary = new HedgedScan(source, fileExtension, triedServers);
+			try
+			{
+				completion.submit(primary);
+			}
+			catch (RejectedExecutionException rex)
+			{
+				//all the hedging threads are busy, the scan is not hedged
+				return runScan(primary, triedServers);
+			}
+			scans.add(primary);
+			Future<ScanResult> done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if (done == null && triedServers.size() < balancer.getServers().size())
+			{
+				HedgedScan secondary = new HedgedScan(source, fileExtension, triedServers);
+				try
+				{
+					completion.submit(secondary);
+					scans.add(secondary);
+					hedgedScans.incrementAndGet();
+					if (logger.isDebugEnabled())
+						logger.debug("No verdict after " + hedgeDelay + " ms, sending the file to a second ICAP server.");
+				}
+				catch (RejectedExecutionException rex)
+				{
+					if (logger.isDebugEnabled())
+						logger.debug("No verdict after " + hedgeDelay + " ms but all the hedging threads are busy, the scan is not hedged.");
+				}
+			}
+
+			//the first verdict wins, an error only counts if the other scan fails too
+			ExecutionException error = null;
+			for (int pending = scans.size(); pending > 0; pending--)
+			{
+				if (done == null)
+					done = completion.take();
+				try
+				{
+					return done.get();
+				}
+				catch (ExecutionException eex)
+				{
+					if (error == null)
+						error = eex;
+				}
+				done = null;
+			}
+			throw unwrap(error);
+		}
+		catch (InterruptedException iex)
+		{
+			Thread.currentThread().interrupt();
+			throw new AntivirusException("Interrupted while waiting for the verdict of the scan.");
+		}
+		finally
+		{
+			//the scan still running is cancelled, its connection is closed
+			for (HedgedScan scan : scans)
+				scan.cancel();
+		}
+	}
+
+	private static AntivirusException unwrap(ExecutionException eex) throws IOException
+	{
+		Throwable cause = eex.getCause();
+		if (cause instanceof IOException)
+			throw (IOException)cause;
+		if (cause instanceof AntivirusException)
+			return (AntivirusException)cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException)cause;
+		return new AntivirusException("The scan failed: " + cause);
+	}
+
+	/**
+	 * @return The threads of the hedged scans, two per scan running: up to <code>maxConcurrentScans</code> scans or
+	 * <code>asyncScanThreads</code> if the scans are not limited. A scan submitted when they are all busy is rejected
+	 * and runs without hedging.
+	 */
+	private synchronized ThreadPoolExecutor getHedgeExecutor()
+	{
+		int maxThreads = 2 * Math.max(1, maxConcurrentScans > 0 ? maxConcurrentScans : asyncScanThreads);
+		if (hedgeExecutor == null)
+		{
+			hedgeExecutor = new ThreadPoolExecutor(0, maxThreads, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), new ScanThreadFactory(virtualThreads), new ThreadPoolExecutor.AbortPolicy());
+		}
+		else if (hedgeExecutor.getMaximumPoolSize() != maxThreads)
+		{
+			//maxConcurrentScans was changed by a new configuration
+			hedgeExecutor.setMaximumPoolSize(maxThreads);
+		}
+		return hedgeExecutor;
+	}
+
+	/**
+	 * Submits a scan to the thread pool of the profile.
+	 * The data is opened by the scan thread and closed when the scan ends.
+	 *
+	 * @param source The data to scan
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param callback Notified on the scan thread when the scan ends, may be <code>null</code>
+	 * @return The pending verdict of the scan, <code>get()</code> throws an <code>ExecutionException</code> wrapping
+	 * the error if the scan failed
+	 * @throws AntivirusException if the queue of the asynchronous scans is full or the ICAP servers are down
+	 * @see #scan(ScanSource, String)
+	 */
+	public Future<ScanResult> scanAsync(final ScanSource source, final String fileExtension, final ScanCallback callback)
+		throws AntivirusException
+	{
+		IcapNioEngine nonBlockingEngine = getNioEngine();
+		//the I/O threads stop reading the data once the server gave its verdict, so they cannot hash it for the
+		//blocklist: data that cannot be read twice is scanned on a thread instead
+		if (nonBlockingEngine != null && (source.isRepeatable() || HashReputation.getInstance().getBlocklist() == null))
+			return submit(nonBlockingEngine, source, fileExtension, callback);
+
+		ScanTask task = new ScanTask(new Callable<ScanResult>()
+		{
+			@Override
+			public ScanResult call() throws Exception
+			{
+				return scan(source, fileExtension);
+			}
+		}, callback);
+		try
+		{
+			getExecutor().execute(task);
+		}
+		catch (RejectedExecutionException rex)
+		{
+			rejectedAsyncScans.incrementAndGet();
+			if (isVirtualThreads())
+				throw new AntivirusException("The maximum number of asynchronous scans in progress is reached ("
+					+ (asyncScanThreads + asyncScanQueueSize) + " scans).");
+			throw new AntivirusException("The queue of the asynchronous scans is full (" + asyncScanQueueSize + " scans).");
+		}
+		return task;
+	}
+
+	/**
+	 * Submits a scan to the non-blocking engine. Repeatable data is hashed on the calling thread first, like for
+	 * {@link #scan(ScanSource, String)}: the lists and the verdicts of identical data give the verdict at once, with
+	 * the callback called on the calling thread. The scans of the non-blocking engine are not coalesced.
+	 * <p>The scan takes one of the <code>maxConcurrentScans</code> slots until it ends; the calling thread does not
+	 * wait for a slot, the scan is rejected when they are all taken.</p>
+	 */
+	private Future<ScanResult> submit(IcapNioEngine nonBlockingEngine, ScanSource source, String fileExtension,
+		ScanCallback callback) throws AntivirusException
+	{
+		final VerdictCache cache = verdictCache;
+		final VerdictStore store = verdictStore;
+		HashReputation reputation = HashReputation.getInstance();
+		String hash = null;
+		if (source.isRepeatable() && (cache != null || store != null || reputation.isLoaded()))
+		{
+			ScanResult known;
+			try
+			{
+				hash = VerdictCache.hash(source);
+				known = reputation.check(hash);
+				if (known == null)
+					known = getCachedVerdict(cache, store, hash);
+			}
+			catch (final IOException ioex)
+			{
+				return completed(new Callable<ScanResult>()
+				{
+					@Override
+					public ScanResult call() throws IOException
+					{
+						throw ioex;
+					}
+				}, callback);
+			}
+			if (known != null)
+			{
+				final ScanResult verdict = known;
+				return completed(new Callable<ScanResult>()
+				{
+					@Override
+					public ScanResult call()
+					{
+						return verdict;
+					}
+				}, callback);
+			}
+		}
+
+		if (!tryAcquireSlot())
+		{
+			rejectedAsyncScans.incrementAndGet();
+			throw new AntivirusException("The maximum number of concurrent scans (" + maxConcurrentScans + ") is reached.");
+		}
+		NioScan scan = new NioScan(nonBlockingEngine, source, fileExtension, callback, cache, store, hash);
+		try
+		{
+			scan.submit();
+		}
+		catch (AntivirusException avex)
+		{
+			releaseSlot();
+			throw avex;
+		}
+		return scan;
+	}
+
+	/**
+	 * @return The verdict known without a scan, the callback is called at once
+	 */
+	private static Future<ScanResult> completed(Callable<ScanResult> verdict, ScanCallback callback)
+	{
+		ScanTask task = new ScanTask(verdict, callback);
+		task.run();
+		return task;
+	}
+
+	/**
+	 * @return The non-blocking engine of the profile, started on the first asynchronous scan, or <code>null</code> if
+	 * the asynchronous scans run on the thread pool
+	 * @throws AntivirusException if the engine cannot be started
+	 */
+	private synchronized IcapNioEngine getNioEngine() throws AntivirusException
+	{
+		if (!nioEngine)
+			return null;
+		if (nio == null)
+		{
+			try
+			{
+				nio = new IcapNioEngine(nioIoThreads, asyncScanQueueSize);
+			}
+			catch (IOException ioex)
+			{
+				throw new AntivirusException("Cannot start the ICAP non-blocking engine: " + ioex.getMessage());
+			}
+		}
+		return nio;
+	}
+
+	private synchronized Executor getExecutor()
+	{
+		if (isVirtualThreads())
+		{
+			//a virtual thread per scan, the scans in progress are bounded instead of the threads
+			if (virtualExecutor == null)
+				virtualExecutor = new ThreadPerTaskExecutor(new ScanThreadFactory(true), asyncScanThreads + asyncScanQueueSize);
+			return virtualExecutor;
+		}
+		if (executor == null)
+		{
+			executor = new ThreadPoolExecutor(asyncScanThreads, asyncScanThreads, ASYNC_THREAD_KEEP_ALIVE,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(asyncScanQueueSize), new ScanThreadFactory(virtualThreads));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * @return The number of asynchronous scans waiting for a thread
+	 */
+	public synchronized int getQueuedAsyncScans()
+	{
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * @return The number of asynchronous scans running
+	 */
+	public synchronized int getRunningAsyncScans()
+	{
+		return (executor == null ? 0 : executor.getActiveCount())
+			+ (virtualExecutor == null ? 0 : virtualExecutor.getActiveCount()) + (nio == null ? 0 : nio.getInFlight());
+	}
+
+	/**
+	 * @return The number of asynchronous scans ended since the thread pool was created
+	 */
+	public synchronized long getCompletedAsyncScans()
+	{
+		return (executor == null ? 0 : executor.getCompletedTaskCount())
+			+ (virtualExecutor == null ? 0 : virtualExecutor.getCompletedTaskCount());
+	}
+
+	/**
+	 * @return The number of asynchronous scans rejected because the queue was full
+	 */
+	public long getRejectedAsyncScans()
+	{
+		return rejectedAsyncScans.get();
+	}
+
+	/**
+	 * @return <code>true</code> if the asynchronous scans run on virtual threads
+	 */
+	public synchronized boolean isVirtualThreads()
+	{
+		return virtualThreads && ScanThreadFactory.isVirtualThreadSupported();
+	}
+
+	/**
+	 * @return The ICAP servers sharing the scans of the profile
+	 */
+	public ScannerBalancer getBalancer()
+	{
+		return balancer;
+	}
+
+	/**
+	 * @return The durations of the last scans, the scans are hedged after a percentile of them
+	 */
+	public ScanLatencies getLatencies()
+	{
+		return latencies;
+	}
+
+	/**
+	 * @return The verdicts kept by the hash of the scanned data, <code>null</code> if they are not kept
+	 */
+	public VerdictCache getVerdictCache()
+	{
+		return verdictCache;
+	}
+
+	/**
+	 * @return The verdicts shared with the other nodes of the cluster, <code>null</code> if they are not shared
+	 */
+	public VerdictStore getVerdictStore()
+	{
+		return verdictStore;
+	}
+
+	/**
+	 * @return The number of scans that took the verdict of a scan of identical data running at the same time
+	 */
+	public long getCoalescedScans()
+	{
+		return coalescedScans.get();
+	}
+
+	/**
+	 * @return The number of scans sent to a second server because the first one was slow
+	 */
+	public long getHedgedScans()
+	{
+		return hedgedScans.get();
+	}
+
+	/**
+	 * @return The number of scans running
+	 */
+	public int getActiveScans()
+	{
+		slotLock.lock();
+		try
+		{
+			return activeScans;
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+	}
+
+	/**
+	 * @return The maximum number of scans running in parallel, <code>0</code> if not limited
+	 */
+	public int getMaxConcurrentScans()
+	{
+		slotLock.lock();
+		try
+		{
+			return maxConcurrentScans;
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+	}
+
+	private ScanResult execute(Scan scan) throws IOException, AntivirusException
+	{
+		acquireSlot();
+		try
+		{
+			return runScan(scan, new ArrayList<ScannerBalancer.Server>());
+		}
+		finally
+		{
+			releaseSlot();
+		}
+	}
+
+	/**
+	 * Runs a scan on a server of the profile, failing over to the other servers while the connection fails
+	 *
+	 * @param scan The scan
+	 * @param triedServers The servers already tried, the server of the scan is added
+	 * @return The verdict of the scan
+	 */
+	private ScanResult runScan(Scan scan, List<ScannerBalancer.Server> triedServers) throws IOException, AntivirusException
+	{
+		while (true)
+		{
+			ScannerBalancer.Server server = balancer.choose(triedServers);
+			if (server == null)
+				throw new AntivirusException("No ICAP server of the group is left to send the file to.");
+			triedServers.add(server);
+			//the servers still up are chosen first, this one is down only if they all are
+			if (!server.getHealth().allowRequest())
+				throw newServerDownException(server);
+
+			//a client per scan: its connection, buffers and failure reason are not shared
+			AntivirusClient client = server.getPrototype().newScanClient();
+			long start = System.currentTimeMillis();
+			server.start();
+			try
+			{
+				scan.begin(client);
+				//get a pooled connection to the ICAP server, asking the server for OPTIONS on a new connection
+				client.connect();
+			}
+			catch (IOException | AntivirusException ex)
+			{
+				client.disconnect();
+				endScan(server, client, ex, start, scan);
+				//nothing was read from the data yet, the scan can go to another server of the group
+				if (!scan.isCancelled() && triedServers.size() < balancer.getServers().size())
+				{
+					logger.warn("Cannot connect to the ICAP server " + server + ": " + ex.getMessage()
+						+ " Trying another server of the group.");
+					continue;
+				}
+				throw ex;
+			}
+
+			boolean clean;
+			Exception error = null;
+			try
+			{
+				clean = scan.run(client);
+			}
+			catch (IOException | AntivirusException | RuntimeException ex)
+			{
+				error = ex;
+				throw ex;
+			}
+			finally
+			{
+				//give the connection back to the pool or close it
+				client.disconnect();
+				endScan(server, client, error, start, scan);
+			}
+			StringBuilder failureReason = client.getFailureReason();
+			return new ScanResult(clean, failureReason == null ? null : failureReason.toString(), client.getServiceKey(),
+				client.getServiceTag(), false);
+		}
+	}
+
+	/**
+	 * Records the outcome of a scan in the load and the health of its server and in the durations of the profile
+	 *
+	 * @param server The server of the scan
+	 * @param client The client of the scan
+	 * @param error The error of the scan, <code>null</code> if it succeeded
+	 * @param start The time the scan started at
+	 * @param scan The scan, a cancelled scan says nothing about the server
+	 */
+	private void endScan(ScannerBalancer.Server server, AntivirusClient client, Throwable error, long start, Scan scan)
+	{
+		if (scan != null && scan.isCancelled())
+		{
+			server.cancel();
+			return;
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		if (error == null)
+			latencies.record(elapsed);
+		boolean serverFailure = error != null && IcapServerHealth.isServerFailure(error, client);
+		server.end(elapsed, serverFailure);
+		if (serverFailure)
+			server.getHealth().recordFailure(error.getMessage());
+		else if (error == null || error instanceof AntivirusException)
+			//the server answered, even if with an error about the request
+			server.getHealth().recordSuccess();
+	}
+
+	private static AntivirusException newServerDownException(ScannerBalancer.Server server)
+	{
+		return new AntivirusException("The ICAP server " + server.getHealth()
+			+ " is considered down after repeated failures, the file was not sent for scanning.");
+	}
+
+	private void acquireSlot() throws AntivirusException
+	{
+		slotLock.lock();
+		try
+		{
+			if (maxConcurrentScans > 0 && activeScans >= maxConcurrentScans && logger.isDebugEnabled())
+				logger.debug("The maximum number of concurrent scans (" + maxConcurrentScans + ") is reached, waiting for a scan to end.");
+			while (maxConcurrentScans > 0 && activeScans >= maxConcurrentScans)
+				slotReleased.await();
+			activeScans++;
+		}
+		catch (InterruptedException iex)
+		{
+			Thread.currentThread().interrupt();
+			throw new AntivirusException("Interrupted while waiting for a scan to end.");
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a slot was taken, <code>false</code> if the maximum number of scans is reached
+	 */
+	private boolean tryAcquireSlot()
+	{
+		slotLock.lock();
+		try
+		{
+			if (maxConcurrentScans > 0 && activeScans >= maxConcurrentScans)
+				return false;
+			activeScans++;
+			return true;
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+	}
+
+	private void releaseSlot()
+	{
+		slotLock.lock();
+		try
+		{
+			activeScans--;
+			slotReleased.signalAll();
+		}
+		finally
+		{
+			slotLock.unlock();
+		}
+	}
+
+	/**
+	 * An asynchronous scan, calling back when it ends
+	 */
+	private static class ScanTask extends FutureTask<ScanResult>
+	{
+		private final ScanCallback callback;
+
+		ScanTask(Callable<ScanResult> scan, ScanCallback callback)
+		{
+			super(scan);
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done()
+		{
+			if (callback == null || isCancelled())
+				return;
+			try
+			{
+				ScanResult result;
+				try
+				{
+					result = get();
+				}
+				catch (ExecutionException eex)
+				{
+					callback.onScanFailed(eex.getCause());
+					return;
+				}
+				callback.onScanCompleted(result);
+			}
+			catch (InterruptedException iex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException rex)
+			{
+				logger.error("Error in the callback of an asynchronous scan: " + rex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A scan of the non-blocking engine, failing over to the other servers of the group like {@link #runScan} while
+	 * the data was not read. It records the outcome of each exchange for its server, and the verdict for identical
+	 * data, then gives back its slot and calls back on the I/O thread.
+	 */
+	private class NioScan extends ScanTask implements ScanCallback
+	{
+		private final IcapNioEngine nonBlockingEngine;
+		private final ScanSource source;
+		private final String fileExtension;
+		private final VerdictCache cache;
+		private final VerdictStore store;
+		//null if the data was not hashed
+		private final String hash;
+		private final List<ScannerBalancer.Server> triedServers = new ArrayList<>();
+		//the exchange in progress, set before it is submitted
+		private volatile ScannerBalancer.Server server;
+		private volatile AntivirusClient client;
+		private volatile long start;
+		private volatile boolean dataOpened;
+
+		NioScan(IcapNioEngine nonBlockingEngine, ScanSource source, String fileExtension, ScanCallback callback,
+			VerdictCache cache, VerdictStore store, String hash)
+		{
+			super(new Callable<ScanResult>()
+			{
+				@Override
+				public ScanResult call()
+				{
+					throw new IllegalStateException("A non-blocking scan is run by the I/O threads.");
+				}
+			}, callback);
+			this.nonBlockingEngine = nonBlockingEngine;
+			this.source = source;
+			this.fileExtension = fileExtension;
+			this.cache = cache;
+			this.store = store;
+			this.hash = hash;
+		}
+
+		/**
+		 * Submits an exchange to the next server of the group
+		 *
+		 * @throws AntivirusException if no server is left, the server is down or the engine rejects the scan
+		 */
+		void submit() throws AntivirusException
+		{
+			ScannerBalancer.Server next = balancer.choose(triedServers);
+			if (next == null)
+				throw new AntivirusException("No ICAP server of the group is left to send the file to.");
+			triedServers.add(next);
+			if (!next.getHealth().allowRequest())
+				throw newServerDownException(next);
+			server = next;
+			client = next.getPrototype().newScanClient();
+			start = System.currentTimeMillis();
+			next.start();
+			try
+			{
+				nonBlockingEngine.submit(client, new ScanSource()
+				{
+					@Override
+					public InputStream openStream() throws IOException
+					{
+						dataOpened = true;
+						return source.openStream();
+					}
+
+					@Override
+					public long length()
+					{
+						return source.length();
+					}
+
+					@Override
+					public boolean isRepeatable()
+					{
+						return source.isRepeatable();
+					}
+				}, fileExtension, this);
+			}
+			catch (RejectedExecutionException rex)
+			{
+				next.cancel();
+				rejectedAsyncScans.incrementAndGet();
+				throw new AntivirusException(rex.getMessage());
+			}
+		}
+
+		@Override
+		public void onScanCompleted(ScanResult result)
+		{
+			endScan(server, client, null, start, null);
+			if (hash != null)
+				keepVerdict(cache, store, hash, result);
+			releaseSlot();
+			set(result);
+		}
+
+		@Override
+		public void onScanFailed(Throwable error)
+		{
+			endScan(server, client, error, start, null);
+			//data that can be read again, or was not read yet, can go to another server of the group
+			if (!isCancelled() && (source.isRepeatable() || !dataOpened)
+				&& IcapServerHealth.isServerFailure(error, client) && triedServers.size() < balancer.getServers().size())
+			{
+				logger.warn("Cannot scan the file on the ICAP server " + server + ": " + error.getMessage()
+					+ " Trying another server of the group.");
+				try
+				{
+					submit();
+					return;
+				}
+				catch (AntivirusException avex)
+				{
+					error = avex;
+				}
+			}
+			releaseSlot();
+			setException(error);
+		}
+	}
+
+	/**
+	 * A scan of data whose verdict may be known without it, pushing the data it sends through a stage
+	 */
+	private abstract static class StagedScan
+	{
+		/**
+		 * @param stage The stage seeing the data sent, <code>null</code> if none
+		 * @return The verdict of the scan
+		 */
+		abstract ScanResult call(ScanStage stage) throws IOException, AntivirusException;
+	}
+
+	/**
+	 * A scan run with the client of the scan
+	 */
+	private abstract static class Scan
+	{
+		abstract boolean run(AntivirusClient client) throws IOException, AntivirusException;
+
+		/**
+		 * Called with the client of the scan before it connects to the server
+		 *
+		 * @param client The client of the scan
+		 * @throws IOException if the scan was cancelled
+		 */
+		void begin(AntivirusClient client) throws IOException
+		{
+		}
+
+		/**
+		 * @return <code>true</code> if the scan was cancelled, its error says nothing about the server
+		 */
+		boolean isCancelled()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * One of the scans of a hedged scan, reading its own copy of the data
+	 */
+	private class HedgedScan extends Scan implements Callable<ScanResult>
+	{
+		private final ScanSource source;
+		private final String fileExtension;
+		private final List<ScannerBalancer.Server> triedServers;
+		//the client sending the data and the cancellation are guarded by this
+		private AntivirusClient client;
+		private boolean cancelled;
+
+		HedgedScan(ScanSource source, String fileExtension, List<ScannerBalancer.Server> triedServers)
+		{
+			this.source = source;
+			this.fileExtension = fileExtension;
+			this.triedServers = triedServers;
+		}
+
+		@Override
+		public ScanResult call() throws Exception
+		{
+			return runScan(this, triedServers);
+		}
+
+		@Override
+		synchronized void begin(AntivirusClient scanClient) throws IOException
+		{
+			if (cancelled)
+				throw new InterruptedIOException("The scan was cancelled, the other ICAP server gave its verdict first.");
+			//the connection can be closed while the client connects, a stalled server is not waited for
+			client = scanClient;
+		}
+
+		@Override
+		boolean run(AntivirusClient scanClient) throws IOException, AntivirusException
+		{
+			synchronized (this)
+			{
+				if (cancelled)
+					throw new InterruptedIOException("The scan was cancelled, the other ICAP server gave its verdict first.");
+			}
+			try (InputStream data = source.openStream())
+			{
+				return scanClient.scanStream(data, source.length(), fileExtension);
+			}
+			finally
+			{
+				//the connection is given back to the pool next, it must not be closed anymore
+				synchronized (this)
+				{
+					client = null;
+				}
+			}
+		}
+
+		@Override
+		synchronized boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		synchronized void cancel()
+		{
+			cancelled = true;
+			if (client != null)
+				client.abort();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A list of SHA-256 hashes loaded from a text file, held off the Java heap so it can hold millions of hashes.
+ * <p>The file has one hash in hexadecimal per line, anything after the hash on the line is ignored so the output of
+ * <code>sha256sum</code> can be used as is. The lines starting with <code>#</code> are comments.</p>
+ * <p>The hashes are kept sorted in a direct buffer and found by a binary search. A Bloom filter, also off the heap,
+ * answers first: most of the files are in no list, and the filter tells it without touching the sorted hashes.</p>
+ * <p>A list never changes once loaded, a new list is loaded when the file changes.</p>
+ */
+public class HashList
+{
+	private static final Logger logger = Logger.getLogger(HashList.class);
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final int HASH_LENGTH = 32;
+	//10 bits and 7 probes per hash give about 1% of false positives
+	private static final int BITS_PER_HASH = 10;
+	private static final int PROBES = 7;
+
+	private final File file;
+	private final int size;
+	private final ByteBuffer hashes;
+	private final ByteBuffer filter;
+	private final long filterBits;
+
+	private HashList(File file, ByteBuffer hashes, int size)
+	{
+		this.file = file;
+		this.hashes = hashes;
+		this.size = size;
+		this.filterBits = Math.max(64, (long)size * BITS_PER_HASH) & ~63L;
+		this.filter = ByteBuffer.allocateDirect((int)(filterBits / 8));
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < size; i++)
+		{
+			getHash(i, hash);
+			long h1 = getLong(hash, 0);
+			long h2 = getLong(hash, 8) | 1;
+			for (int probe = 0; probe < PROBES; probe++)
+			{
+				long bit = ((h1 + probe * h2) & Long.MAX_VALUE) % filterBits;
+				int index = (int)(bit >>> 3);
+				filter.put(index, (byte)(filter.get(index) | (1 << (bit & 7))));
+			}
+		}
+	}
+
+	/**
+	 * Loads a list of hashes, the invalid lines are logged and skipped
+	 *
+	 * @param file The text file of the list
+	 * @return The list
+	 * @throws IOException if the file cannot be read
+	 */
+	public static HashList load(File file) throws IOException
+	{
+		//a hash takes at least 64 characters of the file
+		long maxHashes = file.length() / (2 * HASH_LENGTH) + 1;
+		if (maxHashes * HASH_LENGTH > Integer.MAX_VALUE)
+			throw new IOException("The hash list " + file + " is too large.");
+		ByteBuffer hashes = ByteBuffer.allocateDirect((int)maxHashes * HASH_LENGTH);
+		int count = 0;
+		int invalidLines = 0;
+		byte[] hash = new byte[HASH_LENGTH];
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), US_ASCII)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null && count < maxHashes)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				if (!parse(line, hash))
+				{
+					invalidLines++;
+					continue;
+				}
+				hashes.position(count * HASH_LENGTH);
+				hashes.put(hash);
+				count++;
+			}
+		}
+		if (invalidLines > 0)
+			logger.warn(invalidLines + " lines of the hash list " + file + " are not SHA-256 hashes, they are ignored.");
+		sort(hashes, 0, count - 1);
+		int size = removeDuplicates(hashes, count);
+		hashes.clear();
+		return new HashList(file, hashes, size);
+	}
+
+	/**
+	 * @param hash The SHA-256 of data in hexadecimal
+	 * @return <code>true</code> if the hash is in the list
+	 */
+	public boolean contains(String hash)
+	{
+		byte[] bytes = new byte[HASH_LENGTH];
+		if (size == 0 || !parse(hash, bytes))
+			return false;
+		long h1 = getLong(bytes, 0);
+		long h2 = getLong(bytes, 8) | 1;
+		for (int probe = 0; probe < PROBES; probe++)
+		{
+			long bit = ((h1 + probe * h2) & Long.MAX_VALUE) % filterBits;
+			if ((filter.get((int)(bit >>> 3)) & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		byte[] other = new byte[HASH_LENGTH];
+		int low = 0;
+		int high = size - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			getHash(middle, other);
+			int comparison = compare(other, bytes);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The file of the list
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return The number of distinct hashes of the list
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	private void getHash(int index, byte[] hash)
+	{
+		for (int i = 0; i < HASH_LENGTH; i++)
+			hash[i] = hashes.get(index * HASH_LENGTH + i);
+	}
+
+	private static boolean parse(String line, byte[] hash)
+	{
+		if (line.length() < 2 * HASH_LENGTH || line.length() > 2 * HASH_LENGTH
+			&& !Character.isWhitespace(line.charAt(2 * HASH_LENGTH)))
+			return false;
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			int high = Character.digit(line.charAt(2 * i), 16);
+			int low = Character.digit(line.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				return false;
+			hash[i] = (byte)(high << 4 | low);
+		}
+		return true;
+	}
+
+	private static long getLong(byte[] bytes, int offset)
+	{
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++)
+			value = value << 8 | (bytes[i] & 0xFF);
+		return value;
+	}
+
+	private static int compare(byte[] hash1, byte[] hash2)
+	{
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			int comparison = (hash1[i] & 0xFF) - (hash2[i] & 0xFF);
+			if (comparison != 0)
+				return comparison;
+		}
+		return 0;
+	}
+
+	private static int compare(ByteBuffer hashes, int index1, int index2)
+	{
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			int comparison = (hashes.get(index1 * HASH_LENGTH + i) & 0xFF) - (hashes.get(index2 * HASH_LENGTH + i) & 0xFF);
+			if (comparison != 0)
+				return comparison;
+		}
+		return 0;
+	}
+
+	private static void swap(ByteBuffer hashes, int index1, int index2)
+	{
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			byte b = hashes.get(index1 * HASH_LENGTH + i);
+			hashes.put(index1 * HASH_LENGTH + i, hashes.get(index2 * HASH_LENGTH + i));
+			hashes.put(index2 * HASH_LENGTH + i, b);
+		}
+	}
+
+	/**
+	 * Sorts the hashes in place, the hashes are random so the middle one is a good pivot
+	 */
+	private static void sort(ByteBuffer hashes, int low, int high)
+	{
+		while (low < high)
+		{
+			swap(hashes, (low + high) >>> 1, high);
+			int store = low;
+			for (int i = low; i < high; i++)
+			{
+				if (compare(hashes, i, high) < 0)
+					swap(hashes, i, store++);
+			}
+			swap(hashes, store, high);
+			//the smaller part first, the recursion stays shallow
+			if (store - low < high - store)
+			{
+				sort(hashes, low, store - 1);
+				low = store + 1;
+			}
+			else
+			{
+				sort(hashes, store + 1, high);
+				high = store - 1;
+			}
+		}
+	}
+
+	private static int removeDuplicates(ByteBuffer hashes, int count)
+	{
+		int size = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (size > 0 && compare(hashes, size - 1, i) == 0)
+				continue;
+			if (size != i)
+			{
+				for (int j = 0; j < HASH_LENGTH; j++)
+					hashes.put(size * HASH_LENGTH + j, hashes.get(i * HASH_LENGTH + j));
+			}
+			size++;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,164 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.configuration.Constants;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lists of the SHA-256 of known files, shared by all the scanner profiles and checked before a file is sent to
+ * an ICAP server.
+ * <p>A file of the blocklist is rejected without being scanned, a file of the allowlist is accepted without being
+ * scanned. Both lists are text files of the configuration directory, see {@link HashList}, and are optional. A list
+ * is loaded whole before it replaces the previous one, so the scans see either list; a list that cannot be loaded
+ * leaves the previous one in place.</p>
+ */
+public class HashReputation
+{
+	private static final Logger logger = Logger.getLogger(HashReputation.class);
+	private static final HashReputation instance = new HashReputation();
+
+	private volatile HashList allowlist;
+	private volatile HashList blocklist;
+	private final AtomicLong allowedFiles = new AtomicLong();
+	private final AtomicLong blockedFiles = new AtomicLong();
+
+	private HashReputation()
+	{
+	}
+
+	/**
+	 * @return The instance of the lists shared by all the scanner profiles
+	 */
+	public static HashReputation getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Loads the lists of a configuration directory again, a list whose file was removed is dropped
+	 *
+	 * @param directory The directory of the configuration file
+	 */
+	public synchronized void load(File directory)
+	{
+		allowlist = load(new File(directory, Constants.ALLOWLIST_FILE_NAME), allowlist);
+		blocklist = load(new File(directory, Constants.BLOCKLIST_FILE_NAME), blocklist);
+	}
+
+	private static HashList load(File file, HashList current)
+	{
+		if (!file.isFile())
+		{
+			if (current != null)
+				logger.info("The hash list " + file + " was removed.");
+			return null;
+		}
+		try
+		{
+			HashList list = HashList.load(file);
+			logger.info("Hash list " + file + " loaded: " + list.size() + " hashes.");
+			return list;
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			logger.error("Cannot load the hash list " + file + ", " + (current == null ? "it is not used" : "the previous list is still used")
+				+ ": " + ex.getMessage());
+			return current;
+		}
+	}
+
+	/**
+	 * Drops the lists
+	 */
+	public synchronized void clear()
+	{
+		allowlist = null;
+		blocklist = null;
+	}
+
+	/**
+	 * @return <code>true</code> if a list is loaded, the files have to be hashed
+	 */
+	public boolean isLoaded()
+	{
+		return allowlist != null || blocklist != null;
+	}
+
+	/**
+	 * Looks for the SHA-256 of a file in the lists
+	 *
+	 * @param hash The SHA-256 of the file in hexadecimal
+	 * @return The verdict for a file of a list or <code>null</code> if the file has to be scanned
+	 */
+	public ScanResult check(String hash)
+	{
+		ScanResult blocked = checkBlocklist(hash);
+		if (blocked != null)
+			return blocked;
+		HashList list = allowlist;
+		if (list != null && list.contains(hash))
+		{
+			allowedFiles.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("The file is in the allowlist (SHA-256 " + hash + "), it is not scanned.");
+			return new ScanResult(true, "");
+		}
+		return null;
+	}
+
+	/**
+	 * Looks for the SHA-256 of a file in the blocklist only, for a file hashed while it was scanned: its verdict is
+	 * already known, the allowlist would not save the scan
+	 *
+	 * @param hash The SHA-256 of the file in hexadecimal
+	 * @return The verdict for a file of the blocklist or <code>null</code> if the verdict of the scan is kept
+	 */
+	public ScanResult checkBlocklist(String hash)
+	{
+		HashList list = blocklist;
+		if (list == null || !list.contains(hash))
+			return null;
+		blockedFiles.incrementAndGet();
+		return new ScanResult(false, "The file is in the blocklist " + list.getFile().getName() + " (SHA-256 " + hash + ").");
+	}
+
+	/**
+	 * @return The allowlist or <code>null</code> if none is loaded
+	 */
+	public HashList getAllowlist()
+	{
+		return allowlist;
+	}
+
+	/**
+	 * @return The blocklist or <code>null</code> if none is loaded
+	 */
+	public HashList getBlocklist()
+	{
+		return blocklist;
+	}
+
+	/**
+	 * @return The number of files accepted because they are in the allowlist
+	 */
+	public long getAllowedFiles()
+	{
+		return allowedFiles.get();
+	}
+
+	/**
+	 * @return The number of files rejected because they are in the blocklist
+	 */
+	public long getBlockedFiles()
+	{
+		return blockedFiles.get();
+	}
+}
@@ -0,0 +1,195 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream writing the ICAP request headers and the encapsulated body in chunked transfer encoding.
+ * <p>The headers, the chunk sizes, the data and the chunk terminators are gathered in one buffer and written to the
+ * socket in bulk, so a small file goes out in a single write and a large one in writes of the buffer size.
+ * Closing this stream flushes it but leaves the underlying stream open, the connection may be reused.</p>
+ */
+public class IcapChunkedOutputStream extends OutputStream
+{
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	private static final byte[] IEOF_CHUNK = { '0', ';', ' ', 'i', 'e', 'o', 'f', '\r', '\n', '\r', '\n' };
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	/**
+	 * Bytes added around the data of a chunk: the chunk size in hex and two line terminators
+	 */
+	public static final int CHUNK_OVERHEAD = 20;
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int count;
+
+	/**
+	 * @param out The stream to the ICAP server
+	 * @param size The size of the buffer
+	 */
+	public IcapChunkedOutputStream(OutputStream out, int size)
+	{
+		this.out = out;
+		this.buffer = new byte[Math.max(size, CHUNK_OVERHEAD)];
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (count == buffer.length)
+			flushBuffer();
+		buffer[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException
+	{
+		if (length >= buffer.length)
+		{
+			//larger than the buffer, no point in copying it
+			flushBuffer();
+			out.write(data, offset, length);
+			return;
+		}
+		if (length > buffer.length - count)
+			flushBuffer();
+		System.arraycopy(data, offset, buffer, count, length);
+		count += length;
+	}
+
+	/**
+	 * Writes an ICAP header. The ICAP headers are US-ASCII, so each character is written as one byte.
+	 *
+	 * @param header The header to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeAscii(String header) throws IOException
+	{
+		for (int i = 0; i < header.length(); i++)
+			write(header.charAt(i));
+	}
+
+	/**
+	 * Writes a number in decimal digits, as in the Preview and Content-Length headers
+	 *
+	 * @param value The positive number to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeDecimal(long value) throws IOException
+	{
+		long divisor = 1;
+		for (int i = 1; i < getDecimalLength(value); i++)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10)
+			write(HEX_DIGITS[(int)(value / divisor % 10)]);
+	}
+
+	/**
+	 * @param value A positive number
+	 * @return The number of decimal digits of the number
+	 */
+	public static int getDecimalLength(long value)
+	{
+		int length = 1;
+		for (long limit = 10; value >= limit && length < 19; limit *= 10)
+			length++;
+		return length;
+	}
+
+	/**
+	 * @return The size of the buffer
+	 */
+	public int getBufferSize()
+	{
+		return buffer.length;
+	}
+
+	/**
+	 * Writes one chunk: the size in hex, the data and the line terminator
+	 *
+	 * @param data The data of the chunk
+	 * @param offset The start offset in the data
+	 * @param length The number of bytes of the chunk
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeChunk(byte[] data, int offset, int length) throws IOException
+	{
+		writeChunkSize(length);
+		write(data, offset, length);
+		write(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Writes the size line of a chunk, the caller writes the data and the line terminator
+	 *
+	 * @param length The number of bytes of the chunk
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeChunkSize(long length) throws IOException
+	{
+		int shift = 60;
+		while (shift > 0 && ((length >>> shift) & 0xF) == 0)
+			shift -= 4;
+		for (; shift >= 0; shift -= 4)
+			write(HEX_DIGITS[(int)((length >>> shift) & 0xF)]);
+		write(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Writes the line terminator following the data of a chunk
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeChunkEnd() throws IOException
+	{
+		write(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Writes the zero length chunk ending the preview or the body
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeLastChunk() throws IOException
+	{
+		write(LAST_CHUNK, 0, LAST_CHUNK.length);
+	}
+
+	/**
+	 * Writes the zero length chunk with the ieof extension, telling the server the preview contains the whole body
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeIeofChunk() throws IOException
+	{
+		write(IEOF_CHUNK, 0, IEOF_CHUNK.length);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if (count > 0)
+		{
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
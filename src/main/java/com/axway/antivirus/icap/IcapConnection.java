@@ -0,0 +1,275 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A socket connection to an ICAP server that can be kept alive and reused for several ICAP exchanges
+ */
+public class IcapConnection implements Closeable
+{
+	private static final Logger logger = Logger.getLogger(IcapConnection.class);
+	private static final int STALE_CHECK_TIMEOUT = 1;
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	//the pool counting this connection among its open connections, null if not opened by a pool
+	private IcapConnectionPool pool;
+	private IcapChunkedOutputStream requestStream;
+	private boolean reusable;
+	private long lastUsed;
+
+	/**
+	 * Opens a new socket connection to the ICAP server
+	 *
+	 * @param hostname The IP address to connect to.
+	 * @param port The port in the host to use.
+	 * @param soTimeout The read timeout on the socket in milliseconds
+	 * @throws IOException if the socket or its streams cannot be opened
+	 */
+	public IcapConnection(String hostname, int port, int soTimeout) throws IOException
+	{
+		this(new Socket(hostname, port), soTimeout);
+	}
+
+	/**
+	 * Opens a new socket connection to the ICAP server, optionally backed by a {@link SocketChannel}
+	 * so that file data can be transferred to the socket without going through the heap
+	 *
+	 * @param hostname The IP address to connect to.
+	 * @param port The port in the host to use.
+	 * @param soTimeout The read timeout on the socket in milliseconds
+	 * @param openChannel flag set to open the connection with a {@link SocketChannel}
+	 * @throws IOException if the socket or its streams cannot be opened
+	 */
+	public IcapConnection(String hostname, int port, int soTimeout, boolean openChannel) throws IOException
+	{
+		this(openChannel ? SocketChannel.open(new InetSocketAddress(hostname, port)).socket() : new Socket(hostname, port),
+			soTimeout);
+	}
+
+	private IcapConnection(Socket socket, int soTimeout) throws IOException
+	{
+		this.socket = socket;
+		this.socket.setSoTimeout(soTimeout);
+		this.in = socket.getInputStream();
+		this.out = socket.getOutputStream();
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The stream used to read the ICAP server responses
+	 */
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+
+	/**
+	 * @return The stream used to send the ICAP requests
+	 */
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+
+	/**
+	 * The buffered stream used to write the ICAP requests is kept with the connection, so its buffer is reused by
+	 * all the exchanges on the connection
+	 *
+	 * @param bufferSize The minimum size of the buffer
+	 * @return The buffered stream writing the ICAP requests on this connection
+	 */
+	public IcapChunkedOutputStream getRequestStream(int bufferSize)
+	{
+		if (requestStream == null || requestStream.getBufferSize() < bufferSize)
+			requestStream = new IcapChunkedOutputStream(out, bufferSize);
+		return requestStream;
+	}
+
+	/**
+	 * @return The channel of the socket or <code>null</code> if the connection was not opened with a channel
+	 */
+	public SocketChannel getChannel()
+	{
+		return socket.getChannel();
+	}
+
+	/**
+	 * Sets the read timeout for the next exchange on this connection
+	 *
+	 * @param soTimeout The read timeout on the socket in milliseconds
+	 * @throws SocketException if the timeout cannot be set on the socket
+	 */
+	public void setSoTimeout(int soTimeout) throws SocketException
+	{
+		socket.setSoTimeout(soTimeout);
+	}
+
+	/**
+	 * A connection is reusable only if the last exchange on it was completely read and the server didn't ask to close it
+	 *
+	 * @return <code>true</code> if the connection can be given back to the pool
+	 */
+	public boolean isReusable()
+	{
+		return reusable;
+	}
+
+	/**
+	 * @param reusable flag set if the connection can be given back to the pool after the current exchange
+	 */
+	public void setReusable(boolean reusable)
+	{
+		this.reusable = reusable;
+	}
+
+	/**
+	 * @param pool The pool counting this connection among its open connections, told when the connection is closed
+	 */
+	void setPool(IcapConnectionPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Marks the moment the connection was given back to the pool
+	 */
+	void touch()
+	{
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param idleTimeout The time in milliseconds an idle connection may be kept
+	 * @return <code>true</code> if the connection has been idle for longer than the idle timeout
+	 */
+	boolean isExpired(long idleTimeout)
+	{
+		return System.currentTimeMillis() - lastUsed > idleTimeout;
+	}
+
+	/**
+	 * Checks if an idle connection is still usable. The server may close a keep-alive connection at any moment,
+	 * so we try to read: nothing to read means the connection is still open and nothing is pending,
+	 * while an end of stream or unexpected data means the connection cannot be reused.
+	 * <p>A connection opened with a channel is read without blocking, so the check doesn't delay the exchange.
+	 * Otherwise bytes already received mean the connection is stale, and if there are none a read with a very short
+	 * timeout tells an open connection from a closed one.</p>
+	 *
+	 * @return <code>true</code> if the connection was closed by the server or is in an unknown state
+	 */
+	boolean isStale()
+	{
+		if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return true;
+		SocketChannel channel = socket.getChannel();
+		if (channel != null)
+			return isStale(channel);
+		try
+		{
+			if (in.available() > 0)
+				return true;
+		}
+		catch (IOException ioex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Idle connection is no longer valid: " + ioex.getMessage());
+			return true;
+		}
+		int soTimeout = 0;
+		try
+		{
+			soTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(STALE_CHECK_TIMEOUT);
+			in.read();
+			return true;
+		}
+		catch (SocketTimeoutException ste)
+		{
+			return false;
+		}
+		catch (IOException ioex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Idle connection is no longer valid: " + ioex.getMessage());
+			return true;
+		}
+		finally
+		{
+			try
+			{
+				if (!socket.isClosed())
+					socket.setSoTimeout(soTimeout);
+			}
+			catch (SocketException se)
+			{
+				if (logger.isDebugEnabled())
+					logger.debug("Could not restore the socket timeout: " + se.getMessage());
+			}
+		}
+	}
+
+	private boolean isStale(SocketChannel channel)
+	{
+		synchronized (channel.blockingLock())
+		{
+			try
+			{
+				channel.configureBlocking(false);
+				try
+				{
+					return channel.read(ByteBuffer.allocate(1)) != 0;
+				}
+				finally
+				{
+					channel.configureBlocking(true);
+				}
+			}
+			catch (IOException ioex)
+			{
+				if (logger.isDebugEnabled())
+					logger.debug("Idle connection is no longer valid: " + ioex.getMessage());
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Closes the socket connection to the ICAP server. The pool of the connection counts it as closed the first time.
+	 *
+	 * @throws IOException if an I/O error occurs when closing this socket.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		reusable = false;
+		try
+		{
+			socket.close();
+		}
+		finally
+		{
+			if (closed.compareAndSet(false, true) && pool != null)
+				pool.connectionClosed();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of keep-alive connections to one ICAP server (host and port).
+ * <p>The pools are shared by all the ICAP clients, so a connection opened for a scan can be reused by the next one
+ * instead of paying the TCP handshake and the OPTIONS request again.</p>
+ * <p>The pool also counts the connections it opened that are not closed yet, idle or in use, so a burst of scans
+ * cannot open more than the maximum number of connections to the server: once reached, a scan waits for a connection
+ * to be released or closed.</p>
+ */
+public class IcapConnectionPool
+{
+	private static final Logger logger = Logger.getLogger(IcapConnectionPool.class);
+	private static final ConcurrentMap<String, IcapConnectionPool> pools = new ConcurrentHashMap<>();
+
+	private final String hostname;
+	private final int port;
+	//most recently used connections are at the head of the deque, guarded by this
+	private final Deque<IcapConnection> idleConnections = new ArrayDeque<>();
+	//the connections opened by the pool and not closed yet, guarded by this
+	private int openConnections;
+	private volatile int maxIdleConnections;
+	private volatile int maxConnections;
+	private volatile long idleTimeout;
+
+	private IcapConnectionPool(String hostname, int port)
+	{
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	/**
+	 * Gets the pool for the given ICAP server, creating it if needed, without limiting the number of open connections
+	 *
+	 * @param hostname The IP address of the ICAP server
+	 * @param port The port of the ICAP server
+	 * @param maxIdleConnections The maximum number of idle connections kept open
+	 * @param idleTimeout The time in milliseconds an idle connection is kept open
+	 * @return The pool of connections for the ICAP server
+	 */
+	public static IcapConnectionPool getPool(String hostname, int port, int maxIdleConnections, long idleTimeout)
+	{
+		return getPool(hostname, port, maxIdleConnections, 0, idleTimeout);
+	}
+
+	/**
+	 * Gets the pool for the given ICAP server, creating it if needed. The limits are updated on each call
+	 * so a configuration reload is taken into account by the existing pool.
+	 *
+	 * @param hostname The IP address of the ICAP server
+	 * @param port The port of the ICAP server
+	 * @param maxIdleConnections The maximum number of idle connections kept open
+	 * @param maxConnections The maximum number of connections open at the same time, <code>0</code> for no limit
+	 * @param idleTimeout The time in milliseconds an idle connection is kept open
+	 * @return The pool of connections for the ICAP server
+	 */
+	public static IcapConnectionPool getPool(String hostname, int port, int maxIdleConnections, int maxConnections,
+		long idleTimeout)
+	{
+		String key = hostname + ":" + port;
+		IcapConnectionPool pool = pools.get(key);
+		if (pool == null)
+		{
+			IcapConnectionPool newPool = new IcapConnectionPool(hostname, port);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null)
+				pool = newPool;
+		}
+		pool.maxIdleConnections = maxIdleConnections;
+		pool.maxConnections = maxConnections;
+		pool.idleTimeout = idleTimeout;
+		return pool;
+	}
+
+	/**
+	 * Closes the idle connections of all the pools
+	 */
+	public static void closeAll()
+	{
+		for (IcapConnectionPool pool : pools.values())
+			pool.clear();
+	}
+
+	/**
+	 * Gets a valid idle connection from the pool or opens a new one if none is available.
+	 * The new connections are opened with a socket channel, used by the zero-copy transfers and to check without
+	 * waiting that an idle connection was not closed by the server.
+	 * <p>If the maximum number of connections is open, waits up to the read timeout for one to be released.</p>
+	 *
+	 * @param soTimeout The read timeout on the socket in milliseconds
+	 * @return A connection to the ICAP server
+	 * @throws IOException if a new connection cannot be opened or none was released in time
+	 */
+	public IcapConnection acquire(int soTimeout) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + soTimeout;
+		while (true)
+		{
+			IcapConnection connection = pollIdle();
+			if (connection == null)
+			{
+				if (reserve(soTimeout > 0 ? deadline : 0))
+					break;
+				//a connection was released while waiting
+				continue;
+			}
+			if (connection.isExpired(idleTimeout) || connection.isStale())
+			{
+				if (logger.isDebugEnabled())
+					logger.debug("Discarding idle connection to " + hostname + ":" + port);
+				closeQuietly(connection);
+				continue;
+			}
+			connection.setSoTimeout(soTimeout);
+			connection.setReusable(false);
+			if (logger.isDebugEnabled())
+				logger.debug("Reusing connection to " + hostname + ":" + port);
+			return connection;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Opening new connection to " + hostname + ":" + port);
+		try
+		{
+			IcapConnection connection = new IcapConnection(hostname, port, soTimeout, true);
+			connection.setPool(this);
+			return connection;
+		}
+		catch (IOException ioex)
+		{
+			connectionClosed();
+			throw ioex;
+		}
+	}
+
+	/**
+	 * Counts a new connection if the maximum number of connections is not reached, else waits for a connection
+	 * to be closed or released
+	 *
+	 * @param deadline The time at which to stop waiting, <code>0</code> to wait without limit
+	 * @return <code>true</code> if a new connection can be opened, <code>false</code> if an idle connection can be taken
+	 * @throws IOException if no connection was closed or released before the deadline
+	 */
+	private synchronized boolean reserve(long deadline) throws IOException
+	{
+		while (maxConnections > 0 && openConnections >= maxConnections)
+		{
+			if (!idleConnections.isEmpty())
+				return false;
+			long wait = deadline == 0 ? 0 : deadline - System.currentTimeMillis();
+			if (deadline != 0 && wait <= 0)
+				throw new IOException("The " + maxConnections + " connections to " + hostname + ":" + port + " are all in use.");
+			try
+			{
+				wait(wait);
+			}
+			catch (InterruptedException iex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection to " + hostname + ":" + port);
+			}
+		}
+		openConnections++;
+		return true;
+	}
+
+	/**
+	 * Called once by each connection of the pool when it is closed
+	 */
+	synchronized void connectionClosed()
+	{
+		openConnections--;
+		notifyAll();
+	}
+
+	/**
+	 * Gives a connection back to the pool. The connection is closed if it is not reusable
+	 * or if the pool already holds the maximum number of idle connections.
+	 *
+	 * @param connection The connection to release
+	 */
+	public void release(IcapConnection connection)
+	{
+		if (connection == null)
+			return;
+		if (!connection.isReusable() || maxIdleConnections <= 0)
+		{
+			closeQuietly(connection);
+			return;
+		}
+		connection.touch();
+		IcapConnection evicted = null;
+		synchronized (this)
+		{
+			idleConnections.addFirst(connection);
+			if (idleConnections.size() > maxIdleConnections)
+				evicted = idleConnections.pollLast();
+			notifyAll();
+		}
+		closeQuietly(evicted);
+	}
+
+	/**
+	 * Closes all the idle connections in the pool
+	 */
+	public void clear()
+	{
+		List<IcapConnection> toClose;
+		synchronized (this)
+		{
+			toClose = new ArrayList<>(idleConnections);
+			idleConnections.clear();
+		}
+		for (IcapConnection connection : toClose)
+			closeQuietly(connection);
+	}
+
+	/**
+	 * @return The number of idle connections in the pool
+	 */
+	public synchronized int getIdleCount()
+	{
+		return idleConnections.size();
+	}
+
+	/**
+	 * @return The number of connections opened by the pool and not closed yet, idle or in use
+	 */
+	public synchronized int getOpenCount()
+	{
+		return openConnections;
+	}
+
+	private synchronized IcapConnection pollIdle()
+	{
+		return idleConnections.pollFirst();
+	}
+
+	private void closeQuietly(IcapConnection connection)
+	{
+		if (connection == null)
+			return;
+		try
+		{
+			connection.close();
+		}
+		catch (IOException ioex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Error while closing connection to " + hostname + ":" + port + ": " + ioex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,379 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.exceptions.AntivirusException;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking ICAP client driving many scans from a few I/O threads.
+ * <p>Each I/O thread owns a {@link Selector} and the non-blocking connections it opened. A scan is an
+ * {@link IcapNioExchange}, a state machine moved forward each time its connection can be written or read; no thread
+ * waits for the ICAP server, so the number of scans in progress is only limited by <code>maxInFlight</code>.
+ * The keep-alive connections are kept by the I/O thread that opened them and watched while idle, a connection closed
+ * by the server is dropped before being reused.</p>
+ * <p>The data of the scans is read by the I/O threads, between two selections: the sources are expected not to block,
+ * like local files or data in memory. A source read from a slow store (a network share, a remote message store)
+ * stalls every connection of its I/O thread while it is read; such data should be copied to a file first or scanned
+ * with the blocking clients. The callbacks are called on the I/O threads and must not block either.</p>
+ */
+public class IcapNioEngine implements Closeable
+{
+	private static final Logger logger = Logger.getLogger(IcapNioEngine.class);
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+	//the longest time the I/O thread sleeps, so the timeouts are checked at least once per second
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final IoLoop[] loops;
+	private final int maxInFlight;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Starts the I/O threads
+	 *
+	 * @param ioThreads The number of I/O threads
+	 * @param maxInFlight The maximum number of scans in progress, the scans submitted over it are rejected
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public IcapNioEngine(int ioThreads, int maxInFlight) throws IOException
+	{
+		this.maxInFlight = maxInFlight;
+		this.loops = new IoLoop[ioThreads];
+		try
+		{
+			for (int i = 0; i < ioThreads; i++)
+				loops[i] = new IoLoop();
+		}
+		catch (IOException ioex)
+		{
+			close();
+			throw ioex;
+		}
+		for (IoLoop loop : loops)
+			loop.thread.start();
+	}
+
+	/**
+	 * Submits a scan
+	 *
+	 * @param client The client of the scan, holding its configuration and receiving the failure reason
+	 * @param source The data to scan, opened and closed by the I/O thread, which must not block when reading it
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param callback Notified on the I/O thread when the scan ends, may be <code>null</code>
+	 * @return The pending verdict of the scan, the scan cannot be cancelled
+	 * @throws RejectedExecutionException if the maximum number of scans in progress is reached or the engine is closed
+	 */
+	public Future<ScanResult> submit(AntivirusClient client, ScanSource source, String fileExtension, ScanCallback callback)
+	{
+		if (inFlight.incrementAndGet() > maxInFlight)
+		{
+			inFlight.decrementAndGet();
+			throw new RejectedExecutionException("The maximum number of scans in progress is reached (" + maxInFlight + ").");
+		}
+		IcapNioExchange exchange = new IcapNioExchange(client, source, fileExtension, callback);
+		IoLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		if (!loop.open)
+		{
+			inFlight.decrementAndGet();
+			throw new RejectedExecutionException("The ICAP engine is closed.");
+		}
+		loop.submitted.add(exchange);
+		//the loop may have been closed and drained since it was checked, nobody would then start the exchange
+		if (!loop.open && loop.submitted.remove(exchange))
+		{
+			inFlight.decrementAndGet();
+			throw new RejectedExecutionException("The ICAP engine is closed.");
+		}
+		loop.selector.wakeup();
+		return exchange;
+	}
+
+	/**
+	 * @return The number of scans in progress
+	 */
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+	/**
+	 * Stops the I/O threads, the scans in progress fail
+	 */
+	@Override
+	public void close()
+	{
+		for (IoLoop loop : loops)
+		{
+			if (loop != null)
+			{
+				loop.open = false;
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * A connection kept open between two scans, watched by the selector to detect a close by the server
+	 */
+	private static class IdleConnection
+	{
+		private final String address;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final long expiry;
+
+		IdleConnection(String address, SocketChannel channel, SelectionKey key, long idleTimeout)
+		{
+			this.address = address;
+			this.channel = channel;
+			this.key = key;
+			this.expiry = System.currentTimeMillis() + idleTimeout;
+		}
+	}
+
+	/**
+	 * An I/O thread with its selector, its scans and its idle connections, only touched by the thread itself
+	 */
+	class IoLoop implements Runnable
+	{
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<IcapNioExchange> submitted = new ConcurrentLinkedQueue<>();
+		private final List<IcapNioExchange> active = new ArrayList<>();
+		private final Map<String, Deque<IdleConnection>> idleConnections = new HashMap<>();
+		private volatile boolean open = true;
+
+		IoLoop() throws IOException
+		{
+			selector = Selector.open();
+			thread = new Thread(this, "IcapNioEngine-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (open)
+			{
+				try
+				{
+					selector.select(SELECT_TIMEOUT);
+				}
+				catch (IOException ioex)
+				{
+					logger.error("Error while waiting for the ICAP connections: " + ioex.getMessage());
+					break;
+				}
+				startSubmitted();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					Object attachment = key.attachment();
+					if (attachment instanceof IcapNioExchange)
+						handle((IcapNioExchange)attachment, key);
+					else if (attachment instanceof IdleConnection)
+						//an idle connection is readable only if the server closed it or sent unexpected data
+						dropIdle((IdleConnection)attachment);
+				}
+				checkTimeouts();
+			}
+			stop();
+		}
+
+		private void startSubmitted()
+		{
+			IcapNioExchange exchange;
+			while ((exchange = submitted.poll()) != null)
+			{
+				active.add(exchange);
+				try
+				{
+					exchange.start(this);
+				}
+				catch (Exception ex)
+				{
+					exchange.fail(ex);
+				}
+			}
+		}
+
+		private void handle(IcapNioExchange exchange, SelectionKey key)
+		{
+			try
+			{
+				exchange.handle(key);
+			}
+			catch (Exception ex)
+			{
+				exchange.fail(ex);
+			}
+		}
+
+		private void checkTimeouts()
+		{
+			long now = System.currentTimeMillis();
+			for (IcapNioExchange exchange : new ArrayList<>(active))
+			{
+				if (exchange.getDeadline() < now)
+					exchange.fail(new SocketTimeoutException("Timeout while waiting for the ICAP server."));
+			}
+			for (Deque<IdleConnection> connections : idleConnections.values())
+			{
+				Iterator<IdleConnection> iterator = connections.iterator();
+				while (iterator.hasNext())
+				{
+					IdleConnection connection = iterator.next();
+					if (connection.expiry < now)
+					{
+						iterator.remove();
+						closeQuietly(connection.channel);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Gets an idle connection to the ICAP server of the exchange or opens a new one
+		 *
+		 * @param client The client of the exchange
+		 * @param exchange The exchange the connection is used by
+		 * @return The key of the connection in the selector, with the exchange attached
+		 * @throws IOException if the connection cannot be opened
+		 */
+		SelectionKey acquire(AntivirusClient client, IcapNioExchange exchange) throws IOException
+		{
+			String address = client.getHostname() + ":" + client.getPort();
+			Deque<IdleConnection> connections = idleConnections.get(address);
+			IdleConnection idle;
+			while (connections != null && (idle = connections.pollFirst()) != null)
+			{
+				if (idle.key.isValid() && idle.channel.isOpen() && idle.expiry >= System.currentTimeMillis())
+				{
+					idle.key.attach(exchange);
+					idle.key.interestOps(0);
+					return idle.key;
+				}
+				closeQuietly(idle.channel);
+			}
+
+			SocketChannel channel = SocketChannel.open();
+			try
+			{
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				boolean connected = channel.connect(new InetSocketAddress(client.getHostname(), client.getPort()));
+				return channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, exchange);
+			}
+			catch (IOException ioex)
+			{
+				closeQuietly(channel);
+				throw ioex;
+			}
+		}
+
+		/**
+		 * Ends an exchange and keeps its connection for the next one if it can be reused
+		 *
+		 * @param client The client of the exchange
+		 * @param exchange The exchange ending
+		 * @param key The key of the connection or <code>null</code> if the exchange had none
+		 * @param reusable flag set if the connection can be reused
+		 */
+		void release(AntivirusClient client, IcapNioExchange exchange, SelectionKey key, boolean reusable)
+		{
+			active.remove(exchange);
+			inFlight.decrementAndGet();
+			if (key == null)
+				return;
+			SocketChannel channel = (SocketChannel)key.channel();
+			String address = client.getHostname() + ":" + client.getPort();
+			Deque<IdleConnection> connections = idleConnections.get(address);
+			if (connections == null)
+			{
+				connections = new ArrayDeque<>();
+				idleConnections.put(address, connections);
+			}
+			if (!reusable || !key.isValid() || connections.size() >= client.getConnectionPoolSize())
+			{
+				closeQuietly(channel);
+				return;
+			}
+			IdleConnection idle = new IdleConnection(address, channel, key, client.getConnectionIdleTimeout());
+			key.attach(idle);
+			key.interestOps(SelectionKey.OP_READ);
+			connections.addFirst(idle);
+		}
+
+		private void dropIdle(IdleConnection idle)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Idle ICAP connection to " + idle.address + " closed by the server.");
+			Deque<IdleConnection> connections = idleConnections.get(idle.address);
+			if (connections != null)
+				connections.remove(idle);
+			closeQuietly(idle.channel);
+		}
+
+		private void stop()
+		{
+			AntivirusException stopped = new AntivirusException("The ICAP engine was stopped.");
+			IcapNioExchange exchange;
+			while ((exchange = submitted.poll()) != null)
+				active.add(exchange);
+			for (IcapNioExchange pending : new ArrayList<>(active))
+				pending.fail(stopped);
+			for (Deque<IdleConnection> connections : idleConnections.values())
+				for (IdleConnection connection : connections)
+					closeQuietly(connection.channel);
+			idleConnections.clear();
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ioex)
+			{
+				logger.warn("Could not close the selector: " + ioex.getMessage());
+			}
+		}
+	}
+
+	static void closeQuietly(Closeable closeable)
+	{
+		try
+		{
+			if (closeable != null)
+				closeable.close();
+		}
+		catch (IOException ioex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Error while closing: " + ioex.getMessage());
+		}
+	}
+}
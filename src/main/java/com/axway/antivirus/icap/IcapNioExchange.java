@@ -0,0 +1,437 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.exceptions.AntivirusException;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One scan driven by the {@link IcapNioEngine}: the OPTIONS request if the options of the service are not cached yet,
+ * the RESPMOD request with its preview, the rest of the data after <code>100 Continue</code> and the verdict.
+ * <p>The requests are encoded with the {@link IcapRequestTemplate} and the {@link IcapChunkedOutputStream} into
+ * a buffer written to the connection when it is writable; the responses are gathered in a buffer of
+ * <code>stdReceiveLength</code> bytes until the end of their header. The status codes are interpreted by the
+ * {@link AntivirusClient} of the scan, as for a blocking scan.</p>
+ */
+class IcapNioExchange implements Future<ScanResult>
+{
+	private static final Logger logger = Logger.getLogger(IcapNioExchange.class);
+	private static final int CONTINUE = 100;
+	//the chunks written in a row before letting the other connections of the I/O thread progress
+	private static final int MAX_CHUNKS_PER_WRITE = 16;
+
+	private enum State
+	{
+		CONNECT, WRITE_OPTIONS, READ_OPTIONS, WRITE_PREVIEW, READ_PREVIEW_RESPONSE, WRITE_BODY, READ_VERDICT, DONE
+	}
+
+	private final AntivirusClient client;
+	private final ScanSource source;
+	private final String fileExtension;
+	private final ScanCallback callback;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private IcapNioEngine.IoLoop loop;
+	private SelectionKey key;
+	private State state = State.CONNECT;
+	private long deadline = Long.MAX_VALUE;
+
+	private InputStream data;
+	private byte[] buffer;
+	private boolean wholeFile;
+	private int chosenPreviewSize;
+	private boolean lastChunkWritten;
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private IcapChunkedOutputStream chunkedOut;
+	private ByteBuffer outBuffer;
+	private ByteBuffer inBuffer;
+
+	private volatile ScanResult result;
+	private volatile Throwable failure;
+
+	IcapNioExchange(AntivirusClient client, ScanSource source, String fileExtension, ScanCallback callback)
+	{
+		this.client = client;
+		this.source = source;
+		this.fileExtension = fileExtension;
+		this.callback = callback;
+	}
+
+	/**
+	 * @return The time the I/O thread stops waiting for the ICAP server
+	 */
+	long getDeadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * Gets a connection and sends the first request, called on the I/O thread
+	 *
+	 * @param loop The I/O thread running the exchange
+	 * @throws IOException if the connection cannot be opened or the data cannot be read
+	 * @throws AntivirusException if the request cannot be sent
+	 */
+	void start(IcapNioEngine.IoLoop loop) throws IOException, AntivirusException
+	{
+		this.loop = loop;
+		key = loop.acquire(client, this);
+		if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0)
+			waitFor(State.CONNECT, SelectionKey.OP_CONNECT);
+		else
+			beginRequest();
+	}
+
+	/**
+	 * Moves the exchange forward when its connection is ready, called on the I/O thread
+	 *
+	 * @param readyKey The key of the connection selected
+	 * @throws IOException if an I/O error occurs
+	 * @throws AntivirusException if the server returned an error or an invalid response
+	 */
+	void handle(SelectionKey readyKey) throws IOException, AntivirusException
+	{
+		if (state == State.DONE)
+			return;
+		if (readyKey.isConnectable())
+		{
+			if (channel().finishConnect())
+				beginRequest();
+			return;
+		}
+		if (readyKey.isWritable())
+			write();
+		if (readyKey.isValid() && readyKey.isReadable())
+			read();
+	}
+
+	private SocketChannel channel()
+	{
+		return (SocketChannel)key.channel();
+	}
+
+	private void beginRequest() throws IOException, AntivirusException
+	{
+		inBuffer = ByteBuffer.allocate(client.getStdReceiveLength());
+		chunkedOut = new IcapChunkedOutputStream(pending, client.getStdSendLength() + IcapChunkedOutputStream.CHUNK_OVERHEAD);
+		IcapServerOptions serverOptions = IcapOptionsCache.getInstance()
+			.get(IcapOptionsCache.getKey(client.getHostname(), client.getPort(), client.getServiceName()));
+		if (serverOptions == null)
+		{
+			//Asks the server for the available options on this connection
+			byte[] optionsRequest = client.getRequestTemplate().getOptionsRequest();
+			chunkedOut.write(optionsRequest, 0, optionsRequest.length);
+			send(State.WRITE_OPTIONS);
+			return;
+		}
+		client.applyServerPreviewSize(serverOptions.getPreviewSize());
+		if (serverOptions.isExpired())
+			client.refreshServerOptions();
+		beginRespmod();
+	}
+
+	/**
+	 * Encodes the RESPMOD request with the preview, or with the first chunk if the server wants the file whole
+	 */
+	private void beginRespmod() throws IOException, AntivirusException
+	{
+		data = source.openStream();
+		long contentLength = source.length();
+		int stdPreviewSize = client.getStdPreviewSize();
+		buffer = new byte[Math.max(client.getStdSendLength(), Math.min(stdPreviewSize, AntivirusClient.MAX_PREVIEW_SIZE))];
+		IcapRequestTemplate requestTemplate = client.getRequestTemplate();
+
+		//the server wants the files of this type whole, a preview would only cost a round trip
+		int previewSize = client.choosePreviewSize(fileExtension, contentLength);
+		if (previewSize == IcapRequestTemplate.NO_PREVIEW)
+		{
+			requestTemplate.writeRespmod(chunkedOut, IcapRequestTemplate.NO_PREVIEW, contentLength);
+			fillBody();
+			send(State.WRITE_BODY);
+			return;
+		}
+
+		chosenPreviewSize = previewSize;
+		if (contentLength != AntivirusClient.UNKNOWN_LENGTH && contentLength <= previewSize)
+			previewSize = (int)contentLength;
+		int previewRead = 0;
+		int n;
+		while (previewRead < previewSize && (n = data.read(buffer, previewRead, previewSize - previewRead)) != -1)
+			previewRead += n;
+
+		//if the file size is less or equal than the preview size the whole file is in the preview
+		if (contentLength == AntivirusClient.UNKNOWN_LENGTH)
+		{
+			wholeFile = previewRead < previewSize;
+			previewSize = previewRead;
+		}
+		else if (previewRead < previewSize)
+			throw new IOException("The data ended before its announced length of " + contentLength + " bytes.");
+		else
+			wholeFile = contentLength <= previewSize;
+
+		requestTemplate.writeRespmod(chunkedOut, previewSize, contentLength);
+		if (previewRead > 0)
+			chunkedOut.writeChunk(buffer, 0, previewRead);
+		if (wholeFile)
+			chunkedOut.writeIeofChunk();
+		else
+			chunkedOut.writeLastChunk();
+		send(State.WRITE_PREVIEW);
+	}
+
+	/**
+	 * Encodes the next chunk of the data, or the last chunk at the end of the data
+	 */
+	private void fillBody() throws IOException
+	{
+		int bytesRead;
+		do
+		{
+			bytesRead = data.read(buffer);
+		}
+		while (bytesRead == 0);
+		if (bytesRead == -1)
+		{
+			chunkedOut.writeLastChunk();
+			lastChunkWritten = true;
+		}
+		else
+			chunkedOut.writeChunk(buffer, 0, bytesRead);
+	}
+
+	/**
+	 * Writes the encoded bytes to the connection, the rest is written when the connection is writable again
+	 *
+	 * @param writeState The state of the exchange while writing
+	 */
+	private void send(State writeState) throws IOException, AntivirusException
+	{
+		chunkedOut.flush();
+		outBuffer = ByteBuffer.wrap(pending.toByteArray());
+		pending.reset();
+		state = writeState;
+		write();
+	}
+
+	private void write() throws IOException, AntivirusException
+	{
+		for (int chunks = 0; chunks < MAX_CHUNKS_PER_WRITE; chunks++)
+		{
+			channel().write(outBuffer);
+			if (outBuffer.hasRemaining())
+			{
+				waitFor(state, SelectionKey.OP_WRITE);
+				return;
+			}
+			switch (state)
+			{
+				case WRITE_OPTIONS:
+					waitFor(State.READ_OPTIONS, SelectionKey.OP_READ);
+					return;
+				case WRITE_PREVIEW:
+					waitFor(wholeFile ? State.READ_VERDICT : State.READ_PREVIEW_RESPONSE, SelectionKey.OP_READ);
+					return;
+				case WRITE_BODY:
+					if (lastChunkWritten)
+					{
+						waitFor(State.READ_VERDICT, SelectionKey.OP_READ);
+						return;
+					}
+					fillBody();
+					chunkedOut.flush();
+					outBuffer = ByteBuffer.wrap(pending.toByteArray());
+					pending.reset();
+					break;
+				default:
+					return;
+			}
+		}
+		//let the other connections progress, the body is written again on the next selection
+		waitFor(state, SelectionKey.OP_WRITE);
+	}
+
+	private void waitFor(State nextState, int interestOps)
+	{
+		state = nextState;
+		key.interestOps(interestOps);
+		deadline = System.currentTimeMillis() + client.getConnectionTimeout();
+	}
+
+	private void read() throws IOException, AntivirusException
+	{
+		if (channel().read(inBuffer) == -1)
+			throw new AntivirusException("Error in getting the header from the response");
+		deadline = System.currentTimeMillis() + client.getConnectionTimeout();
+
+		//the line terminators preceding the status line (e.g. the end of a previous body) are skipped
+		byte[] bytes = inBuffer.array();
+		int limit = inBuffer.position();
+		int start = 0;
+		while (start < limit && (bytes[start] == '\r' || bytes[start] == '\n'))
+			start++;
+		int headerEnd = -1;
+		for (int i = start + 3; i < limit && headerEnd < 0; i++)
+		{
+			if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r')
+				headerEnd = i + 1;
+		}
+		if (headerEnd < 0)
+		{
+			if (!inBuffer.hasRemaining())
+				throw new AntivirusException("Error in getting the header from the response");
+			return;
+		}
+
+		IcapResponse response = IcapResponse.parse(bytes, start, headerEnd - start, state == State.READ_OPTIONS);
+		//bytes received after the header would be taken for the response of the next exchange
+		boolean unreadBytes = limit > headerEnd;
+		inBuffer.clear();
+		switch (state)
+		{
+			case READ_OPTIONS:
+				client.interpretStatusCode(response);
+				IcapOptionsCache.getInstance().put(IcapOptionsCache.getKey(client.getHostname(), client.getPort(),
+					client.getServiceName()), IcapServerOptions.fromResponse(response.getHeaders()));
+				beginRespmod();
+				break;
+			case READ_PREVIEW_RESPONSE:
+				client.recordPreviewResponse(fileExtension, source.length(), chosenPreviewSize, response.getStatusCode() != CONTINUE);
+				//else the server already gave its verdict (e.g. 204 for a file type it doesn't scan)
+				if (response.getStatusCode() != CONTINUE)
+				{
+					complete(response, unreadBytes);
+					break;
+				}
+				client.interpretStatusCode(response);
+				fillBody();
+				send(State.WRITE_BODY);
+				break;
+			case READ_VERDICT:
+				complete(response, unreadBytes);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void complete(IcapResponse response, boolean unreadBytes) throws AntivirusException
+	{
+		boolean clean = client.interpretStatusCode(response);
+		client.checkServiceTag(response);
+		StringBuilder failureReason = client.getFailureReason();
+		ScanResult scanResult = new ScanResult(clean, failureReason == null ? null : failureReason.toString(),
+			client.getServiceKey(), client.getServiceTag(), false);
+		boolean reusable = !response.isConnectionClose() && !response.hasEncapsulatedBody() && !unreadBytes;
+		end(reusable);
+		result = scanResult;
+		done.countDown();
+		if (callback != null)
+		{
+			try
+			{
+				callback.onScanCompleted(scanResult);
+			}
+			catch (RuntimeException rex)
+			{
+				logger.error("Error in the callback of an asynchronous scan: " + rex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Ends the exchange with an error, its connection is closed
+	 *
+	 * @param cause The error
+	 */
+	void fail(Throwable cause)
+	{
+		if (state == State.DONE)
+			return;
+		if (logger.isDebugEnabled())
+			logger.debug("ICAP exchange failed: " + cause.getMessage());
+		end(false);
+		failure = cause;
+		done.countDown();
+		if (callback != null)
+		{
+			try
+			{
+				callback.onScanFailed(cause);
+			}
+			catch (RuntimeException rex)
+			{
+				logger.error("Error in the callback of an asynchronous scan: " + rex.getMessage());
+			}
+		}
+	}
+
+	private void end(boolean reusable)
+	{
+		state = State.DONE;
+		deadline = Long.MAX_VALUE;
+		IcapNioEngine.closeQuietly(data);
+		if (loop != null)
+			loop.release(client, this, key, reusable);
+	}
+
+	/**
+	 * The scans driven by the I/O threads cannot be cancelled
+	 *
+	 * @return <code>false</code>
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public ScanResult get() throws InterruptedException, ExecutionException
+	{
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public ScanResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (!done.await(timeout, unit))
+			throw new TimeoutException("The scan is still in progress.");
+		return getResult();
+	}
+
+	private ScanResult getResult() throws ExecutionException
+	{
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return result;
+	}
+}
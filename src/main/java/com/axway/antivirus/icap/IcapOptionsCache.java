@@ -0,0 +1,141 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of the OPTIONS responses of the ICAP services, shared by all the scanning threads.
+ * <p>The options of a service are requested once and reused for every scan. When the Options-TTL returned by the server
+ * elapses, the cached options are still used while they are refreshed in a background thread.</p>
+ */
+public class IcapOptionsCache
+{
+	private static final Logger logger = Logger.getLogger(IcapOptionsCache.class);
+	private static final IcapOptionsCache instance = new IcapOptionsCache();
+
+	private final ConcurrentMap<String, IcapServerOptions> serverOptions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Boolean> refreshInProgress = new ConcurrentHashMap<>();
+	private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ICAP-options-refresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private IcapOptionsCache()
+	{
+	}
+
+	/**
+	 * @return The instance of the cache shared by all the ICAP clients
+	 */
+	public static IcapOptionsCache getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * @param hostname The IP address of the ICAP server
+	 * @param port The port of the ICAP server
+	 * @param serviceName The ICAP service name
+	 * @return The key of the service in the cache
+	 */
+	public static String getKey(String hostname, int port, String serviceName)
+	{
+		return hostname + ":" + port + "/" + serviceName;
+	}
+
+	/**
+	 * @param key The key of the service
+	 * @return The cached options of the service, even if expired, or <code>null</code> if never received
+	 */
+	public IcapServerOptions get(String key)
+	{
+		return serverOptions.get(key);
+	}
+
+	/**
+	 * @param key The key of the service
+	 * @param options The options received from the service
+	 */
+	public void put(String key, IcapServerOptions options)
+	{
+		serverOptions.put(key, options);
+		if (logger.isDebugEnabled())
+			logger.debug("Cached OPTIONS for " + key + ": " + options.toString());
+	}
+
+	/**
+	 * Removes the options of a service, the next scan will request them again
+	 *
+	 * @param key The key of the service
+	 */
+	public void invalidate(String key)
+	{
+		serverOptions.remove(key);
+	}
+
+	/**
+	 * Removes the options of all the services
+	 */
+	public void clear()
+	{
+		serverOptions.clear();
+	}
+
+	/**
+	 * Requests the options of a service in a background thread. Only one refresh per service runs at a time,
+	 * if the refresh fails the previous options are kept and the refresh is tried again on the next scan.
+	 *
+	 * @param key The key of the service
+	 * @param loader The task requesting the options from the server
+	 */
+	public void refresh(final String key, final Callable<IcapServerOptions> loader)
+	{
+		if (refreshInProgress.putIfAbsent(key, Boolean.TRUE) != null)
+			return;
+		try
+		{
+			refreshExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if (logger.isDebugEnabled())
+							logger.debug("Options-TTL elapsed, refreshing OPTIONS for " + key);
+						put(key, loader.call());
+					}
+					catch (Exception ex)
+					{
+						logger.warn("Could not refresh the OPTIONS for " + key + ": " + ex.getMessage());
+					}
+					finally
+					{
+						refreshInProgress.remove(key);
+					}
+				}
+			});
+		}
+		catch (RuntimeException rex)
+		{
+			refreshInProgress.remove(key);
+			logger.warn("Could not schedule the OPTIONS refresh for " + key + ": " + rex.getMessage());
+		}
+	}
+}
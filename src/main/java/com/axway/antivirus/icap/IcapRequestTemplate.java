@@ -0,0 +1,145 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ICAP requests sent to a service, encoded once.
+ * <p>The request line and the Host, User-Agent and Allow headers only depend on the scanner configuration, so they
+ * are kept as bytes and shared by all the clients of the same service. For each RESPMOD request only the Preview
+ * size, the Encapsulated offset and the Content-Length are written, as decimal digits, in the request buffer.</p>
+ */
+public class IcapRequestTemplate
+{
+	//the ICAP header fields are octets, as in HTTP/1.1 each byte is one character
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	private static final String USERAGENT = "B2Bi ICAP Client - 1.0";
+	private static final String LINETERMINATOR = "\r\n";
+	private static final String ICAPTERMINATOR = "\r\n\r\n";
+	private static final String CONTENT_LENGTH = "Content-Length: ";
+	private static final String ENCAPSULATED_BODY_ONLY = "Encapsulated: res-body=0";
+
+	/**
+	 * Preview size used to send the whole file without preview
+	 */
+	public static final int NO_PREVIEW = -1;
+
+	private static final ConcurrentMap<String, IcapRequestTemplate> templates = new ConcurrentHashMap<>();
+
+	private final byte[] optionsRequest;
+	private final byte[] respmodStart;
+	private final byte[] preview;
+	private final byte[] lineTerminator;
+	private final byte[] encapsulated;
+	private final byte[] encapsulatedBodyOnly;
+	private final byte[] contentLength;
+	private final byte[] terminator;
+
+	private IcapRequestTemplate(String hostname, String serviceName, String version)
+	{
+		String requestLine = " icap://" + hostname + "/" + serviceName + " ICAP/" + version + LINETERMINATOR;
+		String commonHeaders = "Host: " + hostname + LINETERMINATOR + "User-Agent: " + USERAGENT + LINETERMINATOR;
+		this.optionsRequest = ("OPTIONS" + requestLine + commonHeaders + "Encapsulated: null-body=0" + ICAPTERMINATOR)
+			.getBytes(HEADER_CHARSET);
+		this.respmodStart = ("RESPMOD" + requestLine + commonHeaders + "Allow: 204" + LINETERMINATOR)
+			.getBytes(HEADER_CHARSET);
+		this.preview = "Preview: ".getBytes(HEADER_CHARSET);
+		this.lineTerminator = LINETERMINATOR.getBytes(HEADER_CHARSET);
+		this.encapsulated = "Encapsulated: res-hdr=0, res-body=".getBytes(HEADER_CHARSET);
+		this.encapsulatedBodyOnly = (ENCAPSULATED_BODY_ONLY + ICAPTERMINATOR).getBytes(HEADER_CHARSET);
+		this.contentLength = (ICAPTERMINATOR + CONTENT_LENGTH).getBytes(HEADER_CHARSET);
+		this.terminator = ICAPTERMINATOR.getBytes(HEADER_CHARSET);
+	}
+
+	/**
+	 * Gets the requests of an ICAP service, they are encoded the first time the service is used
+	 *
+	 * @param hostname The IP address of the ICAP server
+	 * @param serviceName The service to use (eg. "squidclamav")
+	 * @param version The version of the ICAP server
+	 * @return The requests of the service
+	 */
+	public static IcapRequestTemplate getTemplate(String hostname, String serviceName, String version)
+	{
+		String key = hostname + "/" + serviceName + "/" + version;
+		IcapRequestTemplate template = templates.get(key);
+		if (template == null)
+		{
+			IcapRequestTemplate newTemplate = new IcapRequestTemplate(hostname, serviceName, version);
+			template = templates.putIfAbsent(key, newTemplate);
+			if (template == null)
+				template = newTemplate;
+		}
+		return template;
+	}
+
+	/**
+	 * Forgets the encoded requests, used when the scanner configuration is reloaded
+	 */
+	public static void clear()
+	{
+		templates.clear();
+	}
+
+	/**
+	 * @return The OPTIONS request of the service
+	 */
+	public byte[] getOptionsRequest()
+	{
+		return optionsRequest;
+	}
+
+	/**
+	 * Writes the RESPMOD request header followed by the encapsulated HTTP response header
+	 *
+	 * @param out The request stream
+	 * @param previewSize The number of bytes sent as preview or a negative value to send the whole file without preview
+	 * @param fileSize The size of the scanned file, sent as Content-Length of the encapsulated HTTP response,
+	 * or a negative value if not known, the body is then sent without encapsulated HTTP header
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeRespmod(IcapChunkedOutputStream out, int previewSize, long fileSize) throws IOException
+	{
+		out.write(respmodStart, 0, respmodStart.length);
+		if (previewSize >= 0)
+		{
+			out.write(preview, 0, preview.length);
+			out.writeDecimal(previewSize);
+			out.write(lineTerminator, 0, lineTerminator.length);
+		}
+		if (fileSize < 0)
+		{
+			out.write(encapsulatedBodyOnly, 0, encapsulatedBodyOnly.length);
+			return;
+		}
+		out.write(encapsulated, 0, encapsulated.length);
+		//the body starts after the encapsulated HTTP header: "Content-Length: <fileSize>\r\n\r\n"
+		out.writeDecimal(CONTENT_LENGTH.length() + IcapChunkedOutputStream.getDecimalLength(fileSize) + ICAPTERMINATOR.length());
+		out.write(contentLength, 0, contentLength.length);
+		out.writeDecimal(fileSize);
+		out.write(terminator, 0, terminator.length);
+	}
+
+	/**
+	 * Builds the RESPMOD request header as a String, for logging
+	 *
+	 * @param previewSize The number of bytes sent as preview or a negative value to send the whole file without preview
+	 * @param fileSize The size of the scanned file or a negative value if not known
+	 * @return The request header
+	 */
+	public String getRespmod(int previewSize, long fileSize)
+	{
+		String previewHeader = previewSize >= 0 ? new String(preview, HEADER_CHARSET) + previewSize + LINETERMINATOR : "";
+		if (fileSize < 0)
+			return new String(respmodStart, HEADER_CHARSET) + previewHeader + ENCAPSULATED_BODY_ONLY + ICAPTERMINATOR;
+		String resBody = CONTENT_LENGTH + fileSize + ICAPTERMINATOR;
+		return new String(respmodStart, HEADER_CHARSET) + previewHeader + new String(encapsulated, HEADER_CHARSET)
+			+ resBody.length() + ICAPTERMINATOR + resBody;
+	}
+}
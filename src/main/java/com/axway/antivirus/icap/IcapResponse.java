@@ -0,0 +1,297 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An ICAP response header parsed directly from the received bytes.
+ * <p>The header names are matched case-insensitively (RFC 3507, 4.3). The headers used on every scan are
+ * kept as typed fields, only the values of the ISTag, Methods and the <code>X-</code> extension headers reporting
+ * a threat are turned into Strings. All the headers can also be kept, for the OPTIONS responses.</p>
+ */
+public class IcapResponse
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static final String STATUS_CODE = "StatusCode";
+	private static final byte[] CONNECTION = "Connection".getBytes(US_ASCII);
+	private static final byte[] ISTAG = "ISTag".getBytes(US_ASCII);
+	private static final byte[] PREVIEW = "Preview".getBytes(US_ASCII);
+	private static final byte[] METHODS = "Methods".getBytes(US_ASCII);
+	private static final byte[] ENCAPSULATED = "Encapsulated".getBytes(US_ASCII);
+	private static final byte[] EXTENSION_PREFIX = "X-".getBytes(US_ASCII);
+	private static final byte[] CLOSE = "close".getBytes(US_ASCII);
+	private static final byte[] NULL_BODY = "null-body".getBytes(US_ASCII);
+
+	/**
+	 * Value used for the status code or the preview size if not found in the response
+	 */
+	public static final int NOT_SET = -1;
+
+	private int statusCode = NOT_SET;
+	private boolean connectionClose;
+	private boolean encapsulatedBody;
+	private int previewSize = NOT_SET;
+	private String isTag;
+	private String methods;
+	private Map<String, String> extensionHeaders = Collections.emptyMap();
+	private Map<String, String> headers = Collections.emptyMap();
+	private boolean keepAllHeaders;
+
+	private IcapResponse()
+	{
+	}
+
+	/**
+	 * Parses a response header
+	 *
+	 * @param buffer The buffer holding the header
+	 * @param offset The offset of the status line in the buffer
+	 * @param length The length of the header, including the empty line ending it
+	 * @param keepAllHeaders flag set to keep all the headers as Strings, see {@link #getHeaders()}
+	 * @return The parsed response
+	 */
+	public static IcapResponse parse(byte[] buffer, int offset, int length, boolean keepAllHeaders)
+	{
+		IcapResponse response = new IcapResponse();
+		response.keepAllHeaders = keepAllHeaders;
+		if (keepAllHeaders)
+			response.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		int end = offset + length;
+
+		/****SAMPLE:****
+		 * ICAP/1.0 204 Unmodified
+		 * Server: C-ICAP/0.1.6
+		 * Connection: keep-alive
+		 * ISTag: CI0001-000-0978-6918203
+		 */
+		// The status code is located between the first 2 whitespaces.
+		int lineEnd = indexOfLineEnd(buffer, offset, end);
+		int space = indexOf(buffer, offset, lineEnd, (byte)' ');
+		if (space >= 0)
+			response.statusCode = parseInt(buffer, space + 1, lineEnd);
+		if (keepAllHeaders && response.statusCode != NOT_SET)
+			response.headers.put(STATUS_CODE, String.valueOf(response.statusCode));
+
+		//Each line is ended with "\r\n", the header ends with an empty line
+		int i = skipLineEnd(buffer, lineEnd, end);
+		while (i < end)
+		{
+			lineEnd = indexOfLineEnd(buffer, i, end);
+			if (lineEnd == i)
+				break;
+			int colon = indexOf(buffer, i, lineEnd, (byte)':');
+			if (colon > i)
+			{
+				int valueStart = colon + 1;
+				while (valueStart < lineEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t'))
+					valueStart++;
+				int valueEnd = lineEnd;
+				while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t'))
+					valueEnd--;
+				response.setHeader(buffer, i, colon, valueStart, valueEnd);
+			}
+			i = skipLineEnd(buffer, lineEnd, end);
+		}
+		return response;
+	}
+
+	/**
+	 * Builds a response from a key value pair map, with the status code under the <code>StatusCode</code> key
+	 *
+	 * @param responseMap The response as a key value pair map.
+	 * @return The typed response
+	 */
+	public static IcapResponse fromMap(Map<String, String> responseMap)
+	{
+		String statusCode = responseMap.get(STATUS_CODE);
+		StringBuilder header = new StringBuilder("ICAP/1.0 ").append(statusCode == null ? "" : statusCode).append(" \r\n");
+		for (Map.Entry<String, String> entry : responseMap.entrySet())
+		{
+			if (!STATUS_CODE.equals(entry.getKey()))
+				header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+		}
+		byte[] bytes = header.append("\r\n").toString().getBytes(US_ASCII);
+		return parse(bytes, 0, bytes.length, true);
+	}
+
+	private void setHeader(byte[] buffer, int nameStart, int nameEnd, int valueStart, int valueEnd)
+	{
+		int nameLength = nameEnd - nameStart;
+		if (equalsIgnoreCase(buffer, nameStart, nameLength, CONNECTION))
+			connectionClose = equalsIgnoreCase(buffer, valueStart, valueEnd - valueStart, CLOSE);
+		else if (equalsIgnoreCase(buffer, nameStart, nameLength, PREVIEW))
+			previewSize = parseInt(buffer, valueStart, valueEnd);
+		else if (equalsIgnoreCase(buffer, nameStart, nameLength, ENCAPSULATED))
+			encapsulatedBody = indexOf(buffer, valueStart, valueEnd, NULL_BODY) < 0;
+		else if (equalsIgnoreCase(buffer, nameStart, nameLength, ISTAG))
+			isTag = new String(buffer, valueStart, valueEnd - valueStart, US_ASCII);
+		else if (equalsIgnoreCase(buffer, nameStart, nameLength, METHODS))
+			methods = new String(buffer, valueStart, valueEnd - valueStart, US_ASCII);
+		else if (nameLength > EXTENSION_PREFIX.length
+			&& equalsIgnoreCase(buffer, nameStart, EXTENSION_PREFIX.length, EXTENSION_PREFIX))
+		{
+			if (extensionHeaders.isEmpty())
+				extensionHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			extensionHeaders.put(new String(buffer, nameStart, nameLength, US_ASCII),
+				new String(buffer, valueStart, valueEnd - valueStart, US_ASCII));
+		}
+		if (keepAllHeaders)
+			headers.put(new String(buffer, nameStart, nameLength, US_ASCII),
+				new String(buffer, valueStart, valueEnd - valueStart, US_ASCII));
+	}
+
+	private static boolean equalsIgnoreCase(byte[] buffer, int offset, int length, byte[] expected)
+	{
+		if (length != expected.length)
+			return false;
+		for (int i = 0; i < length; i++)
+		{
+			int b = buffer[offset + i];
+			int e = expected[i];
+			if (b != e && toLowerCase(b) != toLowerCase(e))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int b)
+	{
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static int indexOf(byte[] buffer, int from, int to, byte b)
+	{
+		for (int i = from; i < to; i++)
+			if (buffer[i] == b)
+				return i;
+		return -1;
+	}
+
+	private static int indexOf(byte[] buffer, int from, int to, byte[] sequence)
+	{
+		for (int i = from; i <= to - sequence.length; i++)
+			if (equalsIgnoreCase(buffer, i, sequence.length, sequence))
+				return i;
+		return -1;
+	}
+
+	private static int indexOfLineEnd(byte[] buffer, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			if (buffer[i] == '\r' || buffer[i] == '\n')
+				return i;
+		return to;
+	}
+
+	private static int skipLineEnd(byte[] buffer, int lineEnd, int to)
+	{
+		if (lineEnd < to && buffer[lineEnd] == '\r')
+			lineEnd++;
+		if (lineEnd < to && buffer[lineEnd] == '\n')
+			lineEnd++;
+		return lineEnd;
+	}
+
+	/**
+	 * Parses the decimal number at the beginning of the range
+	 *
+	 * @return The number or {@link #NOT_SET} if the range doesn't start with a digit
+	 */
+	private static int parseInt(byte[] buffer, int from, int to)
+	{
+		int value = 0;
+		int i = from;
+		for (; i < to && i - from < 9 && buffer[i] >= '0' && buffer[i] <= '9'; i++)
+			value = value * 10 + (buffer[i] - '0');
+		return i == from ? NOT_SET : value;
+	}
+
+	/**
+	 * @return The status code of the response or {@link #NOT_SET} if the status line is malformed
+	 */
+	public int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	/**
+	 * @return <code>true</code> if the server will close the connection after the response
+	 */
+	public boolean isConnectionClose()
+	{
+		return connectionClose;
+	}
+
+	/**
+	 * @return <code>true</code> if the Encapsulated header announces a body following the response header
+	 */
+	public boolean hasEncapsulatedBody()
+	{
+		return encapsulatedBody;
+	}
+
+	/**
+	 * @return The value of the Preview header or {@link #NOT_SET}
+	 */
+	public int getPreviewSize()
+	{
+		return previewSize;
+	}
+
+	/**
+	 * @return The value of the ISTag header or <code>null</code>
+	 */
+	public String getIsTag()
+	{
+		return isTag;
+	}
+
+	/**
+	 * @return The value of the Methods header, only returned in the OPTIONS responses, or <code>null</code>
+	 */
+	public String getMethods()
+	{
+		return methods;
+	}
+
+	/**
+	 * @return The <code>X-</code> extension headers, used by the antivirus to report the threat found, sorted by name
+	 */
+	public Map<String, String> getExtensionHeaders()
+	{
+		return extensionHeaders;
+	}
+
+	/**
+	 * @return All the headers with case-insensitive names, including the status code under the <code>StatusCode</code>
+	 * key, or an empty map if they were not kept
+	 */
+	public Map<String, String> getHeaders()
+	{
+		return headers;
+	}
+
+	/**
+	 * @return All the typed values from the <code>IcapResponse</code>
+	 */
+	@Override
+	public String toString()
+	{
+		return "IcapResponse {"
+			+ "statusCode=" + statusCode
+			+ ", connectionClose=" + connectionClose
+			+ ", encapsulatedBody=" + encapsulatedBody
+			+ ", previewSize=" + previewSize
+			+ ", isTag=" + isTag
+			+ ", methods=" + methods
+			+ ", extensionHeaders=" + extensionHeaders
+			+ '}';
+	}
+}
@@ -0,0 +1,197 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.exceptions.AntivirusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered reader of the ICAP server responses.
+ * <p>The response is read from the socket in bulk and the end of the header (an empty line) is found with an
+ * incremental state machine, so the bytes are examined only once and nothing is allocated while searching.
+ * The bytes received after the header (e.g. an encapsulated body) stay in the buffer and are returned by the
+ * <code>read</code> methods before reading again from the socket.</p>
+ */
+public class IcapResponseReader extends InputStream
+{
+	//states of the header terminator search: the number of bytes of "\r\n\r\n" matched so far
+	private static final int NONE = 0;
+	private static final int CR = 1;
+	private static final int CRLF = 2;
+	private static final int CRLFCR = 3;
+
+	private final InputStream in;
+	private final byte[] buffer;
+	//the unread bytes are buffer[position, limit)
+	private int position;
+	private int limit;
+	//the last header read is buffer[headerOffset, headerOffset + headerLength)
+	private int headerOffset;
+	private int headerLength;
+
+	/**
+	 * @param in The stream from the ICAP server
+	 * @param maxHeaderSize The size of the buffer, a response header longer than that is rejected
+	 */
+	public IcapResponseReader(InputStream in, int maxHeaderSize)
+	{
+		this.in = in;
+		this.buffer = new byte[maxHeaderSize];
+	}
+
+	/**
+	 * @return The stream from the ICAP server this reader is reading from
+	 */
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+
+	/**
+	 * Reads the next response header, up to and including the empty line ending it.
+	 * The line terminators preceding the status line (e.g. the end of a previous body) are skipped.
+	 * The header is then available with {@link #getHeaderBuffer()}, {@link #getHeaderOffset()} and
+	 * {@link #getHeaderLength()} until the next call.
+	 *
+	 * @return The length of the header in bytes
+	 * @throws IOException if an error is thrown when reading from the input data stream
+	 * @throws AntivirusException if the stream ends or the buffer is full before the end of the header
+	 */
+	public int readHeader() throws IOException, AntivirusException
+	{
+		compact();
+		int state = NONE;
+		int start = -1;
+		int i = position;
+		while (true)
+		{
+			for (; i < limit; i++)
+			{
+				byte b = buffer[i];
+				if (start < 0)
+				{
+					if (b == '\r' || b == '\n')
+						continue;
+					start = i;
+				}
+				if (b == '\r')
+					state = state == CRLF ? CRLFCR : CR;
+				else if (b == '\n' && (state == CR || state == CRLFCR))
+				{
+					if (state == CRLFCR)
+					{
+						headerOffset = start;
+						headerLength = i + 1 - start;
+						position = i + 1;
+						return headerLength;
+					}
+					state = CRLF;
+				}
+				else
+					state = NONE;
+			}
+			if (limit == buffer.length)
+			{
+				if (start == 0)
+					throw new AntivirusException("Error in getting the header from the response");
+				//drop the skipped line terminators to make room
+				position = start < 0 ? limit : start;
+				i -= position;
+				compact();
+				start = start < 0 ? -1 : 0;
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n == -1)
+				throw new AntivirusException("Error in getting the header from the response");
+			limit += n;
+		}
+	}
+
+	/**
+	 * @return The buffer holding the last header read
+	 */
+	public byte[] getHeaderBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return The offset of the last header read in the buffer
+	 */
+	public int getHeaderOffset()
+	{
+		return headerOffset;
+	}
+
+	/**
+	 * @return The length of the last header read
+	 */
+	public int getHeaderLength()
+	{
+		return headerLength;
+	}
+
+	/**
+	 * @return The number of bytes received after the last header and not read yet
+	 */
+	public int getBufferedCount()
+	{
+		return limit - position;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (position < limit)
+			return buffer[position++] & 0xFF;
+		return in.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (position < limit)
+		{
+			int n = Math.min(len, limit - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			return n;
+		}
+		return in.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return limit - position + in.available();
+	}
+
+	/**
+	 * Does not close the underlying stream, the connection may be reused
+	 */
+	@Override
+	public void close()
+	{
+		position = 0;
+		limit = 0;
+	}
+
+	/**
+	 * Moves the unread bytes to the beginning of the buffer
+	 */
+	private void compact()
+	{
+		if (position > 0)
+		{
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+	}
+}
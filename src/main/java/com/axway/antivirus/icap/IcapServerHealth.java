@@ -0,0 +1,302 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.exceptions.AntivirusException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of one ICAP server (host and port), with a circuit breaker.
+ * <p>The circuit is closed while the server answers. After <code>failureThreshold</code> consecutive failures
+ * (connection errors, timeouts, 5xx responses) it opens: the server gets no scan for <code>openTime</code>
+ * milliseconds, the scans fail over to the other servers of the group or fail at once instead of waiting for the
+ * connection timeout. Then the circuit is half-open: one scan is let through, its outcome closes or opens the circuit
+ * again. The server can also be checked in background with OPTIONS requests, a check succeeding closes the
+ * circuit.</p>
+ */
+public class IcapServerHealth
+{
+	private static final Logger logger = Logger.getLogger(IcapServerHealth.class);
+	private static final ConcurrentMap<String, IcapServerHealth> servers = new ConcurrentHashMap<>();
+	private static ScheduledThreadPoolExecutor prober;
+
+	/**
+	 * The states of the circuit breaker
+	 */
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String address;
+	private volatile int failureThreshold;
+	private volatile long openTime;
+	//the state of the circuit and the health checks are guarded by this
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private long trialStartedAt;
+	private AntivirusClient probeClient;
+	private long probeInterval;
+	private ScheduledFuture<?> probe;
+
+	/**
+	 * @param address The host and port of the server, for logging
+	 * @param failureThreshold The number of consecutive failures opening the circuit, <code>0</code> to never open it
+	 * @param openTime The time in milliseconds the circuit stays open before a scan is let through
+	 */
+	IcapServerHealth(String address, int failureThreshold, long openTime)
+	{
+		this.address = address;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Gets the health of the given ICAP server, creating it if needed. The limits are updated on each call
+	 * so a configuration reload is taken into account.
+	 *
+	 * @param hostname The IP address of the ICAP server
+	 * @param port The port of the ICAP server
+	 * @param failureThreshold The number of consecutive failures opening the circuit, <code>0</code> to never open it
+	 * @param openTime The time in milliseconds the circuit stays open before a scan is let through
+	 * @return The health of the ICAP server
+	 */
+	public static IcapServerHealth getHealth(String hostname, int port, int failureThreshold, long openTime)
+	{
+		String key = hostname + ":" + port;
+		IcapServerHealth health = servers.get(key);
+		if (health == null)
+		{
+			IcapServerHealth newHealth = new IcapServerHealth(key, failureThreshold, openTime);
+			health = servers.putIfAbsent(key, newHealth);
+			if (health == null)
+				health = newHealth;
+		}
+		health.failureThreshold = failureThreshold;
+		health.openTime = openTime;
+		return health;
+	}
+
+	/**
+	 * Stops the health checks and forgets the state of all the servers
+	 */
+	public static void clear()
+	{
+		for (IcapServerHealth health : servers.values())
+			health.stopProbes();
+		servers.clear();
+	}
+
+	/**
+	 * Tells if a scan can be sent to the server, a half-open circuit lets one scan through at a time
+	 *
+	 * @return <code>false</code> if the scan must not be sent to the server
+	 */
+	public synchronized boolean allowRequest()
+	{
+		long now = System.currentTimeMillis();
+		switch (state)
+		{
+			case OPEN:
+				if (now - openedAt < openTime)
+					return false;
+				state = State.HALF_OPEN;
+				trialStartedAt = now;
+				return true;
+			case HALF_OPEN:
+				//a scan whose outcome is never known would keep the circuit half-open
+				if (now - trialStartedAt < openTime)
+					return false;
+				trialStartedAt = now;
+				return true;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Tells if a scan could be sent to the server, without letting it through
+	 *
+	 * @return <code>false</code> if the server is considered down
+	 */
+	public synchronized boolean isAvailable()
+	{
+		long now = System.currentTimeMillis();
+		switch (state)
+		{
+			case OPEN:
+				return now - openedAt >= openTime;
+			case HALF_OPEN:
+				return now - trialStartedAt >= openTime;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * @return The state of the circuit breaker
+	 */
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return The number of consecutive failures of the server
+	 */
+	public synchronized int getConsecutiveFailures()
+	{
+		return consecutiveFailures;
+	}
+
+	/**
+	 * Records an exchange completed with the server, the circuit is closed
+	 */
+	public synchronized void recordSuccess()
+	{
+		if (state != State.CLOSED)
+			logger.info("The ICAP server " + address + " answers again.");
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * Records a failure of the server, the circuit is opened once the failure threshold is reached
+	 *
+	 * @param reason The reason of the failure, for logging
+	 */
+	public synchronized void recordFailure(String reason)
+	{
+		consecutiveFailures++;
+		if (failureThreshold <= 0)
+			return;
+		if (state == State.CLOSED && consecutiveFailures < failureThreshold)
+			return;
+		if (state != State.OPEN)
+			logger.error("The ICAP server " + address + " is considered down after " + consecutiveFailures
+				+ " consecutive failures, it gets no scan for " + openTime + " ms. Last failure: " + reason);
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Tells if an error of a scan means that the server is down or failing: connection errors, timeouts and 5xx
+	 * responses. The other errors, such as an error reading the data, say nothing about the server.
+	 *
+	 * @param error The error of the scan
+	 * @param client The client of the scan
+	 * @return <code>true</code> if the error counts as a failure of the server
+	 */
+	public static boolean isServerFailure(Throwable error, AntivirusClient client)
+	{
+		if (error instanceof SocketException || error instanceof SocketTimeoutException || error instanceof UnknownHostException)
+			return true;
+		return client != null && client.isServerError();
+	}
+
+	/**
+	 * Starts checking the server in background with OPTIONS requests, or updates the checks
+	 *
+	 * @param prototype The client holding the configuration of the server, copied for each check
+	 * @param interval The time in milliseconds between two checks, <code>0</code> to stop the checks
+	 */
+	public synchronized void startProbes(AntivirusClient prototype, long interval)
+	{
+		probeClient = prototype;
+		if (probe != null && interval == probeInterval)
+			return;
+		stopProbes();
+		probeInterval = interval;
+		if (interval <= 0)
+			return;
+		probe = getProber().scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				probe();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background checks of the server
+	 */
+	public synchronized void stopProbes()
+	{
+		if (probe != null)
+		{
+			probe.cancel(false);
+			probe = null;
+		}
+	}
+
+	/**
+	 * Sends an OPTIONS request to the server and records the outcome
+	 */
+	void probe()
+	{
+		AntivirusClient prototype;
+		synchronized (this)
+		{
+			prototype = probeClient;
+		}
+		if (prototype == null)
+			return;
+		try
+		{
+			prototype.newScanClient().checkServer();
+			recordSuccess();
+		}
+		catch (IOException | AntivirusException ex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Health check of the ICAP server " + address + " failed: " + ex.getMessage());
+			recordFailure("health check: " + ex.getMessage());
+		}
+		catch (RuntimeException rex)
+		{
+			logger.error("Error in the health check of the ICAP server " + address + ": " + rex.getMessage());
+		}
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getProber()
+	{
+		if (prober == null)
+		{
+			prober = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "IcapHealthCheck");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			prober.setRemoveOnCancelPolicy(true);
+		}
+		return prober;
+	}
+
+	@Override
+	public String toString()
+	{
+		return address + " (" + getState() + ")";
+	}
+}
@@ -0,0 +1,246 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The capabilities of an ICAP service as returned by the server in the response of an OPTIONS request (RFC 3507, 4.10.2)
+ */
+public class IcapServerOptions
+{
+	private static final String METHODS = "Methods";
+	private static final String ISTAG = "ISTag";
+	private static final String PREVIEW = "Preview";
+	private static final String OPTIONS_TTL = "Options-TTL";
+	private static final String MAX_CONNECTIONS = "Max-Connections";
+	private static final String ALLOW = "Allow";
+	private static final String TRANSFER_PREVIEW = "Transfer-Preview";
+	private static final String TRANSFER_IGNORE = "Transfer-Ignore";
+	private static final String TRANSFER_COMPLETE = "Transfer-Complete";
+
+	private static final String ALL_EXTENSIONS = "*";
+
+	/**
+	 * Value used for the numeric headers not returned by the server
+	 */
+	public static final int NOT_SET = -1;
+
+	/**
+	 * How the server wants to receive a file, based on its extension (RFC 3507, 4.10.2)
+	 */
+	public enum TransferMode
+	{
+		/**
+		 * Send a preview and the rest of the file only if the server asks for it
+		 */
+		PREVIEW,
+		/**
+		 * The server will not inspect the file, don't send it
+		 */
+		IGNORE,
+		/**
+		 * Send the whole file without a preview
+		 */
+		COMPLETE
+	}
+
+	private final List<String> methods;
+	private final String isTag;
+	private final int previewSize;
+	private final int optionsTtl;
+	private final int maxConnections;
+	private final boolean allow204;
+	private final List<String> transferPreview;
+	private final List<String> transferIgnore;
+	private final List<String> transferComplete;
+	private final long receivedAt;
+
+	private IcapServerOptions(Map<String, String> headers)
+	{
+		this.methods = getListOfValues(headers.get(METHODS));
+		this.isTag = headers.get(ISTAG);
+		this.previewSize = getIntValue(headers.get(PREVIEW));
+		this.optionsTtl = getIntValue(headers.get(OPTIONS_TTL));
+		this.maxConnections = getIntValue(headers.get(MAX_CONNECTIONS));
+		this.allow204 = getListOfValues(headers.get(ALLOW)).contains("204");
+		this.transferPreview = getListOfValues(headers.get(TRANSFER_PREVIEW));
+		this.transferIgnore = getListOfValues(headers.get(TRANSFER_IGNORE));
+		this.transferComplete = getListOfValues(headers.get(TRANSFER_COMPLETE));
+		this.receivedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Builds the server options from the headers of an OPTIONS response
+	 *
+	 * @param headers The response as a key value pair map.
+	 * @return The typed server options
+	 */
+	public static IcapServerOptions fromResponse(Map<String, String> headers)
+	{
+		return new IcapServerOptions(headers);
+	}
+
+	private static int getIntValue(String value)
+	{
+		if (StringUtil.isNullEmptyOrBlank(value))
+			return NOT_SET;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			return NOT_SET;
+		}
+	}
+
+	private static List<String> getListOfValues(String listOfValues)
+	{
+		List<String> values = new ArrayList<>();
+		if (!StringUtil.isNullEmptyOrBlank(listOfValues))
+		{
+			for (String value : listOfValues.split(","))
+			{
+				if (!StringUtil.isNullEmptyOrBlank(value))
+					values.add(value.trim().toLowerCase());
+			}
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	/**
+	 * @return The methods supported by the service, in lower case
+	 */
+	public List<String> getMethods()
+	{
+		return methods;
+	}
+
+	/**
+	 * @return The ISTag of the service, it changes when the service (e.g. the antivirus signatures) is updated
+	 */
+	public String getIsTag()
+	{
+		return isTag;
+	}
+
+	/**
+	 * @return The number of bytes the server wants as preview or {@link #NOT_SET}
+	 */
+	public int getPreviewSize()
+	{
+		return previewSize;
+	}
+
+	/**
+	 * @return The time in seconds the options are valid or {@link #NOT_SET} if they don't expire
+	 */
+	public int getOptionsTtl()
+	{
+		return optionsTtl;
+	}
+
+	/**
+	 * @return The maximum number of connections the server accepts or {@link #NOT_SET}
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * @return <code>true</code> if the server supports the 204 response outside of a preview
+	 */
+	public boolean isAllow204()
+	{
+		return allow204;
+	}
+
+	/**
+	 * @return The file extensions the server wants to preview, in lower case
+	 */
+	public List<String> getTransferPreview()
+	{
+		return transferPreview;
+	}
+
+	/**
+	 * @return The file extensions the server will not inspect, in lower case
+	 */
+	public List<String> getTransferIgnore()
+	{
+		return transferIgnore;
+	}
+
+	/**
+	 * @return The file extensions the server wants to receive in full, in lower case
+	 */
+	public List<String> getTransferComplete()
+	{
+		return transferComplete;
+	}
+
+	/**
+	 * Looks for the file extension in the Transfer-Ignore, Transfer-Complete and Transfer-Preview lists. An extension
+	 * in none of the lists takes the mode of the list containing "*", the preview if the server didn't send any list.
+	 * A file without extension is never ignored, its type is not known.
+	 *
+	 * @param fileExtension The extension of the file, with or without the leading dot, may be <code>null</code>
+	 * @return How the server wants to receive the file
+	 */
+	public TransferMode getTransferMode(String fileExtension)
+	{
+		if (!StringUtil.isNullEmptyOrBlank(fileExtension))
+		{
+			String extension = fileExtension.trim().toLowerCase();
+			if (extension.startsWith("."))
+				extension = extension.substring(1);
+			if (transferIgnore.contains(extension))
+				return TransferMode.IGNORE;
+			if (transferComplete.contains(extension))
+				return TransferMode.COMPLETE;
+			if (transferPreview.contains(extension))
+				return TransferMode.PREVIEW;
+			if (transferIgnore.contains(ALL_EXTENSIONS))
+				return TransferMode.IGNORE;
+		}
+		if (transferComplete.contains(ALL_EXTENSIONS))
+			return TransferMode.COMPLETE;
+		return TransferMode.PREVIEW;
+	}
+
+	/**
+	 * @return <code>true</code> if the Options-TTL returned by the server has elapsed
+	 */
+	public boolean isExpired()
+	{
+		return optionsTtl != NOT_SET && System.currentTimeMillis() - receivedAt > optionsTtl * 1000L;
+	}
+
+	/**
+	 * @return All the values from the <code>IcapServerOptions</code>
+	 */
+	@Override
+	public String toString()
+	{
+		return "IcapServerOptions {"
+			+ "methods=" + methods
+			+ ", isTag=" + isTag
+			+ ", previewSize=" + previewSize
+			+ ", optionsTtl=" + optionsTtl
+			+ ", maxConnections=" + maxConnections
+			+ ", allow204=" + allow204
+			+ ", transferPreview=" + transferPreview
+			+ ", transferIgnore=" + transferIgnore
+			+ ", transferComplete=" + transferComplete
+			+ '}';
+	}
+}
@@ -0,0 +1,329 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tunes the preview size of an ICAP service for each file extension and size range, from the responses of the server.
+ * <p>For each class of files the tuner counts how often the server gives its verdict right after the preview (204 or
+ * 200) and how often it asks for the rest of the file (100 Continue), over windows of {@link #WINDOW} previews:</p>
+ * <ul>
+ * <li>if the server decides after almost all the previews, the preview is halved: fewer bytes are sent for the
+ * same round trips. If the server then asks for the rest of the files more often, the preview is doubled again and
+ * is not shrunk below this size anymore.</li>
+ * <li>if the server almost always asks for the rest of the file with the full preview, the files are sent whole
+ * without preview, saving a round trip. One file out of {@link #PROBE_INTERVAL} is still sent with a preview to
+ * notice a change of the server.</li>
+ * </ul>
+ * <p>The preview never exceeds the preview size of the configuration and of the server. The tuners are shared by
+ * all the scans of a service.</p>
+ */
+public class PreviewTuner
+{
+	private static final Logger logger = Logger.getLogger(PreviewTuner.class);
+	private static final ConcurrentMap<String, PreviewTuner> tuners = new ConcurrentHashMap<>();
+
+	/**
+	 * The smallest preview size the tuner shrinks the preview to
+	 */
+	public static final int MIN_PREVIEW_SIZE = 512;
+
+	/**
+	 * The number of previews after which the preview size of a class of files is reconsidered
+	 */
+	public static final int WINDOW = 32;
+
+	/**
+	 * One file out of this number is sent with a preview to a server that asks for the whole files of its class
+	 */
+	public static final int PROBE_INTERVAL = 64;
+
+	//share of the verdicts given after the preview above which the preview is shrunk
+	private static final double SHRINK_RATE = 0.9;
+	//share of the verdicts given after the preview under which the files are sent without preview
+	private static final double SKIP_RATE = 0.1;
+	//the extensions are not trusted, the classes of files are bounded
+	private static final int MAX_CLASSES = 1024;
+	private static final String NO_EXTENSION = "(none)";
+	private static final String OTHER_EXTENSION = "(other)";
+	private static final long[] SIZE_LIMITS = { 64 * 1024L, 1024 * 1024L, 16 * 1024 * 1024L };
+	private static final String[] SIZE_RANGES = { "<64KB", "64KB-1MB", "1MB-16MB", ">16MB", "unknown" };
+
+	private final String service;
+	private final ConcurrentMap<String, FileClass> classes = new ConcurrentHashMap<>();
+
+	PreviewTuner(String service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Gets the tuner of an ICAP service, creating it if needed
+	 *
+	 * @param hostname The IP address of the ICAP server
+	 * @param port The port of the ICAP server
+	 * @param serviceName The name of the ICAP service
+	 * @return The tuner of the service
+	 */
+	public static PreviewTuner getTuner(String hostname, int port, String serviceName)
+	{
+		String key = IcapOptionsCache.getKey(hostname, port, serviceName);
+		PreviewTuner tuner = tuners.get(key);
+		if (tuner == null)
+		{
+			PreviewTuner newTuner = new PreviewTuner(key);
+			tuner = tuners.putIfAbsent(key, newTuner);
+			if (tuner == null)
+				tuner = newTuner;
+		}
+		return tuner;
+	}
+
+	/**
+	 * Forgets what was learnt about all the services
+	 */
+	public static void clear()
+	{
+		tuners.clear();
+	}
+
+	/**
+	 * Chooses the preview size of a file
+	 *
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param contentLength The number of bytes of the file or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 * @param maxPreviewSize The preview size of the configuration and of the server
+	 * @return The preview size or {@link IcapRequestTemplate#NO_PREVIEW} to send the file whole
+	 */
+	public int getPreviewSize(String fileExtension, long contentLength, int maxPreviewSize)
+	{
+		return getFileClass(fileExtension, contentLength).choose(maxPreviewSize);
+	}
+
+	/**
+	 * Records the response of the server to a preview that was not the whole file
+	 *
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param contentLength The number of bytes of the file or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 * @param previewSize The preview size chosen for the file
+	 * @param decided flag set if the server gave its verdict after the preview
+	 */
+	public void record(String fileExtension, long contentLength, int previewSize, boolean decided)
+	{
+		getFileClass(fileExtension, contentLength).record(previewSize, decided);
+	}
+
+	/**
+	 * @return The statistics and the preview size of each class of files, to expose as metrics
+	 */
+	public List<FileClass> getFileClasses()
+	{
+		return new ArrayList<>(classes.values());
+	}
+
+	private FileClass getFileClass(String fileExtension, long contentLength)
+	{
+		String extension = fileExtension == null || fileExtension.trim().isEmpty() ? NO_EXTENSION
+			: fileExtension.trim().toLowerCase(Locale.ENGLISH);
+		String sizeRange = getSizeRange(contentLength);
+		if (classes.size() >= MAX_CLASSES && !classes.containsKey(extension + " " + sizeRange))
+			extension = OTHER_EXTENSION;
+		return getFileClass(extension, sizeRange);
+	}
+
+	private FileClass getFileClass(String extension, String sizeRange)
+	{
+		String key = extension + " " + sizeRange;
+		FileClass fileClass = classes.get(key);
+		if (fileClass == null)
+		{
+			FileClass newClass = new FileClass(extension, sizeRange);
+			fileClass = classes.putIfAbsent(key, newClass);
+			if (fileClass == null)
+				fileClass = newClass;
+		}
+		return fileClass;
+	}
+
+	private static String getSizeRange(long contentLength)
+	{
+		if (contentLength == AntivirusClient.UNKNOWN_LENGTH)
+			return SIZE_RANGES[SIZE_RANGES.length - 1];
+		for (int i = 0; i < SIZE_LIMITS.length; i++)
+		{
+			if (contentLength < SIZE_LIMITS[i])
+				return SIZE_RANGES[i];
+		}
+		return SIZE_RANGES[SIZE_LIMITS.length];
+	}
+
+	/**
+	 * The files of an extension and a size range, with their preview size and the responses of the server
+	 */
+	public class FileClass
+	{
+		private final String fileExtension;
+		private final String sizeRange;
+		//the preview size and the counters are guarded by this
+		private int previewSize;
+		private int maxPreviewSize;
+		private int floor = MIN_PREVIEW_SIZE;
+		private int windowPreviews;
+		private int windowDecided;
+		private long previews;
+		private long decided;
+		private long skippedPreviews;
+
+		FileClass(String fileExtension, String sizeRange)
+		{
+			this.fileExtension = fileExtension;
+			this.sizeRange = sizeRange;
+		}
+
+		synchronized int choose(int maxSize)
+		{
+			maxPreviewSize = maxSize;
+			if (previewSize == IcapRequestTemplate.NO_PREVIEW)
+			{
+				//a preview now and then tells if the server still wants the whole files
+				if (++skippedPreviews % PROBE_INTERVAL != 0)
+					return IcapRequestTemplate.NO_PREVIEW;
+				return maxSize;
+			}
+			if (previewSize == 0 || previewSize > maxSize)
+				previewSize = maxSize;
+			return previewSize;
+		}
+
+		synchronized void record(int size, boolean decidedAfterPreview)
+		{
+			previews++;
+			if (decidedAfterPreview)
+				decided++;
+			if (previewSize == IcapRequestTemplate.NO_PREVIEW)
+			{
+				if (decidedAfterPreview)
+				{
+					previewSize = maxPreviewSize;
+					resetWindow();
+					logChange("the server gives verdicts after the preview again");
+				}
+				return;
+			}
+			//a preview chosen before the last change says nothing about the current size
+			if (size != previewSize)
+				return;
+			windowPreviews++;
+			if (decidedAfterPreview)
+				windowDecided++;
+			if (windowPreviews < WINDOW)
+				return;
+
+			double rate = (double)windowDecided / windowPreviews;
+			resetWindow();
+			if (rate >= SHRINK_RATE)
+			{
+				if (previewSize / 2 >= floor)
+				{
+					previewSize /= 2;
+					logChange(formatRate(rate) + " of the files were decided after the preview");
+				}
+			}
+			else if (previewSize < maxPreviewSize)
+			{
+				//the last shrink cost round trips, the preview goes back and stays there
+				previewSize = Math.min(maxPreviewSize, previewSize * 2);
+				floor = previewSize;
+				logChange("only " + formatRate(rate) + " of the files were decided after the preview");
+			}
+			else if (rate <= SKIP_RATE)
+			{
+				previewSize = IcapRequestTemplate.NO_PREVIEW;
+				skippedPreviews = 0;
+				logChange("only " + formatRate(rate) + " of the files were decided after the preview");
+			}
+		}
+
+		private void resetWindow()
+		{
+			windowPreviews = 0;
+			windowDecided = 0;
+		}
+
+		private void logChange(String reason)
+		{
+			if (logger.isInfoEnabled())
+				logger.info("Preview size of the " + fileExtension + " files of " + sizeRange + " for " + service + " set to "
+					+ (previewSize == IcapRequestTemplate.NO_PREVIEW ? "no preview" : previewSize + " bytes") + ": " + reason + ".");
+		}
+
+		private String formatRate(double rate)
+		{
+			return Math.round(rate * 100) + "%";
+		}
+
+		/**
+		 * @return The extension of the files, in lower case
+		 */
+		public String getFileExtension()
+		{
+			return fileExtension;
+		}
+
+		/**
+		 * @return The size range of the files
+		 */
+		public String getSizeRange()
+		{
+			return sizeRange;
+		}
+
+		/**
+		 * @return The preview size chosen for the files, {@link IcapRequestTemplate#NO_PREVIEW} if they are sent whole
+		 */
+		public synchronized int getPreviewSize()
+		{
+			return previewSize == 0 ? maxPreviewSize : previewSize;
+		}
+
+		/**
+		 * @return The number of previews sent that were not the whole file
+		 */
+		public synchronized long getPreviews()
+		{
+			return previews;
+		}
+
+		/**
+		 * @return The number of previews after which the server gave its verdict
+		 */
+		public synchronized long getDecidedAfterPreview()
+		{
+			return decided;
+		}
+
+		/**
+		 * @return The share of the previews after which the server gave its verdict, between 0 and 1
+		 */
+		public synchronized double getHitRate()
+		{
+			return previews == 0 ? 0 : (double)decided / previews;
+		}
+
+		@Override
+		public String toString()
+		{
+			return fileExtension + " " + sizeRange + " (previewSize=" + getPreviewSize() + ", previews=" + getPreviews()
+				+ ", hitRate=" + formatRate(getHitRate()) + ")";
+		}
+	}
+}
@@ -0,0 +1,21 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+/**
+ * Notified on the scan thread when an asynchronous scan ends.
+ */
+public interface ScanCallback
+{
+	/**
+	 * @param result The verdict of the scan
+	 */
+	void onScanCompleted(ScanResult result);
+
+	/**
+	 * @param cause The error that ended the scan
+	 */
+	void onScanFailed(Throwable cause);
+}
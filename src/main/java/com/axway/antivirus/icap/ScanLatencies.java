@@ -0,0 +1,70 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.util.Arrays;
+
+/**
+ * The durations of the last scans of a profile, to know how long a scan usually takes.
+ * <p>The durations are kept in a ring of {@link #CAPACITY} values, so the percentiles follow the recent behaviour of
+ * the ICAP servers.</p>
+ */
+public class ScanLatencies
+{
+	/**
+	 * The number of durations kept
+	 */
+	public static final int CAPACITY = 256;
+
+	/**
+	 * The number of durations needed before a percentile is given
+	 */
+	public static final int MIN_SAMPLES = 20;
+
+	//the ring and its position are guarded by this
+	private final long[] durations = new long[CAPACITY];
+	private int count;
+	private int next;
+
+	/**
+	 * Adds the duration of a scan that got a verdict
+	 *
+	 * @param duration The duration of the scan in milliseconds
+	 */
+	public synchronized void record(long duration)
+	{
+		durations[next] = duration;
+		next = (next + 1) % CAPACITY;
+		if (count < CAPACITY)
+			count++;
+	}
+
+	/**
+	 * @param percentile The percentile, between 1 and 99
+	 * @return The duration in milliseconds under which this percentage of the recent scans got their verdict,
+	 * <code>-1</code> if there are not enough durations yet
+	 */
+	public long getPercentile(int percentile)
+	{
+		long[] sorted;
+		synchronized (this)
+		{
+			if (count < MIN_SAMPLES)
+				return -1;
+			sorted = Arrays.copyOf(durations, count);
+		}
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	/**
+	 * @return The number of durations kept
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+}
@@ -0,0 +1,58 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The stages a scan pushes each block of its data through, in the order they were added.
+ * <p>However many stages are added, the data is read once: each block read to be sent to the ICAP server goes
+ * through all the stages before the next block is read.</p>
+ */
+public class ScanPipeline implements ScanStage
+{
+	private final List<ScanStage> stages = new ArrayList<>();
+
+	/**
+	 * @param stage The stage to add after the others
+	 * @return This pipeline
+	 */
+	public ScanPipeline add(ScanStage stage)
+	{
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * @return The stages of the pipeline
+	 */
+	public List<ScanStage> getStages()
+	{
+		return Collections.unmodifiableList(stages);
+	}
+
+	@Override
+	public void start()
+	{
+		for (ScanStage stage : stages)
+			stage.start();
+	}
+
+	@Override
+	public void update(byte[] data, int offset, int length)
+	{
+		for (ScanStage stage : stages)
+			stage.update(data, offset, length);
+	}
+
+	@Override
+	public void end()
+	{
+		for (ScanStage stage : stages)
+			stage.end();
+	}
+}
@@ -0,0 +1,96 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+/**
+ * The verdict of one scan, owned by the thread that asked for the scan.
+ */
+public class ScanResult
+{
+	private final boolean clean;
+	private final String failureReason;
+	private final String service;
+	private final String isTag;
+	private final boolean cached;
+
+	/**
+	 * @param clean flag set if the ICAP server accepted the data
+	 * @param failureReason The threat reported by the antivirus, <code>null</code> or empty if none was reported
+	 */
+	public ScanResult(boolean clean, String failureReason)
+	{
+		this(clean, failureReason, null, null, false);
+	}
+
+	/**
+	 * @param clean flag set if the ICAP server accepted the data
+	 * @param failureReason The threat reported by the antivirus, <code>null</code> or empty if none was reported
+	 * @param service The key of the ICAP service that gave the verdict in the options cache, <code>null</code> if unknown
+	 * @param isTag The ISTag of the service when it gave the verdict, <code>null</code> if unknown
+	 * @param cached flag set if the verdict was taken from the {@link VerdictCache}
+	 */
+	ScanResult(boolean clean, String failureReason, String service, String isTag, boolean cached)
+	{
+		this.clean = clean;
+		this.failureReason = failureReason == null ? "" : failureReason;
+		this.service = service;
+		this.isTag = isTag;
+		this.cached = cached;
+	}
+
+	/**
+	 * @return <code>true</code> if the ICAP server accepted the data
+	 */
+	public boolean isClean()
+	{
+		return clean;
+	}
+
+	/**
+	 * @return The threat reported by the antivirus or an empty String
+	 */
+	public String getFailureReason()
+	{
+		return failureReason;
+	}
+
+	/**
+	 * @return The key of the ICAP service that gave the verdict, <code>null</code> if unknown
+	 */
+	String getService()
+	{
+		return service;
+	}
+
+	/**
+	 * @return The ISTag of the ICAP service when it gave the verdict, <code>null</code> if unknown
+	 */
+	public String getIsTag()
+	{
+		return isTag;
+	}
+
+	/**
+	 * @return <code>true</code> if the data was not scanned, the verdict of identical data was used
+	 */
+	public boolean isCached()
+	{
+		return cached;
+	}
+
+	/**
+	 * @return All the values from the <code>ScanResult</code>
+	 */
+	@Override
+	public String toString()
+	{
+		return "ScanResult {"
+			+ "clean=" + clean
+			+ ", failureReason=" + failureReason
+			+ ", isTag=" + isTag
+			+ ", cached=" + cached
+			+ '}';
+	}
+}
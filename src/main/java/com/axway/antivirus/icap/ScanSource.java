@@ -0,0 +1,186 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The data of a scan submitted to run later, opened by the thread running the scan and closed when the scan ends.
+ * A source that can be opened again can be sent to a second ICAP server when a scan is hedged.
+ */
+public abstract class ScanSource
+{
+	/**
+	 * @return The stream of the data, closed by the scan
+	 * @throws IOException if the data cannot be opened
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * @return The number of bytes of the data or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 */
+	public abstract long length();
+
+	/**
+	 * @return <code>true</code> if each call to {@link #openStream()} reads the data from the start
+	 */
+	public boolean isRepeatable()
+	{
+		return true;
+	}
+
+	/**
+	 * @param maxLength The number of bytes kept from the start of the data
+	 * @return The source reading only the first bytes of this data, which end there as if it was the whole data
+	 */
+	public ScanSource head(final long maxLength)
+	{
+		final ScanSource source = this;
+		return new ScanSource()
+		{
+			@Override
+			public InputStream openStream() throws IOException
+			{
+				return new FilterInputStream(source.openStream())
+				{
+					private long remaining = maxLength;
+
+					@Override
+					public int read() throws IOException
+					{
+						if (remaining <= 0)
+							return -1;
+						int b = super.read();
+						if (b != -1)
+							remaining--;
+						return b;
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException
+					{
+						if (remaining <= 0)
+							return -1;
+						int n = super.read(b, off, (int)Math.min(len, remaining));
+						if (n > 0)
+							remaining -= n;
+						return n;
+					}
+
+					@Override
+					public long skip(long n) throws IOException
+					{
+						long skipped = super.skip(Math.min(n, remaining));
+						remaining -= skipped;
+						return skipped;
+					}
+
+					@Override
+					public int available() throws IOException
+					{
+						return (int)Math.min(super.available(), remaining);
+					}
+
+					@Override
+					public boolean markSupported()
+					{
+						return false;
+					}
+				};
+			}
+
+			@Override
+			public long length()
+			{
+				long length = source.length();
+				return length == AntivirusClient.UNKNOWN_LENGTH ? length : Math.min(length, maxLength);
+			}
+
+			@Override
+			public boolean isRepeatable()
+			{
+				return source.isRepeatable();
+			}
+		};
+	}
+
+	/**
+	 * @param file The file to scan
+	 * @return The source reading the file
+	 */
+	public static ScanSource of(final File file)
+	{
+		return new ScanSource()
+		{
+			@Override
+			public InputStream openStream() throws IOException
+			{
+				return new FileInputStream(file);
+			}
+
+			@Override
+			public long length()
+			{
+				return file.length();
+			}
+		};
+	}
+
+	/**
+	 * @param data The data to scan, not copied
+	 * @return The source reading the data from memory
+	 */
+	public static ScanSource of(final byte[] data)
+	{
+		return new ScanSource()
+		{
+			@Override
+			public InputStream openStream()
+			{
+				return new ByteArrayInputStream(data);
+			}
+
+			@Override
+			public long length()
+			{
+				return data.length;
+			}
+		};
+	}
+
+	/**
+	 * @param data The stream to scan, owned by the scan from now on
+	 * @param contentLength The number of bytes of the data or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 * @return The source reading the stream
+	 */
+	public static ScanSource of(final InputStream data, final long contentLength)
+	{
+		return new ScanSource()
+		{
+			@Override
+			public InputStream openStream()
+			{
+				return data;
+			}
+
+			@Override
+			public long length()
+			{
+				return contentLength;
+			}
+
+			@Override
+			public boolean isRepeatable()
+			{
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,30 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+/**
+ * Sees the blocks of the data of a scan as they are read to be sent to the ICAP server, so an analysis of the data
+ * doesn't read it again. See {@link ScanPipeline} to run several stages and {@link ScanStages} for the common ones.
+ * <p>The stages of a scan are called on the scanning thread only.</p>
+ */
+public interface ScanStage
+{
+	/**
+	 * Called before the first block, and again if the data is read again to be sent to another server
+	 */
+	void start();
+
+	/**
+	 * @param data The buffer holding the block, only valid during the call
+	 * @param offset The position of the block in the buffer
+	 * @param length The number of bytes of the block
+	 */
+	void update(byte[] data, int offset, int length);
+
+	/**
+	 * Called once the whole data was seen
+	 */
+	void end();
+}
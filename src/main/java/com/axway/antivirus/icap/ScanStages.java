@@ -0,0 +1,275 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The common stages of a {@link ScanPipeline}. Their results are read once the scan ended.
+ */
+public final class ScanStages
+{
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private ScanStages()
+	{
+	}
+
+	/**
+	 * Computes a digest of the data, SHA-256 by default
+	 */
+	public static class Digest implements ScanStage
+	{
+		private final MessageDigest digest;
+		private byte[] value;
+
+		public Digest()
+		{
+			this("SHA-256");
+		}
+
+		/**
+		 * @param algorithm The name of a digest algorithm of the JVM
+		 */
+		public Digest(String algorithm)
+		{
+			try
+			{
+				this.digest = MessageDigest.getInstance(algorithm);
+			}
+			catch (NoSuchAlgorithmException nsaex)
+			{
+				throw new IllegalArgumentException(algorithm + " is not supported by the JVM.", nsaex);
+			}
+		}
+
+		@Override
+		public void start()
+		{
+			digest.reset();
+			value = null;
+		}
+
+		@Override
+		public void update(byte[] data, int offset, int length)
+		{
+			digest.update(data, offset, length);
+		}
+
+		@Override
+		public void end()
+		{
+			value = digest.digest();
+		}
+
+		/**
+		 * @return The digest in hexadecimal, <code>null</code> if the whole data was not seen
+		 */
+		public String getHex()
+		{
+			if (value == null)
+				return null;
+			char[] hex = new char[value.length * 2];
+			for (int i = 0; i < value.length; i++)
+			{
+				hex[2 * i] = HEX_DIGITS[(value[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX_DIGITS[value[i] & 0xF];
+			}
+			return new String(hex);
+		}
+	}
+
+	/**
+	 * Counts the bytes and the blocks of the data
+	 */
+	public static class ByteCounter implements ScanStage
+	{
+		private long bytes;
+		private long blocks;
+		private boolean complete;
+
+		@Override
+		public void start()
+		{
+			bytes = 0;
+			blocks = 0;
+			complete = false;
+		}
+
+		@Override
+		public void update(byte[] data, int offset, int length)
+		{
+			bytes += length;
+			blocks++;
+		}
+
+		@Override
+		public void end()
+		{
+			complete = true;
+		}
+
+		/**
+		 * @return The number of bytes seen
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * @return The number of blocks read
+		 */
+		public long getBlocks()
+		{
+			return blocks;
+		}
+
+		/**
+		 * @return <code>true</code> if the whole data was seen
+		 */
+		public boolean isComplete()
+		{
+			return complete;
+		}
+	}
+
+	/**
+	 * Keeps the first bytes of the data, where the magic bytes telling the type of a file are
+	 */
+	public static class LeadingBytes implements ScanStage
+	{
+		private final byte[] bytes;
+		private int length;
+
+		/**
+		 * @param maxLength The number of bytes kept
+		 */
+		public LeadingBytes(int maxLength)
+		{
+			this.bytes = new byte[maxLength];
+		}
+
+		@Override
+		public void start()
+		{
+			length = 0;
+		}
+
+		@Override
+		public void update(byte[] data, int offset, int count)
+		{
+			int kept = Math.min(count, bytes.length - length);
+			System.arraycopy(data, offset, bytes, length, kept);
+			length += kept;
+		}
+
+		@Override
+		public void end()
+		{
+		}
+
+		/**
+		 * @return The first bytes of the data, fewer than asked if the data is shorter
+		 */
+		public byte[] getBytes()
+		{
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+
+	/**
+	 * Looks for a sequence of bytes in the data, also when it spans two blocks
+	 */
+	public static class PatternMatcher implements ScanStage
+	{
+		private final byte[] pattern;
+		//the length of the longest prefix of the pattern that is also a suffix of each prefix, as in Knuth-Morris-Pratt
+		private final int[] fallback;
+		private int matched;
+		private long position;
+		private long firstMatch;
+
+		/**
+		 * @param pattern The text to look for, in UTF-8
+		 */
+		public PatternMatcher(String pattern)
+		{
+			this(pattern.getBytes(Charset.forName("UTF-8")));
+		}
+
+		/**
+		 * @param pattern The bytes to look for, not empty
+		 */
+		public PatternMatcher(byte[] pattern)
+		{
+			if (pattern.length == 0)
+				throw new IllegalArgumentException("The pattern is empty.");
+			this.pattern = pattern.clone();
+			this.fallback = new int[pattern.length];
+			for (int i = 1, k = 0; i < pattern.length; i++)
+			{
+				while (k > 0 && pattern[i] != pattern[k])
+					k = fallback[k - 1];
+				if (pattern[i] == pattern[k])
+					k++;
+				fallback[i] = k;
+			}
+			start();
+		}
+
+		@Override
+		public void start()
+		{
+			matched = 0;
+			position = 0;
+			firstMatch = -1;
+		}
+
+		@Override
+		public void update(byte[] data, int offset, int length)
+		{
+			if (firstMatch >= 0)
+				return;
+			for (int i = offset; i < offset + length; i++)
+			{
+				while (matched > 0 && data[i] != pattern[matched])
+					matched = fallback[matched - 1];
+				if (data[i] == pattern[matched])
+					matched++;
+				if (matched == pattern.length)
+				{
+					firstMatch = position + i - offset + 1 - pattern.length;
+					return;
+				}
+			}
+			position += length;
+		}
+
+		@Override
+		public void end()
+		{
+		}
+
+		/**
+		 * @return <code>true</code> if the pattern was found
+		 */
+		public boolean isFound()
+		{
+			return firstMatch >= 0;
+		}
+
+		/**
+		 * @return The position of the first occurrence of the pattern in the data, <code>-1</code> if not found
+		 */
+		public long getPosition()
+		{
+			return firstMatch;
+		}
+	}
+}
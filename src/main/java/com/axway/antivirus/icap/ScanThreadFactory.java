@@ -0,0 +1,85 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads running the asynchronous scans.
+ * <p>The plugin is built for Java 7, so the virtual threads of Java 21 are looked up by reflection
+ * (<code>Thread.ofVirtual()</code>). When they are not available the scans run on daemon platform threads.</p>
+ */
+public class ScanThreadFactory implements ThreadFactory
+{
+	private static final Logger logger = Logger.getLogger(ScanThreadFactory.class);
+	private static final String THREAD_NAME_PREFIX = "AntivirusScan-";
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+	private static final ThreadFactory virtualThreadFactory = lookupVirtualThreadFactory();
+
+	private final boolean virtual;
+
+	/**
+	 * @param virtualThreads flag set to create virtual threads if the JVM supports them
+	 */
+	public ScanThreadFactory(boolean virtualThreads)
+	{
+		this.virtual = virtualThreads && virtualThreadFactory != null;
+		if (virtualThreads && !virtual)
+			logger.warn("Virtual threads are not available on this JVM (Java 21 or later required), the asynchronous scans run on platform threads.");
+	}
+
+	/**
+	 * @return <code>true</code> if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * @return <code>true</code> if this factory creates virtual threads
+	 */
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		if (virtual)
+			return virtualThreadFactory.newThread(runnable);
+		Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * @return The factory of <code>Thread.ofVirtual().name("AntivirusScan-virtual-", 1)</code> or <code>null</code>
+	 * if the JVM doesn't support virtual threads
+	 */
+	private static ThreadFactory lookupVirtualThreadFactory()
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, THREAD_NAME_PREFIX + "virtual-", 1L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException ex)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Virtual threads not supported: " + ex);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the scans of a scanner group over its ICAP servers.
+ * <p>For each scan two servers are picked at random and the scan goes to the less loaded one (power of two choices).
+ * The load of a server is the number of its scans in progress multiplied by its average response time, an
+ * exponentially weighted moving average, and divided by its weight. Picking among two servers instead of taking the
+ * least loaded one keeps the servers that just answered fast from getting all the scans at once. The servers
+ * considered down by their {@link IcapServerHealth} are left out while another server is available.</p>
+ * <p>When the configuration is reloaded, a server with the same address, service and weight keeps its load: the
+ * scans in progress end on the load of the new balancer and the average response time is not measured again.</p>
+ */
+public class ScannerBalancer
+{
+	//share of the last response time in the average response time of a server
+	private static final double LATENCY_DECAY = 0.3;
+
+	private final List<Server> servers;
+
+	/**
+	 * Builds the servers of a scanner profile, the servers of its group or its own ICAP server if it is not a group
+	 *
+	 * @param avConfHolder The configuration of the scanner profile
+	 */
+	public ScannerBalancer(AntivirusConfigurationHolder avConfHolder)
+	{
+		this(avConfHolder, null);
+	}
+
+	/**
+	 * Builds the servers of a reloaded scanner profile, keeping the load of the servers that did not change
+	 *
+	 * @param avConfHolder The new configuration of the scanner profile
+	 * @param previous The balancer of the previous configuration, may be <code>null</code>
+	 */
+	public ScannerBalancer(AntivirusConfigurationHolder avConfHolder, ScannerBalancer previous)
+	{
+		List<Server> groupServers = new ArrayList<>();
+		if (avConfHolder.getGroupMembers() == null || avConfHolder.getGroupMembers().isEmpty())
+		{
+			groupServers.add(newServer(avConfHolder, previous));
+		}
+		else
+		{
+			for (AntivirusConfigurationHolder member : avConfHolder.getGroupMembers())
+				groupServers.add(newServer(member, previous));
+		}
+		this.servers = Collections.unmodifiableList(groupServers);
+	}
+
+	/**
+	 * Builds a server with its shared health, starting its background checks
+	 */
+	private static Server newServer(AntivirusConfigurationHolder avConfHolder, ScannerBalancer previous)
+	{
+		AntivirusClient prototype = new AntivirusClient(avConfHolder);
+		IcapServerHealth health = IcapServerHealth.getHealth(avConfHolder.getHostname(), avConfHolder.getPort(),
+			avConfHolder.getCircuitBreakerFailures(), avConfHolder.getCircuitBreakerOpenTime());
+		health.startProbes(prototype, avConfHolder.getHealthCheckInterval());
+		Load load = previous == null ? null : previous.getLoad(prototype, avConfHolder.getWeight());
+		return new Server(prototype, avConfHolder.getWeight(), health, load == null ? new Load() : load);
+	}
+
+	/**
+	 * @return The load of the server with the same address, service and weight, <code>null</code> if there is none
+	 */
+	private Load getLoad(AntivirusClient prototype, int weight)
+	{
+		for (Server server : servers)
+		{
+			AntivirusClient other = server.getPrototype();
+			if (server.getWeight() == Math.max(1, weight) && other.getPort() == prototype.getPort()
+				&& other.getHostname().equals(prototype.getHostname())
+				&& other.getServiceName().equals(prototype.getServiceName()))
+				return server.load;
+		}
+		return null;
+	}
+
+	/**
+	 * @param servers The ICAP servers sharing the scans, at least one
+	 */
+	public ScannerBalancer(List<Server> servers)
+	{
+		if (servers.isEmpty())
+			throw new IllegalArgumentException("A scanner group needs at least one ICAP server.");
+		this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+	}
+
+	/**
+	 * Chooses the server of the next scan
+	 *
+	 * @return The less loaded of two servers picked at random
+	 */
+	public Server choose()
+	{
+		return choose(Collections.<Server>emptyList());
+	}
+
+	/**
+	 * Chooses the server of the next scan among the servers not excluded, used to fail over
+	 *
+	 * @param excluded The servers already tried for the scan
+	 * @return The less loaded of two servers picked at random, <code>null</code> if all the servers are excluded
+	 */
+	public Server choose(Collection<Server> excluded)
+	{
+		List<Server> candidates = servers;
+		if (!excluded.isEmpty())
+		{
+			candidates = new ArrayList<>(servers);
+			candidates.removeAll(excluded);
+		}
+		int count = candidates.size();
+		if (count <= 1)
+			return count == 0 ? null : candidates.get(0);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(count);
+		//the second server is picked among the others
+		int second = (first + 1 + random.nextInt(count - 1)) % count;
+		Server a = candidates.get(first);
+		Server b = candidates.get(second);
+		boolean aAvailable = a.getHealth().isAvailable();
+		if (aAvailable != b.getHealth().isAvailable())
+			return aAvailable ? a : b;
+		if (!aAvailable)
+		{
+			//both are down, any other server still up is better
+			for (Server server : candidates)
+			{
+				if (server.getHealth().isAvailable())
+					return server;
+			}
+			return a;
+		}
+		//a server not measured yet is compared on its scans in progress only
+		boolean measured = a.isMeasured() && b.isMeasured();
+		return a.getLoad(measured) <= b.getLoad(measured) ? a : b;
+	}
+
+	/**
+	 * @return The ICAP servers sharing the scans
+	 */
+	public List<Server> getServers()
+	{
+		return servers;
+	}
+
+	/**
+	 * An ICAP server of the group with its share of the scans and its measured load
+	 */
+	public static class Server
+	{
+		private final AntivirusClient prototype;
+		private final int weight;
+		private final IcapServerHealth health;
+		private final Load load;
+
+		/**
+		 * A server whose health is not tracked, it is never considered down
+		 *
+		 * @param prototype The client holding the configuration of the server, copied for each scan
+		 * @param weight The relative share of the scans sent to the server
+		 */
+		public Server(AntivirusClient prototype, int weight)
+		{
+			this(prototype, weight, new IcapServerHealth(prototype.getHostname() + ":" + prototype.getPort(), 0, 0));
+		}
+
+		/**
+		 * @param prototype The client holding the configuration of the server, copied for each scan
+		 * @param weight The relative share of the scans sent to the server
+		 * @param health The health of the server
+		 */
+		public Server(AntivirusClient prototype, int weight, IcapServerHealth health)
+		{
+			this(prototype, weight, health, new Load());
+		}
+
+		private Server(AntivirusClient prototype, int weight, IcapServerHealth health, Load load)
+		{
+			this.prototype = prototype;
+			this.weight = Math.max(1, weight);
+			this.health = health;
+			this.load = load;
+		}
+
+		/**
+		 * @return The client holding the configuration of the server
+		 */
+		public AntivirusClient getPrototype()
+		{
+			return prototype;
+		}
+
+		/**
+		 * @return The relative share of the scans sent to the server
+		 */
+		public int getWeight()
+		{
+			return weight;
+		}
+
+		/**
+		 * @return The health of the server
+		 */
+		public IcapServerHealth getHealth()
+		{
+			return health;
+		}
+
+		/**
+		 * @return The number of scans in progress on the server
+		 */
+		public int getOutstanding()
+		{
+			return load.outstanding.get();
+		}
+
+		/**
+		 * @return The average response time of the server in milliseconds, <code>0</code> if not measured yet
+		 */
+		public double getLatency()
+		{
+			synchronized (load)
+			{
+				return load.latency;
+			}
+		}
+
+		boolean isMeasured()
+		{
+			synchronized (load)
+			{
+				return load.measured;
+			}
+		}
+
+		/**
+		 * @param withLatency flag set to weigh the scans in progress with the average response time
+		 * @return The load of the server, the cost of sending it one more scan
+		 */
+		double getLoad(boolean withLatency)
+		{
+			double cost = load.outstanding.get() + 1;
+			if (withLatency)
+				cost *= Math.max(1, getLatency());
+			return cost / weight;
+		}
+
+		/**
+		 * Counts a scan sent to the server
+		 */
+		public void start()
+		{
+			load.outstanding.incrementAndGet();
+		}
+
+		/**
+		 * Counts the end of a scan and adds its response time to the average.
+		 * A failed scan counts at least as long as the connection timeout, so a server failing fast gets fewer scans.
+		 *
+		 * @param elapsed The duration of the scan in milliseconds
+		 * @param failed flag set if the scan failed
+		 */
+		public void end(long elapsed, boolean failed)
+		{
+			load.outstanding.decrementAndGet();
+			double sample = failed ? Math.max(elapsed, prototype.getConnectionTimeout()) : elapsed;
+			synchronized (load)
+			{
+				load.latency = load.measured ? load.latency + LATENCY_DECAY * (sample - load.latency) : sample;
+				load.measured = true;
+			}
+		}
+
+		/**
+		 * Counts a scan that was not sent to the server after all
+		 */
+		public void cancel()
+		{
+			load.outstanding.decrementAndGet();
+		}
+
+		@Override
+		public String toString()
+		{
+			return prototype.getHostname() + ":" + prototype.getPort() + " (weight=" + weight + ", outstanding="
+				+ load.outstanding.get() + ", latency=" + getLatency() + ", state=" + health.getState() + ")";
+		}
+	}
+
+	/**
+	 * The scans in progress on a server and its average response time, kept across the reloads of the configuration
+	 */
+	private static class Load
+	{
+		private final AtomicInteger outstanding = new AtomicInteger();
+		//the average response time is guarded by this
+		private double latency;
+		private boolean measured;
+	}
+}
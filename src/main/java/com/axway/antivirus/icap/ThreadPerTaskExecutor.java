@@ -0,0 +1,98 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts a new thread for each task, as <code>Executors.newThreadPerTaskExecutor</code> of Java 21 does, used with
+ * virtual threads: a task never waits for a thread, so thousands of scans can wait on the ICAP servers at once.
+ * <p>The number of tasks in progress is bounded by a semaphore instead of a number of threads; a task submitted
+ * when they are all in progress is rejected.</p>
+ */
+class ThreadPerTaskExecutor implements Executor
+{
+	private final ThreadFactory threadFactory;
+	private final Semaphore permits;
+	private final int maxTasks;
+	private final AtomicInteger activeTasks = new AtomicInteger();
+	private final AtomicLong completedTasks = new AtomicLong();
+	private volatile boolean shutdown;
+
+	/**
+	 * @param threadFactory Creates the thread of each task
+	 * @param maxTasks The maximum number of tasks in progress
+	 */
+	ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxTasks)
+	{
+		this.threadFactory = threadFactory;
+		this.permits = new Semaphore(maxTasks);
+		this.maxTasks = maxTasks;
+	}
+
+	@Override
+	public void execute(final Runnable task)
+	{
+		if (shutdown)
+			throw new RejectedExecutionException("The executor is shut down.");
+		if (!permits.tryAcquire())
+			throw new RejectedExecutionException("The " + maxTasks + " tasks of the executor are in progress.");
+		try
+		{
+			threadFactory.newThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					activeTasks.incrementAndGet();
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						activeTasks.decrementAndGet();
+						completedTasks.incrementAndGet();
+						permits.release();
+					}
+				}
+			}).start();
+		}
+		catch (RuntimeException | Error ex)
+		{
+			permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Rejects the new tasks, the tasks in progress run to their end
+	 */
+	void shutdown()
+	{
+		shutdown = true;
+	}
+
+	/**
+	 * @return The number of tasks running
+	 */
+	int getActiveCount()
+	{
+		return activeTasks.get();
+	}
+
+	/**
+	 * @return The number of tasks ended
+	 */
+	long getCompletedTaskCount()
+	{
+		return completedTasks.get();
+	}
+}
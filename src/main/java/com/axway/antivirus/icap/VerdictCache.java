@@ -0,0 +1,263 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The verdicts of the last scans of a profile, kept by the SHA-256 of the scanned data.
+ * <p>A file resent after a timeout or sent to many partners is not scanned again: its verdict is taken from the
+ * cache. A verdict is only used while the ICAP service that gave it has the same ISTag, the tag changing when the
+ * antivirus signatures are updated, so an update is never bypassed. The verdicts are also dropped after a time to
+ * live, and the least recently used ones once the cache is full. The cache is split in stripes locked separately
+ * so the scans don't wait for each other.</p>
+ */
+public class VerdictCache
+{
+	private static final int STRIPES = 16;
+	private static final int HASH_BUFFER_SIZE = 65536;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final int capacity;
+	private final long timeToLive;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param capacity The number of verdicts kept, at least one
+	 * @param timeToLive The time in milliseconds a verdict is kept, <code>0</code> to keep it until the ISTag changes
+	 */
+	public VerdictCache(int capacity, long timeToLive)
+	{
+		this.capacity = Math.max(1, capacity);
+		this.timeToLive = timeToLive;
+		int stripeCapacity = (this.capacity + STRIPES - 1) / STRIPES;
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(stripeCapacity);
+	}
+
+	/**
+	 * Computes the SHA-256 of the data, reading it once
+	 *
+	 * @param source The data
+	 * @return The SHA-256 of the data in hexadecimal
+	 * @throws IOException if the data cannot be read
+	 */
+	public static String hash(ScanSource source) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException nsaex)
+		{
+			throw new IllegalStateException("SHA-256 is not supported by the JVM.", nsaex);
+		}
+		byte[] buffer = new byte[HASH_BUFFER_SIZE];
+		try (InputStream data = source.openStream())
+		{
+			int n;
+			while ((n = data.read(buffer)) != -1)
+				digest.update(buffer, 0, n);
+		}
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++)
+		{
+			hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Gets the verdict of identical data, if the service that gave it still has the same ISTag
+	 *
+	 * @param hash The SHA-256 of the data
+	 * @return The verdict marked as cached or <code>null</code> if the data has to be scanned
+	 */
+	public ScanResult get(String hash)
+	{
+		Stripe stripe = getStripe(hash);
+		CachedVerdict entry;
+		synchronized (stripe)
+		{
+			entry = stripe.get(hash);
+		}
+		if (entry != null && !isValid(entry))
+		{
+			synchronized (stripe)
+			{
+				//another scan may have put a new verdict meanwhile
+				if (stripe.get(hash) == entry)
+					stripe.remove(hash);
+			}
+			entry = null;
+		}
+		if (entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ScanResult(entry.clean, entry.failureReason, entry.service, entry.isTag, true);
+	}
+
+	/**
+	 * Keeps the verdict of a scan. Verdicts without the ISTag of the service, and data sent to the server but not
+	 * scanned by the antivirus, are not kept.
+	 *
+	 * @param hash The SHA-256 of the data
+	 * @param result The verdict of the scan
+	 */
+	public void put(String hash, ScanResult result)
+	{
+		if (result.getService() == null || result.getIsTag() == null)
+			return;
+		if (!result.isClean() && result.getFailureReason().trim().isEmpty())
+			return;
+		CachedVerdict entry = new CachedVerdict(result, timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe)
+		{
+			stripe.put(hash, entry);
+		}
+	}
+
+	/**
+	 * Drops all the verdicts
+	 */
+	public void clear()
+	{
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				stripe.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of verdicts kept
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of verdicts kept at most
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return The time in milliseconds a verdict is kept, <code>0</code> to keep it until the ISTag changes
+	 */
+	public long getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	/**
+	 * @return The number of scans skipped thanks to a kept verdict
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of scans whose data had no valid verdict kept
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	private Stripe getStripe(String hash)
+	{
+		return stripes[(hash.hashCode() & Integer.MAX_VALUE) % STRIPES];
+	}
+
+	private static boolean isValid(CachedVerdict entry)
+	{
+		return System.currentTimeMillis() < entry.expiresAt && isCurrent(entry.service, entry.isTag);
+	}
+
+	/**
+	 * @param service The key of the ICAP service that gave a verdict
+	 * @param isTag The ISTag of the service when it gave the verdict
+	 * @return <code>true</code> if the service still has the same ISTag, the verdict can be used. The ISTag of
+	 * options whose TTL elapsed may be outdated, the verdict is then not used until the options are refreshed.
+	 */
+	static boolean isCurrent(String service, String isTag)
+	{
+		//the options are refreshed when a response shows a new ISTag or when their TTL expires
+		IcapServerOptions serverOptions = IcapOptionsCache.getInstance().get(service);
+		return serverOptions != null && !serverOptions.isExpired() && isTag.equals(serverOptions.getIsTag());
+	}
+
+	/**
+	 * A verdict with the ISTag of the service that gave it
+	 */
+	private static class CachedVerdict
+	{
+		private final boolean clean;
+		private final String failureReason;
+		private final String service;
+		private final String isTag;
+		private final long expiresAt;
+
+		CachedVerdict(ScanResult result, long expiresAt)
+		{
+			this.clean = result.isClean();
+			this.failureReason = result.getFailureReason();
+			this.service = result.getService();
+			this.isTag = result.getIsTag();
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * A part of the cache in the order of use, the least recently used verdict is dropped once the part is full
+	 */
+	private static class Stripe extends LinkedHashMap<String, CachedVerdict>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		Stripe(int maxEntries)
+		{
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedVerdict> eldest)
+		{
+			return size() > maxEntries;
+		}
+	}
+}
@@ -0,0 +1,466 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.icap;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The verdicts of the scans stored in a file shared by the nodes of the cluster, so a file scanned on a node is not
+ * scanned again on another node, nor after a restart.
+ * <p>The file is a ring of fixed size records after a header. A verdict is appended at the slot following the last
+ * one, the oldest verdict being overwritten once the ring is full. Each node indexes in memory the records appended
+ * since its last look at the file, so a restarted node starts with the verdicts of the whole cluster.</p>
+ * <p>The header and the records are read and written with positional reads and writes of the file channel, always
+ * under a lock of the header: exclusive to append a record then increase the sequence number of the header, shared
+ * to read them. The network file systems (NFS, SMB) write the data back to the server when such a lock is released
+ * and read it again when it is taken, so the nodes of all the hosts sharing the directory see the same verdicts. The
+ * readers only wait for the time of one append.</p>
+ * <p>Like in the {@link VerdictCache}, a verdict is only used while the ICAP service that gave it has the same
+ * ISTag.</p>
+ */
+public class VerdictStore
+{
+	private static final Logger logger = Logger.getLogger(VerdictStore.class);
+	private static final ConcurrentMap<String, VerdictStore> stores = new ConcurrentHashMap<>();
+	//the locks of a file are held by the JVM: the stores opening one file by different paths take turns to lock it
+	private static final ConcurrentMap<String, Object> monitors = new ConcurrentHashMap<>();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The name of the file of the store
+	 */
+	public static final String FILE_NAME = "verdicts.dat";
+
+	private static final int MAGIC = 0x41565653;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SEQUENCE_POSITION = 16;
+	private static final int RECORD_SIZE = 512;
+	//the records read at once when the node looks at the records appended
+	private static final int RECORDS_PER_READ = 64;
+	private static final int HASH_LENGTH = 32;
+	private static final int MAX_TAG_LENGTH = 64;
+	private static final int MAX_SERVICE_LENGTH = 128;
+	private static final int MAX_REASON_LENGTH = 267;
+	//positions in a record
+	private static final int RECORD_SEQUENCE = 0;
+	private static final int RECORD_WRITTEN_AT = 8;
+	private static final int RECORD_HASH = 16;
+	private static final int RECORD_CLEAN = 48;
+	private static final int RECORD_TAG = 49;
+	private static final int RECORD_SERVICE = RECORD_TAG + 1 + MAX_TAG_LENGTH;
+	private static final int RECORD_REASON = RECORD_SERVICE + 1 + MAX_SERVICE_LENGTH;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final Object monitor;
+	private final int capacity;
+	//the index, the hashes of the slots and the position of the reader are guarded by the monitor
+	private final Map<String, Long> index = new HashMap<>();
+	private String[] slotHashes;
+	private long indexedSequence;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private VerdictStore(File file, int capacity) throws IOException
+	{
+		this.file = file;
+		Object newMonitor = new Object();
+		Object existingMonitor = monitors.putIfAbsent(file.getCanonicalPath(), newMonitor);
+		this.monitor = existingMonitor == null ? newMonitor : existingMonitor;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		try
+		{
+			this.channel = randomAccessFile.getChannel();
+			//the first node creates the file, the size of the ring is the one of the file afterwards
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			synchronized (monitor)
+			{
+				FileLock lock = channel.lock(0, HEADER_SIZE, false);
+				try
+				{
+					if (channel.size() < HEADER_SIZE)
+					{
+						randomAccessFile.setLength(HEADER_SIZE + (long)capacity * RECORD_SIZE);
+						header.putInt(0, MAGIC);
+						header.putInt(4, VERSION);
+						header.putInt(8, RECORD_SIZE);
+						header.putInt(12, capacity);
+						header.putLong(SEQUENCE_POSITION, 0);
+						writeFully(header, 0);
+						channel.force(false);
+						header.clear();
+					}
+					readFully(header, 0);
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE)
+				throw new IOException("The file " + file + " is not a verdict store.");
+			this.capacity = header.getInt(12);
+			if (capacity != this.capacity)
+				logger.info("The verdict store " + file + " keeps " + this.capacity + " verdicts, as set when it was created.");
+			this.slotHashes = new String[this.capacity];
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			randomAccessFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Gets the store in a directory, opening or creating its file if needed
+	 *
+	 * @param directory The directory shared by the nodes of the cluster
+	 * @param capacity The number of verdicts kept, used only when the file is created
+	 * @return The store or <code>null</code> if its file cannot be opened, the verdicts are then not stored
+	 */
+	public static VerdictStore getStore(File directory, int capacity)
+	{
+		File storeFile = new File(directory, FILE_NAME).getAbsoluteFile();
+		String key = storeFile.getPath();
+		VerdictStore store = stores.get(key);
+		if (store != null)
+			return store;
+		synchronized (stores)
+		{
+			store = stores.get(key);
+			if (store == null)
+			{
+				try
+				{
+					if (!directory.isDirectory() && !directory.mkdirs())
+						throw new IOException("Cannot create the directory " + directory + ".");
+					store = new VerdictStore(storeFile, Math.max(1, capacity));
+					stores.put(key, store);
+					logger.info("Verdict store opened: " + storeFile);
+				}
+				catch (IOException | RuntimeException ex)
+				{
+					logger.error("Cannot open the verdict store " + storeFile + ", the verdicts are not stored: " + ex.getMessage());
+					return null;
+				}
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Closes the files of all the stores
+	 */
+	public static void closeAll()
+	{
+		synchronized (stores)
+		{
+			for (VerdictStore store : stores.values())
+				store.close();
+			stores.clear();
+		}
+	}
+
+	private void close()
+	{
+		try
+		{
+			randomAccessFile.close();
+		}
+		catch (IOException ioex)
+		{
+			logger.debug("Error closing the verdict store " + file + ": " + ioex.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the verdict of identical data stored by any node, if the service that gave it still has the same ISTag
+	 *
+	 * @param hash The SHA-256 of the data in hexadecimal
+	 * @param timeToLive The time in milliseconds a verdict is used, <code>0</code> to use it until the ISTag changes
+	 * @return The verdict marked as cached or <code>null</code> if the data has to be scanned
+	 */
+	public ScanResult get(String hash, long timeToLive)
+	{
+		ScanResult result = null;
+		synchronized (monitor)
+		{
+			try
+			{
+				FileLock lock = channel.lock(0, HEADER_SIZE, true);
+				try
+				{
+					refresh();
+					Long sequence = index.get(hash);
+					result = sequence == null ? null : read(sequence, hash);
+					if (sequence != null && result == null)
+						index.remove(hash);
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+			catch (IOException ioex)
+			{
+				logger.error("Cannot read the verdicts of " + file + ": " + ioex.getMessage());
+			}
+		}
+		if (result != null && (timeToLive > 0 && System.currentTimeMillis() - writtenAt(result) >= timeToLive
+			|| !VerdictCache.isCurrent(result.getService(), result.getIsTag())))
+			result = null;
+		if (result == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Appends the verdict of a scan for all the nodes. Verdicts without the ISTag of the service, and data sent to the
+	 * server but not scanned by the antivirus, are not stored.
+	 *
+	 * @param hash The SHA-256 of the data in hexadecimal
+	 * @param result The verdict of the scan
+	 */
+	public void put(String hash, ScanResult result)
+	{
+		if (result.getService() == null || result.getIsTag() == null)
+			return;
+		if (!result.isClean() && result.getFailureReason().trim().isEmpty())
+			return;
+		byte[] tag = result.getIsTag().getBytes(UTF8);
+		byte[] service = result.getService().getBytes(UTF8);
+		if (tag.length > MAX_TAG_LENGTH || service.length > MAX_SERVICE_LENGTH)
+			return;
+		byte[] reason = result.getFailureReason().getBytes(UTF8);
+		int reasonLength = Math.min(reason.length, MAX_REASON_LENGTH);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putLong(RECORD_WRITTEN_AT, System.currentTimeMillis());
+		put(record, RECORD_HASH, toBytes(hash), HASH_LENGTH);
+		record.put(RECORD_CLEAN, (byte)(result.isClean() ? 1 : 0));
+		record.put(RECORD_TAG, (byte)tag.length);
+		put(record, RECORD_TAG + 1, tag, tag.length);
+		record.put(RECORD_SERVICE, (byte)service.length);
+		put(record, RECORD_SERVICE + 1, service, service.length);
+		record.putShort(RECORD_REASON, (short)reasonLength);
+		put(record, RECORD_REASON + 2, reason, reasonLength);
+
+		synchronized (monitor)
+		{
+			try
+			{
+				FileLock lock = channel.lock(0, HEADER_SIZE, false);
+				try
+				{
+					long sequence = readSequence();
+					record.putLong(RECORD_SEQUENCE, sequence);
+					writeFully(record, getPosition(sequence));
+					//the record is complete, it can be read
+					writeSequence(sequence + 1);
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+			catch (IOException ioex)
+			{
+				logger.error("Cannot store the verdict in " + file + ": " + ioex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return The number of verdicts kept at most
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return The number of scans skipped thanks to a stored verdict
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of scans whose data had no valid verdict stored
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return The sequence number of the next record, read from the file under the lock of the header
+	 */
+	private long readSequence() throws IOException
+	{
+		ByteBuffer sequence = ByteBuffer.allocate(8);
+		readFully(sequence, SEQUENCE_POSITION);
+		return sequence.getLong(0);
+	}
+
+	private void writeSequence(long sequence) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(8);
+		bytes.putLong(0, sequence);
+		writeFully(bytes, SEQUENCE_POSITION);
+	}
+
+	private void writeFully(ByteBuffer bytes, long position) throws IOException
+	{
+		while (bytes.hasRemaining())
+			channel.write(bytes, position + bytes.position());
+	}
+
+	private void readFully(ByteBuffer bytes, long position) throws IOException
+	{
+		while (bytes.hasRemaining())
+		{
+			if (channel.read(bytes, position + bytes.position()) < 0)
+				throw new IOException("The verdict store " + file + " is truncated.");
+		}
+	}
+
+	/**
+	 * Indexes the records appended by all the nodes since the last look at the file, called under the lock
+	 */
+	private void refresh() throws IOException
+	{
+		long sequence = readSequence();
+		if (sequence - indexedSequence > capacity)
+		{
+			//the ring went round since the last look, only the last records are still there
+			index.clear();
+			slotHashes = new String[capacity];
+			indexedSequence = sequence - capacity;
+		}
+		ByteBuffer records = null;
+		while (indexedSequence < sequence)
+		{
+			//the records up to the end of the ring are read at once
+			int first = (int)(indexedSequence % capacity);
+			int count = (int)Math.min(Math.min(sequence - indexedSequence, RECORDS_PER_READ), capacity - first);
+			if (records == null)
+				records = ByteBuffer.allocate(Math.min(RECORDS_PER_READ, capacity) * RECORD_SIZE);
+			records.clear();
+			records.limit(count * RECORD_SIZE);
+			readFully(records, getPosition(indexedSequence));
+			for (int i = 0; i < count; i++, indexedSequence++)
+			{
+				int slot = first + i;
+				//the index only refers to the records still in the ring
+				String overwritten = slotHashes[slot];
+				Long overwrittenSequence = overwritten == null ? null : index.get(overwritten);
+				if (overwrittenSequence != null && overwrittenSequence == indexedSequence - capacity)
+					index.remove(overwritten);
+				slotHashes[slot] = null;
+				int position = i * RECORD_SIZE;
+				//a record is complete before the sequence of the store is increased, unless it was overwritten since
+				if (records.getLong(position + RECORD_SEQUENCE) != indexedSequence)
+					continue;
+				String hash = toHex(records, position + RECORD_HASH);
+				slotHashes[slot] = hash;
+				index.put(hash, indexedSequence);
+			}
+		}
+	}
+
+	/**
+	 * Reads a record if it is still the one of the sequence number and of the hash, called under the lock
+	 */
+	private ScanResult read(long sequence, String hash) throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		readFully(record, getPosition(sequence));
+		if (record.getLong(RECORD_SEQUENCE) != sequence || !hash.equals(toHex(record, RECORD_HASH)))
+			return null;
+		long writtenAt = record.getLong(RECORD_WRITTEN_AT);
+		boolean clean = record.get(RECORD_CLEAN) == 1;
+		String isTag = getString(record, RECORD_TAG + 1, record.get(RECORD_TAG) & 0xFF);
+		String service = getString(record, RECORD_SERVICE + 1, record.get(RECORD_SERVICE) & 0xFF);
+		String reason = getString(record, RECORD_REASON + 2, record.getShort(RECORD_REASON));
+		return new StoredResult(clean, reason, service, isTag, writtenAt);
+	}
+
+	private static long writtenAt(ScanResult result)
+	{
+		return ((StoredResult)result).writtenAt;
+	}
+
+	private long getPosition(long sequence)
+	{
+		return HEADER_SIZE + (sequence % capacity) * RECORD_SIZE;
+	}
+
+	private static void put(ByteBuffer buffer, int position, byte[] bytes, int length)
+	{
+		for (int i = 0; i < length; i++)
+			buffer.put(position + i, bytes[i]);
+	}
+
+	private static String getString(ByteBuffer buffer, int position, int length)
+	{
+		byte[] bytes = new byte[Math.max(0, length)];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(position + i);
+		return new String(bytes, UTF8);
+	}
+
+	private static String toHex(ByteBuffer buffer, int position)
+	{
+		StringBuilder hex = new StringBuilder(HASH_LENGTH * 2);
+		for (int i = 0; i < HASH_LENGTH; i++)
+		{
+			int b = buffer.get(position + i) & 0xFF;
+			hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static byte[] toBytes(String hex)
+	{
+		byte[] bytes = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH && 2 * i + 1 < hex.length(); i++)
+			bytes[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	/**
+	 * A verdict read from the store, with the time it was stored
+	 */
+	private static class StoredResult extends ScanResult
+	{
+		private final long writtenAt;
+
+		StoredResult(boolean clean, String failureReason, String service, String isTag, long writtenAt)
+		{
+			super(clean, failureReason, service, isTag, true);
+			this.writtenAt = writtenAt;
+		}
+	}
+}
@@ -6,18 +6,25 @@ package com.axway.antivirus.inlineprocessor;
 
 import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
 import com.axway.antivirus.configuration.AntivirusConfigurationManager;
+import com.axway.antivirus.exceptions.AntivirusException;
 import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.icap.ScanResult;
 import com.axway.antivirus.tools.ScanDecider;
 import com.axway.util.StringUtil;
 import com.cyclonecommerce.api.inlineprocessing.Message;
 import com.cyclonecommerce.api.inlineprocessing.MessageProcessor;
 import com.cyclonecommerce.collaboration.MetadataDictionary;
+import com.cyclonecommerce.util.VirtualData;
 import com.cyclonecommerce.util.file.FileRegistryHelper;
 
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import static com.axway.antivirus.configuration.Constants.FS;
 
@@ -26,11 +33,13 @@ public class AntivirusProcessor implements MessageProcessor
 	private static final Logger logger = Logger.getLogger(AntivirusProcessor.class);
 	public static final String AV_SCAN_STATUS = "AVScanStatus";
 	public static final String AV_SCAN_INFO = "AVScanInfo";
+	public static final String AV_SCAN_CACHED = "AVScanCached";
+	public static final String AV_CONTENT_TYPE = "AVContentType";
 
 	private static String avScannerConfFilePath = null;
 	private static AntivirusConfigurationManager avManager;
 
-	private AntivirusClient client;
+	private AntivirusScanEngine engine;
 
 	public enum SCAN_CODES
 	{
@@ -78,6 +87,7 @@ public class AntivirusProcessor implements MessageProcessor
 	{
 		//this should be the default value, if not set in properties file it will be true
 		Boolean rejectFileOnError = true;
+		MessageDataSource source = null;
 		try
 		{
 			//receipts have no content and should not be scanned
@@ -94,8 +104,6 @@ public class AntivirusProcessor implements MessageProcessor
 
 			logger.info("Message sent to the AntivirusProcessor through: \"" + message.getMetadata("PickupName") + "\" pickup");
 
-			File temp = message.getData().toFile();
-
 			if (null == avManager)
 			{
 				avManager = AntivirusConfigurationManager.getInstance();
@@ -128,38 +136,43 @@ public class AntivirusProcessor implements MessageProcessor
 				return;
 			}
 
+			//the data is opened once: its first bytes tell its content type, then it is scanned from the same stream
+			InputStream dataStream = message.getData().getInputStream();
+			if (dataStream != null)
+			{
+				dataStream = new BufferedInputStream(dataStream);
+				source = new MessageDataSource(message.getData(), dataStream);
+			}
+
 			//check all restrictions from the configuration file and decide if the file should be scanned by the antivirus
 			ScanDecider scanDecider = new ScanDecider(avConfHolder);
-			if (!scanDecider.isValidForScanning(message))
+			if (!scanDecider.isValidForScanning(message, dataStream))
 			{
 				logger.info("The message will not be scanned due to the restrictions added in the configuration file.");
 				return;
 			}
 
-			//instantiate the ICAP client based on the scanner configuration
-			if (null == client)
+			//the scanning engine of the scanner profile is shared by all the threads processing messages,
+			//each scan has its own ICAP client
+			AntivirusScanEngine scanEngine = (null == engine) ? AntivirusScanEngine.getEngine(avConfHolder) : engine;
+
+			//scan the file, its extension tells if the server wants it with a preview or whole
+			//a content type with a previewOnly policy is scanned on its first bytes only
+			long maxLength = AntivirusClient.UNKNOWN_LENGTH;
+			if (scanDecider.isPreviewOnly() && avConfHolder.getPreviewSize() > 0)
 			{
-				client = new AntivirusClient(
-					avConfHolder.getHostname(),
-					avConfHolder.getPort(),
-					avConfHolder.getService(),
-					avConfHolder.getICAPServerVersion(),
-					avConfHolder.getPreviewSize(),
-					avConfHolder.getStdReceiveLength(),
-					avConfHolder.getStdSendLength(),
-					avConfHolder.getConnectionTimeout());
+				maxLength = avConfHolder.getPreviewSize();
+				logger.info("Only the first " + maxLength + " bytes of the message will be scanned due to its content type policy.");
+			}
+			ScanResult result = scanData(scanEngine, message.getData(), source, message.getMetadata("ConsumptionFilenameExtension"), maxLength);
+			if (result.isCached())
+			{
+				//identical data was scanned with the current antivirus signatures, its verdict was used
+				logger.info("Verdict taken from the verdict cache (ISTag " + result.getIsTag() + ").");
+				message.setMetadata(AV_SCAN_CACHED, "true");
 			}
 
-			//connect to the ICAP client and ask server for OPTIONS
-			client.connect();
-
-			//scan the file
-			boolean result = client.scanFile(temp);
-
-			//disconnect from the icap server
-			client.disconnect();
-
-			if (result)
+			if (result.isClean())
 			{
 				//the antivirus didn't find a threat, message is clean
 				logger.info("Message verified and accepted.");
@@ -170,17 +183,70 @@ public class AntivirusProcessor implements MessageProcessor
 				String errorMessage;
 				//if the failure reason is empty - the message was correctly sent to the icap server but the antivirus
 				// didn't provide information about the file, meaning it might not be scanned
-				if (StringUtil.isNullEmptyOrBlank(client.getFailureReason().toString()))
+				if (StringUtil.isNullEmptyOrBlank(result.getFailureReason()))
 					errorMessage = "Message successfully sent to the ICAP server but not scanned by the antivirus. Check the antivirus configuration.";
 				else
-					errorMessage = "Message Infected - rejecting message. Threat: " + client.getFailureReason().toString();
+					errorMessage = "Message Infected - rejecting message. Threat: " + result.getFailureReason();
 				//the antivirus found a threat, reject the message
 				//the actual reject is done in the MessageProcessorExecutor class based on the metadata from the message
 				message.setMetadata(AV_SCAN_INFO, errorMessage);
 				message.setMetadata(AV_SCAN_STATUS, SCAN_CODES.INFECTED.getValue());
 				message.setMetadata(MetadataDictionary.SHOULD_NOT_DISPLAY_VIEW_AND_DOWNLOAD_LINKS, "true");
 			}
+		}
+		catch (Exception ex)
+		{
 
+			logger.error("Other error while processing file: " + ex.getMessage());
+			message.setMetadata(AV_SCAN_STATUS, SCAN_CODES.ERROR.getValue());
+			if (rejectFileOnError)
+			{
+				message.setMetadata(AV_SCAN_INFO, "An error occurred when scanning the file: " + ex.getMessage());
+				message.setMetadata(MetadataDictionary.SHOULD_NOT_DISPLAY_VIEW_AND_DOWNLOAD_LINKS, "true");
+			}
+
+		}
+		finally
+		{
+			if (source != null)
+				source.close();
+		}
+	}
+
+	/**
+	 * Sends the message data to the ICAP server.
+	 * The data is streamed from the message, it is copied to a temp file only if it can't be read as a stream.
+	 *
+	 * @param scanEngine The scanning engine of the scanner profile
+	 * @param data The message data
+	 * @param source The message data read as a stream, <code>null</code> if it can't be
+	 * @param fileExtension The extension of the original file name, may be <code>null</code>
+	 * @param maxLength The number of bytes scanned from the start of the data or {@link AntivirusClient#UNKNOWN_LENGTH}
+	 * to scan the whole data
+	 * @return The verdict of the scan
+	 * @throws IOException if the data cannot be read or sent to the ICAP server
+	 * @throws AntivirusException if we cannot get the header from the response
+	 */
+	private ScanResult scanData(AntivirusScanEngine scanEngine, VirtualData data, MessageDataSource source,
+		String fileExtension, long maxLength) throws IOException, AntivirusException
+	{
+		if (source != null)
+		{
+			//the data can be read again if the scan is sent to a second ICAP server
+			if (maxLength != AntivirusClient.UNKNOWN_LENGTH)
+				return scanEngine.scanHead(source, maxLength, fileExtension);
+			return scanEngine.scan(source, fileExtension);
+		}
+
+		File temp = data.toFile();
+		try
+		{
+			if (maxLength != AntivirusClient.UNKNOWN_LENGTH)
+				return scanEngine.scanHead(ScanSource.of(temp), maxLength, fileExtension);
+			return scanEngine.scan(temp, fileExtension);
+		}
+		finally
+		{
 			final boolean delete = temp.delete();
 			if (delete)
 			{
@@ -192,17 +258,61 @@ public class AntivirusProcessor implements MessageProcessor
 				logger.warn("Could not delete temp file.");
 			}
 		}
-		catch (Exception ex)
+	}
+
+	/**
+	 * The data of the message, the stream opened to find out if the data is in memory and to find its content type is
+	 * read first
+	 */
+	private static class MessageDataSource extends ScanSource
+	{
+		private final VirtualData data;
+		//the stream opened first is guarded by this
+		private InputStream firstStream;
+
+		MessageDataSource(VirtualData data, InputStream firstStream)
 		{
+			this.data = data;
+			this.firstStream = firstStream;
+		}
 
-			logger.error("Other error while processing file: " + ex.getMessage());
-			message.setMetadata(AV_SCAN_STATUS, SCAN_CODES.ERROR.getValue());
-			if (rejectFileOnError)
+		@Override
+		public InputStream openStream() throws IOException
+		{
+			synchronized (this)
 			{
-				message.setMetadata(AV_SCAN_INFO, "An error occurred when scanning the file: " + ex.getMessage());
-				message.setMetadata(MetadataDictionary.SHOULD_NOT_DISPLAY_VIEW_AND_DOWNLOAD_LINKS, "true");
+				if (firstStream != null)
+				{
+					InputStream stream = firstStream;
+					firstStream = null;
+					return stream;
+				}
 			}
+			return data.getInputStream();
+		}
 
+		/**
+		 * Closes the stream opened first if the scan did not read it
+		 */
+		synchronized void close()
+		{
+			if (firstStream == null)
+				return;
+			try
+			{
+				firstStream.close();
+			}
+			catch (IOException ioex)
+			{
+				logger.debug("Could not close the stream of the message data: " + ioex.getMessage());
+			}
+			firstStream = null;
+		}
+
+		@Override
+		public long length()
+		{
+			return data.length();
 		}
 	}
 
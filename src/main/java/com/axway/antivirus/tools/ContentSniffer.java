@@ -0,0 +1,165 @@
+// Copyright Axway Software, All Rights Reserved.
+// Please refer to the file "LICENSE" for further important copyright
+// and licensing information.  Please also refer to the documentation
+// for additional copyright notices.
+package com.axway.antivirus.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Tells the type of a content from its first bytes, whatever the extension of its file name.
+ * <p>The binary types are found by their magic bytes. A content made of printable characters is EDI (X12 or EDIFACT),
+ * XML, JSON or other text depending on its first characters.</p>
+ */
+public final class ContentSniffer
+{
+	/**
+	 * The number of bytes read to tell the type of a content
+	 */
+	public static final int SNIFF_LENGTH = 512;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final int TAR_MAGIC_OFFSET = 257;
+
+	/**
+	 * The types of content told apart
+	 */
+	public enum ContentType
+	{
+		X12, EDIFACT, XML, JSON, TEXT, EXECUTABLE, ARCHIVE, OFFICE, PDF, BINARY
+	}
+
+	/**
+	 * What is done with the messages of a content type
+	 */
+	public enum Policy
+	{
+		/**
+		 * The message is scanned whole
+		 */
+		SCAN("scan"),
+		/**
+		 * The message is not scanned
+		 */
+		SKIP("skip"),
+		/**
+		 * Only the first <code>previewSize</code> bytes of the message are sent, as if they were the whole message
+		 */
+		PREVIEW_ONLY("previewOnly");
+
+		private final String name;
+
+		Policy(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * @param name The name of the policy in the configuration file, in any case
+		 * @return The policy or <code>null</code> if unknown
+		 */
+		public static Policy fromName(String name)
+		{
+			for (Policy policy : values())
+			{
+				if (policy.name.equalsIgnoreCase(name.trim()))
+					return policy;
+			}
+			return null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private ContentSniffer()
+	{
+	}
+
+	/**
+	 * Reads the first bytes of a content and tells its type
+	 *
+	 * @param data The content, read up to {@link #SNIFF_LENGTH} bytes and not closed
+	 * @return The type of the content
+	 * @throws IOException if the content cannot be read
+	 */
+	public static ContentType sniff(InputStream data) throws IOException
+	{
+		byte[] head = new byte[SNIFF_LENGTH];
+		int length = 0;
+		int n;
+		while (length < head.length && (n = data.read(head, length, head.length - length)) != -1)
+			length += n;
+		return sniff(head, length);
+	}
+
+	/**
+	 * @param head The first bytes of a content
+	 * @param length The number of bytes of the head
+	 * @return The type of the content
+	 */
+	public static ContentType sniff(byte[] head, int length)
+	{
+		if (startsWith(head, length, 0, 'M', 'Z') || startsWith(head, length, 0, 0x7F, 'E', 'L', 'F')
+			|| startsWith(head, length, 0, 0xFE, 0xED, 0xFA) || startsWith(head, length, 1, 0xFA, 0xED, 0xFE)
+			|| startsWith(head, length, 0, 0xCA, 0xFE, 0xBA, 0xBE) || startsWith(head, length, 0, '#', '!'))
+			return ContentType.EXECUTABLE;
+		if (startsWith(head, length, 0, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1))
+			return ContentType.OFFICE;
+		if (startsWith(head, length, 0, 'P', 'K', 3, 4))
+		{
+			//the documents of Office and OpenDocument are zip files starting with their own entries
+			String entries = new String(head, 0, length, US_ASCII);
+			if (entries.contains("[Content_Types].xml") || entries.contains("word/") || entries.contains("xl/")
+				|| entries.contains("ppt/") || entries.contains("mimetypeapplication/vnd.oasis.opendocument"))
+				return ContentType.OFFICE;
+			return ContentType.ARCHIVE;
+		}
+		if (startsWith(head, length, 0, 0x1F, 0x8B) || startsWith(head, length, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)
+			|| startsWith(head, length, 0, 'R', 'a', 'r', '!', 0x1A, 0x07) || startsWith(head, length, 0, 'B', 'Z', 'h')
+			|| startsWith(head, length, 0, 0xFD, '7', 'z', 'X', 'Z', 0) || startsWith(head, length, TAR_MAGIC_OFFSET, 'u', 's', 't', 'a', 'r'))
+			return ContentType.ARCHIVE;
+		if (startsWith(head, length, 0, '%', 'P', 'D', 'F', '-'))
+			return ContentType.PDF;
+
+		int start = startsWith(head, length, 0, 0xEF, 0xBB, 0xBF) ? 3 : 0;
+		for (int i = start; i < length; i++)
+		{
+			int b = head[i] & 0xFF;
+			//the control characters other than the white spaces, and the EDIFACT and X12 separators, are binary
+			if ((b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1C && b != 0x1D && b != 0x1E
+				&& b != 0x1F) || b == 0x7F)
+				return ContentType.BINARY;
+		}
+		while (start < length && Character.isWhitespace(head[start]))
+			start++;
+		String text = new String(head, start, Math.min(length - start, 4), US_ASCII).toUpperCase(Locale.ENGLISH);
+		if (text.length() == 4 && text.startsWith("ISA") && !Character.isLetterOrDigit(text.charAt(3)))
+			return ContentType.X12;
+		if (text.length() == 4 && (text.startsWith("UNA") || text.startsWith("UNB")) && !Character.isLetterOrDigit(text.charAt(3)))
+			return ContentType.EDIFACT;
+		if (text.startsWith("<"))
+			return ContentType.XML;
+		if (text.startsWith("{") || text.startsWith("["))
+			return ContentType.JSON;
+		return ContentType.TEXT;
+	}
+
+	private static boolean startsWith(byte[] head, int length, int offset, int... magic)
+	{
+		if (length < offset + magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++)
+		{
+			if ((head[offset + i] & 0xFF) != magic[i])
+				return false;
+		}
+		return true;
+	}
+}
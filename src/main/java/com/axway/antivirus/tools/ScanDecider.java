@@ -5,6 +5,8 @@
 package com.axway.antivirus.tools;
 
 import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerOptions;
 import com.axway.antivirus.inlineprocessor.AntivirusProcessor;
 import com.axway.antivirus.providers.ExchangePointProvider;
 import com.axway.util.StringUtil;
@@ -15,11 +17,17 @@ import com.cyclonecommerce.collaboration.partyconfiguration.PartyManagerFactory;
 import com.cyclonecommerce.collaboration.transport.ExchangePoint;
 import com.cyclonecommerce.collaboration.transport.ExchangePointManager;
 
+import static com.axway.antivirus.inlineprocessor.AntivirusProcessor.AV_CONTENT_TYPE;
 import static com.axway.antivirus.inlineprocessor.AntivirusProcessor.AV_SCAN_INFO;
 import static com.axway.antivirus.inlineprocessor.AntivirusProcessor.AV_SCAN_STATUS;
 
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Class that helps to decide if the file should be sent to scanning or not
  */
@@ -29,6 +37,7 @@ public class ScanDecider
 	private static final Logger logger = Logger.getLogger(ScanDecider.class);
 	private final ExchangePointProvider epProvider;
 	private final AntivirusConfigurationHolder avHolder;
+	private boolean previewOnly;
 
 	/**
 	 * @param avConfHolder The configuration holder
@@ -69,8 +78,29 @@ public class ScanDecider
 		return isMessageSizeValid(message)
 			&& isFileNameValid(message)
 			&& isFileExtensionValid(message)
+			&& isFileExtensionAcceptedByServer(message)
 			&& isBusinessProtocolValid(message)
-			&& isPartnerNameValid(message);
+			&& isPartnerNameValid(message)
+			&& isContentTypeValid(message);
+	}
+
+	/**
+	 * Processes all restrictions from the <code>{avScannerConfFilePath}</code> file, finding the content type in the
+	 * stream of the message data opened to scan it
+	 *
+	 * @param message The message to be validated for scanning
+	 * @param data The stream of the message data, see {@link #isContentTypeValid(Message, InputStream)}
+	 * @return a boolean showing if the message should be scanned or not
+	 **/
+	public Boolean isValidForScanning(Message message, InputStream data)
+	{
+		return isMessageSizeValid(message)
+			&& isFileNameValid(message)
+			&& isFileExtensionValid(message)
+			&& isFileExtensionAcceptedByServer(message)
+			&& isBusinessProtocolValid(message)
+			&& isPartnerNameValid(message)
+			&& isContentTypeValid(message, data);
 	}
 
 	/**
@@ -155,6 +185,37 @@ public class ScanDecider
 		return true;
 	}
 
+	/**
+	 * Processes the Transfer-Ignore list advertised by the ICAP server in the OPTIONS response
+	 * <p>If the message file extension is one the server will not inspect, returns false
+	 * else returns true. The list is known once the server was asked for its OPTIONS and is refreshed with them.
+	 * For a scanner group the server of the scan is not chosen yet, so the message is not scanned only if all the
+	 * servers of the group ignore its extension.</p>
+	 *
+	 * @param message The message to be validated for scanning
+	 * @return a boolean showing if the message should be scanned or not
+	 **/
+	public Boolean isFileExtensionAcceptedByServer(Message message)
+	{
+		String fileExtension = message.getMetadata("ConsumptionFilenameExtension");
+		if (StringUtil.isNullEmptyOrBlank(fileExtension))
+			return true;
+		List<AntivirusConfigurationHolder> servers = avHolder.getGroupMembers();
+		if (servers == null || servers.isEmpty())
+			servers = Collections.singletonList(avHolder);
+		for (AntivirusConfigurationHolder server : servers)
+		{
+			IcapServerOptions serverOptions = IcapOptionsCache.getInstance()
+				.get(IcapOptionsCache.getKey(server.getHostname(), server.getPort(), server.getService()));
+			if (serverOptions == null || serverOptions.getTransferMode(fileExtension) != IcapServerOptions.TransferMode.IGNORE)
+				return true;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("File extension is in the Transfer-Ignore list of the ICAP server. Message will not be scanned.");
+		message.setMetadata(AV_SCAN_STATUS, AntivirusProcessor.SCAN_CODES.NOTSCANNED.getValue());
+		return false;
+	}
+
 	/**
 	 * Processes business protocol restriction from the <code>{avScannerConfFilePath}</code> file
 	 * <p>If the business protocol of the message matches business protocol restriction/s from the configuration properties, returns false
@@ -216,4 +277,112 @@ public class ScanDecider
 		return true;
 	}
 
+	/**
+	 * Processes the content type policies from the <code>{avScannerConfFilePath}</code> file
+	 * <p>The type of the message is found in its first bytes, see {@link ContentSniffer}, and set in the
+	 * <code>AVContentType</code> metadata. If the policy of the type is <code>skip</code>, returns false. If it is
+	 * <code>previewOnly</code>, returns true and {@link #isPreviewOnly()} tells to scan only the first bytes.
+	 * The content is not read if no policy is set.</p>
+	 *
+	 * @param message The message to be validated for scanning
+	 * @return a boolean showing if the message should be scanned or not
+	 **/
+	public Boolean isContentTypeValid(Message message)
+	{
+		previewOnly = false;
+		if (avHolder.getContentTypePolicies().isEmpty())
+			return true;
+		ContentSniffer.ContentType contentType;
+		try (InputStream data = message.getData().getInputStream())
+		{
+			//the data of the message can't be read as a stream, the message is scanned
+			if (data == null)
+				return true;
+			contentType = ContentSniffer.sniff(data);
+		}
+		catch (IOException ioex)
+		{
+			logger.warn("Could not read the first bytes of the message to find its content type, it will be scanned: " + ioex.getMessage());
+			return true;
+		}
+		return applyContentTypePolicy(message, contentType);
+	}
+
+	/**
+	 * Processes the content type policies like {@link #isContentTypeValid(Message)}, reading the first bytes from the
+	 * stream the message data is scanned from instead of opening the data again
+	 *
+	 * @param message The message to be validated for scanning
+	 * @param data The stream of the message data supporting a mark of {@link ContentSniffer#SNIFF_LENGTH} bytes, reset
+	 * to its start once the first bytes are read; <code>null</code> if the data can't be read as a stream
+	 * @return a boolean showing if the message should be scanned or not
+	 **/
+	public Boolean isContentTypeValid(Message message, InputStream data)
+	{
+		previewOnly = false;
+		if (avHolder.getContentTypePolicies().isEmpty())
+			return true;
+		//the data of the message can't be read as a stream, the message is scanned
+		if (data == null)
+			return true;
+		ContentSniffer.ContentType contentType;
+		try
+		{
+			data.mark(ContentSniffer.SNIFF_LENGTH);
+			contentType = ContentSniffer.sniff(data);
+			data.reset();
+		}
+		catch (IOException ioex)
+		{
+			logger.warn("Could not read the first bytes of the message to find its content type, it will be scanned: " + ioex.getMessage());
+			return true;
+		}
+		return applyContentTypePolicy(message, contentType);
+	}
+
+	private Boolean applyContentTypePolicy(Message message, ContentSniffer.ContentType contentType)
+	{
+		message.setMetadata(AV_CONTENT_TYPE, contentType.name());
+		ContentSniffer.Policy policy = getPolicy(contentType);
+		if (logger.isDebugEnabled())
+			logger.debug("Content type of the message: " + contentType + ", policy: " + policy + ".");
+		if (policy == ContentSniffer.Policy.SKIP)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("The content type corresponds to a skip policy added in configuration file. Message will not be scanned.");
+			message.setMetadata(AV_SCAN_STATUS, AntivirusProcessor.SCAN_CODES.NOTSCANNED.getValue());
+			return false;
+		}
+		previewOnly = policy == ContentSniffer.Policy.PREVIEW_ONLY;
+		return true;
+	}
+
+	/**
+	 * @param contentType The type of a message
+	 * @return The policy of the type in the configuration, <code>scan</code> if none is set
+	 */
+	private ContentSniffer.Policy getPolicy(ContentSniffer.ContentType contentType)
+	{
+		for (String typePolicy : avHolder.getContentTypePolicies())
+		{
+			int separator = typePolicy.indexOf(':');
+			if (separator < 0 || !typePolicy.substring(0, separator).trim().equalsIgnoreCase(contentType.name()))
+				continue;
+			ContentSniffer.Policy policy = ContentSniffer.Policy.fromName(typePolicy.substring(separator + 1));
+			if (policy != null)
+				return policy;
+			logger.warn("Unknown content type policy in configuration file: " + typePolicy + ". Message will be scanned.");
+		}
+		return ContentSniffer.Policy.SCAN;
+	}
+
+	/**
+	 * @return <code>true</code> if the last message validated has a <code>previewOnly</code> policy: only its first
+	 * <code>previewSize</code> bytes are scanned
+	 */
+	public boolean isPreviewOnly()
+	{
+		return previewOnly;
+	}
+
 }
@@ -4,9 +4,16 @@ import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
 import com.axway.antivirus.configuration.AntivirusConfigurationManager;
 import com.axway.antivirus.tests.tools.PropertyFileUtils;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -25,6 +32,12 @@ public class ReadConfigurationTest
 
 	}
 
+	@After
+	public void cleanAfterTests()
+	{
+		avConfManager.setConfLoaded(false);
+	}
+
 	@Test
 	public void hostnameTest()
 	{
@@ -127,4 +140,37 @@ public class ReadConfigurationTest
 		assertTrue(avHolder.getRestrictedPartners().contains("Partner Name 1"));
 		assertTrue(avHolder.getRestrictedPartners().contains("PartnerName2"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void scannerGroupTest() throws IOException
+	{
+		File propsFile = File.createTempFile("avScanner", ".properties");
+		try
+		{
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(propsFile), "UTF-8"))
+			{
+				for (String id : new String[] { "icap1", "icap2", "icap3" })
+				{
+					writer.write(id + ".hostname=10.0.0." + id.substring(4) + "\n");
+					writer.write(id + ".port=1344\n");
+					writer.write(id + ".service=avscan\n");
+					writer.write(id + ".ICAPServerVersion=1.0\n");
+				}
+				writer.write("icap1.scannerGroup=icap1, icap2,missing\n");
+				writer.write("icap2.weight=3\n");
+			}
+			avConfManager.setConfLoaded(false);
+			AntivirusConfigurationHolder group = avConfManager.getScannerConfiguration(propsFile.getAbsolutePath());
+			assertEquals("icap1", group.getScannerId());
+			assertEquals(2, group.getGroupMembers().size());
+			assertEquals("10.0.0.1", group.getGroupMembers().get(0).getHostname());
+			assertEquals(1, group.getGroupMembers().get(0).getWeight());
+			assertEquals("10.0.0.2", group.getGroupMembers().get(1).getHostname());
+			assertEquals(3, group.getGroupMembers().get(1).getWeight());
+		}
+		finally
+		{
+			assertTrue(propsFile.delete());
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AntivirusClientTransferTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(boolean zeroCopyTransfer)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(server.getPort()));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_STANDARD_SEND_LENGTH, "1000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ZERO_COPY_TRANSFER, String.valueOf(zeroCopyTransfer));
+		return new AntivirusConfigurationHolder("antivirus1", properties);
+	}
+
+	private File createFile(int size) throws IOException
+	{
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte)(i % 251);
+		File file = folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(file))
+		{
+			out.write(data);
+		}
+		return file;
+	}
+
+	private byte[] scan(AntivirusConfigurationHolder avConfHolder, File file) throws IOException, AntivirusException
+	{
+		AntivirusClient sut = new AntivirusClient(avConfHolder);
+		try
+		{
+			sut.connect();
+			assertTrue(sut.scanFile(file));
+		}
+		finally
+		{
+			sut.disconnect();
+		}
+		return server.getReceivedBodies().get(server.getReceivedBodies().size() - 1);
+	}
+
+	@Test
+	public void streamTransfer_Test() throws IOException, AntivirusException
+	{
+		File file = createFile(10000);
+		byte[] received = scan(getConfiguration(false), file);
+		assertEquals(10000, received.length);
+		assertArrayEquals(Files.readAllBytes(file.toPath()), received);
+	}
+
+	@Test
+	public void zeroCopyTransfer_Test() throws IOException, AntivirusException
+	{
+		File file = createFile(10000);
+		byte[] received = scan(getConfiguration(true), file);
+		assertEquals(10000, received.length);
+		assertArrayEquals(Files.readAllBytes(file.toPath()), received);
+	}
+
+	@Test
+	public void verdictAfterPreview_RemainderNotSent_Test() throws IOException, AntivirusException
+	{
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		AntivirusConfigurationHolder avConfHolder = getConfiguration(false);
+		File file = createFile(10000);
+
+		byte[] received = scan(avConfHolder, file);
+		assertEquals(1024, received.length);
+
+		//the exchange was completed, the connection is reused for the next scan
+		scan(avConfHolder, file);
+		assertEquals(2, server.getRespmodCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void transferComplete_NoPreview_Test() throws IOException, AntivirusException
+	{
+		server.setOptionsResponse("ICAP/1.0 200 OK\r\nMethods: RESPMOD\r\nPreview: 1024\r\nTransfer-Preview: *\r\n"
+			+ "Transfer-Complete: exe\r\nEncapsulated: null-body=0\r\n\r\n");
+		//a preview would be answered with a verdict, the whole file must be sent instead
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		File file = createFile(10000);
+		AntivirusClient sut = new AntivirusClient(getConfiguration(false));
+		try
+		{
+			sut.connect();
+			assertTrue(sut.scanFile(file, ".exe"));
+		}
+		finally
+		{
+			sut.disconnect();
+		}
+		assertEquals(10000, server.getReceivedBodies().get(0).length);
+	}
+
+	private byte[] scanStream(byte[] data) throws IOException, AntivirusException
+	{
+		AntivirusClient sut = new AntivirusClient(getConfiguration(false));
+		try
+		{
+			sut.connect();
+			assertTrue(sut.scanStream(new ByteArrayInputStream(data), AntivirusClient.UNKNOWN_LENGTH, null));
+		}
+		finally
+		{
+			sut.disconnect();
+		}
+		return server.getReceivedBodies().get(server.getReceivedBodies().size() - 1);
+	}
+
+	@Test
+	public void scanStream_UnknownLength_Test() throws IOException, AntivirusException
+	{
+		byte[] data = new byte[10000];
+		Arrays.fill(data, (byte)'a');
+
+		assertArrayEquals(data, scanStream(data));
+		assertTrue(server.getLastRespmodHeader().contains("Preview: 1024\r\n"));
+		assertTrue(server.getLastRespmodHeader().contains("Encapsulated: res-body=0\r\n"));
+		assertFalse(server.getLastRespmodHeader().contains("Content-Length"));
+	}
+
+	@Test
+	public void scanStream_UnknownLength_SmallerThanPreview_Test() throws IOException, AntivirusException
+	{
+		byte[] data = new byte[100];
+		Arrays.fill(data, (byte)'b');
+
+		assertArrayEquals(data, scanStream(data));
+		assertTrue(server.getLastRespmodHeader().contains("Preview: 100\r\n"));
+	}
+
+	@Test
+	public void scanChannel_KnownLength_Test() throws IOException, AntivirusException
+	{
+		File file = createFile(10000);
+		AntivirusClient sut = new AntivirusClient(getConfiguration(false));
+		try (FileChannel channel = FileChannel.open(file.toPath()))
+		{
+			sut.connect();
+			assertTrue(sut.scanChannel(channel, file.length(), null));
+		}
+		finally
+		{
+			sut.disconnect();
+		}
+		assertArrayEquals(Files.readAllBytes(file.toPath()), server.getReceivedBodies().get(0));
+	}
+
+	@Test
+	public void zeroCopyTransfer_ConnectionReused_Test() throws IOException, AntivirusException
+	{
+		AntivirusConfigurationHolder avConfHolder = getConfiguration(true);
+		File file = createFile(4096);
+		byte[] first = scan(avConfHolder, file);
+		byte[] second = scan(avConfHolder, file);
+		assertTrue(Arrays.equals(first, second));
+		assertEquals(1, server.getConnectionCount());
+		assertEquals(1, server.getOptionsCount());
+	}
+}
@@ -0,0 +1,322 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.ScanCallback;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.icap.ScanThreadFactory;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AntivirusScanEngineTest
+{
+	private static final int SCANS = 8;
+
+	private FakeIcapServer server;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		executor = Executors.newFixedThreadPool(SCANS);
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException, InterruptedException
+	{
+		executor.shutdownNow();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+		server.close();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(int maxConcurrentScans)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(server.getPort()));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_STANDARD_SEND_LENGTH, "1000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_MAX_CONCURRENT_SCANS, String.valueOf(maxConcurrentScans));
+		return new AntivirusConfigurationHolder("antivirus1", properties);
+	}
+
+	private List<ScanResult> scanInParallel(final AntivirusScanEngine engine, final List<byte[]> data) throws Exception
+	{
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		for (final byte[] bytes : data)
+		{
+			futures.add(executor.submit(new Callable<ScanResult>()
+			{
+				@Override
+				public ScanResult call() throws Exception
+				{
+					return engine.scan(new ByteArrayInputStream(bytes), bytes.length, null);
+				}
+			}));
+		}
+		List<ScanResult> results = new ArrayList<>();
+		for (Future<ScanResult> future : futures)
+			results.add(future.get(10, TimeUnit.SECONDS));
+		return results;
+	}
+
+	@Test
+	public void parallelScans_IsolatedState_Test() throws Exception
+	{
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(getConfiguration(0));
+		List<byte[]> data = new ArrayList<>();
+		List<Integer> sizes = new ArrayList<>();
+		for (int i = 0; i < SCANS; i++)
+		{
+			data.add(new byte[2000 + i * 1000]);
+			sizes.add(2000 + i * 1000);
+		}
+
+		for (ScanResult result : scanInParallel(engine, data))
+			assertTrue(result.isClean());
+
+		//each scan sent its own data on its own connection
+		List<Integer> received = new ArrayList<>();
+		for (byte[] body : server.getReceivedBodies())
+			received.add(body.length);
+		Collections.sort(received);
+		assertEquals(sizes, received);
+		assertEquals(0, engine.getActiveScans());
+	}
+
+	@Test
+	public void parallelScans_CappedPerProfile_Test() throws Exception
+	{
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		AntivirusClient prototype = mock(AntivirusClient.class);
+		when(prototype.newScanClient()).thenAnswer(new Answer<AntivirusClient>()
+		{
+			@Override
+			public AntivirusClient answer(InvocationOnMock invocation) throws Throwable
+			{
+				AntivirusClient client = mock(AntivirusClient.class);
+				when(client.scanStream(any(InputStream.class), anyLong(), nullable(String.class))).thenAnswer(new Answer<Boolean>()
+				{
+					@Override
+					public Boolean answer(InvocationOnMock invocation) throws Throwable
+					{
+						int current = running.incrementAndGet();
+						synchronized (maxRunning)
+						{
+							maxRunning.set(Math.max(maxRunning.get(), current));
+						}
+						Thread.sleep(50);
+						running.decrementAndGet();
+						return true;
+					}
+				});
+				return client;
+			}
+		});
+		AntivirusScanEngine engine = new AntivirusScanEngine(prototype, 2);
+
+		List<byte[]> data = new ArrayList<>();
+		for (int i = 0; i < SCANS; i++)
+			data.add(new byte[10]);
+		for (ScanResult result : scanInParallel(engine, data))
+			assertTrue(result.isClean());
+
+		assertEquals(2, maxRunning.get());
+		assertEquals(0, engine.getActiveScans());
+	}
+
+	private static AntivirusClient prepareBlockingPrototype(final CountDownLatch release) throws IOException, AntivirusException
+	{
+		AntivirusClient prototype = mock(AntivirusClient.class);
+		when(prototype.newScanClient()).thenReturn(prototype);
+		when(prototype.scanStream(any(InputStream.class), anyLong(), nullable(String.class))).thenAnswer(new Answer<Boolean>()
+		{
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable
+			{
+				release.await(10, TimeUnit.SECONDS);
+				return true;
+			}
+		});
+		return prototype;
+	}
+
+	private static class RecordingCallback implements ScanCallback
+	{
+		private final CountDownLatch done;
+		private final List<ScanResult> results = Collections.synchronizedList(new ArrayList<ScanResult>());
+		private volatile Throwable failure;
+
+		RecordingCallback(int scans)
+		{
+			done = new CountDownLatch(scans);
+		}
+
+		@Override
+		public void onScanCompleted(ScanResult result)
+		{
+			results.add(result);
+			done.countDown();
+		}
+
+		@Override
+		public void onScanFailed(Throwable cause)
+		{
+			failure = cause;
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void scanAsync_Callback_Test() throws Exception
+	{
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(getConfiguration(0));
+		RecordingCallback callback = new RecordingCallback(SCANS);
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		for (int i = 0; i < SCANS; i++)
+			futures.add(engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[3000]), 3000), null, callback));
+
+		for (Future<ScanResult> future : futures)
+			assertTrue(future.get(10, TimeUnit.SECONDS).isClean());
+		assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+		assertEquals(SCANS, callback.results.size());
+		assertNull(callback.failure);
+		assertEquals(SCANS, server.getRespmodCount());
+		assertEquals(0, engine.getRejectedAsyncScans());
+	}
+
+	@Test
+	public void scanAsync_Failure_Test() throws Exception
+	{
+		AntivirusClient prototype = mock(AntivirusClient.class);
+		when(prototype.newScanClient()).thenReturn(prototype);
+		when(prototype.scanStream(any(InputStream.class), anyLong(), nullable(String.class)))
+			.thenThrow(new IOException("connection reset"));
+		AntivirusScanEngine engine = new AntivirusScanEngine(prototype, 0);
+		RecordingCallback callback = new RecordingCallback(1);
+
+		Future<ScanResult> future = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[10]), 10), null, callback);
+		try
+		{
+			future.get(10, TimeUnit.SECONDS);
+			fail("The scan should have failed");
+		}
+		catch (ExecutionException eex)
+		{
+			assertTrue(eex.getCause() instanceof IOException);
+		}
+		assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+		assertTrue(callback.failure instanceof IOException);
+		assertTrue(callback.results.isEmpty());
+		engine.shutdown();
+	}
+
+	@Test
+	public void scanAsync_QueueFull_Rejected_Test() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		AntivirusScanEngine engine = new AntivirusScanEngine(prepareBlockingPrototype(release), 0, 1, 1);
+		Future<ScanResult> running = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[10]), 10), null, null);
+		Future<ScanResult> queued = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[10]), 10), null, null);
+		try
+		{
+			engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[10]), 10), null, null);
+			fail("The queue of the asynchronous scans should be full");
+		}
+		catch (AntivirusException aex)
+		{
+			assertEquals(1, engine.getRejectedAsyncScans());
+		}
+		assertEquals(1, engine.getQueuedAsyncScans());
+		assertFalse(queued.isDone());
+
+		release.countDown();
+		assertTrue(running.get(10, TimeUnit.SECONDS).isClean());
+		assertTrue(queued.get(10, TimeUnit.SECONDS).isClean());
+		engine.shutdown();
+	}
+
+	@Test
+	public void scanAsync_VirtualThreads_Test() throws Exception
+	{
+		final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+		AntivirusClient prototype = mock(AntivirusClient.class);
+		when(prototype.newScanClient()).thenReturn(prototype);
+		when(prototype.scanStream(any(InputStream.class), anyLong(), nullable(String.class))).thenAnswer(new Answer<Boolean>()
+		{
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable
+			{
+				threadNames.add(Thread.currentThread().getName());
+				return true;
+			}
+		});
+		//on a JVM without virtual threads the scans fall back to platform threads
+		AntivirusScanEngine engine = new AntivirusScanEngine(prototype, 0, 2, 10, true);
+		assertEquals(ScanThreadFactory.isVirtualThreadSupported(), engine.isVirtualThreads());
+
+		Future<ScanResult> future = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[10]), 10), null, null);
+		assertTrue(future.get(10, TimeUnit.SECONDS).isClean());
+		assertEquals(1, threadNames.size());
+		assertTrue(threadNames.get(0).startsWith("AntivirusScan-"));
+		engine.shutdown();
+	}
+
+	@Test
+	public void getEngine_ConfigurationReloaded_Test() throws AntivirusException
+	{
+		AntivirusConfigurationHolder avConfHolder = getConfiguration(4);
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(avConfHolder);
+		assertSame(engine, AntivirusScanEngine.getEngine(avConfHolder));
+		assertEquals(4, engine.getMaxConcurrentScans());
+
+		//a reloaded configuration of the same profile updates the engine
+		assertSame(engine, AntivirusScanEngine.getEngine(getConfiguration(6)));
+		assertEquals(6, engine.getMaxConcurrentScans());
+	}
+}
@@ -0,0 +1,114 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+import com.axway.antivirus.tests.tools.PrepareForTests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescedScanTest
+{
+	private static final int SCANS = 5;
+
+	private FakeIcapServer server;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		server.setFinalResponseDelay(300);
+		executor = Executors.newFixedThreadPool(SCANS);
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		executor.shutdownNow();
+		server.close();
+		PrepareForTests.cleanEngines();
+	}
+
+	private AntivirusScanEngine getEngine(boolean coalesceScans)
+	{
+		Properties properties = PrepareForTests.prepareEngineProperties(server.getPort());
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_COALESCE_SCANS, String.valueOf(coalesceScans));
+		return AntivirusScanEngine.getEngine(new AntivirusConfigurationHolder("antivirus1", properties));
+	}
+
+	/**
+	 * Scans the contents at the same time, like the copies of a file routed to several partners
+	 */
+	private List<ScanResult> scanAtOnce(final AntivirusScanEngine engine, String... contents) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		for (final String content : contents)
+		{
+			futures.add(executor.submit(new Callable<ScanResult>()
+			{
+				@Override
+				public ScanResult call() throws Exception
+				{
+					start.await();
+					return engine.scan(PrepareForTests.prepareSource(content), null);
+				}
+			}));
+		}
+		start.countDown();
+		List<ScanResult> results = new ArrayList<>();
+		for (Future<ScanResult> future : futures)
+			results.add(future.get());
+		return results;
+	}
+
+	@Test
+	public void identicalData_ScannedOnce_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(true);
+		for (ScanResult result : scanAtOnce(engine, "catalog", "catalog", "catalog", "catalog", "catalog"))
+			assertTrue(result.isClean());
+		assertEquals(1, server.getRespmodCount());
+		assertEquals(SCANS - 1, engine.getCoalescedScans());
+
+		//the verdict is not kept once the scan ended
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertEquals(2, server.getRespmodCount());
+	}
+
+	@Test
+	public void differentData_ScannedEach_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(true);
+		scanAtOnce(engine, "catalog", "catalog", "invoice", "invoice", "order");
+		assertEquals(3, server.getRespmodCount());
+		assertEquals(2, engine.getCoalescedScans());
+	}
+
+	@Test
+	public void disabled_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(false);
+		scanAtOnce(engine, "catalog", "catalog", "catalog", "catalog", "catalog");
+		assertEquals(SCANS, server.getRespmodCount());
+		assertEquals(0, engine.getCoalescedScans());
+	}
+}
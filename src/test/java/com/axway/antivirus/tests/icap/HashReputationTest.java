@@ -0,0 +1,270 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.HashList;
+import com.axway.antivirus.icap.HashReputation;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.icap.VerdictCache;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+import com.axway.antivirus.tests.tools.PrepareForTests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashReputationTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		HashReputation.getInstance().clear();
+		PrepareForTests.cleanEngines();
+	}
+
+	private AntivirusScanEngine getEngine()
+	{
+		return getEngine(false);
+	}
+
+	private AntivirusScanEngine getEngine(boolean nioEngine)
+	{
+		return getEngine(nioEngine, 0);
+	}
+
+	private AntivirusScanEngine getEngine(boolean nioEngine, int verdictCacheSize)
+	{
+		Properties properties = PrepareForTests.prepareEngineProperties(server.getPort());
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_ENGINE, String.valueOf(nioEngine));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_SIZE, String.valueOf(verdictCacheSize));
+		return AntivirusScanEngine.getEngine(new AntivirusConfigurationHolder("antivirus1", properties));
+	}
+
+	private String hash(String content) throws IOException
+	{
+		return VerdictCache.hash(PrepareForTests.prepareSource(content));
+	}
+
+	private File writeList(String fileName, String... lines) throws IOException
+	{
+		File file = new File(folder.getRoot(), fileName);
+		Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.US_ASCII);
+		return file;
+	}
+
+	@Test
+	public void load_Test() throws IOException
+	{
+		File file = writeList("list.txt", "# signed ERP exports", hash("a") + "  export-a.xml", hash("b").toUpperCase(),
+			"not a hash", "", hash("a"));
+		HashList list = HashList.load(file);
+		assertEquals(2, list.size());
+		assertTrue(list.contains(hash("a")));
+		assertTrue(list.contains(hash("b")));
+		assertFalse(list.contains(hash("c")));
+		assertFalse(list.contains("not a hash"));
+	}
+
+	@Test
+	public void manyHashes_Test() throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 20000; i++)
+			lines.add(hash("file " + i));
+		File file = writeList("list.txt", lines.toArray(new String[lines.size()]));
+		HashList list = HashList.load(file);
+		assertEquals(20000, list.size());
+		for (String line : lines)
+			assertTrue(list.contains(line));
+		for (int i = 20000; i < 30000; i++)
+			assertFalse(list.contains(hash("file " + i)));
+	}
+
+	@Test
+	public void listedFiles_NotScanned_Test() throws Exception
+	{
+		writeList(Constants.ALLOWLIST_FILE_NAME, hash("erp export"));
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("known threat"));
+		HashReputation.getInstance().load(folder.getRoot());
+		AntivirusScanEngine engine = getEngine();
+		long blockedFiles = HashReputation.getInstance().getBlockedFiles();
+		long allowedFiles = HashReputation.getInstance().getAllowedFiles();
+
+		assertTrue(engine.scan(PrepareForTests.prepareSource("erp export"), null).isClean());
+		ScanResult blocked = engine.scan(PrepareForTests.prepareSource("known threat"), null);
+		assertFalse(blocked.isClean());
+		assertTrue(blocked.getFailureReason().contains(Constants.BLOCKLIST_FILE_NAME));
+		assertEquals(0, server.getRespmodCount());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("invoice"), null).isClean());
+		assertEquals(1, server.getRespmodCount());
+		assertEquals(allowedFiles + 1, HashReputation.getInstance().getAllowedFiles());
+		assertEquals(blockedFiles + 1, HashReputation.getInstance().getBlockedFiles());
+	}
+
+	@Test
+	public void blocklistOnly_DataReadOnce_Test() throws Exception
+	{
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("known threat"));
+		HashReputation.getInstance().load(folder.getRoot());
+		AntivirusScanEngine engine = getEngine();
+		final AtomicInteger opened = new AtomicInteger();
+		final byte[] threat = "known threat".getBytes(StandardCharsets.UTF_8);
+		ScanSource source = new ScanSource()
+		{
+			@Override
+			public InputStream openStream()
+			{
+				opened.incrementAndGet();
+				return new ByteArrayInputStream(threat);
+			}
+
+			@Override
+			public long length()
+			{
+				return threat.length;
+			}
+		};
+
+		//no verdict is looked for before the scan, the data is hashed while it is sent
+		ScanResult blocked = engine.scan(source, null);
+		assertFalse(blocked.isClean());
+		assertTrue(blocked.getFailureReason().contains(Constants.BLOCKLIST_FILE_NAME));
+		assertEquals(1, opened.get());
+		assertEquals(1, server.getRespmodCount());
+		File file = new File(folder.getRoot(), "threat.bin");
+		Files.write(file.toPath(), threat);
+		assertFalse(engine.scan(file, null).isClean());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("invoice"), null).isClean());
+		assertEquals(3, server.getRespmodCount());
+	}
+
+	@Test
+	public void streamOfBlocklist_Rejected_Test() throws Exception
+	{
+		writeList(Constants.ALLOWLIST_FILE_NAME, hash("erp export"));
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("known threat"));
+		HashReputation.getInstance().load(folder.getRoot());
+		AntivirusScanEngine engine = getEngine();
+		long blockedFiles = HashReputation.getInstance().getBlockedFiles();
+		long allowedFiles = HashReputation.getInstance().getAllowedFiles();
+
+		//the data read once is scanned, then rejected once its hash is known
+		byte[] threat = "known threat".getBytes(StandardCharsets.UTF_8);
+		ScanResult blocked = engine.scan(new ByteArrayInputStream(threat), threat.length, null);
+		assertFalse(blocked.isClean());
+		assertTrue(blocked.getFailureReason().contains(Constants.BLOCKLIST_FILE_NAME));
+		blocked = engine.scan(ScanSource.of(new ByteArrayInputStream(threat), threat.length), null);
+		assertFalse(blocked.isClean());
+		assertEquals(2, server.getRespmodCount());
+		assertEquals(blockedFiles + 2, HashReputation.getInstance().getBlockedFiles());
+
+		//the allowlist would not save the scan, the verdict of the server is kept
+		byte[] export = "erp export".getBytes(StandardCharsets.UTF_8);
+		assertTrue(engine.scan(new ByteArrayInputStream(export), export.length, null).isClean());
+		assertEquals(allowedFiles, HashReputation.getInstance().getAllowedFiles());
+	}
+
+	@Test
+	public void nioEngine_ListedFilesNotScanned_Test() throws Exception
+	{
+		writeList(Constants.ALLOWLIST_FILE_NAME, hash("erp export"));
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("known threat"));
+		HashReputation.getInstance().load(folder.getRoot());
+		AntivirusScanEngine engine = getEngine(true);
+		long blockedFiles = HashReputation.getInstance().getBlockedFiles();
+
+		assertTrue(engine.scanAsync(PrepareForTests.prepareSource("erp export"), null, null).get(10, TimeUnit.SECONDS).isClean());
+		assertFalse(engine.scanAsync(PrepareForTests.prepareSource("known threat"), null, null).get(10, TimeUnit.SECONDS).isClean());
+		assertEquals(0, server.getRespmodCount());
+		assertTrue(engine.scanAsync(PrepareForTests.prepareSource("invoice"), null, null).get(10, TimeUnit.SECONDS).isClean());
+		assertEquals(1, server.getRespmodCount());
+
+		//data read once is scanned on a thread, hashing it while it is sent
+		byte[] threat = "known threat".getBytes(StandardCharsets.UTF_8);
+		ScanResult blocked = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(threat), threat.length), null, null)
+			.get(10, TimeUnit.SECONDS);
+		assertFalse(blocked.isClean());
+		assertEquals(2, server.getRespmodCount());
+		assertEquals(blockedFiles + 2, HashReputation.getInstance().getBlockedFiles());
+	}
+
+	@Test
+	public void scanHead_ListsCheckedOnWholeData_Test() throws Exception
+	{
+		writeList(Constants.ALLOWLIST_FILE_NAME, hash("erp export"));
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("header of a known threat"));
+		HashReputation.getInstance().load(folder.getRoot());
+		AntivirusScanEngine engine = getEngine(false, 100);
+
+		//the first bytes are not in the lists, the whole data is
+		ScanResult blocked = engine.scanHead(PrepareForTests.prepareSource("header of a known threat"), 6, null);
+		assertFalse(blocked.isClean());
+		assertTrue(blocked.getFailureReason().contains(Constants.BLOCKLIST_FILE_NAME));
+		assertTrue(engine.scanHead(PrepareForTests.prepareSource("erp export"), 3, null).isClean());
+		assertEquals(0, server.getRespmodCount());
+
+		//the verdict of the first bytes is not the one of the data starting with them
+		assertTrue(engine.scanHead(PrepareForTests.prepareSource("header of an invoice"), 6, null).isClean());
+		assertEquals(1, server.getRespmodCount());
+		assertEquals(0, engine.getVerdictCache().size());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("header"), null).isClean());
+		assertEquals(2, server.getRespmodCount());
+	}
+
+	@Test
+	public void reload_Test() throws Exception
+	{
+		HashReputation reputation = HashReputation.getInstance();
+		reputation.load(folder.getRoot());
+		assertFalse(reputation.isLoaded());
+
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("a"));
+		reputation.load(folder.getRoot());
+		assertFalse(reputation.check(hash("a")).isClean());
+		assertNull(reputation.check(hash("b")));
+
+		writeList(Constants.BLOCKLIST_FILE_NAME, hash("b"));
+		reputation.load(folder.getRoot());
+		assertNull(reputation.check(hash("a")));
+		assertFalse(reputation.check(hash("b")).isClean());
+
+		assertTrue(new File(folder.getRoot(), Constants.BLOCKLIST_FILE_NAME).delete());
+		reputation.load(folder.getRoot());
+		assertNull(reputation.getBlocklist());
+		assertFalse(reputation.isLoaded());
+	}
+}
@@ -0,0 +1,172 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.ScanLatencies;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScannerBalancer;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+import com.axway.antivirus.tests.tools.PrepareForTests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgedScanTest
+{
+	private FakeIcapServer server;
+	//accepts the connections in its backlog but never answers
+	private ServerSocket stalledServer;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		stalledServer = new ServerSocket(0);
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		stalledServer.close();
+		PrepareForTests.cleanEngines();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(String id, int port)
+	{
+		Properties properties = PrepareForTests.prepareEngineProperties(port);
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_TIMEOUT, "10000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HEDGE_SCANS, "true");
+		return new AntivirusConfigurationHolder(id, properties);
+	}
+
+	@Test
+	public void latencies_Percentile_Test()
+	{
+		ScanLatencies latencies = new ScanLatencies();
+		for (int i = 1; i < ScanLatencies.MIN_SAMPLES; i++)
+			latencies.record(i);
+		assertEquals(-1, latencies.getPercentile(95));
+		for (int i = ScanLatencies.MIN_SAMPLES; i <= 100; i++)
+			latencies.record(i);
+		assertEquals(95, latencies.getPercentile(95));
+		assertEquals(50, latencies.getPercentile(50));
+
+		//only the last durations are kept
+		for (int i = 0; i < ScanLatencies.CAPACITY; i++)
+			latencies.record(1000);
+		assertEquals(ScanLatencies.CAPACITY, latencies.getCount());
+		assertEquals(1000, latencies.getPercentile(50));
+	}
+
+	@Test
+	public void stalledServer_Hedged_Test() throws Exception
+	{
+		AntivirusConfigurationHolder group = getConfiguration("antivirus1", stalledServer.getLocalPort());
+		group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", server.getPort())));
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(group);
+		for (int i = 0; i < ScanLatencies.MIN_SAMPLES; i++)
+			engine.getLatencies().record(10);
+
+		//the scans in progress on the answering server send the scan to the stalled server first
+		ScannerBalancer.Server stalled = engine.getBalancer().getServers().get(0);
+		ScannerBalancer.Server answering = engine.getBalancer().getServers().get(1);
+		for (int i = 0; i < 100; i++)
+			answering.start();
+
+		long start = System.currentTimeMillis();
+		ScanResult result = engine.scan(PrepareForTests.prepareSource("clean"), null);
+		assertTrue(result.isClean());
+		//the connection timeout is not waited for
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(1, server.getRespmodCount());
+		assertEquals(1, engine.getHedgedScans());
+
+		//the scan cancelled on the stalled server is not counted as a failure
+		long deadline = System.currentTimeMillis() + 5000;
+		while (stalled.getOutstanding() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertEquals(0, stalled.getOutstanding());
+		assertEquals(0, stalled.getHealth().getConsecutiveFailures());
+	}
+
+	@Test
+	public void notEnoughSamples_NotHedged_Test() throws Exception
+	{
+		AntivirusConfigurationHolder group = getConfiguration("antivirus1", server.getPort());
+		FakeIcapServer other = new FakeIcapServer();
+		try
+		{
+			group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", other.getPort())));
+			AntivirusScanEngine engine = AntivirusScanEngine.getEngine(group);
+			for (int i = 0; i < 5; i++)
+				assertTrue(engine.scan(PrepareForTests.prepareSource("clean"), null).isClean());
+			assertEquals(5, server.getRespmodCount() + other.getRespmodCount());
+			assertEquals(0, engine.getHedgedScans());
+			assertEquals(5, engine.getLatencies().getCount());
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	@Test
+	public void busyHedgingThreads_NotHedged_Test() throws Exception
+	{
+		FakeIcapServer other = new FakeIcapServer();
+		ExecutorService callers = Executors.newFixedThreadPool(6);
+		try
+		{
+			server.setFinalResponseDelay(300);
+			other.setFinalResponseDelay(300);
+			AntivirusConfigurationHolder group = getConfiguration("antivirus1", server.getPort());
+			//two hedging threads, enough for a single hedged scan
+			group.setAsyncScanThreads(1);
+			group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", other.getPort())));
+			final AntivirusScanEngine engine = AntivirusScanEngine.getEngine(group);
+			for (int i = 0; i < ScanLatencies.MIN_SAMPLES; i++)
+				engine.getLatencies().record(10);
+
+			List<Future<ScanResult>> results = new ArrayList<>();
+			for (int i = 0; i < 6; i++)
+			{
+				results.add(callers.submit(new Callable<ScanResult>()
+				{
+					@Override
+					public ScanResult call() throws Exception
+					{
+						return engine.scan(PrepareForTests.prepareSource("clean"), null);
+					}
+				}));
+			}
+
+			//the scans without a hedging thread run on the calling thread, they all get their verdict
+			for (Future<ScanResult> result : results)
+				assertTrue(result.get(10, TimeUnit.SECONDS).isClean());
+			assertTrue(engine.getHedgedScans() < 6);
+		}
+		finally
+		{
+			callers.shutdownNow();
+			other.close();
+		}
+	}
+}
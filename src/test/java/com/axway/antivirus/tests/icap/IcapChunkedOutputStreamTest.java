@@ -0,0 +1,87 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.icap.IcapChunkedOutputStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class IcapChunkedOutputStreamTest
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Counts the writes reaching the socket
+	 */
+	private static class CountingOutputStream extends ByteArrayOutputStream
+	{
+		private int writes;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+		{
+			writes++;
+			super.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void write(int b)
+		{
+			writes++;
+			super.write(b);
+		}
+	}
+
+	@Test
+	public void smallFile_SingleWrite_Test() throws IOException
+	{
+		CountingOutputStream socketOut = new CountingOutputStream();
+		IcapChunkedOutputStream sut = new IcapChunkedOutputStream(socketOut, 8192);
+
+		sut.writeAscii("RESPMOD icap://127.0.0.1/servicename ICAP/1.0\r\n\r\n");
+		sut.writeChunk("hello".getBytes(US_ASCII), 0, 5);
+		sut.writeIeofChunk();
+		sut.flush();
+
+		assertEquals(1, socketOut.writes);
+		assertEquals("RESPMOD icap://127.0.0.1/servicename ICAP/1.0\r\n\r\n5\r\nhello\r\n0; ieof\r\n\r\n",
+			new String(socketOut.toByteArray(), US_ASCII));
+	}
+
+	@Test
+	public void chunkSizeInHex_Test() throws IOException
+	{
+		ByteArrayOutputStream socketOut = new ByteArrayOutputStream();
+		IcapChunkedOutputStream sut = new IcapChunkedOutputStream(socketOut, 64);
+		byte[] data = new byte[2760];
+		Arrays.fill(data, (byte)'a');
+
+		sut.writeChunk(data, 0, data.length);
+		sut.writeLastChunk();
+		sut.close();
+
+		String sent = new String(socketOut.toByteArray(), US_ASCII);
+		assertEquals("ac8\r\n", sent.substring(0, 5));
+		assertEquals(5 + 2760 + 2 + 5, sent.length());
+		assertEquals("\r\n0\r\n\r\n", sent.substring(sent.length() - 7));
+	}
+
+	@Test
+	public void chunkSize_Test() throws IOException
+	{
+		ByteArrayOutputStream socketOut = new ByteArrayOutputStream();
+		IcapChunkedOutputStream sut = new IcapChunkedOutputStream(socketOut, 64);
+
+		sut.writeChunkSize(0);
+		sut.writeChunkSize(16);
+		sut.writeChunkSize(0x80000000L);
+		sut.flush();
+
+		assertEquals("0\r\n10\r\n80000000\r\n", new String(socketOut.toByteArray(), US_ASCII));
+	}
+}
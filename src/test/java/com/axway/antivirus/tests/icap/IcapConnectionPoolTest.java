@@ -0,0 +1,198 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.icap.IcapConnection;
+import com.axway.antivirus.icap.IcapConnectionPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class IcapConnectionPoolTest
+{
+	private ServerSocket serverSocket;
+	private final List<Socket> acceptedSockets = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		serverSocket = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!serverSocket.isClosed())
+					{
+						Socket socket = serverSocket.accept();
+						synchronized (acceptedSockets)
+						{
+							acceptedSockets.add(socket);
+						}
+					}
+				}
+				catch (IOException ioex)
+				{
+					//server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		IcapConnectionPool.closeAll();
+		serverSocket.close();
+		synchronized (acceptedSockets)
+		{
+			for (Socket socket : acceptedSockets)
+				socket.close();
+		}
+	}
+
+	@Test
+	public void acquire_ReusesReleasedConnection_Test() throws IOException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 60000);
+		IcapConnection connection = sut.acquire(2000);
+		connection.setReusable(true);
+		sut.release(connection);
+		assertEquals(1, sut.getIdleCount());
+
+		assertSame(connection, sut.acquire(2000));
+		assertEquals(0, sut.getIdleCount());
+	}
+
+	@Test
+	public void release_NotReusableConnection_Test() throws IOException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 60000);
+		IcapConnection connection = sut.acquire(2000);
+		sut.release(connection);
+		assertEquals(0, sut.getIdleCount());
+
+		assertNotSame(connection, sut.acquire(2000));
+	}
+
+	@Test
+	public void release_PoolSizeCap_Test() throws IOException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 60000);
+		List<IcapConnection> connections = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+		{
+			IcapConnection connection = sut.acquire(2000);
+			connection.setReusable(true);
+			connections.add(connection);
+		}
+		for (IcapConnection connection : connections)
+			sut.release(connection);
+		assertEquals(2, sut.getIdleCount());
+	}
+
+	@Test
+	public void acquire_StaleConnectionEvicted_Test() throws IOException, InterruptedException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 60000);
+		IcapConnection connection = sut.acquire(2000);
+		connection.setReusable(true);
+		sut.release(connection);
+
+		//the server closes its side of the idle connection
+		while (true)
+		{
+			synchronized (acceptedSockets)
+			{
+				if (!acceptedSockets.isEmpty())
+				{
+					acceptedSockets.get(0).close();
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+
+		assertNotSame(connection, sut.acquire(2000));
+	}
+
+	@Test
+	public void acquire_ExpiredConnectionEvicted_Test() throws IOException, InterruptedException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 1);
+		IcapConnection connection = sut.acquire(2000);
+		connection.setReusable(true);
+		sut.release(connection);
+		Thread.sleep(20);
+
+		assertNotSame(connection, sut.acquire(2000));
+	}
+
+	@Test
+	public void acquire_StaleCheckDoesNotWait_Test() throws IOException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 60000);
+		IcapConnection connection = sut.acquire(2000);
+		connection.setReusable(true);
+		sut.release(connection);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++)
+		{
+			connection = sut.acquire(2000);
+			connection.setReusable(true);
+			sut.release(connection);
+		}
+		//a read probe with a timeout would take at least 100 ms
+		assertFalse((System.nanoTime() - start) / 1000000 >= 100);
+		assertEquals(1, sut.getOpenCount());
+	}
+
+	@Test
+	public void acquire_MaxConnectionsCap_Test() throws IOException
+	{
+		IcapConnectionPool sut = IcapConnectionPool.getPool("127.0.0.1", serverSocket.getLocalPort(), 2, 2, 60000);
+		IcapConnection first = sut.acquire(2000);
+		IcapConnection second = sut.acquire(2000);
+		assertEquals(2, sut.getOpenCount());
+		try
+		{
+			sut.acquire(50);
+			fail("A third connection was opened over the limit");
+		}
+		catch (IOException ioex)
+		{
+			assertEquals(2, sut.getOpenCount());
+		}
+
+		//a closed connection frees its place
+		first.close();
+		first.close();
+		assertEquals(1, sut.getOpenCount());
+		IcapConnection third = sut.acquire(50);
+		assertEquals(2, sut.getOpenCount());
+
+		//a released connection is reused at the limit
+		second.setReusable(true);
+		sut.release(second);
+		assertSame(second, sut.acquire(50));
+		third.close();
+		second.close();
+		assertEquals(0, sut.getOpenCount());
+	}
+}
@@ -0,0 +1,266 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapNioEngine;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerHealth;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IcapNioEngineTest
+{
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		AntivirusScanEngine.clear();
+		server.close();
+		IcapServerHealth.clear();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+	}
+
+	private AntivirusScanEngine getEngine(int ioThreads)
+	{
+		return AntivirusScanEngine.getEngine(getConfiguration(ioThreads));
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(int ioThreads)
+	{
+		return getConfiguration("antivirus1", server.getPort(), ioThreads);
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(String id, int port, int ioThreads)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(port));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_STANDARD_SEND_LENGTH, "1000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_POOL_SIZE, "200");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_ENGINE, "true");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_NIO_IO_THREADS, String.valueOf(ioThreads));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_QUEUE_SIZE, "200");
+		return new AntivirusConfigurationHolder(id, properties);
+	}
+
+	private static byte[] createData(int size)
+	{
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte)(i % 251);
+		return data;
+	}
+
+	private ScanResult scan(AntivirusScanEngine engine, byte[] data) throws Exception
+	{
+		return engine.scanAsync(ScanSource.of(new ByteArrayInputStream(data), data.length), null, null)
+			.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void manyScans_FewThreads_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(1);
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		List<Integer> sizes = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			byte[] data = createData(500 + i * 100);
+			sizes.add(data.length);
+			futures.add(engine.scanAsync(ScanSource.of(new ByteArrayInputStream(data), data.length), null, null));
+		}
+		for (Future<ScanResult> future : futures)
+			assertTrue(future.get(20, TimeUnit.SECONDS).isClean());
+
+		List<Integer> received = new ArrayList<>();
+		for (byte[] body : server.getReceivedBodies())
+			received.add(body.length);
+		Collections.sort(received);
+		assertEquals(sizes, received);
+		assertEquals(0, engine.getRunningAsyncScans());
+	}
+
+	@Test
+	public void sequentialScans_ConnectionReused_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(1);
+		byte[] data = createData(10000);
+		assertTrue(scan(engine, data).isClean());
+		assertTrue(scan(engine, data).isClean());
+		assertTrue(scan(engine, data).isClean());
+
+		assertArrayEquals(data, server.getReceivedBodies().get(2));
+		assertEquals(1, server.getOptionsCount());
+		assertEquals(3, server.getRespmodCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void verdictAfterPreview_RemainderNotSent_Test() throws Exception
+	{
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		AntivirusScanEngine engine = getEngine(1);
+		assertTrue(scan(engine, createData(10000)).isClean());
+		assertEquals(1024, server.getReceivedBodies().get(0).length);
+	}
+
+	@Test
+	public void infected_FailureReason_Test() throws Exception
+	{
+		server.setFinalResponse("ICAP/1.0 200 OK\r\nConnection: keep-alive\r\nX-Infection-Found: Type=0; Threat=EICAR;\r\n"
+			+ "Encapsulated: null-body=0\r\n\r\n");
+		AntivirusScanEngine engine = getEngine(1);
+		ScanResult result = scan(engine, createData(5000));
+		assertFalse(result.isClean());
+		assertEquals("X-Infection-Found: Type=0; Threat=EICAR;", result.getFailureReason());
+	}
+
+	@Test
+	public void serverError_ScanFailed_Test() throws Exception
+	{
+		server.setFinalResponse("ICAP/1.0 500 Server Error\r\nConnection: close\r\n\r\n");
+		AntivirusScanEngine engine = getEngine(1);
+		try
+		{
+			scan(engine, createData(5000));
+			fail("The scan should have failed");
+		}
+		catch (ExecutionException eex)
+		{
+			assertTrue(eex.getCause() instanceof AntivirusException);
+			assertEquals("500: Server error", eex.getCause().getMessage());
+		}
+		assertEquals(0, engine.getRunningAsyncScans());
+	}
+
+	@Test
+	public void deadServer_Failover_Test() throws Exception
+	{
+		int deadPort;
+		//a port nobody listens on
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			deadPort = socket.getLocalPort();
+		}
+		AntivirusConfigurationHolder group = getConfiguration("antivirus1", deadPort, 1);
+		group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", server.getPort(), 1)));
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(group);
+
+		//the streams were not read when the connection failed, they go to the other server
+		for (int i = 0; i < 6; i++)
+			assertTrue(scan(engine, createData(5000)).isClean());
+		assertEquals(6, server.getRespmodCount());
+		assertEquals(0, engine.getBalancer().getServers().get(0).getOutstanding());
+		assertEquals(0, engine.getBalancer().getServers().get(1).getOutstanding());
+	}
+
+	@Test
+	public void maxConcurrentScans_Rejected_Test() throws Exception
+	{
+		server.setFinalResponseDelay(500);
+		AntivirusConfigurationHolder configuration = getConfiguration(1);
+		configuration.setMaxConcurrentScans(1);
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(configuration);
+		byte[] data = createData(5000);
+		Future<ScanResult> first = engine.scanAsync(ScanSource.of(new ByteArrayInputStream(data), data.length), null, null);
+
+		//the only slot is taken, the I/O threads do not wait for it
+		try
+		{
+			engine.scanAsync(ScanSource.of(new ByteArrayInputStream(data), data.length), null, null);
+			fail("The scan should have been rejected");
+		}
+		catch (AntivirusException avex)
+		{
+			assertEquals("The maximum number of concurrent scans (1) is reached.", avex.getMessage());
+		}
+		assertTrue(first.get(10, TimeUnit.SECONDS).isClean());
+		assertTrue(scan(engine, data).isClean());
+		assertEquals(2, server.getRespmodCount());
+	}
+
+	@Test
+	public void submitWhileClosing_EveryScanEnds_Test() throws Exception
+	{
+		final AntivirusClient prototype = new AntivirusClient(getConfiguration(1));
+		final byte[] data = createData(100);
+		for (int round = 0; round < 20; round++)
+		{
+			final IcapNioEngine engine = new IcapNioEngine(1, 1000);
+			final List<Future<ScanResult>> futures = Collections.synchronizedList(new ArrayList<Future<ScanResult>>());
+			Thread submitter = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 100; i++)
+					{
+						try
+						{
+							futures.add(engine.submit(prototype.newScanClient(), ScanSource.of(new ByteArrayInputStream(data),
+								data.length), null, null));
+						}
+						catch (RejectedExecutionException rex)
+						{
+							//submitted after the close
+						}
+					}
+				}
+			});
+			submitter.start();
+			engine.close();
+			submitter.join();
+
+			//a scan accepted while the engine was closing is failed or scanned, never left pending
+			for (Future<ScanResult> future : futures)
+			{
+				try
+				{
+					future.get(10, TimeUnit.SECONDS);
+				}
+				catch (ExecutionException eex)
+				{
+					assertTrue(eex.getCause() instanceof AntivirusException || eex.getCause() instanceof IOException);
+				}
+			}
+		}
+	}
+}
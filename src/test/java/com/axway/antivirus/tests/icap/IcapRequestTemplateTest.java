@@ -0,0 +1,66 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.icap.IcapChunkedOutputStream;
+import com.axway.antivirus.icap.IcapRequestTemplate;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IcapRequestTemplateTest
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	@After
+	public void cleanAfterTests()
+	{
+		IcapRequestTemplate.clear();
+	}
+
+	@Test
+	public void writeRespmod_Test() throws IOException
+	{
+		IcapRequestTemplate sut = IcapRequestTemplate.getTemplate("127.0.0.1", "servicename", "1.0");
+		ByteArrayOutputStream socketOut = new ByteArrayOutputStream();
+		IcapChunkedOutputStream out = new IcapChunkedOutputStream(socketOut, 1024);
+
+		sut.writeRespmod(out, 512, 3272);
+		out.flush();
+
+		String expected = "RESPMOD icap://127.0.0.1/servicename ICAP/1.0\r\nHost: 127.0.0.1\r\n"
+			+ "User-Agent: B2Bi ICAP Client - 1.0\r\nAllow: 204\r\nPreview: 512\r\n"
+			+ "Encapsulated: res-hdr=0, res-body=24\r\n\r\nContent-Length: 3272\r\n\r\n";
+		assertEquals(expected, new String(socketOut.toByteArray(), US_ASCII));
+		assertEquals(expected, sut.getRespmod(512, 3272));
+	}
+
+	@Test
+	public void writeRespmod_LargeFile_Test() throws IOException
+	{
+		IcapRequestTemplate sut = IcapRequestTemplate.getTemplate("127.0.0.1", "servicename", "1.0");
+		ByteArrayOutputStream socketOut = new ByteArrayOutputStream();
+		IcapChunkedOutputStream out = new IcapChunkedOutputStream(socketOut, 1024);
+
+		sut.writeRespmod(out, 0, 10000000000L);
+		out.flush();
+
+		assertEquals(sut.getRespmod(0, 10000000000L), new String(socketOut.toByteArray(), US_ASCII));
+	}
+
+	@Test
+	public void getOptionsRequest_Test()
+	{
+		IcapRequestTemplate sut = IcapRequestTemplate.getTemplate("127.0.0.1", "servicename", "1.0");
+
+		assertSame(sut, IcapRequestTemplate.getTemplate("127.0.0.1", "servicename", "1.0"));
+		assertEquals("OPTIONS icap://127.0.0.1/servicename ICAP/1.0\r\nHost: 127.0.0.1\r\n"
+				+ "User-Agent: B2Bi ICAP Client - 1.0\r\nEncapsulated: null-body=0\r\n\r\n",
+			new String(sut.getOptionsRequest(), US_ASCII));
+	}
+}
@@ -0,0 +1,108 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.IcapResponseReader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class IcapResponseReaderTest
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Returns at most a few bytes per read, like a socket receiving the response in several packets
+	 */
+	private static class SlowInputStream extends ByteArrayInputStream
+	{
+		private int reads;
+
+		SlowInputStream(String data)
+		{
+			super(data.getBytes(US_ASCII));
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+		{
+			reads++;
+			return super.read(b, off, Math.min(len, 3));
+		}
+	}
+
+	private static String getHeader(IcapResponseReader sut)
+	{
+		return new String(sut.getHeaderBuffer(), sut.getHeaderOffset(), sut.getHeaderLength(), US_ASCII);
+	}
+
+	@Test
+	public void readHeader_KeepsBody_Test() throws IOException, AntivirusException
+	{
+		String header = "ICAP/1.0 200 OK\r\nEncapsulated: res-hdr=0, res-body=5\r\n\r\n";
+		IcapResponseReader sut = new IcapResponseReader(new ByteArrayInputStream((header + "BODY!").getBytes(US_ASCII)), 1024);
+
+		assertEquals(header.length(), sut.readHeader());
+		assertEquals(header, getHeader(sut));
+		assertEquals(5, sut.getBufferedCount());
+		byte[] body = new byte[5];
+		assertEquals(5, sut.read(body, 0, 5));
+		assertEquals("BODY!", new String(body, US_ASCII));
+		assertEquals(-1, sut.read());
+	}
+
+	@Test
+	public void readHeader_SeveralResponses_Test() throws IOException, AntivirusException
+	{
+		String first = "ICAP/1.0 100 Continue\r\n\r\n";
+		String second = "ICAP/1.0 204 Unmodified\r\nConnection: keep-alive\r\n\r\n";
+		SlowInputStream in = new SlowInputStream(first + "\r\n" + second);
+		IcapResponseReader sut = new IcapResponseReader(in, 1024);
+
+		sut.readHeader();
+		assertEquals(first, getHeader(sut));
+		sut.readHeader();
+		assertEquals(second, getHeader(sut));
+		assertEquals(0, sut.getBufferedCount());
+	}
+
+	@Test
+	public void readHeader_BulkRead_Test() throws IOException, AntivirusException
+	{
+		final int[] reads = new int[1];
+		String header = "ICAP/1.0 204 Unmodified\r\nServer: C-ICAP/0.4.2\r\nConnection: keep-alive\r\n\r\n";
+		InputStream in = new ByteArrayInputStream(header.getBytes(US_ASCII))
+		{
+			@Override
+			public synchronized int read(byte[] b, int off, int len)
+			{
+				reads[0]++;
+				return super.read(b, off, len);
+			}
+		};
+		IcapResponseReader sut = new IcapResponseReader(in, 1024);
+
+		sut.readHeader();
+		assertEquals(1, reads[0]);
+	}
+
+	@Test(expected = AntivirusException.class)
+	public void readHeader_Truncated_Test() throws IOException, AntivirusException
+	{
+		IcapResponseReader sut = new IcapResponseReader(new SlowInputStream("ICAP/1.0 100 Continue\r\n"), 1024);
+		sut.readHeader();
+	}
+
+	@Test(expected = AntivirusException.class)
+	public void readHeader_TooLong_Test() throws IOException, AntivirusException
+	{
+		IcapResponseReader sut = new IcapResponseReader(
+			new SlowInputStream("ICAP/1.0 200 OK\r\nX-Very-Long-Header: 0123456789012345678901234567890123456789\r\n\r\n"), 32);
+		sut.readHeader();
+	}
+}
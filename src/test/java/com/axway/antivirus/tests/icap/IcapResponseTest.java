@@ -0,0 +1,91 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.icap.IcapResponse;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IcapResponseTest
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static IcapResponse parse(String header, boolean keepAllHeaders)
+	{
+		byte[] bytes = ("xx" + header + "BODY").getBytes(US_ASCII);
+		return IcapResponse.parse(bytes, 2, header.length(), keepAllHeaders);
+	}
+
+	@Test
+	public void parse_Clean_Test()
+	{
+		IcapResponse sut = parse("ICAP/1.0 204 Unmodified\r\nServer: C-ICAP/0.4.2\r\nConnection: keep-alive\r\n"
+			+ "ISTag: CI0001-1-squidclamav-10\r\n\r\n", false);
+
+		assertEquals(204, sut.getStatusCode());
+		assertFalse(sut.isConnectionClose());
+		assertFalse(sut.hasEncapsulatedBody());
+		assertEquals("CI0001-1-squidclamav-10", sut.getIsTag());
+		assertTrue(sut.getExtensionHeaders().isEmpty());
+		assertTrue(sut.getHeaders().isEmpty());
+	}
+
+	@Test
+	public void parse_Infected_Test()
+	{
+		IcapResponse sut = parse("ICAP/1.0 200 OK\r\nX-Virus-ID: Eicar-Test-Signature\r\n"
+			+ "X-Infection-Found: Type=0; Resolution=2; Threat=Eicar-Test-Signature;\r\n"
+			+ "Encapsulated: res-hdr=0, res-body=445\r\n\r\n", false);
+
+		assertEquals(200, sut.getStatusCode());
+		assertTrue(sut.hasEncapsulatedBody());
+		assertEquals(2, sut.getExtensionHeaders().size());
+		assertEquals("Eicar-Test-Signature", sut.getExtensionHeaders().get("X-Virus-ID"));
+		assertNull(sut.getMethods());
+	}
+
+	@Test
+	public void parse_CaseInsensitive_Test()
+	{
+		IcapResponse sut = parse("ICAP/1.0 200 OK\r\nmethods: RESPMOD\r\nPREVIEW:1024\r\nconnection: Close\r\n"
+			+ "istag: \"tag\"\r\nencapsulated: NULL-BODY=0\r\nTransfer-Ignore: jpg\r\n\r\n", true);
+
+		assertEquals("RESPMOD", sut.getMethods());
+		assertEquals(1024, sut.getPreviewSize());
+		assertTrue(sut.isConnectionClose());
+		assertEquals("\"tag\"", sut.getIsTag());
+		assertFalse(sut.hasEncapsulatedBody());
+		assertEquals("jpg", sut.getHeaders().get("transfer-ignore"));
+		assertEquals("200", sut.getHeaders().get("StatusCode"));
+	}
+
+	@Test
+	public void parse_Malformed_Test()
+	{
+		IcapResponse sut = parse("garbage\r\n\r\n", false);
+		assertEquals(IcapResponse.NOT_SET, sut.getStatusCode());
+		assertEquals(IcapResponse.NOT_SET, sut.getPreviewSize());
+	}
+
+	@Test
+	public void fromMap_Test()
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("StatusCode", "200");
+		responseMap.put("Methods", "RESPMOD");
+		responseMap.put("Preview", "512");
+
+		IcapResponse sut = IcapResponse.fromMap(responseMap);
+
+		assertEquals(200, sut.getStatusCode());
+		assertEquals(512, sut.getPreviewSize());
+		assertEquals("RESPMOD", sut.getMethods());
+	}
+}
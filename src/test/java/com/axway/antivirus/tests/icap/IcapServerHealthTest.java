@@ -0,0 +1,176 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerHealth;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScannerBalancer;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IcapServerHealthTest
+{
+	private FakeIcapServer server;
+	private int deadPort;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		//a port nobody listens on
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			deadPort = socket.getLocalPort();
+		}
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		IcapServerHealth.clear();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(String id, int port)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(port));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_CONNECTION_TIMEOUT, "2000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_FAILURES, "2");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_CIRCUIT_BREAKER_OPEN_TIME, "60000");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL, "0");
+		return new AntivirusConfigurationHolder(id, properties);
+	}
+
+	private ScanResult scan(AntivirusScanEngine engine) throws IOException, AntivirusException
+	{
+		byte[] data = "clean".getBytes("UTF-8");
+		return engine.scan(new ByteArrayInputStream(data), data.length, null);
+	}
+
+	@Test
+	public void circuitBreaker_States_Test() throws InterruptedException
+	{
+		IcapServerHealth health = IcapServerHealth.getHealth("127.0.0.1", deadPort, 2, 100);
+		assertTrue(health.allowRequest());
+		health.recordFailure("refused");
+		assertEquals(IcapServerHealth.State.CLOSED, health.getState());
+		health.recordFailure("refused");
+		assertEquals(IcapServerHealth.State.OPEN, health.getState());
+		assertFalse(health.isAvailable());
+		assertFalse(health.allowRequest());
+
+		//once the open time elapsed one scan is let through
+		Thread.sleep(150);
+		assertTrue(health.isAvailable());
+		assertTrue(health.allowRequest());
+		assertEquals(IcapServerHealth.State.HALF_OPEN, health.getState());
+		assertFalse(health.allowRequest());
+		health.recordFailure("refused");
+		assertEquals(IcapServerHealth.State.OPEN, health.getState());
+
+		Thread.sleep(150);
+		assertTrue(health.allowRequest());
+		health.recordSuccess();
+		assertEquals(IcapServerHealth.State.CLOSED, health.getState());
+		assertEquals(0, health.getConsecutiveFailures());
+	}
+
+	@Test
+	public void deadServer_FailFast_Test() throws Exception
+	{
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(getConfiguration("antivirus1", deadPort));
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				scan(engine);
+				fail("The server is down, the scan should fail.");
+			}
+			catch (IOException expected)
+			{
+				//connection refused
+			}
+		}
+		IcapServerHealth health = engine.getBalancer().getServers().get(0).getHealth();
+		assertEquals(IcapServerHealth.State.OPEN, health.getState());
+
+		//the server is not tried anymore
+		try
+		{
+			scan(engine);
+			fail("The server is down, the scan should fail.");
+		}
+		catch (AntivirusException expected)
+		{
+			assertTrue(expected.getMessage().contains("considered down"));
+		}
+		assertEquals(2, health.getConsecutiveFailures());
+	}
+
+	@Test
+	public void deadServer_Failover_Test() throws Exception
+	{
+		AntivirusConfigurationHolder group = getConfiguration("antivirus1", deadPort);
+		group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", server.getPort())));
+		AntivirusScanEngine engine = AntivirusScanEngine.getEngine(group);
+
+		//the scans sent to the dead server go to the other one
+		for (int i = 0; i < 6; i++)
+			assertTrue(scan(engine).isClean());
+		assertEquals(6, server.getRespmodCount());
+		ScannerBalancer.Server dead = engine.getBalancer().getServers().get(0);
+		assertEquals(0, dead.getOutstanding());
+
+		//once it is considered down it is not even tried
+		while (dead.getHealth().getState() != IcapServerHealth.State.OPEN)
+			dead.getHealth().recordFailure("refused");
+		int failures = dead.getHealth().getConsecutiveFailures();
+		for (int i = 0; i < 6; i++)
+			assertTrue(scan(engine).isClean());
+		assertEquals(12, server.getRespmodCount());
+		assertEquals(failures, dead.getHealth().getConsecutiveFailures());
+	}
+
+	@Test
+	public void healthCheck_ClosesCircuit_Test() throws Exception
+	{
+		IcapServerHealth health = IcapServerHealth.getHealth("127.0.0.1", server.getPort(), 1, 60000);
+		health.recordFailure("refused");
+		assertEquals(IcapServerHealth.State.OPEN, health.getState());
+
+		AntivirusClient prototype = new AntivirusClient(getConfiguration("antivirus1", server.getPort()));
+		health.startProbes(prototype, 50);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (health.getState() != IcapServerHealth.State.CLOSED && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertEquals(IcapServerHealth.State.CLOSED, health.getState());
+		assertTrue(server.getOptionsCount() >= 1);
+		assertTrue(IcapOptionsCache.getInstance().get(IcapOptionsCache.getKey("127.0.0.1", server.getPort(), "servicename")) != null);
+	}
+}
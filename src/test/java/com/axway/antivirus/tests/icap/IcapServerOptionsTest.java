@@ -0,0 +1,165 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerOptions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IcapServerOptionsTest
+{
+	private static final String KEY = IcapOptionsCache.getKey("127.0.0.1", 1344, "servicename");
+
+	@After
+	public void cleanAfterTests()
+	{
+		IcapOptionsCache.getInstance().clear();
+	}
+
+	@Test
+	public void fromResponse_Test()
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("StatusCode", "200");
+		responseMap.put("Methods", "RESPMOD, REQMOD");
+		responseMap.put("ISTag", "\"CI0001-1-squidclamav-10\"");
+		responseMap.put("Preview", "1024");
+		responseMap.put("Options-TTL", "3600");
+		responseMap.put("Max-Connections", "100");
+		responseMap.put("Allow", "204");
+		responseMap.put("Transfer-Preview", "*");
+		responseMap.put("Transfer-Ignore", "JPG, gif");
+		responseMap.put("Transfer-Complete", "exe");
+
+		IcapServerOptions sut = IcapServerOptions.fromResponse(responseMap);
+
+		assertEquals(2, sut.getMethods().size());
+		assertTrue(sut.getMethods().contains("respmod"));
+		assertEquals("\"CI0001-1-squidclamav-10\"", sut.getIsTag());
+		assertEquals(1024, sut.getPreviewSize());
+		assertEquals(3600, sut.getOptionsTtl());
+		assertEquals(100, sut.getMaxConnections());
+		assertTrue(sut.isAllow204());
+		assertEquals("*", sut.getTransferPreview().get(0));
+		assertEquals("jpg", sut.getTransferIgnore().get(0));
+		assertEquals("gif", sut.getTransferIgnore().get(1));
+		assertEquals("exe", sut.getTransferComplete().get(0));
+		assertFalse(sut.isExpired());
+	}
+
+	@Test
+	public void fromResponse_MissingHeaders_Test()
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("StatusCode", "200");
+		responseMap.put("Methods", "RESPMOD");
+
+		IcapServerOptions sut = IcapServerOptions.fromResponse(responseMap);
+
+		assertEquals(IcapServerOptions.NOT_SET, sut.getPreviewSize());
+		assertEquals(IcapServerOptions.NOT_SET, sut.getOptionsTtl());
+		assertNull(sut.getIsTag());
+		assertFalse(sut.isAllow204());
+		assertTrue(sut.getTransferIgnore().isEmpty());
+		assertFalse(sut.isExpired());
+	}
+
+	@Test
+	public void getTransferMode_Test()
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("Transfer-Preview", "*");
+		responseMap.put("Transfer-Ignore", "jpg, gif");
+		responseMap.put("Transfer-Complete", "exe");
+		IcapServerOptions sut = IcapServerOptions.fromResponse(responseMap);
+
+		assertEquals(IcapServerOptions.TransferMode.IGNORE, sut.getTransferMode(".JPG"));
+		assertEquals(IcapServerOptions.TransferMode.COMPLETE, sut.getTransferMode("exe"));
+		assertEquals(IcapServerOptions.TransferMode.PREVIEW, sut.getTransferMode("txt"));
+		assertEquals(IcapServerOptions.TransferMode.PREVIEW, sut.getTransferMode(null));
+	}
+
+	@Test
+	public void getTransferMode_Wildcard_Test()
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("Transfer-Preview", "doc");
+		responseMap.put("Transfer-Ignore", "*");
+		IcapServerOptions sut = IcapServerOptions.fromResponse(responseMap);
+
+		assertEquals(IcapServerOptions.TransferMode.PREVIEW, sut.getTransferMode("doc"));
+		assertEquals(IcapServerOptions.TransferMode.IGNORE, sut.getTransferMode("txt"));
+		//the type of a file without extension is not known, it is scanned
+		assertEquals(IcapServerOptions.TransferMode.PREVIEW, sut.getTransferMode(""));
+	}
+
+	@Test
+	public void isExpired_Test() throws InterruptedException
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("Options-TTL", "0");
+		IcapServerOptions sut = IcapServerOptions.fromResponse(responseMap);
+		Thread.sleep(5);
+		assertTrue(sut.isExpired());
+	}
+
+	@Test
+	public void cacheRefresh_Test() throws InterruptedException
+	{
+		Map<String, String> responseMap = new HashMap<>();
+		responseMap.put("Preview", "512");
+		final IcapServerOptions refreshed = IcapServerOptions.fromResponse(responseMap);
+		final CountDownLatch latch = new CountDownLatch(1);
+		IcapOptionsCache sut = IcapOptionsCache.getInstance();
+		sut.put(KEY, IcapServerOptions.fromResponse(new HashMap<String, String>()));
+
+		sut.refresh(KEY, new Callable<IcapServerOptions>()
+		{
+			@Override
+			public IcapServerOptions call()
+			{
+				latch.countDown();
+				return refreshed;
+			}
+		});
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100 && sut.get(KEY) != refreshed; i++)
+			Thread.sleep(10);
+		assertSame(refreshed, sut.get(KEY));
+	}
+
+	@Test
+	public void cacheRefreshFailure_KeepsOptions_Test() throws InterruptedException
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		IcapOptionsCache sut = IcapOptionsCache.getInstance();
+		IcapServerOptions cached = IcapServerOptions.fromResponse(new HashMap<String, String>());
+		sut.put(KEY, cached);
+
+		sut.refresh(KEY, new Callable<IcapServerOptions>()
+		{
+			@Override
+			public IcapServerOptions call() throws Exception
+			{
+				latch.countDown();
+				throw new Exception("server down");
+			}
+		});
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertSame(cached, sut.get(KEY));
+	}
+}
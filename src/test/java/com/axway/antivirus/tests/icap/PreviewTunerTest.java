@@ -0,0 +1,157 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapRequestTemplate;
+import com.axway.antivirus.icap.PreviewTuner;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewTunerTest
+{
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		PreviewTuner.clear();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(boolean adaptivePreview)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(server.getPort()));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ADAPTIVE_PREVIEW, String.valueOf(adaptivePreview));
+		return new AntivirusConfigurationHolder("antivirus1", properties);
+	}
+
+	private void scan(AntivirusClient prototype, int size) throws IOException, AntivirusException
+	{
+		AntivirusClient client = prototype.newScanClient();
+		try
+		{
+			client.connect();
+			assertTrue(client.scanStream(new ByteArrayInputStream(new byte[size]), size, "PDF"));
+		}
+		finally
+		{
+			client.disconnect();
+		}
+	}
+
+	private void record(PreviewTuner tuner, int previewSize, boolean decided)
+	{
+		for (int i = 0; i < PreviewTuner.WINDOW; i++)
+			tuner.record("pdf", 100000, previewSize, decided);
+	}
+
+	@Test
+	public void decidedAfterPreview_Shrink_Test()
+	{
+		PreviewTuner tuner = PreviewTuner.getTuner("127.0.0.1", 1344, "servicename");
+		assertEquals(4096, tuner.getPreviewSize("pdf", 100000, 4096));
+		record(tuner, 4096, true);
+		assertEquals(2048, tuner.getPreviewSize("pdf", 100000, 4096));
+		//the other classes of files keep their preview size
+		assertEquals(4096, tuner.getPreviewSize("pdf", 1000, 4096));
+		assertEquals(4096, tuner.getPreviewSize("doc", 100000, 4096));
+
+		//the server needs more than 1024 bytes: the preview goes back to 2048 bytes and stays there
+		record(tuner, 2048, true);
+		assertEquals(1024, tuner.getPreviewSize("pdf", 100000, 4096));
+		record(tuner, 1024, false);
+		assertEquals(2048, tuner.getPreviewSize("pdf", 100000, 4096));
+		record(tuner, 2048, true);
+		assertEquals(2048, tuner.getPreviewSize("pdf", 100000, 4096));
+
+		PreviewTuner.FileClass fileClass = tuner.getFileClasses().get(0);
+		for (PreviewTuner.FileClass other : tuner.getFileClasses())
+		{
+			if (other.getPreviews() > 0)
+				fileClass = other;
+		}
+		assertEquals("pdf", fileClass.getFileExtension());
+		assertEquals("64KB-1MB", fileClass.getSizeRange());
+		assertEquals(2048, fileClass.getPreviewSize());
+		assertEquals(4 * PreviewTuner.WINDOW, fileClass.getPreviews());
+		assertEquals(0.75, fileClass.getHitRate(), 0.001);
+	}
+
+	@Test
+	public void continueAfterPreview_NoPreview_Test()
+	{
+		PreviewTuner tuner = PreviewTuner.getTuner("127.0.0.1", 1344, "servicename");
+		assertEquals(4096, tuner.getPreviewSize("pdf", 100000, 4096));
+		record(tuner, 4096, false);
+
+		//the files are sent whole, but one now and then
+		for (int i = 1; i < PreviewTuner.PROBE_INTERVAL; i++)
+			assertEquals(IcapRequestTemplate.NO_PREVIEW, tuner.getPreviewSize("pdf", 100000, 4096));
+		assertEquals(4096, tuner.getPreviewSize("pdf", 100000, 4096));
+		tuner.record("pdf", 100000, 4096, true);
+		assertEquals(4096, tuner.getPreviewSize("pdf", 100000, 4096));
+	}
+
+	@Test
+	public void adaptivePreview_Disabled_Test() throws Exception
+	{
+		AntivirusClient prototype = new AntivirusClient(getConfiguration(false));
+		assertNull(prototype.getPreviewTuner());
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		for (int i = 0; i < PreviewTuner.WINDOW + 1; i++)
+			scan(prototype, 5000);
+		assertTrue(server.getLastRespmodHeader().contains("Preview: 1024"));
+	}
+
+	@Test
+	public void adaptivePreview_Scans_Test() throws Exception
+	{
+		AntivirusClient prototype = new AntivirusClient(getConfiguration(true));
+		//the server decides after the previews: the preview is halved once a window is measured
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		for (int i = 0; i < PreviewTuner.WINDOW; i++)
+			scan(prototype, 5000);
+		assertTrue(server.getLastRespmodHeader().contains("Preview: 1024"));
+		scan(prototype, 5000);
+		assertTrue(server.getLastRespmodHeader().contains("Preview: 512"));
+
+		//the server asks for the rest of the larger files: they are sent whole once a window is measured
+		server.setPreviewResponse(FakeIcapServer.CONTINUE_RESPONSE);
+		for (int i = 0; i < PreviewTuner.WINDOW; i++)
+			scan(prototype, 100000);
+		scan(prototype, 100000);
+		assertFalse(server.getLastRespmodHeader().contains("Preview:"));
+
+		List<PreviewTuner.FileClass> fileClasses = prototype.getPreviewTuner().getFileClasses();
+		assertEquals(2, fileClasses.size());
+	}
+}
@@ -0,0 +1,147 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerHealth;
+import com.axway.antivirus.icap.ScanPipeline;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.icap.ScanStages;
+import com.axway.antivirus.icap.VerdictCache;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanPipelineTest
+{
+	private static final int FILE_SIZE = 100000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeIcapServer server;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		byte[] data = new byte[FILE_SIZE];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)('a' + i % 26);
+		byte[] marker = "%EMBEDDED%".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(marker, 0, data, 50000, marker.length);
+		file = folder.newFile("export.xml");
+		Files.write(file.toPath(), data);
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		IcapServerHealth.clear();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
+	private AntivirusScanEngine getEngine(boolean zeroCopyTransfer)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(server.getPort()));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL, "0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ZERO_COPY_TRANSFER, String.valueOf(zeroCopyTransfer));
+		return AntivirusScanEngine.getEngine(new AntivirusConfigurationHolder("antivirus1", properties));
+	}
+
+	private void assertWholeFileSeen(ScanStages.Digest digest, ScanStages.ByteCounter counter,
+		ScanStages.LeadingBytes leadingBytes, ScanStages.PatternMatcher matcher) throws IOException
+	{
+		assertEquals(VerdictCache.hash(ScanSource.of(file)), digest.getHex());
+		assertEquals(FILE_SIZE, counter.getBytes());
+		assertTrue(counter.isComplete());
+		assertTrue(counter.getBlocks() > 1);
+		assertArrayEquals("abcd".getBytes(StandardCharsets.US_ASCII), leadingBytes.getBytes());
+		assertEquals(50000, matcher.getPosition());
+	}
+
+	@Test
+	public void stages_SeeSentData_Test() throws Exception
+	{
+		ScanStages.Digest digest = new ScanStages.Digest();
+		ScanStages.ByteCounter counter = new ScanStages.ByteCounter();
+		ScanStages.LeadingBytes leadingBytes = new ScanStages.LeadingBytes(4);
+		ScanStages.PatternMatcher matcher = new ScanStages.PatternMatcher("%EMBEDDED%");
+		ScanPipeline pipeline = new ScanPipeline().add(digest).add(counter).add(leadingBytes).add(matcher);
+
+		assertTrue(getEngine(false).scan(file, "xml", pipeline).isClean());
+		assertWholeFileSeen(digest, counter, leadingBytes, matcher);
+		int sent = 0;
+		for (byte[] body : server.getReceivedBodies())
+			sent = Math.max(sent, body.length);
+		assertEquals(FILE_SIZE, sent);
+	}
+
+	@Test
+	public void verdictAfterPreview_StagesSeeWholeData_Test() throws Exception
+	{
+		server.setPreviewResponse(FakeIcapServer.CLEAN_RESPONSE);
+		ScanStages.Digest digest = new ScanStages.Digest();
+		ScanStages.ByteCounter counter = new ScanStages.ByteCounter();
+		ScanStages.LeadingBytes leadingBytes = new ScanStages.LeadingBytes(4);
+		ScanStages.PatternMatcher matcher = new ScanStages.PatternMatcher("%EMBEDDED%");
+		ScanPipeline pipeline = new ScanPipeline().add(digest).add(counter).add(leadingBytes).add(matcher);
+
+		assertTrue(getEngine(false).scan(file, "xml", pipeline).isClean());
+		assertWholeFileSeen(digest, counter, leadingBytes, matcher);
+		//only the preview was sent
+		assertEquals(1024, server.getReceivedBodies().get(0).length);
+	}
+
+	@Test
+	public void zeroCopyTransfer_StagesSeeData_Test() throws Exception
+	{
+		ScanStages.ByteCounter counter = new ScanStages.ByteCounter();
+		assertTrue(getEngine(true).scan(file, "xml", counter).isClean());
+		assertEquals(FILE_SIZE, counter.getBytes());
+	}
+
+	@Test
+	public void patternMatcher_AcrossBlocks_Test()
+	{
+		ScanStages.PatternMatcher matcher = new ScanStages.PatternMatcher("abab");
+		byte[] data = "xxabaabab".getBytes(StandardCharsets.US_ASCII);
+		matcher.update(data, 0, 7);
+		assertFalse(matcher.isFound());
+		matcher.update(data, 7, 2);
+		assertTrue(matcher.isFound());
+		assertEquals(5, matcher.getPosition());
+
+		matcher.start();
+		assertFalse(matcher.isFound());
+		byte[] block = Arrays.copyOfRange(data, 5, 9);
+		matcher.update(block, 0, block.length);
+		assertEquals(0, matcher.getPosition());
+	}
+}
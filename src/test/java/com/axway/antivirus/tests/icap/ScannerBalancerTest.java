@@ -0,0 +1,160 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.ScannerBalancer;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ScannerBalancerTest
+{
+	private FakeIcapServer server1;
+	private FakeIcapServer server2;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server1 = new FakeIcapServer();
+		server2 = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server1.close();
+		server2.close();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
+	private AntivirusConfigurationHolder getConfiguration(String id, int port, int weight)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(port));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_WEIGHT, String.valueOf(weight));
+		return new AntivirusConfigurationHolder(id, properties);
+	}
+
+	@Test
+	public void singleServer_Test()
+	{
+		ScannerBalancer.Server server = new ScannerBalancer.Server(mock(AntivirusClient.class), 1);
+		ScannerBalancer balancer = new ScannerBalancer(Arrays.asList(server));
+		for (int i = 0; i < 10; i++)
+			assertSame(server, balancer.choose());
+	}
+
+	@Test
+	public void twoServers_LeastOutstanding_Test() throws Exception
+	{
+		AntivirusConfigurationHolder group = getConfiguration("group", server1.getPort(), 1);
+		group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", server2.getPort(), 1)));
+		ScannerBalancer balancer = new ScannerBalancer(group);
+		assertEquals(2, balancer.getServers().size());
+
+		//the scans in progress on the first server send the next ones to the second server
+		startScans(balancer.getServers().get(0), 100);
+		AntivirusScanEngine engine = new AntivirusScanEngine(balancer, 0);
+		for (int i = 0; i < 5; i++)
+		{
+			byte[] data = "clean".getBytes("UTF-8");
+			ScanResult result = engine.scan(new ByteArrayInputStream(data), data.length, null);
+			assertTrue(result.isClean());
+		}
+		assertEquals(0, server1.getRespmodCount());
+		assertEquals(5, server2.getRespmodCount());
+		assertEquals(0, balancer.getServers().get(1).getOutstanding());
+		assertTrue(balancer.getServers().get(1).getLatency() >= 0);
+	}
+
+	@Test
+	public void failedScans_Latency_Test()
+	{
+		List<ScannerBalancer.Server> servers = new ArrayList<>();
+		servers.add(new ScannerBalancer.Server(new AntivirusClient(getConfiguration("antivirus1", server1.getPort(), 1)), 1));
+		servers.add(new ScannerBalancer.Server(new AntivirusClient(getConfiguration("antivirus2", server2.getPort(), 1)), 1));
+		ScannerBalancer balancer = new ScannerBalancer(servers);
+
+		//a scan failing fast counts as long as the connection timeout
+		servers.get(0).start();
+		servers.get(0).end(1, true);
+		servers.get(1).start();
+		servers.get(1).end(50, false);
+		assertEquals(10000, servers.get(0).getLatency(), 0);
+		assertEquals(50, servers.get(1).getLatency(), 0);
+		for (int i = 0; i < 10; i++)
+			assertSame(servers.get(1), balancer.choose());
+	}
+
+	@Test
+	public void reload_LoadKept_Test()
+	{
+		AntivirusConfigurationHolder group = getConfiguration("group", server1.getPort(), 1);
+		group.setGroupMembers(Arrays.asList(group, getConfiguration("antivirus2", server2.getPort(), 1)));
+		ScannerBalancer balancer = new ScannerBalancer(group);
+		ScannerBalancer.Server first = balancer.getServers().get(0);
+		first.start();
+		first.end(40, false);
+		first.start();
+		balancer.getServers().get(1).start();
+
+		//the unchanged server keeps its load, the server with a new weight starts again
+		AntivirusConfigurationHolder reloaded = getConfiguration("group", server1.getPort(), 1);
+		reloaded.setGroupMembers(Arrays.asList(reloaded, getConfiguration("antivirus2", server2.getPort(), 2)));
+		ScannerBalancer next = new ScannerBalancer(reloaded, balancer);
+		assertEquals(1, next.getServers().get(0).getOutstanding());
+		assertEquals(40, next.getServers().get(0).getLatency(), 0);
+		assertEquals(0, next.getServers().get(1).getOutstanding());
+		assertEquals(0, next.getServers().get(1).getLatency(), 0);
+
+		//a scan started before the reload ends on the load of the new balancer
+		first.end(60, false);
+		assertEquals(0, next.getServers().get(0).getOutstanding());
+		assertEquals(46, next.getServers().get(0).getLatency(), 0.001);
+	}
+
+	@Test
+	public void weights_ShareOfScans_Test()
+	{
+		List<ScannerBalancer.Server> servers = new ArrayList<>();
+		servers.add(new ScannerBalancer.Server(mock(AntivirusClient.class), 1));
+		servers.add(new ScannerBalancer.Server(mock(AntivirusClient.class), 3));
+		ScannerBalancer balancer = new ScannerBalancer(servers);
+
+		//with the same number of scans in progress the heavier server is chosen
+		assertSame(servers.get(1), balancer.choose());
+		//1/1 against 4/3 once the heavier server has three scans in progress: the lighter server is chosen
+		startScans(servers.get(1), 3);
+		assertSame(servers.get(0), balancer.choose());
+	}
+
+	private void startScans(ScannerBalancer.Server server, int count)
+	{
+		for (int i = 0; i < count; i++)
+			server.start();
+	}
+}
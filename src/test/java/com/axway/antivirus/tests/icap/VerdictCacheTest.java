@@ -0,0 +1,167 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerOptions;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.VerdictCache;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+import com.axway.antivirus.tests.tools.PrepareForTests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VerdictCacheTest
+{
+	private static final String INFECTED_RESPONSE = "ICAP/1.0 200 OK\r\nISTag: \"fake-1\"\r\nX-Infection-Found: Type=0; "
+		+ "Resolution=2; Threat=EICAR;\r\nConnection: keep-alive\r\nEncapsulated: null-body=0\r\n\r\n";
+
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		PrepareForTests.cleanEngines();
+	}
+
+	private AntivirusScanEngine getEngine(int verdictCacheSize, int verdictCacheTtl)
+	{
+		Properties properties = PrepareForTests.prepareEngineProperties(server.getPort());
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_SIZE, String.valueOf(verdictCacheSize));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_CACHE_TTL, String.valueOf(verdictCacheTtl));
+		return AntivirusScanEngine.getEngine(new AntivirusConfigurationHolder("antivirus1", properties));
+	}
+
+	@Test
+	public void hash_Sha256_Test() throws IOException
+	{
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", VerdictCache.hash(PrepareForTests.prepareSource("")));
+		assertNotEquals(VerdictCache.hash(PrepareForTests.prepareSource("a")), VerdictCache.hash(PrepareForTests.prepareSource("b")));
+	}
+
+	@Test
+	public void identicalData_NotScannedAgain_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(100, 3600000);
+		ScanResult first = engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(first.isClean());
+		assertFalse(first.isCached());
+		assertEquals("\"fake-1\"", first.getIsTag());
+
+		ScanResult second = engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(second.isClean());
+		assertTrue(second.isCached());
+		assertEquals(1, server.getRespmodCount());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("other catalog"), null).isClean());
+		assertEquals(2, server.getRespmodCount());
+		assertEquals(1, engine.getVerdictCache().getHits());
+		assertEquals(2, engine.getVerdictCache().getMisses());
+
+		//the threats are kept too
+		server.setFinalResponse(INFECTED_RESPONSE);
+		server.setPreviewResponse(INFECTED_RESPONSE);
+		assertFalse(engine.scan(PrepareForTests.prepareSource("infected"), null).isClean());
+		ScanResult infected = engine.scan(PrepareForTests.prepareSource("infected"), null);
+		assertFalse(infected.isClean());
+		assertTrue(infected.isCached());
+		assertTrue(infected.getFailureReason().contains("EICAR"));
+		assertEquals(3, server.getRespmodCount());
+	}
+
+	@Test
+	public void newIsTag_Invalidates_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(100, 3600000);
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+
+		//the signatures are updated, a response shows the new ISTag and the options are refreshed
+		server.setOptionsResponse(FakeIcapServer.OPTIONS_RESPONSE.replace("fake-1", "fake-2"));
+		server.setFinalResponse(FakeIcapServer.CLEAN_RESPONSE.replace("fake-1", "fake-2"));
+		engine.scan(PrepareForTests.prepareSource("other catalog"), null);
+		String key = IcapOptionsCache.getKey("127.0.0.1", server.getPort(), "servicename");
+		long deadline = System.currentTimeMillis() + 5000;
+		IcapServerOptions options = IcapOptionsCache.getInstance().get(key);
+		while (!"\"fake-2\"".equals(options.getIsTag()) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(20);
+			options = IcapOptionsCache.getInstance().get(key);
+		}
+		assertEquals("\"fake-2\"", options.getIsTag());
+
+		//the verdict given with the previous signatures is not used
+		ScanResult result = engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertFalse(result.isCached());
+		assertEquals("\"fake-2\"", result.getIsTag());
+		assertEquals(3, server.getRespmodCount());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+	}
+
+	@Test
+	public void expiredOptions_NotCurrent_Test() throws Exception
+	{
+		server.setOptionsResponse(FakeIcapServer.OPTIONS_RESPONSE.replace("Preview: 1024", "Preview: 1024\r\nOptions-TTL: 1"));
+		AntivirusScanEngine engine = getEngine(100, 3600000);
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		int optionsCount = server.getOptionsCount();
+
+		//the signatures may have been updated since the options were received, the verdict is not used
+		Thread.sleep(1100);
+		assertFalse(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		assertEquals(2, server.getRespmodCount());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getOptionsCount() == optionsCount && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertTrue(server.getOptionsCount() > optionsCount);
+
+		//the refreshed options give the same ISTag, the verdicts are used again
+		deadline = System.currentTimeMillis() + 5000;
+		ScanResult result = engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		while (!result.isCached() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(20);
+			result = engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		}
+		assertTrue(result.isCached());
+	}
+
+	@Test
+	public void expiredVerdict_ScannedAgain_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(100, 1);
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		Thread.sleep(10);
+		assertFalse(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		assertEquals(2, server.getRespmodCount());
+	}
+
+	@Test
+	public void disabled_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine(0, 3600000);
+		assertNull(engine.getVerdictCache());
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertFalse(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		assertEquals(2, server.getRespmodCount());
+	}
+}
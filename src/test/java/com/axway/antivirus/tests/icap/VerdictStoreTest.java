@@ -0,0 +1,146 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.VerdictStore;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+import com.axway.antivirus.tests.tools.PrepareForTests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VerdictStoreTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeIcapServer server;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new FakeIcapServer();
+		directory = folder.newFolder(Constants.VERDICT_STORE_DIRECTORY);
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		server.close();
+		PrepareForTests.cleanEngines();
+		VerdictStore.closeAll();
+	}
+
+	private AntivirusScanEngine getEngine(String scannerId, File storeDirectory, int verdictStoreSize)
+	{
+		Properties properties = PrepareForTests.prepareEngineProperties(server.getPort());
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_VERDICT_STORE_SIZE, String.valueOf(verdictStoreSize));
+		AntivirusConfigurationHolder avConfHolder = new AntivirusConfigurationHolder(scannerId, properties);
+		avConfHolder.setVerdictStoreDirectory(storeDirectory);
+		return AntivirusScanEngine.getEngine(avConfHolder);
+	}
+
+	@Test
+	public void otherNode_UsesVerdicts_Test() throws Exception
+	{
+		AntivirusScanEngine node1 = getEngine("antivirus1", directory, 100);
+		//another path to the same directory, the store of the second engine opens the file on its own like another node
+		AntivirusScanEngine node2 = getEngine("antivirus2", new File(directory, "../" + directory.getName()), 100);
+		assertNotSame(node1.getVerdictStore(), node2.getVerdictStore());
+
+		assertFalse(node1.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		ScanResult result = node2.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(result.isClean());
+		assertTrue(result.isCached());
+		assertEquals("\"fake-1\"", result.getIsTag());
+		assertFalse(node2.scan(PrepareForTests.prepareSource("other catalog"), null).isCached());
+		assertTrue(node1.scan(PrepareForTests.prepareSource("other catalog"), null).isCached());
+		assertEquals(2, server.getRespmodCount());
+		assertEquals(1, node1.getVerdictStore().getHits());
+		assertEquals(1, node2.getVerdictStore().getHits());
+	}
+
+	@Test
+	public void restart_WarmCache_Test() throws Exception
+	{
+		getEngine("antivirus1", directory, 100).scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(new File(directory, VerdictStore.FILE_NAME).isFile());
+		AntivirusScanEngine.clear();
+		VerdictStore.closeAll();
+
+		//the size of an existing store is kept
+		AntivirusScanEngine engine = getEngine("antivirus1", directory, 50);
+		assertEquals(100, engine.getVerdictStore().getCapacity());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		assertEquals(1, server.getRespmodCount());
+	}
+
+	@Test
+	public void full_OldestOverwritten_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine("antivirus1", directory, 2);
+		engine.scan(PrepareForTests.prepareSource("a"), null);
+		engine.scan(PrepareForTests.prepareSource("b"), null);
+		engine.scan(PrepareForTests.prepareSource("c"), null);
+		assertTrue(engine.scan(PrepareForTests.prepareSource("c"), null).isCached());
+		assertTrue(engine.scan(PrepareForTests.prepareSource("b"), null).isCached());
+		assertFalse(engine.scan(PrepareForTests.prepareSource("a"), null).isCached());
+		assertEquals(4, server.getRespmodCount());
+	}
+
+	@Test
+	public void otherNode_ReadsWholeRing_Test() throws Exception
+	{
+		AntivirusScanEngine node1 = getEngine("antivirus1", directory, 100);
+		for (int i = 0; i < 150; i++)
+			node1.scan(PrepareForTests.prepareSource("file " + i), null);
+
+		//the second node reads the records of the ring by blocks, from the oldest one still there
+		AntivirusScanEngine node2 = getEngine("antivirus2", new File(directory, "../" + directory.getName()), 100);
+		assertTrue(node2.scan(PrepareForTests.prepareSource("file 149"), null).isCached());
+		assertTrue(node2.scan(PrepareForTests.prepareSource("file 50"), null).isCached());
+		assertTrue(node2.scan(PrepareForTests.prepareSource("file 120"), null).isCached());
+		assertFalse(node2.scan(PrepareForTests.prepareSource("file 49"), null).isCached());
+		assertEquals(151, server.getRespmodCount());
+	}
+
+	@Test
+	public void newIsTag_Invalidates_Test() throws Exception
+	{
+		AntivirusScanEngine engine = getEngine("antivirus1", directory, 100);
+		engine.scan(PrepareForTests.prepareSource("catalog"), null);
+		assertTrue(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+
+		//the signatures were updated
+		IcapOptionsCache.getInstance().clear();
+		server.setOptionsResponse(FakeIcapServer.OPTIONS_RESPONSE.replace("fake-1", "fake-2"));
+		server.setFinalResponse(FakeIcapServer.CLEAN_RESPONSE.replace("fake-1", "fake-2"));
+		assertFalse(engine.scan(PrepareForTests.prepareSource("catalog"), null).isCached());
+		assertEquals(2, server.getRespmodCount());
+	}
+
+	@Test
+	public void disabled_Test() throws Exception
+	{
+		assertNull(getEngine("antivirus1", directory, 0).getVerdictStore());
+		assertNull(getEngine("antivirus2", null, 100).getVerdictStore());
+		assertFalse(new File(directory, VerdictStore.FILE_NAME).exists());
+	}
+}
@@ -0,0 +1,145 @@
+package com.axway.antivirus.tests.icap;
+
+import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.exceptions.AntivirusException;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.ScanCallback;
+import com.axway.antivirus.icap.ScanResult;
+import com.axway.antivirus.icap.ScanSource;
+import com.axway.antivirus.icap.ScanThreadFactory;
+import com.axway.antivirus.tests.tools.FakeIcapServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs on Java 21 or later only, the tests are skipped on the JVMs without virtual threads
+ */
+public class VirtualThreadScanTest
+{
+	private static final int ASYNC_SCAN_THREADS = 2;
+	private static final int ASYNC_SCAN_QUEUE_SIZE = 30;
+	private static final int SCANS = 20;
+
+	private FakeIcapServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		assumeTrue(ScanThreadFactory.isVirtualThreadSupported());
+		server = new FakeIcapServer();
+	}
+
+	@After
+	public void cleanAfterTests() throws IOException
+	{
+		if (server != null)
+			server.close();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
+	private AntivirusScanEngine getEngine()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(server.getPort()));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL, "0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_THREADS, String.valueOf(ASYNC_SCAN_THREADS));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ASYNC_SCAN_QUEUE_SIZE, String.valueOf(ASYNC_SCAN_QUEUE_SIZE));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_VIRTUAL_THREADS, "true");
+		return AntivirusScanEngine.getEngine(new AntivirusConfigurationHolder("antivirus1", properties));
+	}
+
+	private static boolean isVirtual(Thread thread) throws ReflectiveOperationException
+	{
+		return (Boolean)Thread.class.getMethod("isVirtual").invoke(thread);
+	}
+
+	@Test
+	public void scanAsync_ScansNotCappedByThreads_Test() throws Exception
+	{
+		server.setFinalResponseDelay(1000);
+		AntivirusScanEngine engine = getEngine();
+		assertTrue(engine.isVirtualThreads());
+		final List<Thread> scanThreads = Collections.synchronizedList(new ArrayList<Thread>());
+		final CountDownLatch callbacks = new CountDownLatch(SCANS);
+		ScanCallback callback = new ScanCallback()
+		{
+			@Override
+			public void onScanCompleted(ScanResult result)
+			{
+				scanThreads.add(Thread.currentThread());
+				callbacks.countDown();
+			}
+
+			@Override
+			public void onScanFailed(Throwable cause)
+			{
+				scanThreads.add(Thread.currentThread());
+				callbacks.countDown();
+			}
+		};
+
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		for (int i = 0; i < SCANS; i++)
+			futures.add(engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[100]), 100), null, callback));
+
+		//all the scans wait on the server at the same time, not asyncScanThreads of them
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getRespmodCount() < SCANS && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(SCANS, server.getRespmodCount());
+		assertEquals(SCANS, engine.getRunningAsyncScans());
+
+		for (Future<ScanResult> future : futures)
+			assertTrue(future.get(10, TimeUnit.SECONDS).isClean());
+		//the callbacks run on the scan threads once the verdict is set
+		assertTrue(callbacks.await(10, TimeUnit.SECONDS));
+		for (Thread thread : scanThreads)
+			assertTrue(thread.getName(), isVirtual(thread));
+	}
+
+	@Test
+	public void scanAsync_ScansInProgressBounded_Test() throws Exception
+	{
+		server.setFinalResponseDelay(1000);
+		AntivirusScanEngine engine = getEngine();
+		List<Future<ScanResult>> futures = new ArrayList<>();
+		for (int i = 0; i < ASYNC_SCAN_THREADS + ASYNC_SCAN_QUEUE_SIZE; i++)
+			futures.add(engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[100]), 100), null, null));
+		try
+		{
+			engine.scanAsync(ScanSource.of(new ByteArrayInputStream(new byte[100]), 100), null, null);
+			fail("The scan over the limit of the scans in progress should be rejected");
+		}
+		catch (AntivirusException aex)
+		{
+			assertEquals(1, engine.getRejectedAsyncScans());
+		}
+		for (Future<ScanResult> future : futures)
+			assertTrue(future.get(10, TimeUnit.SECONDS).isClean());
+	}
+}
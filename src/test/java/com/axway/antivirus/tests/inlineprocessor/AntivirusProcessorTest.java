@@ -3,6 +3,7 @@ package com.axway.antivirus.tests.inlineprocessor;
 import com.axway.antivirus.configuration.AntivirusConfigurationManager;
 import com.axway.antivirus.exceptions.AntivirusException;
 import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
 import com.axway.antivirus.inlineprocessor.AntivirusProcessor;
 import com.axway.antivirus.tests.tools.InjectionUtils;
 import com.axway.antivirus.tests.tools.PrepareForTests;
@@ -16,6 +17,7 @@ import org.mockito.ArgumentCaptor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -23,7 +25,11 @@ import java.util.Map;
 
 import static com.axway.antivirus.inlineprocessor.AntivirusProcessor.AV_SCAN_INFO;
 import static com.axway.antivirus.inlineprocessor.AntivirusProcessor.AV_SCAN_STATUS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -56,7 +62,7 @@ public class AntivirusProcessorTest
 		final AntivirusConfigurationManager antivirusConfigurationManager = AntivirusConfigurationManager.getInstance();
 		antivirusConfigurationManager.setConfLoaded(false);
 
-		InjectionUtils.injectField(antivirusProcessorClean, AntivirusProcessor.class, "client", avClientMock);
+		InjectionUtils.injectField(antivirusProcessorClean, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
 		InjectionUtils.injectField(antivirusProcessorClean, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
 		InjectionUtils.injectField(antivirusProcessorClean, AntivirusProcessor.class, "avScannerConfFilePath", new PropertyFileUtils().getPathToTemplateFile());
 		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
@@ -80,7 +86,7 @@ public class AntivirusProcessorTest
 		final AntivirusConfigurationManager antivirusConfigurationManager = AntivirusConfigurationManager.getInstance();
 		antivirusConfigurationManager.setConfLoaded(false);
 
-		InjectionUtils.injectField(antivirusProcessorInfected, AntivirusProcessor.class, "client", avClientMock);
+		InjectionUtils.injectField(antivirusProcessorInfected, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
 		InjectionUtils.injectField(antivirusProcessorInfected, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
 		InjectionUtils.injectField(antivirusProcessorInfected, AntivirusProcessor.class, "avScannerConfFilePath", new PropertyFileUtils().getPathToTemplateFile());
 		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
@@ -107,7 +113,7 @@ public class AntivirusProcessorTest
 		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
 		ArgumentCaptor<String> metaValueCaptor = ArgumentCaptor.forClass(String.class);
 
-		InjectionUtils.injectField(antivirusProcessorNoScan, AntivirusProcessor.class, "client", avClientMock);
+		InjectionUtils.injectField(antivirusProcessorNoScan, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
 		InjectionUtils.injectField(antivirusProcessorNoScan, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
 		InjectionUtils.injectField(antivirusProcessorNoScan, AntivirusProcessor.class, "avScannerConfFilePath", new PropertyFileUtils().getPathToTemplateFile());
 
@@ -132,7 +138,7 @@ public class AntivirusProcessorTest
 		propertyFileUtils.makeFile(pathToTestFile, props);
 		when(msgMock.getMetadata("Direction")).thenReturn("Internal");
 
-		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "client", avClientMock);
+		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
 		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
 		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "avScannerConfFilePath", pathToTestFile);
 		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
@@ -163,7 +169,7 @@ public class AntivirusProcessorTest
 		propertyFileUtils.makeFile(pathToTestFile, props);
 		when(msgMock.getMetadata("Direction")).thenReturn("Outbound");
 
-		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "client", avClientMock);
+		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
 		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
 		InjectionUtils.injectField(antivirusProcessorScan, AntivirusProcessor.class, "avScannerConfFilePath", pathToTestFile);
 		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
@@ -187,13 +193,57 @@ public class AntivirusProcessorTest
 
 	}
 
+	@Test
+	public void streamedMessageTest() throws NoSuchFieldException, IllegalAccessException, IOException, AntivirusException
+	{
+		final AntivirusProcessor antivirusProcessorStream = new AntivirusProcessor();
+		final AntivirusClient avClientMock = PrepareForTests.prepareClient(true, "");
+		final Message msgMock = PrepareForTests.prepareMessage(45L);
+		when(msgMock.getMetadata("ConsumptionFilenameExtension")).thenReturn("txt");
+		final AntivirusConfigurationManager antivirusConfigurationManager = AntivirusConfigurationManager.getInstance();
+		antivirusConfigurationManager.setConfLoaded(false);
+
+		InjectionUtils.injectField(antivirusProcessorStream, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
+		InjectionUtils.injectField(antivirusProcessorStream, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
+		InjectionUtils.injectField(antivirusProcessorStream, AntivirusProcessor.class, "avScannerConfFilePath", new PropertyFileUtils().getPathToTemplateFile());
+
+		antivirusProcessorStream.process(msgMock);
+
+		verify(avClientMock, times(1)).scanStream(any(InputStream.class), eq(45L), eq("txt"));
+		verify(avClientMock, never()).scanFile(any(File.class), nullable(String.class));
+		verify(msgMock.getData(), never()).toFile();
+	}
+
+	@Test
+	public void notStreamedMessageTest() throws NoSuchFieldException, IllegalAccessException, IOException, AntivirusException
+	{
+		final AntivirusProcessor antivirusProcessorFile = new AntivirusProcessor();
+		final AntivirusClient avClientMock = PrepareForTests.prepareClient(true, "");
+		final Message msgMock = PrepareForTests.prepareMessage(45L);
+		when(msgMock.getData().getInputStream()).thenReturn(null);
+		final AntivirusConfigurationManager antivirusConfigurationManager = AntivirusConfigurationManager.getInstance();
+		antivirusConfigurationManager.setConfLoaded(false);
+
+		InjectionUtils.injectField(antivirusProcessorFile, AntivirusProcessor.class, "engine", new AntivirusScanEngine(avClientMock, 0));
+		InjectionUtils.injectField(antivirusProcessorFile, AntivirusProcessor.class, "avManager", antivirusConfigurationManager);
+		InjectionUtils.injectField(antivirusProcessorFile, AntivirusProcessor.class, "avScannerConfFilePath", new PropertyFileUtils().getPathToTemplateFile());
+		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<String> metaValueCaptor = ArgumentCaptor.forClass(String.class);
+
+		antivirusProcessorFile.process(msgMock);
+
+		verify(avClientMock, times(1)).scanFile(any(File.class), nullable(String.class));
+		verify(msgMock, times(1)).setMetadata(metaNameCaptor.capture(), metaValueCaptor.capture());
+		PrepareForTests.assertOnList(metaValueCaptor.getAllValues(), AntivirusProcessor.SCAN_CODES.CLEAN.getValue());
+	}
+
 	@After
 	public void cleanInjection() throws IllegalAccessException, NoSuchFieldException
 	{
 		AntivirusConfigurationManager antivirusConfigurationManager = AntivirusConfigurationManager.getInstance();
 		AntivirusProcessor antivirusProcessorCleanInj = new AntivirusProcessor();
 		InjectionUtils.injectField(antivirusConfigurationManager, AntivirusConfigurationManager.class, "isConfLoaded", false);
-		InjectionUtils.injectField(antivirusProcessorCleanInj, AntivirusProcessor.class, "client", null);
+		InjectionUtils.injectField(antivirusProcessorCleanInj, AntivirusProcessor.class, "engine", null);
 		InjectionUtils.injectField(antivirusProcessorCleanInj, AntivirusProcessor.class, "avManager", null);
 		InjectionUtils.injectField(antivirusProcessorCleanInj, AntivirusProcessor.class, "avScannerConfFilePath", null);
 	}
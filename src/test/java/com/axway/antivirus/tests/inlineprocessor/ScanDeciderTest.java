@@ -2,10 +2,14 @@ package com.axway.antivirus.tests.inlineprocessor;
 
 import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
 import com.axway.antivirus.configuration.AntivirusConfigurationManager;
+import com.axway.antivirus.configuration.Constants;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerOptions;
 import com.axway.antivirus.inlineprocessor.AntivirusProcessor;
 import com.axway.antivirus.providers.ExchangePointProvider;
 import com.axway.antivirus.tests.tools.PrepareForTests;
 import com.axway.antivirus.tests.tools.PropertyFileUtils;
+import com.axway.antivirus.tools.ContentSniffer;
 import com.axway.antivirus.tools.ScanDecider;
 import com.cyclonecommerce.api.inlineprocessing.Message;
 
@@ -13,12 +17,22 @@ import org.junit.After;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -41,6 +55,7 @@ public class ScanDeciderTest
 	@After
 	public void cleanAfter()
 	{
+		IcapOptionsCache.getInstance().clear();
 		File clientRequests = new File(new PropertyFileUtils().getPathToGeneratedFile());
 		clientRequests.delete();
 	}
@@ -97,4 +112,143 @@ public class ScanDeciderTest
 		PrepareForTests.assertOnList(metaNameCaptor.getAllValues(), "AVScanStatus");
 		PrepareForTests.assertOnList(metaValueCaptor.getAllValues(), AntivirusProcessor.SCAN_CODES.NOTSCANNED.getValue());
 	}
+
+	@Test
+	public void serverTransferIgnoreTest() throws IOException
+	{
+		final ScanDecider scanDecider = setUp(new HashMap<String, String>(), null);
+		AntivirusConfigurationHolder avConfHolder = AntivirusConfigurationManager.getInstance()
+			.getScannerConfiguration(new PropertyFileUtils().getPathToGeneratedFile());
+		Map<String, String> optionsResponse = new HashMap<>();
+		optionsResponse.put("Transfer-Ignore", "jpg");
+		IcapOptionsCache.getInstance().put(
+			IcapOptionsCache.getKey(avConfHolder.getHostname(), avConfHolder.getPort(), avConfHolder.getService()),
+			IcapServerOptions.fromResponse(optionsResponse));
+		final Message mockMessage = PrepareForTests.prepareMessage(66L);
+		when(mockMessage.getMetadata("ConsumptionFilenameExtension")).thenReturn(".jpg");
+		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<String> metaValueCaptor = ArgumentCaptor.forClass(String.class);
+
+		assertEquals(false, scanDecider.isFileExtensionAcceptedByServer(mockMessage));
+
+		verify(mockMessage, times(1)).setMetadata(metaNameCaptor.capture(), metaValueCaptor.capture());
+		PrepareForTests.assertOnList(metaNameCaptor.getAllValues(), "AVScanStatus");
+		PrepareForTests.assertOnList(metaValueCaptor.getAllValues(), AntivirusProcessor.SCAN_CODES.NOTSCANNED.getValue());
+	}
+
+	@Test
+	public void serverTransferIgnoreGroupTest() throws IOException
+	{
+		AntivirusConfigurationHolder group = getMember("group", "10.0.0.9");
+		AntivirusConfigurationHolder first = getMember("antivirus1", "10.0.0.1");
+		AntivirusConfigurationHolder second = getMember("antivirus2", "10.0.0.2");
+		group.setGroupMembers(Arrays.asList(first, second));
+		ScanDecider scanDecider = new ScanDecider(group);
+		Map<String, String> optionsResponse = new HashMap<>();
+		optionsResponse.put("Transfer-Ignore", "jpg");
+		final Message mockMessage = PrepareForTests.prepareMessage(66L);
+		when(mockMessage.getMetadata("ConsumptionFilenameExtension")).thenReturn(".jpg");
+
+		//the scan may go to the server that inspects the file
+		IcapOptionsCache.getInstance().put(IcapOptionsCache.getKey(first.getHostname(), first.getPort(), first.getService()),
+			IcapServerOptions.fromResponse(optionsResponse));
+		assertTrue(scanDecider.isFileExtensionAcceptedByServer(mockMessage));
+
+		IcapOptionsCache.getInstance().put(IcapOptionsCache.getKey(second.getHostname(), second.getPort(), second.getService()),
+			IcapServerOptions.fromResponse(optionsResponse));
+		assertFalse(scanDecider.isFileExtensionAcceptedByServer(mockMessage));
+	}
+
+	private static AntivirusConfigurationHolder getMember(String id, String hostname)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, hostname);
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, "1344");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		return new AntivirusConfigurationHolder(id, properties);
+	}
+
+	@Test
+	public void contentTypeSkipPolicyTest() throws IOException
+	{
+		Map<String,String> keyValueProps = new HashMap<>();
+		keyValueProps.put("contentTypePolicies", "X12:skip,EDIFACT:skip,XML:previewOnly");
+		final ScanDecider scanDecider = setUp(keyValueProps, null);
+		final Message mockMessage = PrepareForTests.prepareMessage(66L);
+		when(mockMessage.getData().getInputStream()).thenReturn(new ByteArrayInputStream(
+			"UNB+UNOA:1+SENDER+RECEIVER+200101:1200+1'".getBytes(StandardCharsets.US_ASCII)));
+		ArgumentCaptor<String> metaNameCaptor = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<String> metaValueCaptor = ArgumentCaptor.forClass(String.class);
+
+		assertEquals(false, scanDecider.isContentTypeValid(mockMessage));
+
+		verify(mockMessage, times(2)).setMetadata(metaNameCaptor.capture(), metaValueCaptor.capture());
+		PrepareForTests.assertOnList(metaNameCaptor.getAllValues(), "AVContentType", "AVScanStatus");
+		PrepareForTests.assertOnList(metaValueCaptor.getAllValues(), "EDIFACT", AntivirusProcessor.SCAN_CODES.NOTSCANNED.getValue());
+	}
+
+	@Test
+	public void contentTypePreviewOnlyPolicyTest() throws IOException
+	{
+		Map<String,String> keyValueProps = new HashMap<>();
+		keyValueProps.put("contentTypePolicies", "X12:skip,XML:previewOnly");
+		final ScanDecider scanDecider = setUp(keyValueProps, null);
+		final Message mockMessage = PrepareForTests.prepareMessage(66L);
+		when(mockMessage.getData().getInputStream()).thenReturn(new ByteArrayInputStream(
+			"<?xml version=\"1.0\"?><invoice/>".getBytes(StandardCharsets.US_ASCII)));
+
+		assertEquals(true, scanDecider.isContentTypeValid(mockMessage));
+		assertTrue(scanDecider.isPreviewOnly());
+
+		//an executable has no policy, it is scanned whole
+		when(mockMessage.getData().getInputStream()).thenReturn(new ByteArrayInputStream(new byte[] { 'M', 'Z', (byte)0x90, 0 }));
+		assertEquals(true, scanDecider.isContentTypeValid(mockMessage));
+		assertFalse(scanDecider.isPreviewOnly());
+	}
+
+	@Test
+	public void contentTypeFromScannedStreamTest() throws IOException
+	{
+		Map<String,String> keyValueProps = new HashMap<>();
+		keyValueProps.put("contentTypePolicies", "XML:previewOnly");
+		final ScanDecider scanDecider = setUp(keyValueProps, null);
+		final Message mockMessage = PrepareForTests.prepareMessage(1000L);
+		byte[] data = new byte[1000];
+		Arrays.fill(data, (byte)' ');
+		byte[] head = "<?xml version=\"1.0\"?><invoice>".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(head, 0, data, 0, head.length);
+		InputStream stream = new BufferedInputStream(new ByteArrayInputStream(data));
+
+		//the first bytes are read from the stream the message is scanned from, which is then read from its start
+		assertEquals(true, scanDecider.isContentTypeValid(mockMessage, stream));
+		assertTrue(scanDecider.isPreviewOnly());
+		byte[] read = new byte[data.length];
+		int length = 0;
+		int n;
+		while (length < read.length && (n = stream.read(read, length, read.length - length)) != -1)
+			length += n;
+		assertArrayEquals(data, read);
+		verify(mockMessage.getData(), never()).getInputStream();
+	}
+
+	@Test
+	public void contentSnifferTest()
+	{
+		assertEquals(ContentSniffer.ContentType.X12, sniff("ISA*00*          *00*          *ZZ*SENDER~"));
+		assertEquals(ContentSniffer.ContentType.EDIFACT, sniff("UNA:+.? 'UNB+UNOC:3+SENDER+RECEIVER'"));
+		assertEquals(ContentSniffer.ContentType.XML, sniff("\uFEFF  <?xml version=\"1.0\"?>"));
+		assertEquals(ContentSniffer.ContentType.JSON, sniff("{\"order\": 1}"));
+		assertEquals(ContentSniffer.ContentType.TEXT, sniff("ISAAC,NEWTON"));
+		assertEquals(ContentSniffer.ContentType.PDF, sniff("%PDF-1.7"));
+		assertEquals(ContentSniffer.ContentType.EXECUTABLE, sniff("#!/bin/sh"));
+		assertEquals(ContentSniffer.ContentType.OFFICE, sniff("PK\u0003\u0004....[Content_Types].xml"));
+		assertEquals(ContentSniffer.ContentType.ARCHIVE, sniff("PK\u0003\u0004....readme.txt"));
+		assertEquals(ContentSniffer.ContentType.BINARY, sniff("\u0000\u0001\u0002"));
+	}
+
+	private static ContentSniffer.ContentType sniff(String head)
+	{
+		byte[] bytes = head.getBytes(StandardCharsets.UTF_8);
+		return ContentSniffer.sniff(bytes, bytes.length);
+	}
 }
@@ -0,0 +1,258 @@
+package com.axway.antivirus.tests.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal ICAP server used to test the client over a real socket.
+ * It answers the OPTIONS requests, reads the preview and the chunked body of the RESPMOD requests
+ * and keeps the connections alive.
+ */
+public class FakeIcapServer implements Closeable
+{
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	public static final String OPTIONS_RESPONSE =
+		"ICAP/1.0 200 OK\r\nMethods: RESPMOD\r\nISTag: \"fake-1\"\r\nPreview: 1024\r\nConnection: keep-alive\r\n"
+			+ "Encapsulated: null-body=0\r\n\r\n";
+	public static final String CONTINUE_RESPONSE = "ICAP/1.0 100 Continue\r\n\r\n";
+	public static final String CLEAN_RESPONSE =
+		"ICAP/1.0 204 Unmodified\r\nConnection: keep-alive\r\nISTag: \"fake-1\"\r\n\r\n";
+
+	private final ServerSocket serverSocket;
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final List<byte[]> receivedBodies = Collections.synchronizedList(new ArrayList<byte[]>());
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger optionsRequests = new AtomicInteger();
+	private final AtomicInteger respmodRequests = new AtomicInteger();
+	private volatile String optionsResponse = OPTIONS_RESPONSE;
+	private volatile String previewResponse = CONTINUE_RESPONSE;
+	private volatile String finalResponse = CLEAN_RESPONSE;
+	private volatile String lastRespmodHeader;
+	private volatile long finalResponseDelay;
+
+	public FakeIcapServer() throws IOException
+	{
+		serverSocket = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				acceptConnections();
+			}
+		}, "fake-icap-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	public int getConnectionCount()
+	{
+		return connections.get();
+	}
+
+	public int getOptionsCount()
+	{
+		return optionsRequests.get();
+	}
+
+	public int getRespmodCount()
+	{
+		return respmodRequests.get();
+	}
+
+	public String getLastRespmodHeader()
+	{
+		return lastRespmodHeader;
+	}
+
+	public List<byte[]> getReceivedBodies()
+	{
+		return receivedBodies;
+	}
+
+	public void setOptionsResponse(String optionsResponse)
+	{
+		this.optionsResponse = optionsResponse;
+	}
+
+	public void setPreviewResponse(String previewResponse)
+	{
+		this.previewResponse = previewResponse;
+	}
+
+	public void setFinalResponse(String finalResponse)
+	{
+		this.finalResponse = finalResponse;
+	}
+
+	public void setFinalResponseDelay(long finalResponseDelay)
+	{
+		this.finalResponseDelay = finalResponseDelay;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		synchronized (sockets)
+		{
+			for (Socket socket : sockets)
+				socket.close();
+		}
+	}
+
+	private void acceptConnections()
+	{
+		try
+		{
+			while (!serverSocket.isClosed())
+			{
+				final Socket socket = serverSocket.accept();
+				sockets.add(socket);
+				connections.incrementAndGet();
+				Thread handler = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handle(socket);
+					}
+				}, "fake-icap-connection");
+				handler.setDaemon(true);
+				handler.start();
+			}
+		}
+		catch (IOException ioex)
+		{
+			//server closed
+		}
+	}
+
+	private void handle(Socket socket)
+	{
+		try (InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream())
+		{
+			String header;
+			while ((header = readHeader(in)) != null)
+			{
+				if (header.startsWith("OPTIONS"))
+				{
+					optionsRequests.incrementAndGet();
+					out.write(optionsResponse.getBytes(US_ASCII));
+					out.flush();
+					continue;
+				}
+				respmodRequests.incrementAndGet();
+				lastRespmodHeader = header;
+				//the encapsulated HTTP response header
+				if (header.contains("res-hdr"))
+					readHeader(in);
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				boolean ieof = readChunks(in, body);
+				if (header.contains("Preview:") && !ieof)
+				{
+					boolean isContinue = previewResponse.startsWith("ICAP/1.0 100");
+					if (!isContinue)
+						receivedBodies.add(body.toByteArray());
+					out.write(previewResponse.getBytes(US_ASCII));
+					out.flush();
+					if (!isContinue)
+						continue;
+					readChunks(in, body);
+				}
+				receivedBodies.add(body.toByteArray());
+				sleep(finalResponseDelay);
+				out.write(finalResponse.getBytes(US_ASCII));
+				out.flush();
+			}
+		}
+		catch (IOException ioex)
+		{
+			//connection closed
+		}
+	}
+
+	private static void sleep(long delay) throws IOException
+	{
+		try
+		{
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException iex)
+		{
+			throw new IOException("Interrupted", iex);
+		}
+	}
+
+	private static String readHeader(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1)
+		{
+			header.write(b);
+			byte[] bytes = header.toByteArray();
+			int length = bytes.length;
+			if (length >= 4 && bytes[length - 4] == '\r' && bytes[length - 3] == '\n' && bytes[length - 2] == '\r'
+				&& bytes[length - 1] == '\n')
+				return new String(bytes, US_ASCII);
+		}
+		return null;
+	}
+
+	private static String readLine(InputStream in) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1)
+		{
+			if (b == '\n')
+				return line.toString().trim();
+			line.append((char)b);
+		}
+		throw new EOFException();
+	}
+
+	/**
+	 * @return true if the last chunk had the ieof extension
+	 */
+	private static boolean readChunks(InputStream in, ByteArrayOutputStream body) throws IOException
+	{
+		while (true)
+		{
+			String sizeLine = readLine(in);
+			int extension = sizeLine.indexOf(';');
+			int size = Integer.parseInt(extension >= 0 ? sizeLine.substring(0, extension) : sizeLine, 16);
+			if (size == 0)
+			{
+				readLine(in);
+				return extension >= 0 && sizeLine.contains("ieof");
+			}
+			for (int i = 0; i < size; i++)
+			{
+				int b = in.read();
+				if (b == -1)
+					throw new EOFException();
+				body.write(b);
+			}
+			readLine(in);
+		}
+	}
+}
@@ -1,17 +1,29 @@
 package com.axway.antivirus.tests.tools;
 
 import com.axway.antivirus.configuration.AntivirusConfigurationHolder;
+import com.axway.antivirus.configuration.Constants;
 import com.axway.antivirus.exceptions.AntivirusException;
 import com.axway.antivirus.icap.AntivirusClient;
+import com.axway.antivirus.icap.AntivirusScanEngine;
+import com.axway.antivirus.icap.IcapConnectionPool;
+import com.axway.antivirus.icap.IcapOptionsCache;
+import com.axway.antivirus.icap.IcapServerHealth;
+import com.axway.antivirus.icap.ScanSource;
 import com.cyclonecommerce.api.inlineprocessing.Message;
 import com.cyclonecommerce.util.VirtualData;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -25,6 +37,7 @@ public class PrepareForTests
 		when(dataMock.length()).thenReturn(size);
 		when(msgMock.getData()).thenReturn(dataMock);
 		when(msgMock.getData().toFile()).thenReturn(new File("testFile.txt"));
+		when(msgMock.getData().getInputStream()).thenReturn(new ByteArrayInputStream(new byte[(int)size]));
 		return msgMock;
 	}
 
@@ -32,6 +45,9 @@ public class PrepareForTests
 	{
 		final AntivirusClient avClientMock = mock(AntivirusClient.class);
 		when(avClientMock.scanFile(any(File.class))).thenReturn(isClean);
+		when(avClientMock.scanFile(any(File.class), nullable(String.class))).thenReturn(isClean);
+		when(avClientMock.scanStream(any(InputStream.class), anyLong(), nullable(String.class))).thenReturn(isClean);
+		when(avClientMock.newScanClient()).thenReturn(avClientMock);
 
 		StringBuilder failureReason = new StringBuilder(message);
 		when(avClientMock.getFailureReason()).thenReturn(failureReason);
@@ -39,6 +55,41 @@ public class PrepareForTests
 		return avClientMock;
 	}
 
+	/**
+	 * @param port The port of the {@link FakeIcapServer} on the local host
+	 * @return The properties of a scanner profile sending the scans to the server, without background health checks
+	 */
+	public static Properties prepareEngineProperties(int port)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HOSTNAME, "127.0.0.1");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_PORT, String.valueOf(port));
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_SERVICE, "servicename");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_ICAP_SERVER_VERSION, "1.0");
+		properties.setProperty(Constants.SCANNER_CONFIGURATION_PROPERTY_HEALTH_CHECK_INTERVAL, "0");
+		return properties;
+	}
+
+	/**
+	 * @param content The text to scan
+	 * @return The source reading the text in UTF-8, as many times as needed
+	 */
+	public static ScanSource prepareSource(String content)
+	{
+		return ScanSource.of(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Forgets the engines, the connections, the options and the health of the servers used by a test
+	 */
+	public static void cleanEngines()
+	{
+		IcapServerHealth.clear();
+		IcapConnectionPool.closeAll();
+		IcapOptionsCache.getInstance().clear();
+		AntivirusScanEngine.clear();
+	}
+
 	public static AntivirusClient prepareRealClient()
 	{
 		AntivirusConfigurationHolder avConfHolder = new PropertyFileUtils().getAvConfHolderFromTemplate();
@@ -75,6 +75,7 @@ public class PropertyFileUtils
 		contents.put("fileExtensionRestriction", "antivirusID.fileExtensionRestriction=");
 		contents.put("protocolRestriction", "antivirusID.protocolRestriction=");
 		contents.put("partnerNameRestriction", "antivirusID.partnerNameRestriction=");
+		contents.put("contentTypePolicies", "antivirusID.contentTypePolicies=");
 
 		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(propsFile)));
 		for (Map.Entry<String, String> entry : contents.entrySet())
@@ -163,6 +164,15 @@ public class PropertyFileUtils
 						if (sb.toString().length() > 0)
 							writer.write(sb.toString().substring(0, sb.length() - 1));
 						break;
+					case "contentTypePolicies":
+						List<String> contentTypePolicies = avTemplateConfHolder.getContentTypePolicies();
+						sb = new StringBuilder();
+						if (!contentTypePolicies.isEmpty())
+							for (String ctPolicy : contentTypePolicies)
+								sb.append(ctPolicy + ",");
+						if (sb.toString().length() > 0)
+							writer.write(sb.toString().substring(0, sb.length() - 1));
+						break;
 				}
 				writer.newLine();
 			}